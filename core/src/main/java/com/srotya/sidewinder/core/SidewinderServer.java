@@ -56,6 +56,7 @@ import io.dropwizard.assets.AssetsBundle;
 import io.dropwizard.auth.AuthFilter;
 import io.dropwizard.auth.basic.BasicCredentialAuthFilter;
 import io.dropwizard.auth.basic.BasicCredentials;
+import io.dropwizard.lifecycle.Managed;
 import io.dropwizard.setup.Bootstrap;
 import io.dropwizard.setup.Environment;
 
@@ -73,6 +74,7 @@ public class SidewinderServer extends Application<SidewinderConfig> {
 	private static StorageEngine storageEngine;
 	private static SidewinderServer sidewinderServer;
 	private HttpServer jdbc;
+	private PointProcessor pointProcessor;
 
 	@Override
 	public void initialize(Bootstrap<SidewinderConfig> bootstrap) {
@@ -91,6 +93,7 @@ public class SidewinderServer extends Application<SidewinderConfig> {
 				new BackgrounThreadFactory("sidewinderbg-tasks"));
 		initializeStorageEngine(conf, bgTasks);
 		enableMonitoring(bgTasks);
+		initializePointProcessor(conf, env);
 		registerWebAPIs(env, conf, bgTasks);
 		checkAndEnableIngesters(conf, env);
 		checkAndRegisterFunctions(conf);
@@ -137,6 +140,7 @@ public class SidewinderServer extends Application<SidewinderConfig> {
 			Class<?> cls = Class.forName(trim);
 			if (Ingester.class.isAssignableFrom(cls)) {
 				final Ingester server = (Ingester) cls.newInstance();
+				server.setPointProcessor(pointProcessor);
 				server.init(conf, storageEngine);
 				env.lifecycle().manage(server);
 			} else {
@@ -146,7 +150,7 @@ public class SidewinderServer extends Application<SidewinderConfig> {
 	}
 
 	private void enableMonitoring(ScheduledExecutorService bgTasks) {
-		ResourceMonitor.getInstance().init(storageEngine, bgTasks);
+		ResourceMonitor.getInstance().init(storageEngine, storageEngine.getDataDirs(), bgTasks);
 	}
 
 	private void overloadProperties(SidewinderConfig config, Map<String, String> conf)
@@ -171,6 +175,28 @@ public class SidewinderServer extends Application<SidewinderConfig> {
 		storageEngine.startup();
 	}
 
+	/**
+	 * Shared ingestion engine for all write paths, managed ahead of the ingesters
+	 * so that it is stopped (and drained) only after they have stopped
+	 * 
+	 * @param conf
+	 * @param env
+	 */
+	private void initializePointProcessor(Map<String, String> conf, Environment env) {
+		pointProcessor = new PointProcessorABQ(storageEngine, conf);
+		env.lifecycle().manage(new Managed() {
+
+			@Override
+			public void start() throws Exception {
+			}
+
+			@Override
+			public void stop() throws Exception {
+				pointProcessor.shutdown();
+			}
+		});
+	}
+
 	private void registerWebAPIs(Environment env, Map<String, String> conf, ScheduledExecutorService bgTasks)
 			throws SQLException, ClassNotFoundException {
 		env.jersey().register(new GrafanaQueryApi(storageEngine));
@@ -178,8 +204,7 @@ public class SidewinderServer extends Application<SidewinderConfig> {
 		env.jersey().register(new DatabaseOpsApi(storageEngine));
 		// env.jersey().register(new SqlApi(storageEngine));
 		if (Boolean.parseBoolean(conf.getOrDefault("jersey.influx", "true"))) {
-			PointProcessor proc = new PointProcessorABQ(storageEngine, conf);
-			env.jersey().register(new InfluxApi(proc));
+			env.jersey().register(new InfluxApi(pointProcessor));
 		}
 		env.healthChecks().register("restapi", new RestAPIHealthCheck());
 
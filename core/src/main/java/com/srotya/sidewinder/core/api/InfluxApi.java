@@ -22,11 +22,14 @@ import javax.ws.rs.Consumes;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
 
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.srotya.sidewinder.core.monitoring.MetricsRegistryService;
+import com.srotya.sidewinder.core.monitoring.ResourceMonitor;
 import com.srotya.sidewinder.core.rpc.Point;
 import com.srotya.sidewinder.core.storage.processor.PointProcessor;
 import com.srotya.sidewinder.core.utils.InfluxDecoder;
@@ -49,23 +52,34 @@ public class InfluxApi {
 	@POST
 	@Consumes({ MediaType.TEXT_PLAIN })
 	public void insertData(@QueryParam("db") String dbName, @QueryParam("preSorted") boolean preSorted,
-			String payload) {
-		if (payload == null) {
+			byte[] payload) {
+		if (payload == null || payload.length == 0) {
 			throw new BadRequestException("Empty request no acceptable");
 		}
-		List<Point> dps = InfluxDecoder.pointsFromString(dbName, payload);
+		if (dbName == null || dbName.isEmpty()) {
+			throw new BadRequestException("Database name is required");
+		}
+		List<Point> dps;
+		try {
+			dps = InfluxDecoder.pointsFromBytes(dbName, payload);
+		} catch (RuntimeException e) {
+			throw new BadRequestException("Unable to parse request payload", e);
+		}
 		if (dps.isEmpty()) {
 			throw new BadRequestException("Empty request no acceptable");
 		}
+		long retryAfter = ResourceMonitor.getInstance().tryAdmit(dbName, dps.size());
+		if (retryAfter > 0) {
+			// 429 Too Many Requests
+			throw new WebApplicationException(Response.status(429)
+					.header("Retry-After", ResourceMonitor.toRetryAfterSeconds(retryAfter)).build());
+		}
 		meter.mark(dps.size());
-		for (Point dp : dps) {
-			try {
-				proc.writeDataPoint(dp);
-//				engine.writeDataPointLocked(dp, preSorted);
-			} catch (Exception e) {
-				e.printStackTrace();
-				throw new BadRequestException(e);
-			}
+		try {
+			proc.writeDataPoints(dps);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new BadRequestException(e);
 		}
 	}
 
@@ -18,11 +18,38 @@ package com.srotya.sidewinder.core.external;
 import java.util.Map;
 
 import com.srotya.sidewinder.core.storage.StorageEngine;
+import com.srotya.sidewinder.core.storage.processor.PointProcessor;
+import com.srotya.sidewinder.core.storage.processor.PointProcessorABQ;
 
 import io.dropwizard.lifecycle.Managed;
 
 public abstract class Ingester implements Managed {
 
+	private PointProcessor pointProcessor;
+
 	public abstract void init(Map<String, String> conf, StorageEngine storageEngine);
 
+	/**
+	 * Set the shared ingestion engine, must be called before
+	 * {@link #init(Map, StorageEngine)}
+	 * 
+	 * @param pointProcessor
+	 */
+	public void setPointProcessor(PointProcessor pointProcessor) {
+		this.pointProcessor = pointProcessor;
+	}
+
+	/**
+	 * @param conf
+	 * @param storageEngine
+	 * @return the shared ingestion engine or a dedicated one if this ingester
+	 *         was initialized standalone
+	 */
+	protected PointProcessor getPointProcessor(Map<String, String> conf, StorageEngine storageEngine) {
+		if (pointProcessor == null) {
+			pointProcessor = new PointProcessorABQ(storageEngine, conf);
+		}
+		return pointProcessor;
+	}
+
 }
@@ -17,14 +17,18 @@ package com.srotya.sidewinder.core.monitoring;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
 import java.lang.management.GarbageCollectorMXBean;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryMXBean;
 import java.lang.management.MemoryUsage;
+import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -37,27 +41,97 @@ import com.srotya.sidewinder.core.storage.StorageEngine;
 import com.srotya.sidewinder.core.utils.MiscUtils;
 
 /**
+ * Resource monitoring and admission control.
+ * 
+ * Heap, direct memory and the disk space of every data directory are checked
+ * against high / low watermarks; once a high watermark is crossed all writes
+ * are rejected until usage drops back below the low watermark. Additionally
+ * writes can be limited per database using token bucket quotas. Admission never
+ * blocks, rejected writes are answered with a hint of when to retry.
+ * 
  * @author ambud
  */
 public class ResourceMonitor {
 
+	public static final String CONF_HEAP_HIGH_WATERMARK = "resource.heap.high.watermark";
+	public static final String CONF_HEAP_LOW_WATERMARK = "resource.heap.low.watermark";
+	public static final String CONF_DIRECT_HIGH_WATERMARK = "resource.direct.high.watermark";
+	public static final String CONF_DIRECT_LOW_WATERMARK = "resource.direct.low.watermark";
+	public static final String CONF_DIRECT_MAX = "resource.direct.max.bytes";
+	public static final String CONF_DISK_HIGH_WATERMARK = "resource.disk.high.watermark";
+	public static final String CONF_DISK_LOW_WATERMARK = "resource.disk.low.watermark";
+	public static final String CONF_CHECK_INTERVAL = "resource.check.interval.ms";
+	public static final String CONF_QUOTA = "resource.quota.points.per.second";
 	private static final String DB = "_internal";
 	private static Logger logger = Logger.getLogger(ResourceMonitor.class.getName());
 	private static final ResourceMonitor INSTANCE = new ResourceMonitor();
 	private AtomicBoolean reject = new AtomicBoolean(false);
 	private StorageEngine storageEngine;
+	private Watermark heapWatermark;
+	private Watermark directWatermark;
+	private Map<String, Watermark> diskWatermarks;
+	private long directMax;
+	private Map<String, String> conf;
+	private Map<String, TokenBucket> quotas;
+	private long defaultQuota;
+	private long checkInterval;
 
 	private ResourceMonitor() {
+		configure(new HashMap<>(), null);
 	}
 
 	public static ResourceMonitor getInstance() {
 		return INSTANCE;
 	}
 
-	public void init(StorageEngine storageEngine, ScheduledExecutorService bgTasks) {
+	/**
+	 * Configure watermarks and quotas, resets the admission state
+	 * 
+	 * @param conf
+	 * @param dataDirs
+	 *            directories whose free space is monitored, may be null
+	 */
+	public synchronized void configure(Map<String, String> conf, String[] dataDirs) {
+		this.conf = conf;
+		heapWatermark = new Watermark("heap", Double.parseDouble(conf.getOrDefault(CONF_HEAP_HIGH_WATERMARK, "0.95")),
+				Double.parseDouble(conf.getOrDefault(CONF_HEAP_LOW_WATERMARK, "0.85")));
+		directWatermark = new Watermark("direct",
+				Double.parseDouble(conf.getOrDefault(CONF_DIRECT_HIGH_WATERMARK, "0.95")),
+				Double.parseDouble(conf.getOrDefault(CONF_DIRECT_LOW_WATERMARK, "0.85")));
+		directMax = Long.parseLong(
+				conf.getOrDefault(CONF_DIRECT_MAX, String.valueOf(Runtime.getRuntime().maxMemory())));
+		diskWatermarks = new HashMap<>();
+		if (dataDirs != null) {
+			double high = Double.parseDouble(conf.getOrDefault(CONF_DISK_HIGH_WATERMARK, "0.95"));
+			double low = Double.parseDouble(conf.getOrDefault(CONF_DISK_LOW_WATERMARK, "0.90"));
+			for (String dataDir : dataDirs) {
+				diskWatermarks.put(dataDir, new Watermark("disk:" + dataDir, high, low));
+			}
+		}
+		defaultQuota = Long.parseLong(conf.getOrDefault(CONF_QUOTA, "0"));
+		checkInterval = Long.parseLong(conf.getOrDefault(CONF_CHECK_INTERVAL, "1000"));
+		quotas = new ConcurrentHashMap<>();
+		reject.set(false);
+	}
+
+	/**
+	 * @param storageEngine
+	 * @param dataDirs
+	 *            directories whose free space is monitored, may be null
+	 * @param bgTasks
+	 */
+	public void init(StorageEngine storageEngine, String[] dataDirs, ScheduledExecutorService bgTasks) {
 		this.storageEngine = storageEngine;
 		Map<String, String> conf = new HashMap<>(storageEngine.getConf());
+		configure(conf, dataDirs);
 		if (bgTasks != null) {
+			bgTasks.scheduleAtFixedRate(() -> {
+				try {
+					checkWatermarks();
+				} catch (Exception e) {
+					logger.log(Level.SEVERE, "Failed to evaluate resource watermarks", e);
+				}
+			}, 0, checkInterval, TimeUnit.MILLISECONDS);
 			if (!MetricsRegistryService.DISABLE_SELF_MONITORING) {
 				try {
 					storageEngine.getOrCreateDatabase(DB, 28, conf);
@@ -160,8 +234,186 @@ public class ResourceMonitor {
 		}
 	}
 
+	/**
+	 * Sample resource usage and update the reject flag
+	 */
+	public void checkWatermarks() {
+		MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+		long heapMax = heap.getMax() == -1 ? Runtime.getRuntime().maxMemory() : heap.getMax();
+		boolean tripped = heapWatermark.update((double) heap.getUsed() / heapMax);
+		long directUsed = 0;
+		for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+			if (pool.getName().equals("direct")) {
+				directUsed = pool.getMemoryUsed();
+			}
+		}
+		tripped |= directWatermark.update((double) directUsed / directMax);
+		for (Map.Entry<String, Watermark> entry : diskWatermarks.entrySet()) {
+			File dir = new File(entry.getKey());
+			long total = dir.getTotalSpace();
+			if (total > 0) {
+				tripped |= entry.getValue().update(1 - (double) dir.getUsableSpace() / total);
+			}
+		}
+		if (reject.getAndSet(tripped) != tripped) {
+			if (tripped) {
+				logger.severe("Resource watermark exceeded, rejecting writes:" + getTrippedWatermarks());
+			} else {
+				logger.info("Resource usage back below low watermarks, accepting writes");
+			}
+		}
+	}
+
+	/**
+	 * Admission check for a write of the supplied number of points
+	 * 
+	 * @param dbName
+	 * @param points
+	 * @return true if the write should be accepted
+	 */
+	public boolean admit(String dbName, int points) {
+		return tryAdmit(dbName, points) == 0;
+	}
+
+	/**
+	 * Admission check for a write of the supplied number of points, doesn't
+	 * block if the database is over its quota
+	 * 
+	 * @param dbName
+	 * @param points
+	 * @return 0 if the write should be accepted otherwise milliseconds after
+	 *         which the write should be retried
+	 */
+	public long tryAdmit(String dbName, int points) {
+		if (reject.get()) {
+			return checkInterval;
+		}
+		TokenBucket quota = getQuota(dbName);
+		if (quota == null) {
+			return 0;
+		}
+		return quota.tryAcquire(points);
+	}
+
+	/**
+	 * Admission check for a batch whose points may belong to different
+	 * databases, every database is charged for its own points. Nothing is
+	 * charged if the write is rejected.
+	 * 
+	 * @param points
+	 * @return 0 if the write should be accepted otherwise milliseconds after
+	 *         which the write should be retried
+	 */
+	public long tryAdmit(List<Point> points) {
+		if (reject.get()) {
+			return checkInterval;
+		}
+		Map<String, Integer> counts = new HashMap<>();
+		for (int i = 0; i < points.size(); i++) {
+			counts.merge(points.get(i).getDbName(), 1, Integer::sum);
+		}
+		List<Map.Entry<TokenBucket, Integer>> acquired = new ArrayList<>(counts.size());
+		for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+			TokenBucket quota = getQuota(entry.getKey());
+			if (quota == null) {
+				continue;
+			}
+			long retryAfter = quota.tryAcquire(entry.getValue());
+			if (retryAfter > 0) {
+				for (Map.Entry<TokenBucket, Integer> charged : acquired) {
+					charged.getKey().release(charged.getValue());
+				}
+				return retryAfter;
+			}
+			acquired.add(new AbstractMap.SimpleEntry<>(quota, entry.getValue()));
+		}
+		return 0;
+	}
+
+	/**
+	 * @param retryAfterMs
+	 * @return retry hint rounded up to whole seconds for the Retry-After header
+	 */
+	public static long toRetryAfterSeconds(long retryAfterMs) {
+		return Math.max(1, TimeUnit.MILLISECONDS.toSeconds(retryAfterMs + 999));
+	}
+
+	private TokenBucket getQuota(String dbName) {
+		if (dbName == null) {
+			return null;
+		}
+		TokenBucket quota = quotas.get(dbName);
+		if (quota == null) {
+			long rate = Long.parseLong(conf.getOrDefault(CONF_QUOTA + "." + dbName, String.valueOf(defaultQuota)));
+			if (rate <= 0) {
+				return null;
+			}
+			quota = quotas.computeIfAbsent(dbName, k -> new TokenBucket(rate));
+		}
+		return quota;
+	}
+
+	public List<String> getTrippedWatermarks() {
+		List<String> list = new ArrayList<>();
+		for (Watermark watermark : Arrays.asList(heapWatermark, directWatermark)) {
+			if (watermark.isTripped()) {
+				list.add(watermark.getName());
+			}
+		}
+		for (Watermark watermark : diskWatermarks.values()) {
+			if (watermark.isTripped()) {
+				list.add(watermark.getName());
+			}
+		}
+		return list;
+	}
+
 	public boolean isReject() {
 		return reject.get();
 	}
 
+	/**
+	 * High / low watermark pair with hysteresis
+	 */
+	public static class Watermark {
+
+		private final String name;
+		private final double high;
+		private final double low;
+		private volatile boolean tripped;
+
+		public Watermark(String name, double high, double low) {
+			if (low > high) {
+				throw new IllegalArgumentException(
+						"Low watermark(" + low + ") can't be greater than high watermark(" + high + ") for:" + name);
+			}
+			this.name = name;
+			this.high = high;
+			this.low = low;
+		}
+
+		/**
+		 * @param usage
+		 *            fraction of the resource in use
+		 * @return true if the watermark is tripped
+		 */
+		public boolean update(double usage) {
+			if (tripped) {
+				tripped = usage > low;
+			} else {
+				tripped = usage >= high;
+			}
+			return tripped;
+		}
+
+		public boolean isTripped() {
+			return tripped;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+	}
+
 }
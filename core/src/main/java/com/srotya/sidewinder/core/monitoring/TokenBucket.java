@@ -0,0 +1,85 @@
+/**
+ * Copyright Ambud Sharma
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.srotya.sidewinder.core.monitoring;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket used to enforce write quotas; the bucket refills at rate tokens
+ * per second and holds at most one second worth of tokens.
+ * 
+ * @author ambud
+ */
+public class TokenBucket {
+
+	private final long rate;
+	private final long capacity;
+	private double tokens;
+	private long lastRefill;
+
+	/**
+	 * @param rate
+	 *            tokens per second
+	 */
+	public TokenBucket(long rate) {
+		if (rate <= 0) {
+			throw new IllegalArgumentException("Token bucket rate must be positive:" + rate);
+		}
+		this.rate = rate;
+		this.capacity = rate;
+		this.tokens = rate;
+		this.lastRefill = System.nanoTime();
+	}
+
+	/**
+	 * Acquire tokens without waiting for the bucket to refill. Requests larger
+	 * than the bucket are admitted once the bucket is full so that large batches
+	 * can't be starved.
+	 * 
+	 * @param count
+	 * @return 0 if the tokens were acquired otherwise milliseconds until the
+	 *         bucket holds enough tokens for a retry
+	 */
+	public synchronized long tryAcquire(int count) {
+		refill();
+		long needed = Math.min(count, capacity);
+		if (tokens >= needed) {
+			tokens -= count;
+			return 0;
+		}
+		return Math.max(1, (long) Math.ceil((needed - tokens) * 1000 / rate));
+	}
+
+	/**
+	 * Return tokens of a request that was rejected after acquiring them
+	 * 
+	 * @param count
+	 */
+	public synchronized void release(int count) {
+		tokens = Math.min(capacity, tokens + count);
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(capacity, tokens + (now - lastRefill) * (double) rate / TimeUnit.SECONDS.toNanos(1));
+		lastRefill = now;
+	}
+
+	public long getRate() {
+		return rate;
+	}
+
+}
@@ -60,19 +60,23 @@ public class GRPCServer extends Ingester {
 			logger.log(Level.SEVERE, "Failed to terminate GRPC server", e);
 		}
 		es.shutdownNow();
-		try {
-			writer.getDisruptor().shutdown(100, TimeUnit.SECONDS);
-		} catch (TimeoutException e) {
-			logger.log(Level.SEVERE, "Failed to terminate GRPC disruptor", e);
+		writer.getAckScheduler().shutdownNow();
+		writer.getStreamExecutor().shutdown();
+		if (writer.getDisruptor() != null) {
+			try {
+				writer.getDisruptor().shutdown(100, TimeUnit.SECONDS);
+			} catch (TimeoutException e) {
+				logger.log(Level.SEVERE, "Failed to terminate GRPC disruptor", e);
+			}
+			writer.getEs().shutdownNow();
 		}
-		writer.getEs().shutdownNow();
 	}
 
 	@Override
 	public void init(Map<String, String> conf, StorageEngine storageEngine) {
 		threadCount = Integer.parseInt(
 				conf.getOrDefault(ConfigConstants.GRPC_EXECUTOR_COUNT, ConfigConstants.DEFAULT_GRPC_EXECUTOR_COUNT));
-		writer = new WriterServiceImpl(storageEngine, conf);
+		writer = new WriterServiceImpl(storageEngine, getPointProcessor(conf, storageEngine), conf);
 		serverBuilder = NettyServerBuilder
 				.forPort(Integer.parseInt(conf.getOrDefault(ConfigConstants.GRPC_PORT, ConfigConstants.DEFAULT_GRPC_PORT)))
 				.decompressorRegistry(DecompressorRegistry.getDefaultInstance());
@@ -16,20 +16,34 @@
 package com.srotya.sidewinder.core.rpc;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import com.lmax.disruptor.EventFactory;
 import com.lmax.disruptor.EventHandler;
 import com.lmax.disruptor.EventTranslatorThreeArg;
 import com.lmax.disruptor.RingBuffer;
 import com.lmax.disruptor.dsl.Disruptor;
+import com.srotya.sidewinder.core.monitoring.ResourceMonitor;
 import com.srotya.sidewinder.core.rpc.WriterServiceGrpc.WriterServiceImplBase;
+import com.srotya.sidewinder.core.storage.RejectException;
 import com.srotya.sidewinder.core.storage.StorageEngine;
+import com.srotya.sidewinder.core.storage.processor.PointProcessor;
 import com.srotya.sidewinder.core.utils.BackgrounThreadFactory;
 
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 
 /**
@@ -40,6 +54,9 @@ public class WriterServiceImpl extends WriterServiceImplBase {
 	private static final String GRPC_DISRUPTOR_ENABLED = "grpc.disruptor.enabled";
 	private static final String GRPC_DISRUPTOR_BUFFER_SIZE = "grpc.disruptor.buffer.size";
 	private static final String GRPC_DISRUPTOR_HANDLER_COUNT = "grpc.disruptor.handler.count";
+	public static final String GRPC_STREAM_ACK_COUNT = "grpc.stream.ack.count";
+	public static final String GRPC_STREAM_ACK_INTERVAL_MS = "grpc.stream.ack.interval.ms";
+	public static final String GRPC_STREAM_WINDOW = "grpc.stream.window";
 	private RingBuffer<DPWrapper> buffer;
 	private Disruptor<DPWrapper> disruptor;
 	private StorageEngine engine;
@@ -47,10 +64,33 @@ public class WriterServiceImpl extends WriterServiceImplBase {
 	private ExecutorService es;
 	private boolean disruptorEnable;
 	private DataPointTranslator translator;
+	private PointProcessor processor;
+	private ScheduledExecutorService ackScheduler;
+	private ExecutorService streamExecutor;
+	private int streamAckCount;
+	private int streamAckInterval;
+	private int streamWindow;
 
-	@SuppressWarnings("unchecked")
 	public WriterServiceImpl(StorageEngine engine, Map<String, String> conf) {
+		this(engine, null, conf);
+	}
+
+	/**
+	 * @param engine
+	 * @param processor
+	 *            ingestion engine writes are handed off to, null to write to the
+	 *            storage engine synchronously
+	 * @param conf
+	 */
+	@SuppressWarnings("unchecked")
+	public WriterServiceImpl(StorageEngine engine, PointProcessor processor, Map<String, String> conf) {
 		this.engine = engine;
+		this.processor = processor;
+		streamAckCount = Integer.parseInt(conf.getOrDefault(GRPC_STREAM_ACK_COUNT, "1000"));
+		streamAckInterval = Integer.parseInt(conf.getOrDefault(GRPC_STREAM_ACK_INTERVAL_MS, "100"));
+		streamWindow = Integer.parseInt(conf.getOrDefault(GRPC_STREAM_WINDOW, "10000"));
+		ackScheduler = Executors.newSingleThreadScheduledExecutor(new BackgrounThreadFactory("grpc-stream-acks"));
+		streamExecutor = Executors.newCachedThreadPool(new BackgrounThreadFactory("grpc-stream-writers"));
 		disruptorEnable = Boolean.parseBoolean(conf.getOrDefault(GRPC_DISRUPTOR_ENABLED, "false"));
 		if (disruptorEnable) {
 			int bufferSize = Integer.parseInt(conf.getOrDefault(GRPC_DISRUPTOR_BUFFER_SIZE, "65536"));
@@ -71,13 +111,42 @@ public class WriterServiceImpl extends WriterServiceImplBase {
 		}
 	}
 
+	/**
+	 * Run admission control for a write, failing the call with
+	 * RESOURCE_EXHAUSTED if it's rejected
+	 * 
+	 * @param dbName
+	 * @param points
+	 * @param responseObserver
+	 * @return true if the write was admitted
+	 */
+	private static boolean admit(String dbName, int points, StreamObserver<Ack> responseObserver) {
+		return admitted(ResourceMonitor.getInstance().tryAdmit(dbName, points), responseObserver);
+	}
+
+	private static boolean admitted(long retryAfterMs, StreamObserver<Ack> responseObserver) {
+		if (retryAfterMs == 0) {
+			return true;
+		}
+		responseObserver.onError(Status.RESOURCE_EXHAUSTED
+				.withDescription("Write rejected; server overloaded or database over quota, retry after:"
+						+ retryAfterMs + "ms")
+				.asRuntimeException());
+		return false;
+	}
+
 	@Override
 	public void writeSingleDataPoint(SingleData request, StreamObserver<Ack> responseObserver) {
 		Point point = request.getPoint();
+		if (!admit(point.getDbName(), 1, responseObserver)) {
+			return;
+		}
 		Ack ack = null;
 		try {
 			if (disruptorEnable) {
 				buffer.publishEvent(translator, point, request.getMessageId(), null);
+			} else if (processor != null) {
+				processor.writeDataPoint(point);
 			} else {
 				engine.writeDataPointLocked(point, true);
 			}
@@ -91,16 +160,20 @@ public class WriterServiceImpl extends WriterServiceImplBase {
 
 	@Override
 	public void writeBatchDataPoint(BatchData request, StreamObserver<Ack> responseObserver) {
+		List<Point> pointsList = request.getPointsList();
+		if (!admitted(ResourceMonitor.getInstance().tryAdmit(pointsList), responseObserver)) {
+			return;
+		}
 		Ack ack = null;
 		try {
-			List<Point> pointsList = request.getPointsList();
-			for (int i = 0; i < pointsList.size(); i++) {
-				Point point = pointsList.get(i);
-				if (disruptorEnable) {
-					buffer.publishEvent(translator, point, request.getMessageId(), null);
-				} else {
-					engine.writeDataPointLocked(point, true);
+			if (disruptorEnable) {
+				for (int i = 0; i < pointsList.size(); i++) {
+					buffer.publishEvent(translator, pointsList.get(i), request.getMessageId(), null);
 				}
+			} else if (processor != null) {
+				processor.writeDataPoints(pointsList);
+			} else {
+				engine.writeDataPoints(pointsList);
 			}
 			ack = Ack.newBuilder().setMessageId(request.getMessageId()).setResponseCode(200).build();
 		} catch (Exception e) {
@@ -111,23 +184,45 @@ public class WriterServiceImpl extends WriterServiceImplBase {
 		responseObserver.onCompleted();
 	}
 
-	// @Override
-	// public void writeSeriesPoint(RawTimeSeriesBucket request, StreamObserver<Ack>
-	// responseObserver) {
-	// Ack ack;
-	// try {
-	// TimeSeries series = engine.getOrCreateTimeSeries(request.getDbName(),
-	// request.getMeasurementName(),
-	// request.getValueFieldName(), new ArrayList<>(request.getTagsList()),
-	// request.getBucketSize(),
-	// request.getFp());
-	// for (Bucket bucket : request.getBucketsList()) {
-	// Writer writer = series.getOrCreateSeriesBucket(TimeUnit.MILLISECONDS,
-	// bucket.getHeaderTimestamp());
-	// writer.configure(null, false, 1, true);
-	// writer.setCounter(bucket.getCount());
-	// writer.bootstrap(bucket.getData().asReadOnlyByteBuffer());
-	// }
+	@Override
+	public void writeSeriesBatch(SeriesBatch request, StreamObserver<Ack> responseObserver) {
+		if (!admit(request.getDbName(), request.getTimestampCount(), responseObserver)) {
+			return;
+		}
+		Ack ack = null;
+		try {
+			if (processor != null) {
+				processor.writeSeriesBatch(request);
+			} else {
+				engine.writeSeriesBatch(request);
+			}
+			ack = Ack.newBuilder().setMessageId(request.getMessageId()).setResponseCode(200).build();
+		} catch (RejectException e) {
+			ack = Ack.newBuilder().setMessageId(request.getMessageId()).setResponseCode(400).build();
+		} catch (Exception e) {
+			ack = Ack.newBuilder().setMessageId(request.getMessageId()).setResponseCode(500).build();
+		}
+		responseObserver.onNext(ack);
+		responseObserver.onCompleted();
+	}
+
+	@Override
+	public void writeSeriesPoint(RawTimeSeriesBucket request, StreamObserver<Ack> responseObserver) {
+		if (!admit(request.getDbName(), 1, responseObserver)) {
+			return;
+		}
+		Ack ack;
+		try {
+			engine.writeSeriesBuckets(request);
+			ack = Ack.newBuilder().setMessageId(request.getMessageId()).setResponseCode(200).build();
+		} catch (RejectException e) {
+			ack = Ack.newBuilder().setMessageId(request.getMessageId()).setResponseCode(400).build();
+		} catch (Exception e) {
+			ack = Ack.newBuilder().setMessageId(request.getMessageId()).setResponseCode(500).build();
+		}
+		responseObserver.onNext(ack);
+		responseObserver.onCompleted();
+	}
 	// ack =
 	// Ack.newBuilder().setMessageId(request.getMessageId()).setResponseCode(200).build();
 	// } catch (Exception e) {
@@ -140,7 +235,8 @@ public class WriterServiceImpl extends WriterServiceImplBase {
 
 	@Override
 	public StreamObserver<SingleData> writeDataPointStream(final StreamObserver<Ack> responseObserver) {
-		return new WriteStreamObserver(buffer, responseObserver);
+		return new WriteStreamObserver(engine, processor, responseObserver, streamAckCount, streamAckInterval,
+				streamWindow, ackScheduler, streamExecutor);
 	}
 
 	/**
@@ -150,6 +246,20 @@ public class WriterServiceImpl extends WriterServiceImplBase {
 		return disruptor;
 	}
 
+	/**
+	 * @return the ackScheduler
+	 */
+	public ScheduledExecutorService getAckScheduler() {
+		return ackScheduler;
+	}
+
+	/**
+	 * @return the streamExecutor
+	 */
+	public ExecutorService getStreamExecutor() {
+		return streamExecutor;
+	}
+
 	/**
 	 * @return the es
 	 */
@@ -254,7 +364,7 @@ public class WriterServiceImpl extends WriterServiceImplBase {
 
 		@Override
 		public void onEvent(DPWrapper event, long sequence, boolean endOfBatch) throws Exception {
-			if (event.getHashValue() % handlerCount == handlerIndex) {
+			if (Math.floorMod(event.getHashValue(), handlerCount) == handlerIndex) {
 				Ack ack = null;
 				try {
 					engine.writeDataPointUnlocked(event.getDp(), true);
@@ -273,29 +383,172 @@ public class WriterServiceImpl extends WriterServiceImplBase {
 
 	}
 
+	/**
+	 * Flow controlled stream of points. Incoming messages are buffered and
+	 * handed to the writer in batches; once a batch is written (and synced as
+	 * configured for the storage) a single cumulative ack is sent with the
+	 * highest messageId of the batch. A batch is handed off once ackCount
+	 * messages are pending or every ackInterval milliseconds.
+	 * 
+	 * Batches of a stream can be in flight concurrently, acks are chained so
+	 * they are still sent in order. Only window messages are requested from the
+	 * client at a time and more are requested as written batches are acked, so
+	 * slow writes push back on the client instead of piling up on the server.
+	 * 
+	 * The scheduler only triggers interval flushes; handing a batch to the
+	 * writer (which blocks while the writer queue is full) and sending acks runs
+	 * on the executor, so a slow stream doesn't hold up the others.
+	 */
 	public static class WriteStreamObserver implements StreamObserver<SingleData> {
 
-		private RingBuffer<DPWrapper> ring;
-		private DataPointTranslator translator;
+		private static final Logger logger = Logger.getLogger(WriteStreamObserver.class.getName());
+		private StorageEngine engine;
+		private PointProcessor processor;
 		private StreamObserver<Ack> responseObserver;
+		private ServerCallStreamObserver<Ack> flowControl;
+		private Executor executor;
+		private List<Point> pending;
+		private long lastMessageId = -1;
+		private int ackCount;
+		private ScheduledFuture<?> flushTask;
+		private CompletableFuture<Void> ackChain;
+		private boolean closed;
 
-		public WriteStreamObserver(RingBuffer<DPWrapper> wrapper, StreamObserver<Ack> responseObserver) {
-			this.ring = wrapper;
+		/**
+		 * @param engine
+		 * @param processor
+		 * @param responseObserver
+		 * @param ackCount
+		 * @param ackInterval
+		 * @param window
+		 * @param scheduler
+		 *            triggers interval flushes, null to only flush on ackCount
+		 * @param executor
+		 *            runs interval flushes and acks, null to run them on the
+		 *            calling thread
+		 */
+		public WriteStreamObserver(StorageEngine engine, PointProcessor processor,
+				StreamObserver<Ack> responseObserver, int ackCount, int ackInterval, int window,
+				ScheduledExecutorService scheduler, Executor executor) {
+			this.engine = engine;
+			this.processor = processor;
 			this.responseObserver = responseObserver;
-			this.translator = new DataPointTranslator();
+			this.ackCount = ackCount;
+			this.executor = executor != null ? executor : Runnable::run;
+			this.pending = new ArrayList<>(ackCount);
+			this.ackChain = CompletableFuture.completedFuture(null);
+			if (responseObserver instanceof ServerCallStreamObserver) {
+				flowControl = (ServerCallStreamObserver<Ack>) responseObserver;
+				flowControl.disableAutoInboundFlowControl();
+				flowControl.request(window);
+			}
+			if (scheduler != null) {
+				flushTask = scheduler.scheduleAtFixedRate(() -> this.executor.execute(this::flush), ackInterval,
+						ackInterval, TimeUnit.MILLISECONDS);
+			}
 		}
 
 		@Override
-		public void onNext(SingleData value) {
-			ring.publishEvent(translator, value.getPoint(), value.getMessageId(), responseObserver);
+		public synchronized void onNext(SingleData value) {
+			if (closed) {
+				return;
+			}
+			pending.add(value.getPoint());
+			lastMessageId = value.getMessageId();
+			if (pending.size() >= ackCount) {
+				flush();
+			}
+		}
+
+		/**
+		 * Hand pending points to the writer and chain a cumulative ack that is
+		 * sent once they are written
+		 */
+		public synchronized void flush() {
+			if (pending.isEmpty() || closed) {
+				return;
+			}
+			List<Point> batch = pending;
+			pending = new ArrayList<>(ackCount);
+			final long messageId = lastMessageId;
+			final int count = batch.size();
+			final long retryAfter = ResourceMonitor.getInstance().tryAdmit(batch);
+			CompletableFuture<Integer> result;
+			if (retryAfter > 0) {
+				// shed the batch but keep the stream open, the client retries on 429
+				result = CompletableFuture.completedFuture(429);
+			} else {
+				try {
+					result = write(batch).handle((v, e) -> responseCode(e, count));
+				} catch (Exception e) {
+					result = CompletableFuture.completedFuture(responseCode(e, count));
+				}
+			}
+			final CompletableFuture<Integer> written = result;
+			ackChain = ackChain.thenCompose(v -> written)
+					.thenAcceptAsync(code -> ack(messageId, code, retryAfter, count), executor);
+		}
+
+		private CompletableFuture<Void> write(List<Point> batch) throws Exception {
+			if (processor != null) {
+				return processor.writeDataPointsAsync(batch);
+			}
+			engine.writeDataPoints(batch);
+			return CompletableFuture.completedFuture(null);
+		}
+
+		private static int responseCode(Throwable e, int count) {
+			if (e == null) {
+				return 200;
+			}
+			if (e instanceof CompletionException && e.getCause() != null) {
+				e = e.getCause();
+			}
+			if (e instanceof RejectException) {
+				return 400;
+			}
+			if (e instanceof InterruptedException) {
+				Thread.currentThread().interrupt();
+			} else {
+				logger.log(Level.SEVERE, "Failed to write stream batch of " + count + " points", e);
+			}
+			return 500;
+		}
+
+		private void ack(long messageId, int responseCode, long retryAfter, int count) {
+			try {
+				responseObserver.onNext(Ack.newBuilder().setMessageId(messageId).setResponseCode(responseCode)
+						.setRetryAfterMs(retryAfter).build());
+				if (flowControl != null) {
+					flowControl.request(count);
+				}
+			} catch (Exception e) {
+				// stream was cancelled by the client
+				synchronized (this) {
+					close();
+				}
+			}
 		}
 
 		@Override
-		public void onError(Throwable t) {
+		public synchronized void onError(Throwable t) {
+			logger.fine("Stream terminated with error:" + t.getMessage());
+			close();
 		}
 
 		@Override
-		public void onCompleted() {
+		public synchronized void onCompleted() {
+			flush();
+			close();
+			// complete after the acks of all batches have been sent
+			ackChain.whenComplete((v, e) -> responseObserver.onCompleted());
+		}
+
+		private void close() {
+			closed = true;
+			if (flushTask != null) {
+				flushTask.cancel(false);
+			}
 		}
 
 	}
@@ -23,15 +23,20 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NoSuchElementException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.apache.calcite.linq4j.Enumerator;
 
 import com.srotya.sidewinder.core.rpc.Tag;
 import com.srotya.sidewinder.core.storage.ByteString;
 import com.srotya.sidewinder.core.storage.FieldReaderIterator;
+import com.srotya.sidewinder.core.storage.Malloc;
+import com.srotya.sidewinder.core.storage.Measurement;
 import com.srotya.sidewinder.core.storage.compression.FilteredValueException;
 
 final class MeasurementEnumeratorImplementation implements Enumerator<Object[]> {
+	private static final Logger logger = Logger.getLogger(MeasurementEnumeratorImplementation.class.getName());
 	/**
 	 * 
 	 */
@@ -47,6 +52,9 @@ final class MeasurementEnumeratorImplementation implements Enumerator<Object[]>
 	private boolean tagOnly = false;
 	private List<Boolean> fTypes;
 	private long queryTs;
+	// readers hold on to the buffers until the enumerator is closed
+	private Malloc malloc;
+	private long readTicket;
 
 	public MeasurementEnumeratorImplementation(MeasurementTable measurementTable, Entry<Long, Long> range,
 			List<String> fields, List<Boolean> fTypes) {
@@ -61,8 +69,8 @@ final class MeasurementEnumeratorImplementation implements Enumerator<Object[]>
 		try {
 			initializeIterator();
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			logger.log(Level.SEVERE, "Failed to reset enumerator for:" + measurementTable.dbName + "."
+					+ measurementTable.measurementName, e);
 		}
 	}
 
@@ -94,12 +102,27 @@ final class MeasurementEnumeratorImplementation implements Enumerator<Object[]>
 		try {
 			if (readers == null) {
 				queryTs = System.currentTimeMillis();
+				Map<String, Measurement> measurements = this.measurementTable.getStorageEngine().getMeasurementMap()
+						.get(this.measurementTable.dbName);
+				Measurement measurement = measurements == null ? null
+						: measurements.get(this.measurementTable.measurementName);
+				if (measurement == null) {
+					logger.fine(() -> "Measurement not found:" + measurementTable.dbName + "."
+							+ measurementTable.measurementName);
+					return false;
+				}
+				malloc = measurement.getMalloc();
+				readTicket = malloc.enterRead();
 				try {
 					readers = this.measurementTable.getStorageEngine().queryReaders(this.measurementTable.dbName,
 							this.measurementTable.measurementName, fields, false, range.getKey(), range.getValue());
 					initializeIterator();
 				} catch (Exception e) {
-					e.printStackTrace();
+					logger.log(Level.SEVERE, "Failed to query readers for:" + measurementTable.dbName + "."
+							+ measurementTable.measurementName, e);
+					readers = null;
+					malloc.leaveRead(readTicket);
+					malloc = null;
 					return false;
 				}
 			}
@@ -116,7 +139,8 @@ final class MeasurementEnumeratorImplementation implements Enumerator<Object[]>
 				return false;
 			}
 		} catch (Exception e) {
-			e.printStackTrace();
+			logger.log(Level.SEVERE, "Failed to read next row for:" + measurementTable.dbName + "."
+					+ measurementTable.measurementName, e);
 			return false;
 		}
 	}
@@ -200,6 +224,10 @@ final class MeasurementEnumeratorImplementation implements Enumerator<Object[]>
 
 	@Override
 	public void close() {
+		if (malloc != null) {
+			malloc.leaveRead(readTicket);
+			malloc = null;
+		}
 		readers = null;
 		iterator = null;
 		next = null;
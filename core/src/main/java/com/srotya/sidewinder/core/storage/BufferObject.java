@@ -50,5 +50,12 @@ public class BufferObject {
 	public void setBuf(ByteBuffer buf) {
 		this.buf = buf;
 	}
+	/**
+	 * @return the buf to read from, allocators that map buffers on first access
+	 *         may return a view that isn't kept once the caller drops it
+	 */
+	public ByteBuffer getReadBuf() {
+		return getBuf();
+	}
 
 }
@@ -0,0 +1,102 @@
+/**
+ * Copyright Ambud Sharma
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.srotya.sidewinder.core.storage;
+
+import java.util.Map;
+
+/**
+ * Picks the size of the buffer backing the n-th writer of a field in a time
+ * bucket.
+ * 
+ * With adaptive sizing disabled every buffer gets the fixed increment. With it
+ * enabled the first buffer of a field starts at the initial size and every
+ * subsequent buffer grows geometrically up to the maximum, so sparse series
+ * don't reserve a full increment per bucket while hot series quickly reach
+ * large buffers and keep their writer chains short.
+ * 
+ * @author ambud
+ */
+public class BufferSizePolicy {
+
+	public static final String CONF_BUF_ADAPTIVE = "malloc.buf.adaptive";
+	public static final String CONF_BUF_INITIAL_SIZE = "malloc.buf.initial";
+	public static final String CONF_BUF_GROWTH_FACTOR = "malloc.buf.growth";
+	public static final String CONF_BUF_MAX_SIZE = "malloc.buf.max";
+	public static final int DEFAULT_INITIAL_SIZE = 512;
+	public static final int DEFAULT_GROWTH_FACTOR = 2;
+	private final boolean adaptive;
+	private final int initialSize;
+	private final int growthFactor;
+	private final int maxSize;
+
+	public BufferSizePolicy(int fixedSize) {
+		this(false, fixedSize, 1, fixedSize);
+	}
+
+	public BufferSizePolicy(boolean adaptive, int initialSize, int growthFactor, int maxSize) {
+		if (initialSize <= 0 || maxSize < initialSize) {
+			throw new IllegalArgumentException(
+					"Invalid buffer sizes, initial:" + initialSize + " max:" + maxSize + " must be 0 < initial <= max");
+		}
+		if (growthFactor < 1) {
+			throw new IllegalArgumentException("Buffer growth factor must be at least 1:" + growthFactor);
+		}
+		this.adaptive = adaptive;
+		this.initialSize = initialSize;
+		this.growthFactor = growthFactor;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @param conf
+	 * @param increment
+	 *            fixed buffer size, also the default maximum for adaptive sizing
+	 * @return policy configured from the supplied conf
+	 */
+	public static BufferSizePolicy fromConf(Map<String, String> conf, int increment) {
+		boolean adaptive = Boolean.parseBoolean(conf.getOrDefault(CONF_BUF_ADAPTIVE, "false"));
+		if (!adaptive) {
+			return new BufferSizePolicy(increment);
+		}
+		int maxSize = Integer.parseInt(conf.getOrDefault(CONF_BUF_MAX_SIZE, String.valueOf(increment)));
+		int initialSize = Integer.parseInt(conf.getOrDefault(CONF_BUF_INITIAL_SIZE,
+				String.valueOf(Math.min(DEFAULT_INITIAL_SIZE, maxSize))));
+		int growthFactor = Integer
+				.parseInt(conf.getOrDefault(CONF_BUF_GROWTH_FACTOR, String.valueOf(DEFAULT_GROWTH_FACTOR)));
+		return new BufferSizePolicy(true, initialSize, growthFactor, maxSize);
+	}
+
+	/**
+	 * @param writerIndex
+	 *            number of writers the field already has in this bucket
+	 * @return size of the next buffer
+	 */
+	public int sizeFor(int writerIndex) {
+		if (!adaptive) {
+			return maxSize;
+		}
+		long size = initialSize;
+		for (int i = 0; i < writerIndex && size < maxSize; i++) {
+			size *= growthFactor;
+		}
+		return (int) Math.min(size, maxSize);
+	}
+
+	public boolean isAdaptive() {
+		return adaptive;
+	}
+
+}
@@ -25,7 +25,10 @@ import javax.annotation.concurrent.NotThreadSafe;
 
 public class ByteString implements Comparable<ByteString> {
 
+	public static final long HASH64_SEED = 0xcbf29ce484222325L;
+	private static final long HASH64_PRIME = 0x100000001b3L;
 	private byte[] data;
+	private int hash;
 
 	public static ByteString get(String str) {
 		return new ByteString(str);
@@ -67,15 +70,75 @@ public class ByteString implements Comparable<ByteString> {
 
 	@Override
 	public int hashCode() {
-		int h = 0;
-		if (data != null) {
+		int h = hash;
+		if (h == 0 && data != null) {
 			for (int i = 0; i < data.length; i++) {
 				h = 31 * h + data[i];
 			}
+			hash = h;
 		}
 		return h;
 	}
 
+	/**
+	 * 64-bit FNV-1a hash of this string
+	 * 
+	 * @return hash
+	 */
+	public long hash64() {
+		long h = HASH64_SEED;
+		for (int i = 0; i < data.length; i++) {
+			h = (h ^ (data[i] & 0xff)) * HASH64_PRIME;
+		}
+		return h;
+	}
+
+	/**
+	 * Continue a 64-bit FNV-1a hash over the supplied string, consistent with
+	 * {@link #hash64()} of the equivalent {@link ByteString}
+	 * 
+	 * @param h
+	 * @param str
+	 * @return hash
+	 */
+	public static long hash64(long h, String str) {
+		for (int i = 0; i < str.length(); i++) {
+			h = (h ^ (((byte) str.charAt(i)) & 0xff)) * HASH64_PRIME;
+		}
+		return h;
+	}
+
+	/**
+	 * Continue a 64-bit FNV-1a hash over the supplied character
+	 * 
+	 * @param h
+	 * @param ch
+	 * @return hash
+	 */
+	public static long hash64(long h, char ch) {
+		return (h ^ (((byte) ch) & 0xff)) * HASH64_PRIME;
+	}
+
+	/**
+	 * Compare the supplied string with the bytes of this string starting at the
+	 * supplied offset without materializing either of them
+	 * 
+	 * @param offset
+	 * @param str
+	 * @return offset right after the matched region or -1 if it doesn't match
+	 */
+	public int regionMatches(int offset, String str) {
+		if (offset < 0 || offset + str.length() > data.length) {
+			return -1;
+		}
+		for (int i = 0; i < str.length(); i++) {
+			if (data[offset + i] != (byte) str.charAt(i)) {
+				return -1;
+			}
+		}
+		return offset + str.length();
+	}
+
 	@Override
 	public boolean equals(Object obj) {
 		if (this == obj) {
@@ -20,6 +20,7 @@ public class DBMetadata {
 	private int retentionHours;
 	private int bufIncrementSize;
 	private int fileIncrementSize;
+	private transient TagDictionary tagDictionary;
 	
 	public DBMetadata() {
 	}
@@ -60,4 +61,15 @@ public class DBMetadata {
 		this.fileIncrementSize = fileIncrementSize;
 	}
 
+	/**
+	 * @return the tag dictionary shared by all measurements of this database
+	 */
+	public TagDictionary getTagDictionary() {
+		return tagDictionary;
+	}
+
+	public void setTagDictionary(TagDictionary tagDictionary) {
+		this.tagDictionary = tagDictionary;
+	}
+
 }
@@ -1,6 +1,8 @@
 package com.srotya.sidewinder.core.storage;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.locks.Lock;
 import java.util.function.Consumer;
@@ -13,8 +15,41 @@ import com.srotya.sidewinder.core.storage.compression.Writer;
 
 public interface Field {
 
+	/**
+	 * Buffer index flag in the list index header byte that marks a late-arrival
+	 * writer
+	 */
+	public static final int LATE_WRITER_FLAG = 0x80;
+
 	public void addDataPoint(Measurement measurement, long value) throws IOException;
 
+	/**
+	 * Append a value that arrived after newer values of this series were already
+	 * written, these are kept in separate late-arrival writers so that the
+	 * regular writers stay in time order
+	 * 
+	 * @param measurement
+	 * @param value
+	 * @throws IOException
+	 */
+	public void addLateDataPoint(Measurement measurement, long value) throws IOException;
+
+	/**
+	 * @return late-arrival writers, empty if there are none
+	 */
+	public List<? extends Writer> getLateWriters();
+
+	/**
+	 * Replace all regular and late-arrival writers with new writers containing
+	 * the supplied values
+	 * 
+	 * @param measurement
+	 * @param values
+	 * @return writers that were replaced and whose buffers should be cleaned up
+	 * @throws IOException
+	 */
+	public List<Writer> replaceWriters(Measurement measurement, long[] values) throws IOException;
+
 	public void loadBucketMap(Measurement measurement, List<BufferObject> bufferEntries) throws IOException;
 
 	public FieldReaderIterator queryReader(Predicate predicate, Lock readLock) throws IOException;
@@ -25,9 +60,54 @@ public interface Field {
 	
 	public List<? extends Writer> getWriters();
 
+	/**
+	 * @return buffer ids of all regular and late-arrival writers
+	 */
+	public default List<String> getBufferIds() {
+		List<? extends Writer> writers = getWriters();
+		List<String> bufferIds = new ArrayList<>(writers.size());
+		for (Writer writer : writers) {
+			bufferIds.add(writer.getBufferId().toString());
+		}
+		return bufferIds;
+	}
+
 	public List<Writer> compact(Measurement measurement, Lock writeLock,
 			@SuppressWarnings("unchecked") Consumer<List<? extends Writer>>... functions) throws IOException;
 
+	/**
+	 * Copy an already encoded buffer (codec id and list index header followed by
+	 * the encoded data) into a new buffer and register it as a read-only writer
+	 * without decoding it.
+	 * 
+	 * @param measurement
+	 * @param data
+	 * @param count
+	 *            number of points expected in the encoded data
+	 * @return imported writer
+	 * @throws IOException
+	 */
+	public Writer importWriter(Measurement measurement, ByteBuffer data, int count) throws IOException;
+
+	/**
+	 * Copy the buffers of the selected regular and late-arrival writers into
+	 * buffers allocated from the target {@link Malloc} and swap the writers in
+	 * place. Migrated writers recover their state from the copied buffer the same
+	 * way they would on startup.
+	 * 
+	 * @param measurement
+	 * @param writeLock
+	 *            series write lock, held from copy to swap; it must exclude
+	 *            every writer of the series
+	 * @param target
+	 * @param filter
+	 *            selects the writers to migrate
+	 * @return writers that were replaced and whose buffers should be cleaned up
+	 * @throws IOException
+	 */
+	public List<Writer> migrate(Measurement measurement, Lock writeLock, Malloc target,
+			java.util.function.Predicate<Writer> filter) throws IOException;
+
 	/**
 	 * Get {@link Reader} with time and value filter predicates pushed-down to it.
 	 * 
@@ -0,0 +1,230 @@
+/**
+ * Copyright Ambud Sharma
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.srotya.sidewinder.core.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+import com.srotya.sidewinder.core.predicates.Predicate;
+import com.srotya.sidewinder.core.storage.compression.Writer;
+
+/**
+ * Placeholder registered for a recovered field of a bucket. Buffers handed to
+ * {@link #loadBucketMap(Measurement, List)} are only kept as references; the
+ * actual {@link ValueField} or {@link TimeField} is created and its writers are
+ * configured on the first call that needs them, after which it replaces the
+ * placeholder in the bucket's field map.
+ * 
+ * Buffers recovered by an allocator already live where that allocator keeps
+ * them, therefore migration and compaction don't load an untouched field and
+ * its buffer ids are available without loading it. Queries of an untouched
+ * field read through a field built for the query only, it is dropped with the
+ * readers so that querying many recovered buckets doesn't keep them all
+ * loaded.
+ * 
+ * @author ambud
+ */
+public class LazyField implements Field {
+
+	private static final Logger logger = Logger.getLogger(LazyField.class.getName());
+	private final Measurement measurement;
+	private final LinkedByteString fieldId;
+	private final String fieldName;
+	private final int tsBucket;
+	private final Map<String, Field> fieldMap;
+	private List<BufferObject> buffers;
+	private volatile Field delegate;
+
+	/**
+	 * @param measurement
+	 * @param fieldId
+	 * @param fieldName
+	 * @param tsBucket
+	 * @param fieldMap
+	 *            field map of the bucket the loaded field replaces the placeholder
+	 *            in
+	 */
+	public LazyField(Measurement measurement, LinkedByteString fieldId, String fieldName, int tsBucket,
+			Map<String, Field> fieldMap) {
+		this.measurement = measurement;
+		this.fieldId = fieldId;
+		this.fieldName = fieldName;
+		this.tsBucket = tsBucket;
+		this.fieldMap = fieldMap;
+		this.buffers = new ArrayList<>(2);
+	}
+
+	private Field newField() throws IOException {
+		if (fieldName.equals(Series.TS)) {
+			return new TimeField(measurement, fieldId, tsBucket, measurement.getConf());
+		} else {
+			return new ValueField(measurement, fieldId, tsBucket, measurement.getConf());
+		}
+	}
+
+	private Field load() throws IOException {
+		Field field = delegate;
+		if (field != null) {
+			return field;
+		}
+		synchronized (this) {
+			if (delegate == null) {
+				field = newField();
+				field.loadBucketMap(measurement, buffers);
+				final int count = buffers.size();
+				logger.finer(() -> "Loaded field:" + fieldId + " bucket:" + tsBucket + " buffers:" + count);
+				buffers = null;
+				delegate = field;
+				fieldMap.replace(fieldName, this, field);
+			}
+			return delegate;
+		}
+	}
+
+	private Field loadUnchecked() {
+		try {
+			return load();
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to load field:" + fieldId + " bucket:" + tsBucket, e);
+		}
+	}
+
+	public boolean isLoaded() {
+		return delegate != null;
+	}
+
+	@Override
+	public void loadBucketMap(Measurement measurement, List<BufferObject> bufferEntries) throws IOException {
+		synchronized (this) {
+			if (delegate == null) {
+				buffers.addAll(bufferEntries);
+				return;
+			}
+		}
+		delegate.loadBucketMap(measurement, bufferEntries);
+	}
+
+	@Override
+	public void addDataPoint(Measurement measurement, long value) throws IOException {
+		load().addDataPoint(measurement, value);
+	}
+
+	@Override
+	public void addLateDataPoint(Measurement measurement, long value) throws IOException {
+		load().addLateDataPoint(measurement, value);
+	}
+
+	@Override
+	public List<? extends Writer> getLateWriters() {
+		return loadUnchecked().getLateWriters();
+	}
+
+	@Override
+	public List<Writer> replaceWriters(Measurement measurement, long[] values) throws IOException {
+		return load().replaceWriters(measurement, values);
+	}
+
+	@Override
+	public FieldReaderIterator queryReader(Predicate predicate, Lock readLock) throws IOException {
+		Field field = delegate;
+		if (field == null) {
+			synchronized (this) {
+				field = delegate;
+				if (field == null) {
+					List<BufferObject> views = new ArrayList<>(buffers.size());
+					for (BufferObject buffer : buffers) {
+						// loading repairs buffer ids in place, keep them for the real load
+						LinkedByteString bufferId = new LinkedByteString(buffer.getBufferId().getStringList().size())
+								.concat(buffer.getBufferId());
+						views.add(new BufferObject(bufferId, buffer.getReadBuf()));
+					}
+					field = newField();
+					field.loadBucketMap(measurement, views);
+				}
+			}
+		}
+		return field.queryReader(predicate, readLock);
+	}
+
+	@Override
+	public int getWriterCount() {
+		return loadUnchecked().getWriterCount();
+	}
+
+	@Override
+	public LinkedByteString getFieldId() {
+		return fieldId;
+	}
+
+	@Override
+	public List<? extends Writer> getWriters() {
+		return loadUnchecked().getWriters();
+	}
+
+	@Override
+	public List<String> getBufferIds() {
+		synchronized (this) {
+			if (delegate == null) {
+				List<String> bufferIds = new ArrayList<>(buffers.size());
+				for (BufferObject buffer : buffers) {
+					bufferIds.add(buffer.getBufferId().toString());
+				}
+				return bufferIds;
+			}
+		}
+		return delegate.getBufferIds();
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public List<Writer> compact(Measurement measurement, Lock writeLock, Consumer<List<? extends Writer>>... functions)
+			throws IOException {
+		Field field = delegate;
+		if (field == null) {
+			return null;
+		}
+		return field.compact(measurement, writeLock, functions);
+	}
+
+	@Override
+	public Writer importWriter(Measurement measurement, ByteBuffer data, int count) throws IOException {
+		return load().importWriter(measurement, data, count);
+	}
+
+	@Override
+	public List<Writer> migrate(Measurement measurement, Lock writeLock, Malloc target,
+			java.util.function.Predicate<Writer> filter) throws IOException {
+		Field field = delegate;
+		if (field == null) {
+			return Collections.emptyList();
+		}
+		return field.migrate(measurement, writeLock, target, filter);
+	}
+
+	@Override
+	public String toString() {
+		Field field = delegate;
+		return field != null ? field.toString() : "LazyField [fieldId=" + fieldId + " bucket=" + tsBucket + "]";
+	}
+
+}
@@ -33,6 +33,22 @@ public interface Malloc {
 
 	public BufferObject createNewBuffer(LinkedByteString fieldId, Integer tsBucket) throws IOException;
 
+	/**
+	 * Allocate the buffer for the next writer of a field in a bucket, sized by
+	 * the configured {@link BufferSizePolicy}
+	 * 
+	 * @param fieldId
+	 * @param tsBucket
+	 * @param writerIndex
+	 *            number of writers the field already has in this bucket
+	 * @return buffer
+	 * @throws IOException
+	 */
+	public default BufferObject createNextBuffer(LinkedByteString fieldId, Integer tsBucket, int writerIndex)
+			throws IOException {
+		return createNewBuffer(fieldId, tsBucket);
+	}
+
 	public void cleanupBufferIds(Set<String> cleanupList) throws IOException;
 
 	public Map<ByteString, List<Entry<Integer, BufferObject>>> seriesBufferMap() throws FileNotFoundException, IOException;
@@ -44,4 +60,40 @@ public interface Malloc {
 
 	public LinkedByteString repairBufferId(LinkedByteString fieldId, LinkedByteString bufferId);
 
+	/**
+	 * Block until writes made to buffers handed out by this allocator are
+	 * durable, implementations that don't offer this guarantee return
+	 * immediately
+	 * 
+	 * @throws IOException
+	 */
+	public default void sync() throws IOException {
+	}
+
+	/**
+	 * Register a reader of buffers handed out by this allocator. Space of buffers
+	 * released while the reader is registered isn't handed out again before it
+	 * leaves; allocators that never reuse space don't need to track readers.
+	 * 
+	 * @return ticket to pass to {@link #leaveRead(long)}
+	 */
+	public default long enterRead() {
+		return 0;
+	}
+
+	public default void leaveRead(long ticket) {
+	}
+
+	/**
+	 * Tell the allocator that a buffer it handed out won't be written to anymore,
+	 * e.g. because its writer is full. Writes made so far still become durable
+	 * with the next sync; sealing a buffer again after writing to it covers that
+	 * write as well. Allocators that force buffers to disk keep forcing the space
+	 * of buffers that are never sealed.
+	 * 
+	 * @param bufferId
+	 */
+	public default void seal(LinkedByteString bufferId) {
+	}
+
 }
@@ -24,6 +24,7 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -45,6 +46,7 @@ import com.srotya.sidewinder.core.filters.TagFilter;
 import com.srotya.sidewinder.core.functions.Function;
 import com.srotya.sidewinder.core.predicates.Predicate;
 import com.srotya.sidewinder.core.rpc.Point;
+import com.srotya.sidewinder.core.rpc.SeriesBatch;
 import com.srotya.sidewinder.core.rpc.Tag;
 import com.srotya.sidewinder.core.storage.ByteString.ByteStringCache;
 import com.srotya.sidewinder.core.storage.archival.Archiver;
@@ -62,6 +64,7 @@ public interface Measurement {
 	public static final String SERIESID_SEPARATOR = "#";
 	public static final ByteString SERIESID_SEPARATOR_BS = new ByteString(SERIESID_SEPARATOR);
 	public static final String USE_QUERY_POOL = "use.query.pool";
+	public static final String CONF_SERIES_OFFHEAP = "measurement.series.offheap";
 	public static final String TAG_SEPARATOR = "^";
 	public static final TagComparator TAG_COMPARATOR = new TagComparator();
 	public static final Exception NOT_FOUND_EXCEPTION = null;
@@ -88,54 +91,110 @@ public interface Measurement {
 	public void close() throws IOException;
 
 	public default Series getOrCreateSeries(List<Tag> tags, boolean preSorted) throws IOException {
-		if (!preSorted) {
+		if (!preSorted && !Measurement.isSorted(tags)) {
 			Collections.sort(tags, TAG_COMPARATOR);
 		}
-		ByteString seriesId = constructSeriesId(tags);
-		int index = 0;
-		Series series = getSeriesFromKey(seriesId);
-		if (series == null) {
-			getLock().lock();
-			try {
-				if ((series = getSeriesFromKey(seriesId)) == null) {
-					index = getSeriesList().size();
-					Measurement.indexRowKey(getTagIndex(), index, tags);
-					series = new Series(seriesId, index);
-					getSeriesList().add(series);
-					getSeriesMap().put(seriesId, index);
+		// lookup known series by tag hash without materializing the series id
+		long hash = Measurement.tagHash(tags);
+		Series series = getSeriesHashIndex().get(hash, tags, this);
+		if (series != null) {
+			return series;
+		}
+		getLock().lock();
+		try {
+			if ((series = getSeriesHashIndex().get(hash, tags, this)) != null) {
+				return series;
+			}
+			ByteString seriesId = constructSeriesId(tags);
+			if ((series = getSeriesFromKey(seriesId)) == null) {
+				int index = getSeriesList().size();
+				Measurement.indexRowKey(getTagIndex(), index, tags);
+				series = new Series(seriesId, index);
+				getSeriesList().add(series);
+				getSeriesMap().put(seriesId, index);
+
+				appendTimeseriesToMeasurementMetadata(seriesId, index);
+
+				if (isEnableMetricsCapture()) {
+					getMetricsTimeSeriesCounter().inc();
+				}
+				final ByteString tmp = seriesId;
+				getLogger().fine(() -> "Created new series:" + tmp + "\t");
+			}
+			// series loaded during recovery are indexed on their first write
+			getSeriesHashIndex().put(hash, series);
+		} finally {
+			getLock().unlock();
+		}
+		return series;
+	}
 
-					appendTimeseriesToMeasurementMetadata(seriesId, index);
+	/**
+	 * 64-bit hash of the supplied tags, equal to {@link ByteString#hash64()} of the
+	 * series id produced by {@link #encodeTagsToString(List)}
+	 * 
+	 * @param tags
+	 *            sorted tags
+	 * @return hash
+	 */
+	public static long tagHash(List<Tag> tags) {
+		long h = ByteString.HASH64_SEED;
+		for (int i = 0; i < tags.size(); i++) {
+			Tag tag = tags.get(i);
+			if (i > 0) {
+				h = ByteString.hash64(h, TAG_SEPARATOR.charAt(0));
+			}
+			h = ByteString.hash64(h, tag.getTagKey());
+			h = ByteString.hash64(h, TAG_KV_SEPARATOR.charAt(0));
+			h = ByteString.hash64(h, tag.getTagValue());
+		}
+		return h;
+	}
 
-					if (isEnableMetricsCapture()) {
-						getMetricsTimeSeriesCounter().inc();
-					}
-					final ByteString tmp = seriesId;
-					getLogger().fine(() -> "Created new series:" + tmp + "\t");
-				} else {
-					index = getSeriesMap().get(seriesId);
-				}
-			} finally {
-				getLock().unlock();
+	/**
+	 * Verify that the supplied series id was constructed from these tags without
+	 * constructing a new series id
+	 * 
+	 * @param seriesId
+	 * @param tags
+	 *            sorted tags
+	 * @return true if the tags match
+	 */
+	public default boolean matchesSeriesId(ByteString seriesId, List<Tag> tags) {
+		int offset = 0;
+		for (int i = 0; i < tags.size() && offset >= 0; i++) {
+			Tag tag = tags.get(i);
+			if (i > 0) {
+				offset = seriesId.regionMatches(offset, TAG_SEPARATOR);
 			}
-		} else {
-			index = getSeriesMap().get(seriesId);
+			offset = seriesId.regionMatches(offset, tag.getTagKey());
+			offset = seriesId.regionMatches(offset, TAG_KV_SEPARATOR);
+			offset = seriesId.regionMatches(offset, tag.getTagValue());
 		}
+		return offset == seriesId.length();
+	}
 
-		return series;
-		/*
-		 * lock.lock(); try { if ((series = seriesFieldMap.get(valueFieldName)) == null)
-		 * { ByteString seriesId2 = new ByteString(seriesId + SERIESID_SEPARATOR +
-		 * valueFieldName); series = new TimeSeries(this, seriesId2, timeBucketSize,
-		 * metadata, fp, conf); if (enableMetricsCapture) {
-		 * metricsTimeSeriesCounter.inc(); }
-		 * seriesFieldMap.getOrCreateSeries(valueFieldName, series);
-		 * appendTimeseriesToMeasurementMetadata(seriesId2, fp, timeBucketSize, index);
-		 * final SeriesFieldMap tmp = seriesFieldMap; logger.fine(() ->
-		 * "Created new timeseries:" + tmp + " for measurement:" + measurementName +
-		 * "\t" + seriesId + "\t" + metadata.getRetentionHours() + "\t" +
-		 * seriesList.size()); } } finally { lock.unlock(); } }
-		 * 
-		 */
+	public static boolean isSorted(List<Tag> tags) {
+		for (int i = 1; i < tags.size(); i++) {
+			if (TAG_COMPARATOR.compare(tags.get(i - 1), tags.get(i)) > 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param tags
+	 * @param preSorted
+	 * @return the supplied tags if they are already sorted, else a sorted copy
+	 */
+	public static List<Tag> sortedTags(List<Tag> tags, boolean preSorted) {
+		if (preSorted || Measurement.isSorted(tags)) {
+			return tags;
+		}
+		List<Tag> sorted = new ArrayList<>(tags);
+		Collections.sort(sorted, TAG_COMPARATOR);
+		return sorted;
 	}
 
 	public static void indexRowKey(TagIndex tagIndex, int rowIdx, List<Tag> tags) throws IOException {
@@ -198,18 +257,83 @@ public interface Measurement {
 	}
 
 	public default void addPointLocked(Point dp, boolean preSorted) throws IOException {
-		Series fieldMap = getOrCreateSeries(new ArrayList<>(dp.getTagsList()), preSorted);
+		Series fieldMap = getOrCreateSeries(Measurement.sortedTags(dp.getTagsList(), preSorted), true);
 		fieldMap.addPoint(dp, this);
 	}
 
 	public default void addPointUnlocked(Point dp, boolean preSorted) throws IOException {
-		Series fieldMap = getOrCreateSeries(new ArrayList<>(dp.getTagsList()), preSorted);
+		Series fieldMap = getOrCreateSeries(Measurement.sortedTags(dp.getTagsList(), preSorted), true);
 		fieldMap.addPoint(dp, this);
 	}
 
+	/**
+	 * Add a batch of points to this measurement; points are grouped by their tag
+	 * list so that each series is resolved once and appends its points under a
+	 * single lock acquisition.
+	 * 
+	 * @param points
+	 * @throws IOException
+	 */
+	public default void addPoints(List<Point> points) throws IOException {
+		if (points.size() == 1) {
+			addPointLocked(points.get(0), false);
+			return;
+		}
+		Map<List<Tag>, List<Point>> seriesPoints = new LinkedHashMap<>();
+		for (int i = 0; i < points.size(); i++) {
+			Point dp = points.get(i);
+			List<Point> list = seriesPoints.get(dp.getTagsList());
+			if (list == null) {
+				list = new ArrayList<>();
+				seriesPoints.put(dp.getTagsList(), list);
+			}
+			list.add(dp);
+		}
+		for (Entry<List<Tag>, List<Point>> entry : seriesPoints.entrySet()) {
+			Series series = getOrCreateSeries(Measurement.sortedTags(entry.getKey(), false), true);
+			series.addPoints(entry.getValue(), this);
+		}
+	}
+
+	/**
+	 * Add a columnar batch of points belonging to a single series
+	 * 
+	 * @param batch
+	 * @throws IOException
+	 */
+	public default void addSeriesBatch(SeriesBatch batch) throws IOException {
+		Series series = getOrCreateSeries(Measurement.sortedTags(batch.getTagsList(), false), true);
+		series.addSeriesBatch(batch, this);
+	}
+
 	public int getTimeBucketSize();
 
+	/**
+	 * Make points added so far durable as configured for the allocator. Adding
+	 * points doesn't sync, writers call this once per batch before the batch is
+	 * acknowledged.
+	 * 
+	 * @throws IOException
+	 */
+	public default void sync() throws IOException {
+		getMalloc().sync();
+	}
+
 	public default Set<String> collectGarbage(Archiver archiver) throws IOException {
+		if (archiver == null) {
+			// only archiving needs the contents of collected buffers
+			return runBufferCleanup("garbage collection", series -> {
+				try {
+					List<String> output = new ArrayList<>();
+					for (List<String> bufferIds : series.collectGarbageBufferIds(this).values()) {
+						output.addAll(bufferIds);
+					}
+					return output;
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			});
+		}
 		return runCleanupOperation("garbage collection", series -> {
 			try {
 				Map<Integer, List<Writer>> collectedGarbage = series.collectGarbage(this);
@@ -244,6 +368,42 @@ public interface Measurement {
 		});
 	}
 
+	/**
+	 * Write out reorder buffers of series that haven't received writes for the
+	 * reorder window
+	 * 
+	 * @throws IOException
+	 */
+	public default void flushReorderBuffers() throws IOException {
+		flushReorderBuffers(false);
+	}
+
+	/**
+	 * Write out reorder buffers, must be called before the allocator is closed
+	 * since buffered rows have already been acknowledged
+	 * 
+	 * @param force
+	 *            true to write out buffers of all series, not just idle ones
+	 * @throws IOException
+	 */
+	public default void flushReorderBuffers(boolean force) throws IOException {
+		List<Series> seriesList = getSeriesList();
+		for (int i = 0; i < seriesList.size(); i++) {
+			seriesList.get(i).flushReorderBuffer(this, force);
+		}
+	}
+
+	/**
+	 * Move buckets that have left the hot tier to cold storage, only has an effect
+	 * for measurements with a tiered allocator
+	 * 
+	 * @return buffer ids of migrated buffers
+	 * @throws IOException
+	 */
+	public default Set<String> migrateColdBuckets() throws IOException {
+		return Collections.emptySet();
+	}
+
 	@SuppressWarnings("unchecked")
 	public default Set<String> compact() throws IOException {
 		if (getMetricsCompactionCounter() != null) {
@@ -260,6 +420,30 @@ public interface Measurement {
 
 	public default Set<String> runCleanupOperation(String operation,
 			java.util.function.Function<Series, List<Writer>> op) throws IOException {
+		return runBufferCleanup(operation, series -> {
+			List<Writer> list = op.apply(series);
+			if (list == null) {
+				return null;
+			}
+			List<String> bufferIds = new ArrayList<>(list.size());
+			for (Writer writer : list) {
+				bufferIds.add(writer.getBufferId().toString());
+			}
+			return bufferIds;
+		});
+	}
+
+	/**
+	 * Release the buffers whose ids are returned by the operation for every
+	 * series
+	 * 
+	 * @param operation
+	 * @param op
+	 * @return released buffer ids
+	 * @throws IOException
+	 */
+	public default Set<String> runBufferCleanup(String operation,
+			java.util.function.Function<Series, List<String>> op) throws IOException {
 		Set<String> cleanupList = new HashSet<>();
 		getLock().lock();
 		try {
@@ -268,19 +452,18 @@ public interface Measurement {
 			for (int i = 0; i < seriesList.size(); i++) {
 				Series entry = seriesList.get(i);
 				try {
-					List<Writer> list = op.apply(entry);
+					List<String> list = op.apply(entry);
 					if (list == null) {
 						continue;
 					}
-					for (Writer timeSeriesBucket : list) {
+					for (String buf : list) {
 						if (getMetricsCleanupBufferCounter() != null) {
 							getMetricsCleanupBufferCounter().inc();
 						}
-						String buf = timeSeriesBucket.getBufferId().toString();
 						temp.add(buf);
 						cleanupList.add(buf);
 						getLogger().fine("Adding buffer to cleanup " + operation + " for bucket:" + entry.getSeriesId()
-								+ " Offset:" + timeSeriesBucket.currentOffset());
+								+ " buffer:" + buf);
 					}
 					getLogger().fine("Buffers " + operation + " for time series:" + entry.getSeriesId());
 					if (i % 100 == 0) {
@@ -357,20 +540,30 @@ public interface Measurement {
 			stream = stream.parallel();
 		}
 		getLogger().fine(() -> "Output keys:" + outputKeys.size());
-		stream.forEach(entry -> {
-			try {
-				List<String> valueFieldNames = fields.get(entry);
-				if (valueFieldNames == null) {
-					throw new NullPointerException(
-							"NPEfor:" + entry + " rowkeys:" + fields + " vfn:" + valueFieldNamePattern);
+		long ticket = getMalloc().enterRead();
+		try {
+			stream.forEach(entry -> {
+				try {
+					List<String> valueFieldNames = fields.get(entry);
+					if (valueFieldNames == null) {
+						throw new NullPointerException(
+								"NPEfor:" + entry + " rowkeys:" + fields + " vfn:" + valueFieldNamePattern);
+					}
+					populateDataPoints(valueFieldNames, entry, startTime, endTime, valuePredicate, p, resultMap,
+							function);
+				} catch (Exception e) {
+					getLogger().log(Level.SEVERE, "Failed to query data points", e);
 				}
-				populateDataPoints(valueFieldNames, entry, startTime, endTime, valuePredicate, p, resultMap, function);
-			} catch (Exception e) {
-				getLogger().log(Level.SEVERE, "Failed to query data points", e);
-			}
-		});
+			});
+		} finally {
+			getMalloc().leaveRead(ticket);
+		}
 	}
 
+	/**
+	 * Readers are consumed after this call returns, callers must hold a ticket of
+	 * {@link Malloc#enterRead()} until they are done with them
+	 */
 	public default void queryReaders(List<String> valueFieldNames, List<Predicate> valuePredicate, boolean regex,
 			long startTime, long endTime, TagFilter tagFilter, ConcurrentMap<ByteString, FieldReaderIterator[]> readers)
 			throws IOException {
@@ -557,6 +750,15 @@ public interface Measurement {
 
 	public DBMetadata getMetadata();
 
+	/**
+	 * @return dictionary of tag keys and values shared across the database or
+	 *         null if this measurement doesn't have one
+	 */
+	public default TagDictionary getTagDictionary() {
+		DBMetadata metadata = getMetadata();
+		return metadata != null ? metadata.getTagDictionary() : null;
+	}
+
 	public default void appendTimeseriesToMeasurementMetadata(ByteString fieldId, int seriesIdx) throws IOException {
 		// do nothing default implementation
 	}
@@ -565,6 +767,11 @@ public interface Measurement {
 
 	Map<ByteString, Integer> getSeriesMap();
 
+	/**
+	 * @return index of series by the hash of their tags
+	 */
+	SeriesHashIndex getSeriesHashIndex();
+
 	boolean isEnableMetricsCapture();
 
 	Counter getMetricsTimeSeriesCounter();
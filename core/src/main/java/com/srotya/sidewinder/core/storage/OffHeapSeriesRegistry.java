@@ -0,0 +1,310 @@
+/**
+ * Copyright Ambud Sharma
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.srotya.sidewinder.core.storage;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import com.srotya.sidewinder.core.rpc.Tag;
+
+/**
+ * Series registry of a measurement kept in flat buffers instead of heap
+ * objects.
+ * 
+ * The registry is an open addressing table of fixed width slots split across
+ * two arrays:
+ * 
+ * <pre>
+ * direct buffer: [long hash64 of series id]
+ * int array:     [int series ordinal + 1]
+ * </pre>
+ * 
+ * Since {@link Measurement#tagHash(List)} equals {@link ByteString#hash64()} of
+ * the series id, a single table serves both as the tag hash index and, through
+ * {@link #asMap()}, as the series id to ordinal map of the measurement. Series
+ * ids are resolved through the series list of the measurement so the table
+ * only holds 12 bytes per series.
+ * 
+ * Lookups are lock-free and don't allocate. Inserts must be performed while
+ * holding the measurement lock after the series has been added to the series
+ * list, which must be safe to read concurrently (see {@link SeriesList}). The
+ * hash is written first and the ordinal is then published with an ordered
+ * store; a lookup reads the ordinal with a volatile load before the hash, so a
+ * non-empty slot always exposes its hash and series. Series are never removed.
+ * 
+ * @author ambud
+ */
+public class OffHeapSeriesRegistry extends SeriesHashIndex {
+
+	private static final int SLOT_SIZE = Long.BYTES + Integer.BYTES;
+	private static final int MAX_SLOTS = Integer.MAX_VALUE / Long.BYTES;
+	private final List<Series> seriesList;
+	private volatile Table table;
+	private int slots;
+	private volatile int size;
+	private final Map<ByteString, Integer> mapView;
+
+	public OffHeapSeriesRegistry(int expectedSize, List<Series> seriesList) {
+		this.seriesList = seriesList;
+		this.slots = slotsFor(expectedSize);
+		this.table = new Table(slots);
+		this.mapView = new MapView();
+	}
+
+	@Override
+	public Series get(long hash, List<Tag> tags, Measurement measurement) {
+		if (size == 0) {
+			return null;
+		}
+		Table tab = table;
+		int mask = tab.slots - 1;
+		int idx = spread(hash) & mask;
+		int ordinal;
+		while ((ordinal = tab.ordinals.get(idx)) != 0) {
+			if (tab.hashes.getLong(idx * Long.BYTES) == hash) {
+				Series series = seriesList.get(ordinal - 1);
+				if (measurement.matchesSeriesId(series.getSeriesId(), tags)) {
+					return series;
+				}
+			}
+			idx = (idx + 1) & mask;
+		}
+		return null;
+	}
+
+	/**
+	 * Must be called with the measurement lock held; registering the same series
+	 * again has no effect
+	 * 
+	 * @param hash
+	 * @param series
+	 */
+	@Override
+	public void put(long hash, Series series) {
+		insert(hash, series.getFieldMapIndex());
+	}
+
+	/**
+	 * @param seriesId
+	 * @return ordinal of the series or -1 if it isn't registered
+	 */
+	public int getOrdinal(ByteString seriesId) {
+		if (size == 0) {
+			return -1;
+		}
+		long hash = seriesId.hash64();
+		Table tab = table;
+		int mask = tab.slots - 1;
+		int idx = spread(hash) & mask;
+		int ordinal;
+		while ((ordinal = tab.ordinals.get(idx)) != 0) {
+			if (tab.hashes.getLong(idx * Long.BYTES) == hash
+					&& seriesList.get(ordinal - 1).getSeriesId().equals(seriesId)) {
+				return ordinal - 1;
+			}
+			idx = (idx + 1) & mask;
+		}
+		return -1;
+	}
+
+	private void insert(long hash, int ordinal) {
+		Table tab = table;
+		int mask = slots - 1;
+		int idx = spread(hash) & mask;
+		int existing;
+		while ((existing = tab.ordinals.get(idx)) != 0) {
+			if (existing == ordinal + 1 && tab.hashes.getLong(idx * Long.BYTES) == hash) {
+				return;
+			}
+			idx = (idx + 1) & mask;
+		}
+		if ((size + 1) * 4L > slots * 3L) {
+			if (slots * 2 > MAX_SLOTS) {
+				throw new IllegalStateException("Series registry is full at:" + size + " series");
+			}
+			tab = resize();
+			mask = slots - 1;
+			idx = spread(hash) & mask;
+			while (tab.ordinals.get(idx) != 0) {
+				idx = (idx + 1) & mask;
+			}
+		}
+		tab.hashes.putLong(idx * Long.BYTES, hash);
+		// publish the slot, orders the hash store before the ordinal
+		tab.ordinals.lazySet(idx, ordinal + 1);
+		size = size + 1;
+	}
+
+	private Table resize() {
+		Table old = table;
+		int newSlots = slots * 2;
+		Table tab = new Table(newSlots);
+		int mask = newSlots - 1;
+		for (int i = 0; i < slots; i++) {
+			int ordinal = old.ordinals.get(i);
+			if (ordinal == 0) {
+				continue;
+			}
+			long hash = old.hashes.getLong(i * Long.BYTES);
+			int idx = spread(hash) & mask;
+			while (tab.ordinals.get(idx) != 0) {
+				idx = (idx + 1) & mask;
+			}
+			tab.hashes.putLong(idx * Long.BYTES, hash);
+			tab.ordinals.lazySet(idx, ordinal);
+		}
+		slots = newSlots;
+		// volatile write publishes the filled table
+		table = tab;
+		return tab;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return memory used by the table in bytes
+	 */
+	public long getTableBytes() {
+		return (long) table.slots * SLOT_SIZE;
+	}
+
+	/**
+	 * @return view of this registry as a series id to ordinal map
+	 */
+	public Map<ByteString, Integer> asMap() {
+		return mapView;
+	}
+
+	/**
+	 * Slot hashes off-heap and their ordinals in an atomic array so that a slot
+	 * can be published with an ordered store
+	 */
+	private static final class Table {
+
+		private final int slots;
+		private final ByteBuffer hashes;
+		private final AtomicIntegerArray ordinals;
+
+		private Table(int slots) {
+			this.slots = slots;
+			this.hashes = ByteBuffer.allocateDirect(slots * Long.BYTES);
+			this.ordinals = new AtomicIntegerArray(slots);
+		}
+
+	}
+
+	private static int slotsFor(int expectedSize) {
+		long capacity = Math.max(16, (expectedSize * 4L) / 3 + 1);
+		int n = 16;
+		while (n < capacity && n * 2 <= MAX_SLOTS) {
+			n <<= 1;
+		}
+		return n;
+	}
+
+	private final class MapView extends AbstractMap<ByteString, Integer> {
+
+		@Override
+		public Integer get(Object key) {
+			if (!(key instanceof ByteString)) {
+				return null;
+			}
+			int ordinal = getOrdinal((ByteString) key);
+			return ordinal < 0 ? null : ordinal;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return get(key) != null;
+		}
+
+		/**
+		 * Must be called with the measurement lock held after the series has been
+		 * added to the series list
+		 */
+		@Override
+		public Integer put(ByteString key, Integer value) {
+			int ordinal = getOrdinal(key);
+			if (ordinal >= 0) {
+				return ordinal;
+			}
+			insert(key.hash64(), value);
+			return null;
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public Set<Entry<ByteString, Integer>> entrySet() {
+			return new AbstractSet<Entry<ByteString, Integer>>() {
+
+				@Override
+				public Iterator<Entry<ByteString, Integer>> iterator() {
+					return new EntryIterator(size);
+				}
+
+				@Override
+				public int size() {
+					return size;
+				}
+			};
+		}
+
+	}
+
+	/**
+	 * Iterates series in ordinal order up to the number of series registered when
+	 * the iterator was created
+	 */
+	private final class EntryIterator implements Iterator<Map.Entry<ByteString, Integer>> {
+
+		private final int limit;
+		private int next;
+
+		private EntryIterator(int limit) {
+			this.limit = limit;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next < limit;
+		}
+
+		@Override
+		public Map.Entry<ByteString, Integer> next() {
+			if (next >= limit) {
+				throw new NoSuchElementException();
+			}
+			int ordinal = next++;
+			return new AbstractMap.SimpleImmutableEntry<>(seriesList.get(ordinal).getSeriesId(), ordinal);
+		}
+
+	}
+
+}
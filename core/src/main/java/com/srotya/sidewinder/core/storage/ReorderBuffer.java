@@ -0,0 +1,231 @@
+/**
+ * Copyright Ambud Sharma
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.srotya.sidewinder.core.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Per series buffer that holds recently written rows for a configurable window
+ * so that points arriving slightly out of order are sorted before they are
+ * encoded. Rows are kept sorted by timestamp in primitive arrays; a row is
+ * released once it is older than the newest timestamp minus the window or when
+ * the buffer is full. Rows older than the last released timestamp are late and
+ * must be written to the late writers of the fields instead.
+ * 
+ * Rows with different field layouts share the buffer, every row references its
+ * layout and values are stored with the stride of the widest layout so that
+ * alternating field sets don't force a release.
+ * 
+ * Not thread-safe, {@link Series} synchronizes on the buffer.
+ * 
+ * @author ambud
+ */
+public class ReorderBuffer {
+
+	private final long window;
+	private final int capacity;
+	private List<String[]> layoutNames = new ArrayList<>(2);
+	private List<boolean[]> layoutFp = new ArrayList<>(2);
+	private int stride;
+	private long[] timestamps;
+	private int[] layouts;
+	private long[] values;
+	private int size;
+	private long maxTimestamp = Long.MIN_VALUE;
+	private long watermark = Long.MIN_VALUE;
+	private long lastAdd;
+
+	/**
+	 * @param window
+	 *            reorder window in milliseconds
+	 * @param capacity
+	 *            maximum number of rows held
+	 */
+	public ReorderBuffer(long window, int capacity) {
+		this.window = window;
+		this.capacity = capacity;
+		this.timestamps = new long[Math.min(capacity, 16)];
+		this.layouts = new int[timestamps.length];
+		this.values = new long[0];
+	}
+
+	/**
+	 * @param timestamp
+	 * @return true if rows with a newer timestamp have already been released
+	 */
+	public boolean isLate(long timestamp) {
+		return timestamp < watermark;
+	}
+
+	/**
+	 * Find or register a field layout, layouts are forgotten once the buffer is
+	 * empty
+	 * 
+	 * @param names
+	 * @param fps
+	 * @return index of the layout
+	 */
+	public int layoutOf(List<String> names, List<Boolean> fps) {
+		for (int l = 0; l < layoutNames.size(); l++) {
+			if (matches(layoutNames.get(l), layoutFp.get(l), names, fps)) {
+				return l;
+			}
+		}
+		String[] fieldNames = names.toArray(new String[names.size()]);
+		boolean[] fp = new boolean[fps.size()];
+		for (int i = 0; i < fp.length; i++) {
+			fp[i] = fps.get(i);
+		}
+		if (fieldNames.length > stride) {
+			restride(fieldNames.length);
+		}
+		layoutNames.add(fieldNames);
+		layoutFp.add(fp);
+		return layoutNames.size() - 1;
+	}
+
+	private static boolean matches(String[] fieldNames, boolean[] fp, List<String> names, List<Boolean> fps) {
+		if (names.size() != fieldNames.length) {
+			return false;
+		}
+		for (int i = 0; i < fieldNames.length; i++) {
+			if (!fieldNames[i].equals(names.get(i)) || fp[i] != fps.get(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void restride(int newStride) {
+		long[] newValues = new long[timestamps.length * newStride];
+		for (int i = 0; i < size; i++) {
+			System.arraycopy(values, i * stride, newValues, i * newStride, stride);
+		}
+		values = newValues;
+		stride = newStride;
+	}
+
+	/**
+	 * Insert a row in timestamp order, rows with equal timestamps keep their
+	 * arrival order
+	 * 
+	 * @param timestamp
+	 * @param layout
+	 *            index returned by {@link #layoutOf(List, List)}
+	 * @param row
+	 *            values in field layout order, copied
+	 */
+	public void add(long timestamp, int layout, long[] row) {
+		if (size == timestamps.length) {
+			int newLength = Math.min(capacity, timestamps.length * 2);
+			timestamps = Arrays.copyOf(timestamps, newLength);
+			layouts = Arrays.copyOf(layouts, newLength);
+			values = Arrays.copyOf(values, newLength * stride);
+		}
+		int idx = size;
+		// arrivals are mostly in order so scan from the end
+		while (idx > 0 && timestamps[idx - 1] > timestamp) {
+			idx--;
+		}
+		if (idx < size) {
+			System.arraycopy(timestamps, idx, timestamps, idx + 1, size - idx);
+			System.arraycopy(layouts, idx, layouts, idx + 1, size - idx);
+			System.arraycopy(values, idx * stride, values, (idx + 1) * stride, (size - idx) * stride);
+		}
+		timestamps[idx] = timestamp;
+		layouts[idx] = layout;
+		System.arraycopy(row, 0, values, idx * stride, layoutNames.get(layout).length);
+		size++;
+		if (timestamp > maxTimestamp) {
+			maxTimestamp = timestamp;
+		}
+		lastAdd = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return number of leading rows that have left the window or exceed the
+	 *         capacity
+	 */
+	public int releasable() {
+		int count = 0;
+		long limit = maxTimestamp - window;
+		while (count < size && timestamps[count] <= limit) {
+			count++;
+		}
+		// keep room for the next row
+		return Math.max(count, size - capacity + 1);
+	}
+
+	/**
+	 * @param now
+	 * @return true if nothing has been added to this buffer for the window
+	 *         duration and it should be released completely
+	 */
+	public boolean isIdle(long now) {
+		return size > 0 && now - lastAdd >= window;
+	}
+
+	/**
+	 * Drop the first count rows after they have been written
+	 * 
+	 * @param count
+	 */
+	public void remove(int count) {
+		if (count <= 0) {
+			return;
+		}
+		watermark = Math.max(watermark, timestamps[count - 1]);
+		System.arraycopy(timestamps, count, timestamps, 0, size - count);
+		System.arraycopy(layouts, count, layouts, 0, size - count);
+		System.arraycopy(values, count * stride, values, 0, (size - count) * stride);
+		size -= count;
+		if (size == 0 && layoutNames.size() > 1) {
+			layoutNames.clear();
+			layoutFp.clear();
+		}
+	}
+
+	public long getTimestamp(int row) {
+		return timestamps[row];
+	}
+
+	public int getLayout(int row) {
+		return layouts[row];
+	}
+
+	public long getValue(int row, int field) {
+		return values[row * stride + field];
+	}
+
+	public String[] getFieldNames(int layout) {
+		return layoutNames.get(layout);
+	}
+
+	public boolean[] getFp(int layout) {
+		return layoutFp.get(layout);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public long getWindow() {
+		return window;
+	}
+
+}
@@ -17,6 +17,7 @@ package com.srotya.sidewinder.core.storage;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -34,8 +35,11 @@ import java.util.logging.Logger;
 
 import com.srotya.sidewinder.core.predicates.BetweenPredicate;
 import com.srotya.sidewinder.core.predicates.Predicate;
+import com.srotya.sidewinder.core.rpc.Bucket;
 import com.srotya.sidewinder.core.rpc.Point;
+import com.srotya.sidewinder.core.rpc.SeriesBatch;
 import com.srotya.sidewinder.core.storage.compression.FilteredValueException;
+import com.srotya.sidewinder.core.storage.compression.Reader;
 import com.srotya.sidewinder.core.storage.compression.Writer;
 import com.srotya.sidewinder.core.utils.TimeUtils;
 
@@ -52,6 +56,8 @@ public class Series {
 	private ReentrantReadWriteLock lock;
 	private ReadLock readLock;
 	private WriteLock writeLock;
+	private volatile ReorderBuffer reorderBuffer;
+	private volatile boolean reorderConfigured;
 
 	public Series(ByteString seriesId, int fieldMapIndex) {
 		this.seriesId = seriesId;
@@ -65,9 +71,14 @@ public class Series {
 	protected Field getOrCreateSeries(int timeBucket, String valueFieldName, boolean fp, Measurement measurement)
 			throws IOException {
 		Map<String, Field> map = bucketFieldMap.get(timeBucket);
-		Field field = map.get(valueFieldName);
+		Field field = map != null ? map.get(valueFieldName) : null;
 		if (field == null) {
 			writeLock.lock();
+			if ((map = bucketFieldMap.get(timeBucket)) == null) {
+				// bucket was garbage collected after it was resolved by the caller
+				map = new ConcurrentHashMap<>();
+				bucketFieldMap.put(timeBucket, map);
+			}
 			if ((field = map.get(valueFieldName)) == null) {
 				ByteString cachedFieldName = measurement.getFieldCache().get(new ByteString(valueFieldName));
 				LinkedByteString fieldId = new LinkedByteString().concat(seriesId)
@@ -99,19 +110,277 @@ public class Series {
 	public void addPoint(Point dp, Measurement m) throws IOException {
 		writeLock.lock();
 		try {
-			int timeBucket = getOrCreateTimeBucket(dp.getTimestamp(), m.getTimeBucketSize());
-			Field timeField = getOrCreateSeries(timeBucket, TS, false, m);
-			timeField.addDataPoint(m, dp.getTimestamp());
-			for (int i = 0; i < dp.getFpList().size(); i++) {
-				Field field = getOrCreateSeries(timeBucket, dp.getValueFieldNameList().get(i), dp.getFpList().get(i),
-						m);
-				field.addDataPoint(m, dp.getValueList().get(i));
+			writePoint(dp, m);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Append a batch of points belonging to this series while holding the write
+	 * lock once for the whole batch
+	 * 
+	 * @param points
+	 * @param m
+	 * @throws IOException
+	 */
+	public void addPoints(List<Point> points, Measurement m) throws IOException {
+		writeLock.lock();
+		try {
+			for (int i = 0; i < points.size(); i++) {
+				writePoint(points.get(i), m);
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	private void writePoint(Point dp, Measurement m) throws IOException {
+		ReorderBuffer buffer = getReorderBuffer(m);
+		if (buffer != null) {
+			synchronized (buffer) {
+				long[] row = new long[dp.getValueCount()];
+				for (int i = 0; i < row.length; i++) {
+					row[i] = dp.getValue(i);
+				}
+				bufferRow(buffer, dp.getTimestamp(), dp.getValueFieldNameList(), dp.getFpList(), row, m);
+			}
+			return;
+		}
+		int timeBucket = getOrCreateTimeBucket(dp.getTimestamp(), m.getTimeBucketSize());
+		Field timeField = getOrCreateSeries(timeBucket, TS, false, m);
+		timeField.addDataPoint(m, dp.getTimestamp());
+		for (int i = 0; i < dp.getFpCount(); i++) {
+			Field field = getOrCreateSeries(timeBucket, dp.getValueFieldName(i), dp.getFp(i), m);
+			field.addDataPoint(m, dp.getValue(i));
+		}
+	}
+
+	/**
+	 * Append a columnar batch of points to this series while holding the write
+	 * lock once for the whole batch
+	 * 
+	 * @param batch
+	 * @param m
+	 * @throws IOException
+	 */
+	public void addSeriesBatch(SeriesBatch batch, Measurement m) throws IOException {
+		writeLock.lock();
+		try {
+			writeSeriesBatch(batch, m);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	private void writeSeriesBatch(SeriesBatch batch, Measurement m) throws IOException {
+		int rows = batch.getTimestampCount();
+		int fieldCount = batch.getValueFieldNameCount();
+		ReorderBuffer buffer = getReorderBuffer(m);
+		if (buffer != null) {
+			synchronized (buffer) {
+				long[] row = new long[fieldCount];
+				for (int i = 0; i < rows; i++) {
+					for (int f = 0; f < fieldCount; f++) {
+						row[f] = batch.getValue(f * rows + i);
+					}
+					bufferRow(buffer, batch.getTimestamp(i), batch.getValueFieldNameList(), batch.getFpList(), row,
+							m);
+				}
+			}
+			return;
+		}
+		// fields are only looked up again when the batch crosses a time bucket
+		Field[] fields = new Field[fieldCount];
+		Field timeField = null;
+		int currentBucket = 0;
+		for (int i = 0; i < rows; i++) {
+			long timestamp = batch.getTimestamp(i);
+			int timeBucket = getTimeBucketInt(TimeUnit.MILLISECONDS, timestamp, m.getTimeBucketSize());
+			if (timeField == null || timeBucket != currentBucket) {
+				currentBucket = getOrCreateTimeBucket(timestamp, m.getTimeBucketSize());
+				timeField = getOrCreateSeries(currentBucket, TS, false, m);
+				for (int f = 0; f < fieldCount; f++) {
+					fields[f] = getOrCreateSeries(currentBucket, batch.getValueFieldName(f), batch.getFp(f), m);
+				}
+			}
+			timeField.addDataPoint(m, timestamp);
+			for (int f = 0; f < fieldCount; f++) {
+				fields[f].addDataPoint(m, batch.getValue(f * rows + i));
+			}
+		}
+	}
+
+	/**
+	 * @param m
+	 * @return reorder buffer of this series or null if reordering is disabled
+	 *         for the measurement
+	 */
+	private ReorderBuffer getReorderBuffer(Measurement m) {
+		if (!reorderConfigured) {
+			synchronized (this) {
+				if (!reorderConfigured) {
+					Map<String, String> conf = m.getConf();
+					long window = conf != null ? Long.parseLong(
+							conf.getOrDefault(StorageEngine.REORDER_WINDOW, StorageEngine.DEFAULT_REORDER_WINDOW)) : 0;
+					if (window > 0) {
+						int capacity = Integer.parseInt(conf.getOrDefault(StorageEngine.REORDER_CAPACITY,
+								StorageEngine.DEFAULT_REORDER_CAPACITY));
+						reorderBuffer = new ReorderBuffer(window, capacity);
+					}
+					reorderConfigured = true;
+				}
+			}
+		}
+		return reorderBuffer;
+	}
+
+	/**
+	 * Add a row to the reorder buffer and write out the rows that have left the
+	 * window, rows older than what has already been written go to the late
+	 * writers. Must be called while synchronized on the buffer.
+	 */
+	private void bufferRow(ReorderBuffer buffer, long timestamp, List<String> names, List<Boolean> fp, long[] row,
+			Measurement m) throws IOException {
+		if (buffer.isLate(timestamp)) {
+			int timeBucket = getOrCreateTimeBucket(timestamp, m.getTimeBucketSize());
+			getOrCreateSeries(timeBucket, TS, false, m).addLateDataPoint(m, timestamp);
+			for (int f = 0; f < row.length; f++) {
+				getOrCreateSeries(timeBucket, names.get(f), fp.get(f), m).addLateDataPoint(m, row[f]);
+			}
+			return;
+		}
+		buffer.add(timestamp, buffer.layoutOf(names, fp), row);
+		releaseRows(buffer, buffer.releasable(), m);
+	}
+
+	private void releaseRows(ReorderBuffer buffer, int count, Measurement m) throws IOException {
+		Field[] fields = null;
+		Field timeField = null;
+		int currentBucket = 0;
+		int currentLayout = -1;
+		for (int i = 0; i < count; i++) {
+			long timestamp = buffer.getTimestamp(i);
+			int timeBucket = getTimeBucketInt(TimeUnit.MILLISECONDS, timestamp, m.getTimeBucketSize());
+			if (timeField == null || timeBucket != currentBucket) {
+				currentBucket = getOrCreateTimeBucket(timestamp, m.getTimeBucketSize());
+				timeField = getOrCreateSeries(currentBucket, TS, false, m);
+				currentLayout = -1;
+			}
+			// fields are only looked up again when the bucket or the layout changes
+			int layout = buffer.getLayout(i);
+			if (layout != currentLayout) {
+				String[] names = buffer.getFieldNames(layout);
+				boolean[] fp = buffer.getFp(layout);
+				fields = new Field[names.length];
+				for (int f = 0; f < names.length; f++) {
+					fields[f] = getOrCreateSeries(currentBucket, names[f], fp[f], m);
+				}
+				currentLayout = layout;
+			}
+			timeField.addDataPoint(m, timestamp);
+			for (int f = 0; f < fields.length; f++) {
+				fields[f].addDataPoint(m, buffer.getValue(i, f));
+			}
+		}
+		buffer.remove(count);
+	}
+
+	/**
+	 * Write out buffered rows if nothing was added to this series for the
+	 * duration of the reorder window
+	 * 
+	 * @param m
+	 * @throws IOException
+	 */
+	public void flushReorderBuffer(Measurement m) throws IOException {
+		flushReorderBuffer(m, false);
+	}
+
+	/**
+	 * Write out buffered rows
+	 * 
+	 * @param m
+	 * @param force
+	 *            true to write out all rows even if the series isn't idle e.g. on
+	 *            close
+	 * @throws IOException
+	 */
+	public void flushReorderBuffer(Measurement m, boolean force) throws IOException {
+		ReorderBuffer buffer = reorderBuffer;
+		if (buffer == null) {
+			return;
+		}
+		writeLock.lock();
+		try {
+			synchronized (buffer) {
+				if (force || buffer.isIdle(System.currentTimeMillis())) {
+					releaseRows(buffer, buffer.size(), m);
+				}
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Import already encoded buckets of a field (or timestamps when the field
+	 * name is {@link #TS}) as read-only writers of their time buckets.
+	 * 
+	 * Timestamps and values of a bucket are paired by their position, so a field
+	 * can only be imported into a time bucket that doesn't have it yet and that
+	 * holds nothing but imported writers; imports into buckets with written or
+	 * recovered data are rejected as a whole.
+	 * 
+	 * @param valueFieldName
+	 * @param fp
+	 * @param buckets
+	 * @param m
+	 * @throws IOException
+	 */
+	public void addBuckets(String valueFieldName, boolean fp, List<Bucket> buckets, Measurement m)
+			throws IOException {
+		// field creation compares the timestamp field name by reference
+		String fieldName = TS.equals(valueFieldName) ? TS : valueFieldName;
+		writeLock.lock();
+		try {
+			for (Bucket bucket : buckets) {
+				int timeBucket = getTimeBucketInt(TimeUnit.MILLISECONDS, bucket.getHeaderTimestamp(),
+						m.getTimeBucketSize());
+				Map<String, Field> fields = bucketFieldMap.get(timeBucket);
+				if (fields != null && !isImportable(fields, fieldName)) {
+					throw new RejectException("Can't import field:" + valueFieldName + " into existing bucket:"
+							+ timeBucket + " of series:" + seriesId);
+				}
+			}
+			for (Bucket bucket : buckets) {
+				int timeBucket = getOrCreateTimeBucket(bucket.getHeaderTimestamp(), m.getTimeBucketSize());
+				Field field = getOrCreateSeries(timeBucket, fieldName, fp, m);
+				field.importWriter(m, bucket.getData().asReadOnlyByteBuffer(), bucket.getCount());
 			}
 		} finally {
 			writeLock.unlock();
 		}
 	}
 
+	private static boolean isImportable(Map<String, Field> fields, String fieldName) {
+		if (fields.containsKey(fieldName)) {
+			return false;
+		}
+		for (Field field : fields.values()) {
+			// recovered fields are never imported into
+			if (field instanceof LazyField || !field.getLateWriters().isEmpty()) {
+				return false;
+			}
+			for (Writer writer : field.getWriters()) {
+				if (!writer.isReadOnly()) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
 	private int getOrCreateTimeBucket(long timestamp, int timeBucketSize) {
 		int timeBucketInt = getTimeBucketInt(TimeUnit.MILLISECONDS, timestamp, timeBucketSize);
 		Map<String, Field> map = bucketFieldMap.get(timeBucketInt);
@@ -146,11 +415,8 @@ public class Series {
 				ByteString cachedFieldName = measurement.getFieldCache().get(new ByteString(fieldName));
 				LinkedByteString fieldId = new LinkedByteString().concat(seriesId)
 						.concat(Measurement.SERIESID_SEPARATOR_BS).concat(cachedFieldName);
-				if (fieldName.equals(TS)) {
-					field = new TimeField(measurement, fieldId, entry.getKey(), conf);
-				} else {
-					field = new ValueField(measurement, fieldId, entry.getKey(), conf);
-				}
+				// writers are only created once the bucket is accessed
+				field = new LazyField(measurement, fieldId, fieldName.intern(), entry.getKey(), map);
 				map.put(fieldName.intern(), field);
 				fieldMap.put(field, new ArrayList<>());
 			}
@@ -370,6 +636,15 @@ public class Series {
 	public List<Writer> compact(Measurement measurement, Consumer<List<? extends Writer>>... functions)
 			throws IOException {
 		List<Writer> compact = new ArrayList<>();
+		ReorderBuffer buffer = reorderBuffer;
+		if (buffer != null) {
+			for (Entry<Integer, Map<String, Field>> entry : bucketFieldMap.entrySet()) {
+				List<Writer> merged = mergeLateWriters(measurement, buffer, entry.getKey(), entry.getValue());
+				if (merged != null) {
+					compact.addAll(merged);
+				}
+			}
+		}
 		for (Map<String, Field> map : bucketFieldMap.values()) {
 			for (Field field : map.values()) {
 				List<Writer> tmp = field.compact(measurement, writeLock);
@@ -384,6 +659,140 @@ public class Series {
 		return compact;
 	}
 
+	/**
+	 * Migrate the selected writers of all buckets older than the supplied bucket
+	 * to buffers of another allocator. The write lock is held for the whole
+	 * migration, every writer of the series including shard writers takes it, so
+	 * nothing can be appended to a writer between its copy and its swap. Fields
+	 * with selected writers are compacted first so that the target receives the
+	 * compacted buffers instead of the ingestion buffers.
+	 * 
+	 * @param measurement
+	 * @param target
+	 * @param filter
+	 * @param beforeBucket
+	 * @return writers that were replaced
+	 * @throws IOException
+	 */
+	public List<Writer> migrate(Measurement measurement, Malloc target, java.util.function.Predicate<Writer> filter,
+			int beforeBucket) throws IOException {
+		List<Writer> migrated = new ArrayList<>();
+		writeLock.lock();
+		try {
+			for (Map<String, Field> map : bucketFieldMap.headMap(beforeBucket).values()) {
+				for (Field field : map.values()) {
+					if (hasSelectedWriters(field, filter)) {
+						List<Writer> compacted = field.compact(measurement, writeLock);
+						if (compacted != null) {
+							migrated.addAll(compacted);
+						}
+					}
+					migrated.addAll(field.migrate(measurement, writeLock, target, filter));
+				}
+			}
+		} finally {
+			writeLock.unlock();
+		}
+		return migrated;
+	}
+
+	private static boolean hasSelectedWriters(Field field, java.util.function.Predicate<Writer> filter) {
+		// recovered fields have nothing to migrate, don't load them to find out
+		if (field instanceof LazyField && !((LazyField) field).isLoaded()) {
+			return false;
+		}
+		for (Writer writer : field.getWriters()) {
+			if (filter.test(writer)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Merge late-arrival writers of a time bucket back into time order by
+	 * rewriting all fields of the bucket. Writes to this series are blocked for
+	 * the duration of the merge as all writes go through the reorder buffer.
+	 * 
+	 * @return replaced writers or null if there was nothing to merge
+	 */
+	private List<Writer> mergeLateWriters(Measurement measurement, ReorderBuffer buffer, int timeBucket,
+			Map<String, Field> map) throws IOException {
+		boolean late = false;
+		for (Field field : map.values()) {
+			// recovered fields have no late writers, don't load them to find out
+			if (!(field instanceof LazyField)) {
+				late |= !field.getLateWriters().isEmpty();
+			}
+		}
+		Field timeField = map.get(TS);
+		if (!late || timeField == null) {
+			return null;
+		}
+		// same lock order as writers, the write lock before the buffer
+		writeLock.lock();
+		try {
+			synchronized (buffer) {
+				long[] timestamps = readAll(timeField);
+				Map<Field, long[]> columns = new HashMap<>();
+				for (Field field : map.values()) {
+					if (field == timeField) {
+						continue;
+					}
+					long[] values = readAll(field);
+					if (values.length != timestamps.length) {
+						logger.warning("Not merging late writers of bucket:" + timeBucket + " series:" + seriesId
+								+ " field " + field.getFieldId() + " is not aligned with timestamps");
+						return null;
+					}
+					columns.put(field, values);
+				}
+				Integer[] order = new Integer[timestamps.length];
+				for (int i = 0; i < order.length; i++) {
+					order[i] = i;
+				}
+				// stable so that duplicate timestamps keep their arrival order
+				Arrays.sort(order, (o1, o2) -> Long.compare(timestamps[o1], timestamps[o2]));
+				List<Writer> replaced = new ArrayList<>();
+				replaced.addAll(timeField.replaceWriters(measurement, permute(timestamps, order)));
+				for (Entry<Field, long[]> entry : columns.entrySet()) {
+					replaced.addAll(entry.getKey().replaceWriters(measurement, permute(entry.getValue(), order)));
+				}
+				logger.fine(() -> "Merged late writers of bucket:" + timeBucket + " series:" + seriesId + " points:"
+						+ timestamps.length);
+				return replaced;
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	private static long[] readAll(Field field) throws IOException {
+		List<? extends Writer> writers = field.getWriters();
+		int total = 0;
+		for (Writer writer : writers) {
+			total += writer.getCount();
+		}
+		long[] values = new long[total];
+		int idx = 0;
+		for (Writer writer : writers) {
+			Reader reader = writer.getReader();
+			int count = reader.getCount();
+			for (int i = 0; i < count; i++) {
+				values[idx++] = reader.read();
+			}
+		}
+		return values;
+	}
+
+	private static long[] permute(long[] values, Integer[] order) {
+		long[] output = new long[values.length];
+		for (int i = 0; i < order.length; i++) {
+			output[i] = values[order[i]];
+		}
+		return output;
+	}
+
 	public SortedMap<Integer, Map<String, Field>> getBucketMap() {
 		return bucketFieldMap;
 	}
@@ -406,22 +815,49 @@ public class Series {
 
 	public Map<Integer, List<Writer>> collectGarbage(Measurement measurement) throws IOException {
 		Map<Integer, List<Writer>> collectedGarbageMap = new HashMap<>();
+		for (Entry<Integer, Map<String, Field>> entry : removeExpiredBuckets(measurement).entrySet()) {
+			List<Writer> gcedBuckets = new ArrayList<>();
+			collectedGarbageMap.put(entry.getKey(), gcedBuckets);
+			for (Field field : entry.getValue().values()) {
+				gcedBuckets.addAll(field.getWriters());
+			}
+		}
+		return collectedGarbageMap;
+	}
+
+	/**
+	 * Remove buckets that passed retention without loading recovered fields that
+	 * were never accessed
+	 * 
+	 * @param measurement
+	 * @return buffer ids of the removed buckets
+	 * @throws IOException
+	 */
+	public Map<Integer, List<String>> collectGarbageBufferIds(Measurement measurement) throws IOException {
+		Map<Integer, List<String>> collectedGarbageMap = new HashMap<>();
+		for (Entry<Integer, Map<String, Field>> entry : removeExpiredBuckets(measurement).entrySet()) {
+			List<String> bufferIds = new ArrayList<>();
+			collectedGarbageMap.put(entry.getKey(), bufferIds);
+			for (Field field : entry.getValue().values()) {
+				bufferIds.addAll(field.getBufferIds());
+			}
+		}
+		return collectedGarbageMap;
+	}
+
+	private Map<Integer, Map<String, Field>> removeExpiredBuckets(Measurement measurement) {
+		Map<Integer, Map<String, Field>> collectedGarbageMap = new HashMap<>();
 		logger.finer("Retention buckets:" + measurement.getRetentionBuckets().get());
 		while (getBucketMap().size() > measurement.getRetentionBuckets().get()) {
 			writeLock.lock();
 			int oldSize = getBucketMap().size();
 			Integer key = getBucketMap().firstKey();
 			Map<String, Field> fieldMap = getBucketMap().remove(key);
-			List<Writer> gcedBuckets = new ArrayList<>();
-			collectedGarbageMap.put(key, gcedBuckets);
-			for (Field field : fieldMap.values()) {
-				// bucket.close();
-				gcedBuckets.addAll(field.getWriters());
-				logger.log(Level.FINEST,
-						"GC," + measurement.getMeasurementName() + ":" + seriesId + " removing bucket:" + key
-								+ ": as it passed retention period of:" + measurement.getRetentionBuckets().get()
-								+ ":old size:" + oldSize + ":newsize:" + getBucketMap().size() + ":");
-			}
+			collectedGarbageMap.put(key, fieldMap);
+			logger.log(Level.FINEST,
+					"GC," + measurement.getMeasurementName() + ":" + seriesId + " removing bucket:" + key
+							+ ": as it passed retention period of:" + measurement.getRetentionBuckets().get()
+							+ ":old size:" + oldSize + ":newsize:" + getBucketMap().size() + ":");
 			writeLock.unlock();
 		}
 		if (collectedGarbageMap.size() > 0) {
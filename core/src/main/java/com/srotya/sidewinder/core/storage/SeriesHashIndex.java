@@ -0,0 +1,131 @@
+/**
+ * Copyright Ambud Sharma
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.srotya.sidewinder.core.storage;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.srotya.sidewinder.core.rpc.Tag;
+
+/**
+ * Open addressing table that maps the 64-bit hash of a sorted tag list to its
+ * {@link Series}.
+ * 
+ * Lookups are lock-free and don't allocate; inserts must be performed while
+ * holding the measurement lock. Hash collisions are kept side by side in the
+ * table and resolved by verifying the tags against the series id.
+ * 
+ * @author ambud
+ */
+public class SeriesHashIndex {
+
+	private static final int MAX_CAPACITY = 1 << 30;
+	private volatile AtomicReferenceArray<Entry> table;
+	private int size;
+
+	public SeriesHashIndex(int expectedSize) {
+		table = new AtomicReferenceArray<>(tableSizeFor(expectedSize * 2));
+	}
+
+	/**
+	 * For implementations that keep their own table
+	 */
+	protected SeriesHashIndex() {
+	}
+
+	/**
+	 * @param hash
+	 *            hash of the tags computed with {@link Measurement#tagHash(List)}
+	 * @param tags
+	 *            sorted tags
+	 * @param measurement
+	 * @return series or null if this series isn't indexed
+	 */
+	public Series get(long hash, List<Tag> tags, Measurement measurement) {
+		AtomicReferenceArray<Entry> tab = table;
+		int mask = tab.length() - 1;
+		int idx = spread(hash) & mask;
+		Entry entry;
+		while ((entry = tab.get(idx)) != null) {
+			if (entry.hash == hash && measurement.matchesSeriesId(entry.series.getSeriesId(), tags)) {
+				return entry.series;
+			}
+			idx = (idx + 1) & mask;
+		}
+		return null;
+	}
+
+	/**
+	 * Must be called with the measurement lock held
+	 * 
+	 * @param hash
+	 * @param series
+	 */
+	public void put(long hash, Series series) {
+		if ((size + 1) * 2 > table.length() && table.length() < MAX_CAPACITY) {
+			AtomicReferenceArray<Entry> old = table;
+			AtomicReferenceArray<Entry> tab = new AtomicReferenceArray<>(old.length() * 2);
+			for (int i = 0; i < old.length(); i++) {
+				Entry entry = old.get(i);
+				if (entry != null) {
+					insert(tab, entry);
+				}
+			}
+			table = tab;
+		}
+		insert(table, new Entry(hash, series));
+		size++;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	private static void insert(AtomicReferenceArray<Entry> tab, Entry entry) {
+		int mask = tab.length() - 1;
+		int idx = spread(entry.hash) & mask;
+		while (tab.get(idx) != null) {
+			idx = (idx + 1) & mask;
+		}
+		tab.set(idx, entry);
+	}
+
+	protected static int spread(long hash) {
+		int h = (int) (hash ^ (hash >>> 32));
+		return h ^ (h >>> 16);
+	}
+
+	private static int tableSizeFor(int capacity) {
+		int n = 16;
+		while (n < capacity && n < MAX_CAPACITY) {
+			n <<= 1;
+		}
+		return n;
+	}
+
+	private static final class Entry {
+
+		private final long hash;
+		private final Series series;
+
+		private Entry(long hash, Series series) {
+			this.hash = hash;
+			this.series = series;
+		}
+
+	}
+
+}
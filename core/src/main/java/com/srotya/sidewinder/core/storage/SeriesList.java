@@ -0,0 +1,82 @@
+/**
+ * Copyright Ambud Sharma
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.srotya.sidewinder.core.storage;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Append-only list of the series of a measurement that can be read without
+ * locking while series are being added.
+ * 
+ * Series are kept in an {@link AtomicReferenceArray} that is replaced by a
+ * larger copy when it's full. A series is stored before the size is published,
+ * so a reader that learned about an ordinal through {@link #size()} or through
+ * an index that published the ordinal after the add also sees the series.
+ * 
+ * @author ambud
+ */
+public class SeriesList extends AbstractList<Series> implements RandomAccess {
+
+	private volatile AtomicReferenceArray<Series> array;
+	private volatile int size;
+
+	public SeriesList(int capacity) {
+		array = new AtomicReferenceArray<>(Math.max(16, capacity));
+	}
+
+	@Override
+	public Series get(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index:" + index + " size:" + size);
+		}
+		return array.get(index);
+	}
+
+	@Override
+	public synchronized boolean add(Series series) {
+		AtomicReferenceArray<Series> tab = array;
+		int index = size;
+		if (index == tab.length()) {
+			AtomicReferenceArray<Series> copy = new AtomicReferenceArray<>(tab.length() * 2);
+			for (int i = 0; i < index; i++) {
+				copy.lazySet(i, tab.get(i));
+			}
+			array = tab = copy;
+		}
+		tab.set(index, series);
+		size = index + 1;
+		return true;
+	}
+
+	/**
+	 * Series can only be appended
+	 */
+	@Override
+	public synchronized void add(int index, Series series) {
+		if (index != size) {
+			throw new IndexOutOfBoundsException("Series can only be appended, index:" + index + " size:" + size);
+		}
+		add(series);
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+}
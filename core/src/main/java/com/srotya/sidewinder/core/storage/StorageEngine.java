@@ -19,10 +19,12 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledExecutorService;
@@ -35,7 +37,10 @@ import com.codahale.metrics.Counter;
 import com.srotya.sidewinder.core.filters.TagFilter;
 import com.srotya.sidewinder.core.functions.Function;
 import com.srotya.sidewinder.core.predicates.Predicate;
+import com.srotya.sidewinder.core.rpc.Bucket;
 import com.srotya.sidewinder.core.rpc.Point;
+import com.srotya.sidewinder.core.rpc.RawTimeSeriesBucket;
+import com.srotya.sidewinder.core.rpc.SeriesBatch;
 import com.srotya.sidewinder.core.rpc.Tag;
 import com.srotya.sidewinder.core.storage.compression.CompressionFactory;
 
@@ -76,6 +81,16 @@ public interface StorageEngine {
 	public static final String DEFAULT_COMPACTION_ON_START = "false";
 	public static final String COMPACTION_RATIO = "compaction.ratio";
 	public static final String DEFAULT_COMPACTION_RATIO = "0.8";
+	/**
+	 * Out of order window in milliseconds, rows of a series are held and sorted
+	 * for this long before they are encoded and become visible to queries; 0
+	 * disables reordering. Buffered rows are only held on the heap, therefore a
+	 * non-zero window is refused with durability modes other than none.
+	 */
+	public static final String REORDER_WINDOW = "series.reorder.window.ms";
+	public static final String DEFAULT_REORDER_WINDOW = "0";
+	public static final String REORDER_CAPACITY = "series.reorder.capacity";
+	public static final String DEFAULT_REORDER_CAPACITY = "1024";
 	public static final boolean ENABLE_METHOD_METRICS = Boolean
 			.parseBoolean(System.getProperty("debug.method.metrics", "false"));
 	public static final String ENABLE_JDBC = "jdbc.enabled";
@@ -107,6 +122,7 @@ public interface StorageEngine {
 		StorageEngine.validatePoint(dp);
 		Measurement m = getOrCreateMeasurement(dp.getDbName(), dp.getMeasurementName());
 		m.addPointLocked(dp, preSorted);
+		m.sync();
 		getCounter().inc(dp.getValueList().size());
 	}
 
@@ -114,9 +130,133 @@ public interface StorageEngine {
 		StorageEngine.validatePoint(dp);
 		Measurement m = getOrCreateMeasurement(dp.getDbName(), dp.getMeasurementName());
 		m.addPointUnlocked(dp, preSorted);
+		m.sync();
 		getCounter().inc(dp.getValueList().size());
 	}
 
+	/**
+	 * Write a batch of points. Points are grouped by database and measurement so
+	 * that each measurement is resolved once per batch and each series appends its
+	 * share of the batch under a single lock acquisition. Each measurement is
+	 * synced once after the whole batch has been added.
+	 * 
+	 * @param points
+	 * @throws IOException
+	 */
+	public default void writeDataPoints(List<Point> points) throws IOException {
+		int valueCount = 0;
+		Map<String, Map<String, List<Point>>> dbPoints = new HashMap<>();
+		for (int i = 0; i < points.size(); i++) {
+			Point dp = points.get(i);
+			StorageEngine.validatePoint(dp);
+			Map<String, List<Point>> measurementPoints = dbPoints.get(dp.getDbName());
+			if (measurementPoints == null) {
+				measurementPoints = new HashMap<>();
+				dbPoints.put(dp.getDbName(), measurementPoints);
+			}
+			List<Point> list = measurementPoints.get(dp.getMeasurementName());
+			if (list == null) {
+				list = new ArrayList<>();
+				measurementPoints.put(dp.getMeasurementName(), list);
+			}
+			list.add(dp);
+			valueCount += dp.getValueCount();
+		}
+		List<Measurement> measurements = new ArrayList<>();
+		for (Entry<String, Map<String, List<Point>>> dbEntry : dbPoints.entrySet()) {
+			for (Entry<String, List<Point>> entry : dbEntry.getValue().entrySet()) {
+				Measurement m = getOrCreateMeasurement(dbEntry.getKey(), entry.getKey());
+				m.addPoints(entry.getValue());
+				measurements.add(m);
+			}
+		}
+		// a single sync per measurement covers the whole batch
+		for (int i = 0; i < measurements.size(); i++) {
+			measurements.get(i).sync();
+		}
+		getCounter().inc(valueCount);
+	}
+
+	/**
+	 * Write a columnar batch of points belonging to a single series, the series
+	 * is resolved once and the columns are appended straight to its fields
+	 * 
+	 * @param batch
+	 * @throws IOException
+	 */
+	public default void writeSeriesBatch(SeriesBatch batch) throws IOException {
+		StorageEngine.validateSeriesBatch(batch);
+		Measurement m = getOrCreateMeasurement(batch.getDbName(), batch.getMeasurementName());
+		m.addSeriesBatch(batch);
+		m.sync();
+		getCounter().inc(batch.getValueCount());
+	}
+
+	/**
+	 * Import already encoded buckets of a single series field without decoding
+	 * them, timestamp buckets are imported with the field name {@link Series#TS}
+	 * 
+	 * @param request
+	 * @throws IOException
+	 */
+	public default void writeSeriesBuckets(RawTimeSeriesBucket request) throws IOException {
+		if (request.getDbName().isEmpty() || request.getMeasurementName().isEmpty()
+				|| request.getValueFieldName().isEmpty()) {
+			throw INVALID_DATAPOINT_EXCEPTION;
+		}
+		Measurement m = getOrCreateMeasurement(request.getDbName(), request.getMeasurementName());
+		if (request.getBucketSize() > 0 && request.getBucketSize() != m.getTimeBucketSize()) {
+			throw new RejectException("Bucket size:" + request.getBucketSize()
+					+ " doesn't match measurement bucket size:" + m.getTimeBucketSize());
+		}
+		Series series = m.getOrCreateSeries(Measurement.sortedTags(request.getTagsList(), false), true);
+		series.addBuckets(request.getValueFieldName(), request.getFp(), request.getBucketsList(), m);
+		m.sync();
+		if (!Series.TS.equals(request.getValueFieldName())) {
+			int count = 0;
+			for (Bucket bucket : request.getBucketsList()) {
+				count += bucket.getCount();
+			}
+			getCounter().inc(count);
+		}
+	}
+
+	/**
+	 * Schedule the background task that writes out reorder buffers of idle
+	 * series, does nothing if reordering is disabled
+	 * 
+	 * @param conf
+	 * @param bgTaskPool
+	 */
+	public default void scheduleReorderFlush(Map<String, String> conf, ScheduledExecutorService bgTaskPool) {
+		long reorderWindow = Long.parseLong(conf.getOrDefault(REORDER_WINDOW, DEFAULT_REORDER_WINDOW));
+		if (reorderWindow <= 0) {
+			return;
+		}
+		getLogger().info("Series reordering is enabled with window:" + reorderWindow + "ms");
+		bgTaskPool.scheduleAtFixedRate(() -> flushReorderBuffers(false), reorderWindow, reorderWindow,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Write out reorder buffers of all measurements
+	 * 
+	 * @param force
+	 *            true to write out buffers of all series, not just idle ones
+	 */
+	public default void flushReorderBuffers(boolean force) {
+		for (Entry<String, Map<String, Measurement>> measurementMap : getDatabaseMap().entrySet()) {
+			for (Measurement value : measurementMap.getValue().values()) {
+				try {
+					value.flushReorderBuffers(force);
+				} catch (Exception e) {
+					getLogger().log(Level.SEVERE,
+							"Failed to flush reorder buffers for measurement:" + value.getMeasurementName(), e);
+				}
+			}
+		}
+	}
+
 	/**
 	 * Query timeseries from the storage engine given the supplied attributes.
 	 * 
@@ -551,8 +691,24 @@ public interface StorageEngine {
 		}
 	}
 
+	public static void validateSeriesBatch(SeriesBatch batch) throws RejectException {
+		if (batch.getDbName().isEmpty() || batch.getMeasurementName().isEmpty()
+				|| batch.getFpCount() != batch.getValueFieldNameCount()
+				|| batch.getValueCount() != batch.getValueFieldNameCount() * batch.getTimestampCount()) {
+			throw INVALID_DATAPOINT_EXCEPTION;
+		}
+	}
+
 	public int getDefaultTimebucketSize();
 
+	/**
+	 * @return directories data is persisted to, null if the engine doesn't use
+	 *         disk
+	 */
+	public default String[] getDataDirs() {
+		return null;
+	}
+
 	public Counter getCounter();
 
 	public Logger getLogger();
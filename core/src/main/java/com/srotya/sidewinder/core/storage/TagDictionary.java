@@ -0,0 +1,218 @@
+/**
+ * Copyright Ambud Sharma
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.srotya.sidewinder.core.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import com.srotya.sidewinder.core.utils.MiscUtils;
+
+/**
+ * Per database dictionary that assigns a dense integer id to every tag key and
+ * tag value so that indices can store and compare ints instead of strings.
+ * 
+ * Ids are assigned in insertion order and never reused; the dictionary is
+ * persisted as an append-only file of varint length prefixed UTF-8 terms where
+ * the id of a term is its position in the file. A torn record at the tail of
+ * the file (crash during append) is truncated on load.
+ * 
+ * Lookups are lock-free; assignment of new ids is serialized.
+ * 
+ * @author ambud
+ */
+public class TagDictionary {
+
+	private static final Logger logger = Logger.getLogger(TagDictionary.class.getName());
+	public static final String DICTIONARY_FILE = ".tdict";
+	private static final int MAGIC = 0x54444331;
+	private Map<String, Integer> ids;
+	private volatile String[] terms;
+	private volatile int size;
+	// number of terms known to be on disk
+	private int durableSize;
+	private File file;
+	private RandomAccessFile raf;
+	private FileChannel channel;
+
+	/**
+	 * Create an in-memory dictionary
+	 */
+	public TagDictionary() {
+		ids = new ConcurrentHashMap<>();
+		terms = new String[1024];
+	}
+
+	/**
+	 * Create a dictionary persisted to the supplied file, existing terms are
+	 * loaded from it
+	 * 
+	 * @param file
+	 * @throws IOException
+	 */
+	public TagDictionary(File file) throws IOException {
+		this();
+		this.file = file;
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		load();
+	}
+
+	private void load() throws IOException {
+		long length = channel.size();
+		if (length == 0) {
+			ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+			header.putInt(MAGIC).flip();
+			channel.write(header, 0);
+			channel.position(Integer.BYTES);
+			logger.fine(() -> "Tag dictionary is missing; initializing:" + file.getAbsolutePath());
+			return;
+		}
+		ByteBuffer buf = ByteBuffer.allocate((int) length);
+		while (buf.hasRemaining() && channel.read(buf, buf.position()) >= 0) {
+		}
+		buf.flip();
+		if (buf.remaining() < Integer.BYTES || buf.getInt() != MAGIC) {
+			throw new IOException("Invalid tag dictionary file:" + file.getAbsolutePath());
+		}
+		int validLimit = buf.position();
+		try {
+			while (buf.hasRemaining()) {
+				int termLength = MiscUtils.readVarInt(buf);
+				if (termLength > buf.remaining()) {
+					break;
+				}
+				byte[] term = new byte[termLength];
+				buf.get(term);
+				register(new String(term, StandardCharsets.UTF_8));
+				validLimit = buf.position();
+			}
+		} catch (BufferUnderflowException e) {
+			// torn varint at the tail
+		}
+		if (validLimit < length) {
+			logger.warning("Truncating torn tail of tag dictionary:" + file.getAbsolutePath() + " from:" + length
+					+ " to:" + validLimit);
+			channel.truncate(validLimit);
+		}
+		channel.position(validLimit);
+		durableSize = size;
+		logger.info("Loaded tag dictionary:" + file.getAbsolutePath() + " with " + size + " terms");
+	}
+
+	/**
+	 * @param term
+	 * @return id of the term, assigning and persisting a new one if the term
+	 *         isn't in the dictionary
+	 * @throws IOException
+	 */
+	public int getOrAssign(String term) throws IOException {
+		Integer id = ids.get(term);
+		if (id != null) {
+			return id;
+		}
+		synchronized (this) {
+			if ((id = ids.get(term)) != null) {
+				return id;
+			}
+			if (channel != null) {
+				byte[] bytes = term.getBytes(StandardCharsets.UTF_8);
+				ByteBuffer record = ByteBuffer.allocate(MiscUtils.varIntSize(bytes.length) + bytes.length);
+				MiscUtils.writeVarInt(bytes.length, record);
+				record.put(bytes);
+				record.flip();
+				while (record.hasRemaining()) {
+					channel.write(record);
+				}
+			}
+			return register(term);
+		}
+	}
+
+	private int register(String term) {
+		int id = size;
+		String[] tmp = terms;
+		if (id == tmp.length) {
+			tmp = Arrays.copyOf(tmp, tmp.length * 2);
+		}
+		tmp[id] = term;
+		terms = tmp;
+		size = id + 1;
+		ids.put(term, id);
+		return id;
+	}
+
+	/**
+	 * @param term
+	 * @return id of the term or -1 if the term isn't in the dictionary
+	 */
+	public int getId(String term) {
+		Integer id = ids.get(term);
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * @param id
+	 * @return term for the id or null if the id hasn't been assigned
+	 */
+	public String getTerm(int id) {
+		int limit = size;
+		String[] tmp = terms;
+		if (id < 0 || id >= limit) {
+			return null;
+		}
+		return tmp[id];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isPersistent() {
+		return channel != null;
+	}
+
+	/**
+	 * Flush appended terms to disk, this is a no-op if no term was assigned since
+	 * the last call so it's cheap to call before persisting anything that
+	 * references ids
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void force() throws IOException {
+		if (channel != null && durableSize != size) {
+			channel.force(false);
+			durableSize = size;
+		}
+	}
+
+	public synchronized void close() throws IOException {
+		if (channel != null) {
+			channel.force(false);
+			raf.close();
+			channel = null;
+		}
+	}
+
+}
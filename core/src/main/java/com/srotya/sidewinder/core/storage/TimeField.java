@@ -55,6 +55,9 @@ public class TimeField implements Field {
 	private static final int START_OFFSET = 2;
 	private static final Logger logger = Logger.getLogger(TimeField.class.getName());
 	private List<TimeWriter> writerList;
+	private volatile TimeWriter activeWriter;
+	// guarded by writerList, created on the first late-arrival write
+	private List<TimeWriter> lateWriters;
 	private LinkedByteString fieldId;
 	public static double compactionRatio = 0.8;
 	public static Class<TimeWriter> compressionClass = CompressionFactory.getTimeClassByName("byzantine");
@@ -83,19 +86,25 @@ public class TimeField implements Field {
 	}
 
 	private TimeWriter getOrCreateTimeWriter(Measurement measurement, long timestamp) throws IOException {
-		TimeWriter ans = null;
-		if (writerList.isEmpty()) {
-			ans = createNewWriter(measurement, tsBucket, writerList, timestamp);
-		} else {
-			ans = writerList.get(writerList.size() - 1);
-		}
-		if (ans.isFull()) {
-			final TimeWriter ansTmp = ans;
-			logger.fine(() -> "Requesting new writer for:" + fieldId + " bucketcount:" + writerList.size() + " pos:"
-					+ ansTmp.getPosition());
-			ans = createNewWriter(measurement, tsBucket, writerList, timestamp);
+		TimeWriter ans = activeWriter;
+		if (ans != null && !ans.isFull()) {
+			// append path is lock free, the writer list is only touched on rollover
+			return ans;
 		}
-		if (StorageEngine.ENABLE_METHOD_METRICS) {
+		synchronized (writerList) {
+			if (writerList.isEmpty()) {
+				ans = createNewWriter(measurement, tsBucket, writerList, timestamp);
+			} else {
+				ans = writerList.get(writerList.size() - 1);
+			}
+			if (ans.isFull()) {
+				final TimeWriter ansTmp = ans;
+				logger.fine(() -> "Requesting new writer for:" + fieldId + " bucketcount:" + writerList.size()
+						+ " pos:" + ansTmp.getPosition());
+				ans = createNewWriter(measurement, tsBucket, writerList, timestamp);
+				seal(measurement.getMalloc(), ansTmp);
+			}
+			activeWriter = ans;
 		}
 		return ans;
 	}
@@ -105,7 +114,7 @@ public class TimeField implements Field {
 		if (StorageEngine.ENABLE_METHOD_METRICS) {
 			// ctx = timerCreateWriter.time();
 		}
-		BufferObject bufPair = measurement.getMalloc().createNewBuffer(fieldId, tsBucket);
+		BufferObject bufPair = measurement.getMalloc().createNextBuffer(fieldId, tsBucket, list.size());
 		bufPair.getBuf().put((byte) CompressionFactory.getIdByTimeClass(compressionClass));
 		bufPair.getBuf().put((byte) list.size());
 		TimeWriter writer;
@@ -156,25 +165,59 @@ public class TimeField implements Field {
 			writer.setBufferId(repairedBufferId);
 			writer.configure(slice, false, START_OFFSET);
 			// TODO Potential bug
-			writerList.add(writer);
+			if ((slice.get(1) & LATE_WRITER_FLAG) != 0) {
+				if (lateWriters == null) {
+					lateWriters = new ArrayList<>(1);
+				}
+				lateWriters.add(writer);
+			} else {
+				writerList.add(writer);
+			}
 			logger.fine(() -> "Loaded bucketmap:" + fieldId + "\t" + " bufferid:" + entry.getBufferId());
 		}
-		sortBucketMap();
+		sortBucketMap(measurement);
 	}
 
-	private void sortBucketMap() throws IOException {
-		Collections.sort(writerList, new Comparator<TimeWriter>() {
+	private void sortBucketMap(Measurement measurement) throws IOException {
+		sortWriters(measurement, writerList);
+		if (lateWriters != null) {
+			sortWriters(measurement, lateWriters);
+		}
+	}
+
+	private void sortWriters(Measurement measurement, List<TimeWriter> list) throws IOException {
+		Collections.sort(list, new Comparator<TimeWriter>() {
 
 			@Override
 			public int compare(TimeWriter o1, TimeWriter o2) {
-				return Integer.compare((int) o1.getRawBytes().get(1), (int) o2.getRawBytes().get(1));
+				return Integer.compare(o1.getRawBytes().get(1) & 0x7F, o2.getRawBytes().get(1) & 0x7F);
 			}
 		});
-		for (int i = 0; i < writerList.size() - 1; i++) {
-			TimeWriter writer = writerList.get(i);
+		for (int i = 0; i < list.size() - 1; i++) {
+			TimeWriter writer = list.get(i);
 			writer.makeReadOnly(true);
 		}
 	}
+		sealWriters(measurement.getMalloc(), list);
+	}
+
+	private static void seal(Malloc malloc, Writer writer) {
+		if (writer.getBufferId() != null) {
+			malloc.seal(writer.getBufferId());
+		}
+	}
+
+	/**
+	 * Seal all but the last writer of the list, which is the only one still
+	 * appended to
+	 * 
+	 * @param malloc
+	 * @param list
+	 */
+	private static void sealWriters(Malloc malloc, List<? extends Writer> list) {
+		for (int i = 0; i < list.size() - 1; i++) {
+			seal(malloc, list.get(i));
+		}
 
 	/**
 	 * Get {@link Reader} with time and value filter predicates pushed-down to it.
@@ -202,8 +245,15 @@ public class TimeField implements Field {
 	public FieldReaderIterator queryReader(Predicate predicate, Lock readLock) throws IOException {
 		List<Reader> readers = new ArrayList<>();
 		readLock.lock();
-		for (TimeWriter writer : writerList) {
-			readers.add(getReader(writer, predicate));
+		synchronized (writerList) {
+			for (TimeWriter writer : writerList) {
+				readers.add(getReader(writer, predicate));
+			}
+			if (lateWriters != null) {
+				for (TimeWriter writer : lateWriters) {
+					readers.add(getReader(writer, predicate));
+				}
+			}
 		}
 		readLock.unlock();
 		return new FieldReaderIterator().addReader(readers);
@@ -231,6 +281,28 @@ public class TimeField implements Field {
 		}
 	}
 
+	@Override
+	public void addLateDataPoint(Measurement measurement, long timestamp) throws IOException {
+		synchronized (writerList) {
+			if (lateWriters == null) {
+				lateWriters = new ArrayList<>(1);
+			}
+			TimeWriter writer = lateWriters.isEmpty() ? null : lateWriters.get(lateWriters.size() - 1);
+			if (writer == null || writer.isFull()) {
+				if (writer != null) {
+					seal(measurement.getMalloc(), writer);
+				}
+				writer = createNewWriter(measurement, tsBucket, lateWriters, timestamp);
+				writer.getRawBytes().put(1, (byte) (LATE_WRITER_FLAG | (lateWriters.size() - 1)));
+			}
+			try {
+				writer.add(timestamp);
+			} catch (RollOverException e) {
+				addLateDataPoint(measurement, timestamp);
+			}
+		}
+	}
+
 	public static void readerToPoints(List<Long> points, Reader reader) throws IOException {
 		while (true) {
 			try {
@@ -308,9 +380,14 @@ public class TimeField implements Field {
 		List<Writer> compactedWriter = new ArrayList<>();
 		int id = CompressionFactory.getIdByTimeClass(compactionClass);
 		List<TimeWriter> list = writerList;
-		int listSize = list.size() - 1;
-		int pointCount = list.subList(0, listSize).stream().mapToInt(s -> s.getCount()).sum();
-		int total = list.subList(0, listSize).stream().mapToInt(s -> s.getPosition()).sum();
+		int listSize;
+		int pointCount;
+		int total;
+		synchronized (writerList) {
+			listSize = list.size() - 1;
+			pointCount = list.subList(0, listSize).stream().mapToInt(s -> s.getCount()).sum();
+			total = list.subList(0, listSize).stream().mapToInt(s -> s.getPosition()).sum();
+		}
 		if (total == 0) {
 			logger.warning("Ignoring bucket for compaction, not enough bytes. THIS BUG SHOULD BE INVESTIGATED");
 			return null;
@@ -330,7 +407,8 @@ public class TimeField implements Field {
 		writer.setHeaderTimestamp(input.getHeaderTimestamp());
 		// read all but the last writer and insert into new temp writer
 		try {
-			for (int i = 0; i < list.size() - 1; i++) {
+			// writers appended concurrently by the ingestion thread are not part of this compaction
+			for (int i = 0; i < listSize; i++) {
 				input = list.get(i);
 				Reader reader = input.getReader();
 				for (int k = 0; k < reader.getCount(); k++) {
@@ -369,23 +447,26 @@ public class TimeField implements Field {
 		writer.makeReadOnly(false);
 
 		writeLock.lock();
-		if (functions != null) {
-			for (Consumer<List<? extends Writer>> function : functions) {
-				function.accept(list);
+		synchronized (writerList) {
+			if (functions != null) {
+				for (Consumer<List<? extends Writer>> function : functions) {
+					function.accept(list);
+				}
 			}
+			size = listSize - 1;
+			logger.finest(
+					"Compaction debug size differences size:" + size + " listSize:" + listSize + " curr:" + list.size());
+			for (int i = size; i >= 0; i--) {
+				compactedWriter.add(list.remove(i));
+			}
+			list.add(0, writer);
+			for (int i = 0; i < list.size(); i++) {
+				list.get(i).getRawBytes().put(1, (byte) i);
+			}
+			sealWriters(measurement.getMalloc(), list);
+			logger.fine("Total points:" + compactedPoints + ", original pair count:" + writer.getReader().getCount()
+					+ " compression ratio:" + rawBytes.position() + " original:" + total);
 		}
-		size = listSize - 1;
-		logger.finest(
-				"Compaction debug size differences size:" + size + " listSize:" + listSize + " curr:" + list.size());
-		for (int i = size; i >= 0; i--) {
-			compactedWriter.add(list.remove(i));
-		}
-		list.add(0, writer);
-		for (int i = 0; i < list.size(); i++) {
-			list.get(i).getRawBytes().put(1, (byte) i);
-		}
-		logger.fine("Total points:" + compactedPoints + ", original pair count:" + writer.getReader().getCount()
-				+ " compression ratio:" + rawBytes.position() + " original:" + total);
 		writeLock.unlock();
 
 		if (StorageEngine.ENABLE_METHOD_METRICS) {
@@ -441,14 +522,141 @@ public class TimeField implements Field {
 		return garbageCollectWriters;
 	}
 
+	@Override
+	public Writer importWriter(Measurement measurement, ByteBuffer data, int count) throws IOException {
+		int length = data.remaining();
+		Class<TimeWriter> codec = null;
+		if (length > START_OFFSET) {
+			codec = CompressionFactory.getTimeClassById(data.get(data.position()));
+		}
+		if (codec == null) {
+			throw new RejectException("Invalid or unknown codec for imported buffer:" + fieldId);
+		}
+		BufferObject bufPair = measurement.getMalloc().createNewBuffer(fieldId, tsBucket, length);
+		ByteBuffer buf = bufPair.getBuf();
+		buf.put(data);
+		TimeWriter writer = getWriterInstance(codec);
+		writer.setBufferId(bufPair.getBufferId());
+		writer.configureReadOnly(buf, START_OFFSET);
+		if (writer.getCount() != count) {
+			measurement.getMalloc().cleanupBufferIds(Collections.singleton(bufPair.getBufferId().toString()));
+			throw new RejectException("Imported buffer count mismatch expected:" + count + " actual:"
+					+ writer.getCount() + " for:" + fieldId);
+		}
+		synchronized (writerList) {
+			// keep the active writer last so appends are not affected
+			int index = writerList.size();
+			if (index > 0 && !writerList.get(index - 1).isFull()) {
+				index--;
+			}
+			writerList.add(index, writer);
+			for (int i = 0; i < writerList.size(); i++) {
+				writerList.get(i).getRawBytes().put(1, (byte) i);
+			}
+			sealWriters(measurement.getMalloc(), writerList);
+		}
+		logger.fine(() -> "Imported writer for:" + fieldId + " bufferid:" + bufPair.getBufferId() + " count:" + count);
+		return writer;
+	}
+
 	@Override
 	public int getWriterCount() {
-		return writerList.size();
+		synchronized (writerList) {
+			return writerList.size() + (lateWriters != null ? lateWriters.size() : 0);
+		}
 	}
 
 	@Override
 	public List<? extends Writer> getWriters() {
-		return writerList;
+		synchronized (writerList) {
+			if (lateWriters == null || lateWriters.isEmpty()) {
+				return writerList;
+			}
+			List<TimeWriter> writers = new ArrayList<>(writerList);
+			writers.addAll(lateWriters);
+			return writers;
+		}
+	}
+
+	@Override
+	public List<? extends Writer> getLateWriters() {
+		synchronized (writerList) {
+			if (lateWriters == null) {
+				return Collections.emptyList();
+			}
+			return new ArrayList<>(lateWriters);
+		}
+	}
+
+	@Override
+	public List<Writer> replaceWriters(Measurement measurement, long[] values) throws IOException {
+		List<Writer> replaced = new ArrayList<>();
+		synchronized (writerList) {
+			replaced.addAll(writerList);
+			if (lateWriters != null) {
+				replaced.addAll(lateWriters);
+				lateWriters = null;
+			}
+			writerList.clear();
+			activeWriter = null;
+			for (long value : values) {
+				addDataPoint(measurement, value);
+			}
+		}
+		logger.fine(() -> "Replaced " + replaced.size() + " writers of:" + fieldId + " with " + writerList.size());
+		return replaced;
+	}
+
+	@Override
+	public List<Writer> migrate(Measurement measurement, Lock writeLock, Malloc target,
+			java.util.function.Predicate<Writer> filter) throws IOException {
+		List<Writer> migrated = new ArrayList<>();
+		writeLock.lock();
+		try {
+			synchronized (writerList) {
+				migrateWriters(target, filter, writerList, migrated);
+				if (lateWriters != null) {
+					migrateWriters(target, filter, lateWriters, migrated);
+				}
+			}
+		} finally {
+			writeLock.unlock();
+		}
+		if (!migrated.isEmpty()) {
+			logger.fine(() -> "Migrated " + migrated.size() + " writers of:" + fieldId + " bucket:" + tsBucket);
+		}
+		return migrated;
+	}
+
+	private void migrateWriters(Malloc target, java.util.function.Predicate<Writer> filter, List<TimeWriter> list,
+			List<Writer> migrated) throws IOException {
+		for (int i = 0; i < list.size(); i++) {
+			TimeWriter old = list.get(i);
+			if (!filter.test(old)) {
+				continue;
+			}
+			ByteBuffer src = old.getRawBytes().duplicate();
+			src.clear();
+			BufferObject bufPair = target.createNewBuffer(fieldId, tsBucket, src.capacity());
+			ByteBuffer buf = bufPair.getBuf();
+			buf.put(src);
+			buf.rewind();
+			ByteBuffer slice = buf.slice();
+			TimeWriter writer = getWriterInstance(CompressionFactory.getTimeClassById(slice.get()));
+			writer.setBufferId(bufPair.getBufferId());
+			writer.configure(slice, false, START_OFFSET);
+			if (old.isReadOnly()) {
+				writer.makeReadOnly(true);
+			}
+			list.set(i, writer);
+			if (i < list.size() - 1) {
+				seal(target, writer);
+			}
+			if (activeWriter == old) {
+				activeWriter = writer;
+			}
+			migrated.add(old);
+		}
 	}
 
 }
@@ -52,6 +52,9 @@ public class ValueField implements Field {
 	private static final int START_OFFSET = 2;
 	private static final Logger logger = Logger.getLogger(ValueField.class.getName());
 	private List<ValueWriter> writerList;
+	private volatile ValueWriter activeWriter;
+	// guarded by writerList, created on the first late-arrival write
+	private List<ValueWriter> lateWriters;
 	private LinkedByteString fieldId;
 	public static double compactionRatio = 1.0;
 	public static Class<ValueWriter> compressionClass = CompressionFactory.getValueClassByName("byzantine");
@@ -80,19 +83,25 @@ public class ValueField implements Field {
 	}
 
 	private ValueWriter getOrCreateValueWriter(Measurement measurement) throws IOException {
-		ValueWriter ans = null;
-		if (writerList.isEmpty()) {
-			ans = createNewWriter(measurement, tsBucket, writerList);
-		} else {
-			ans = writerList.get(writerList.size() - 1);
-		}
-		if (ans.isFull()) {
-			final ValueWriter ansTmp = ans;
-			logger.fine(() -> "Requesting new writer for:" + fieldId + " bucketcount:" + writerList.size() + " pos:"
-					+ ansTmp.getPosition());
-			ans = createNewWriter(measurement, tsBucket, writerList);
+		ValueWriter ans = activeWriter;
+		if (ans != null && !ans.isFull()) {
+			// append path is lock free, the writer list is only touched on rollover
+			return ans;
 		}
-		if (StorageEngine.ENABLE_METHOD_METRICS) {
+		synchronized (writerList) {
+			if (writerList.isEmpty()) {
+				ans = createNewWriter(measurement, tsBucket, writerList);
+			} else {
+				ans = writerList.get(writerList.size() - 1);
+			}
+			if (ans.isFull()) {
+				final ValueWriter ansTmp = ans;
+				logger.fine(() -> "Requesting new writer for:" + fieldId + " bucketcount:" + writerList.size()
+						+ " pos:" + ansTmp.getPosition());
+				ans = createNewWriter(measurement, tsBucket, writerList);
+				seal(measurement.getMalloc(), ansTmp);
+			}
+			activeWriter = ans;
 		}
 		return ans;
 	}
@@ -102,7 +111,7 @@ public class ValueField implements Field {
 		if (StorageEngine.ENABLE_METHOD_METRICS) {
 			// ctx = timerCreateWriter.time();
 		}
-		BufferObject bufPair = measurement.getMalloc().createNewBuffer(fieldId, tsBucket);
+		BufferObject bufPair = measurement.getMalloc().createNextBuffer(fieldId, tsBucket, list.size());
 		bufPair.getBuf().put((byte) CompressionFactory.getIdByValueClass(compressionClass));
 		bufPair.getBuf().put((byte) list.size());
 		ValueWriter writer;
@@ -151,22 +160,36 @@ public class ValueField implements Field {
 			logger.fine(() -> "Loading bucketmap:" + fieldId + "\t" + tsBucket + "bufferid:" + entry.getBufferId());
 			writer.setBufferId(repairedBufferId);
 			writer.configure(slice, false, START_OFFSET);
-			writerList.add(writer);
+			if ((slice.get(1) & LATE_WRITER_FLAG) != 0) {
+				if (lateWriters == null) {
+					lateWriters = new ArrayList<>(1);
+				}
+				lateWriters.add(writer);
+			} else {
+				writerList.add(writer);
+			}
 			logger.fine(() -> "Loaded bucketmap:" + fieldId + "\t" + " bufferid:" + entry.getBufferId());
 		}
-		sortBucketMap();
+		sortBucketMap(measurement);
 	}
 
-	private void sortBucketMap() throws IOException {
-		Collections.sort(writerList, new Comparator<ValueWriter>() {
+	private void sortBucketMap(Measurement measurement) throws IOException {
+		sortWriters(measurement, writerList);
+		if (lateWriters != null) {
+			sortWriters(measurement, lateWriters);
+		}
+	}
+
+	private void sortWriters(Measurement measurement, List<ValueWriter> list) throws IOException {
+		Collections.sort(list, new Comparator<ValueWriter>() {
 
 			@Override
 			public int compare(ValueWriter o1, ValueWriter o2) {
-				return Integer.compare((int) o1.getRawBytes().get(1), (int) o2.getRawBytes().get(1));
+				return Integer.compare(o1.getRawBytes().get(1) & 0x7F, o2.getRawBytes().get(1) & 0x7F);
 			}
 		});
-		for (int i = 0; i < writerList.size() - 1; i++) {
-			ValueWriter writer = writerList.get(i);
+		for (int i = 0; i < list.size() - 1; i++) {
+			ValueWriter writer = list.get(i);
 			try {
 				writer.makeReadOnly(true);
 			} catch (Exception e) {
@@ -174,6 +197,26 @@ public class ValueField implements Field {
 			}
 		}
 	}
+		sealWriters(measurement.getMalloc(), list);
+	}
+
+	private static void seal(Malloc malloc, Writer writer) {
+		if (writer.getBufferId() != null) {
+			malloc.seal(writer.getBufferId());
+		}
+	}
+
+	/**
+	 * Seal all but the last writer of the list, which is the only one still
+	 * appended to
+	 * 
+	 * @param malloc
+	 * @param list
+	 */
+	private static void sealWriters(Malloc malloc, List<? extends Writer> list) {
+		for (int i = 0; i < list.size() - 1; i++) {
+			seal(malloc, list.get(i));
+		}
 
 	/**
 	 * Extract list of readers for the supplied time range and value predicate.
@@ -188,8 +231,15 @@ public class ValueField implements Field {
 	public FieldReaderIterator queryReader(Predicate predicate, Lock readLock) throws IOException {
 		List<Reader> readers = new ArrayList<>();
 		readLock.lock();
-		for (ValueWriter writer : writerList) {
-			readers.add(Field.getReader(writer, predicate));
+		synchronized (writerList) {
+			for (ValueWriter writer : writerList) {
+				readers.add(Field.getReader(writer, predicate));
+			}
+			if (lateWriters != null) {
+				for (ValueWriter writer : lateWriters) {
+					readers.add(Field.getReader(writer, predicate));
+				}
+			}
 		}
 		readLock.unlock();
 		return new FieldReaderIterator().addReader(readers);
@@ -206,6 +256,28 @@ public class ValueField implements Field {
 		}
 	}
 
+	@Override
+	public void addLateDataPoint(Measurement measurement, long value) throws IOException {
+		synchronized (writerList) {
+			if (lateWriters == null) {
+				lateWriters = new ArrayList<>(1);
+			}
+			ValueWriter writer = lateWriters.isEmpty() ? null : lateWriters.get(lateWriters.size() - 1);
+			if (writer == null || writer.isFull()) {
+				if (writer != null) {
+					seal(measurement.getMalloc(), writer);
+				}
+				writer = createNewWriter(measurement, tsBucket, lateWriters);
+				writer.getRawBytes().put(1, (byte) (LATE_WRITER_FLAG | (lateWriters.size() - 1)));
+			}
+			try {
+				writer.add(value);
+			} catch (RollOverException e) {
+				addLateDataPoint(measurement, value);
+			}
+		}
+	}
+
 	public List<ValueWriter> getRawWriterList() {
 		return writerList;
 	}
@@ -261,9 +333,14 @@ public class ValueField implements Field {
 		}
 		List<Writer> compactedWriter = new ArrayList<>();
 		int id = CompressionFactory.getIdByValueClass(compactionClass);
-		int listSize = writerList.size() - 1;
-		int pointCount = writerList.subList(0, listSize).stream().mapToInt(s -> s.getCount()).sum();
-		int total = writerList.subList(0, listSize).stream().mapToInt(s -> s.getPosition()).sum();
+		int listSize;
+		int pointCount;
+		int total;
+		synchronized (writerList) {
+			listSize = writerList.size() - 1;
+			pointCount = writerList.subList(0, listSize).stream().mapToInt(s -> s.getCount()).sum();
+			total = writerList.subList(0, listSize).stream().mapToInt(s -> s.getPosition()).sum();
+		}
 		if (total == 0) {
 			logger.warning("Ignoring bucket for compaction, not enough bytes. THIS BUG SHOULD BE INVESTIGATED");
 			return null;
@@ -282,7 +359,8 @@ public class ValueField implements Field {
 		// read the header timestamp
 		// read all but the last writer and insert into new temp writer
 		try {
-			for (int i = 0; i < writerList.size() - 1; i++) {
+			// writers appended concurrently by the ingestion thread are not part of this compaction
+			for (int i = 0; i < listSize; i++) {
 				input = writerList.get(i);
 				Reader reader = input.getReader();
 				for (int k = 0; k < reader.getCount(); k++) {
@@ -321,24 +399,27 @@ public class ValueField implements Field {
 		writer.makeReadOnly(false);
 
 		writeLock.lock();
-		if (functions != null) {
-			for (Consumer<List<? extends Writer>> function : functions) {
-				function.accept(writerList);
+		synchronized (writerList) {
+			if (functions != null) {
+				for (Consumer<List<? extends Writer>> function : functions) {
+					function.accept(writerList);
+				}
 			}
+			size = listSize - 1;
+			logger.finest("Compaction debug size differences size:" + size + " listSize:" + listSize + " curr:"
+					+ writerList.size());
+			for (int i = size; i >= 0; i--) {
+				compactedWriter.add(writerList.remove(i));
+			}
+			writerList.add(0, writer);
+			for (int i = 0; i < writerList.size(); i++) {
+				writerList.get(i).getRawBytes().put(1, (byte) i);
+			}
+			sealWriters(measurement.getMalloc(), writerList);
+			logger.fine("Total points:" + compactedPoints + ", original pair count:" + writer.getReader().getCount()
+					+ " compression ratio:" + rawBytes.position() + " original:" + total + " newlistlength:"
+					+ writerList.size());
 		}
-		size = listSize - 1;
-		logger.finest("Compaction debug size differences size:" + size + " listSize:" + listSize + " curr:"
-				+ writerList.size());
-		for (int i = size; i >= 0; i--) {
-			compactedWriter.add(writerList.remove(i));
-		}
-		writerList.add(0, writer);
-		for (int i = 0; i < writerList.size(); i++) {
-			writerList.get(i).getRawBytes().put(1, (byte) i);
-		}
-		logger.fine("Total points:" + compactedPoints + ", original pair count:" + writer.getReader().getCount()
-				+ " compression ratio:" + rawBytes.position() + " original:" + total + " newlistlength:"
-				+ writerList.size());
 		writeLock.unlock();
 
 		if (StorageEngine.ENABLE_METHOD_METRICS) {
@@ -394,14 +475,141 @@ public class ValueField implements Field {
 		return garbageCollectWriters;
 	}
 
+	@Override
+	public Writer importWriter(Measurement measurement, ByteBuffer data, int count) throws IOException {
+		int length = data.remaining();
+		Class<ValueWriter> codec = null;
+		if (length > START_OFFSET) {
+			codec = CompressionFactory.getValueClassById(data.get(data.position()));
+		}
+		if (codec == null) {
+			throw new RejectException("Invalid or unknown codec for imported buffer:" + fieldId);
+		}
+		BufferObject bufPair = measurement.getMalloc().createNewBuffer(fieldId, tsBucket, length);
+		ByteBuffer buf = bufPair.getBuf();
+		buf.put(data);
+		ValueWriter writer = getWriterInstance(codec);
+		writer.setBufferId(bufPair.getBufferId());
+		writer.configureReadOnly(buf, START_OFFSET);
+		if (writer.getCount() != count) {
+			measurement.getMalloc().cleanupBufferIds(Collections.singleton(bufPair.getBufferId().toString()));
+			throw new RejectException("Imported buffer count mismatch expected:" + count + " actual:"
+					+ writer.getCount() + " for:" + fieldId);
+		}
+		synchronized (writerList) {
+			// keep the active writer last so appends are not affected
+			int index = writerList.size();
+			if (index > 0 && !writerList.get(index - 1).isFull()) {
+				index--;
+			}
+			writerList.add(index, writer);
+			for (int i = 0; i < writerList.size(); i++) {
+				writerList.get(i).getRawBytes().put(1, (byte) i);
+			}
+			sealWriters(measurement.getMalloc(), writerList);
+		}
+		logger.fine(() -> "Imported writer for:" + fieldId + " bufferid:" + bufPair.getBufferId() + " count:" + count);
+		return writer;
+	}
+
 	@Override
 	public int getWriterCount() {
-		return writerList.size();
+		synchronized (writerList) {
+			return writerList.size() + (lateWriters != null ? lateWriters.size() : 0);
+		}
 	}
 
 	@Override
 	public List<? extends Writer> getWriters() {
-		return writerList;
+		synchronized (writerList) {
+			if (lateWriters == null || lateWriters.isEmpty()) {
+				return writerList;
+			}
+			List<ValueWriter> writers = new ArrayList<>(writerList);
+			writers.addAll(lateWriters);
+			return writers;
+		}
+	}
+
+	@Override
+	public List<? extends Writer> getLateWriters() {
+		synchronized (writerList) {
+			if (lateWriters == null) {
+				return Collections.emptyList();
+			}
+			return new ArrayList<>(lateWriters);
+		}
+	}
+
+	@Override
+	public List<Writer> replaceWriters(Measurement measurement, long[] values) throws IOException {
+		List<Writer> replaced = new ArrayList<>();
+		synchronized (writerList) {
+			replaced.addAll(writerList);
+			if (lateWriters != null) {
+				replaced.addAll(lateWriters);
+				lateWriters = null;
+			}
+			writerList.clear();
+			activeWriter = null;
+			for (long value : values) {
+				addDataPoint(measurement, value);
+			}
+		}
+		logger.fine(() -> "Replaced " + replaced.size() + " writers of:" + fieldId + " with " + writerList.size());
+		return replaced;
+	}
+
+	@Override
+	public List<Writer> migrate(Measurement measurement, Lock writeLock, Malloc target,
+			java.util.function.Predicate<Writer> filter) throws IOException {
+		List<Writer> migrated = new ArrayList<>();
+		writeLock.lock();
+		try {
+			synchronized (writerList) {
+				migrateWriters(target, filter, writerList, migrated);
+				if (lateWriters != null) {
+					migrateWriters(target, filter, lateWriters, migrated);
+				}
+			}
+		} finally {
+			writeLock.unlock();
+		}
+		if (!migrated.isEmpty()) {
+			logger.fine(() -> "Migrated " + migrated.size() + " writers of:" + fieldId + " bucket:" + tsBucket);
+		}
+		return migrated;
+	}
+
+	private void migrateWriters(Malloc target, java.util.function.Predicate<Writer> filter, List<ValueWriter> list,
+			List<Writer> migrated) throws IOException {
+		for (int i = 0; i < list.size(); i++) {
+			ValueWriter old = list.get(i);
+			if (!filter.test(old)) {
+				continue;
+			}
+			ByteBuffer src = old.getRawBytes().duplicate();
+			src.clear();
+			BufferObject bufPair = target.createNewBuffer(fieldId, tsBucket, src.capacity());
+			ByteBuffer buf = bufPair.getBuf();
+			buf.put(src);
+			buf.rewind();
+			ByteBuffer slice = buf.slice();
+			ValueWriter writer = getWriterInstance(CompressionFactory.getValueClassById(slice.get()));
+			writer.setBufferId(bufPair.getBufferId());
+			writer.configure(slice, false, START_OFFSET);
+			if (old.isReadOnly()) {
+				writer.makeReadOnly(true);
+			}
+			list.set(i, writer);
+			if (i < list.size() - 1) {
+				seal(target, writer);
+			}
+			if (activeWriter == old) {
+				activeWriter = writer;
+			}
+			migrated.add(old);
+		}
 	}
 
 }
@@ -45,6 +45,21 @@ public interface Writer {
 
 	public void bootstrap(ByteBuffer buf) throws IOException;
 
+	/**
+	 * Configure this writer as read-only over an already encoded buffer, the
+	 * buffer must be positioned at the end of the encoded data. Codecs that can
+	 * recover their state from the buffer header should override this to avoid
+	 * decoding the data.
+	 * 
+	 * @param buf
+	 * @param startOffset
+	 * @throws IOException
+	 */
+	public default void configureReadOnly(ByteBuffer buf, int startOffset) throws IOException {
+		configure(buf, false, startOffset);
+		makeReadOnly(true);
+	}
+
 	public ByteBuffer getRawBytes();
 
 	public void setCounter(int counter);
@@ -211,9 +211,18 @@ public class ByzantineTimestampWriter implements TimeWriter {
 		this.count = count;
 	}
 
+	@Override
+	public void configureReadOnly(ByteBuffer buf, int startOffset) throws IOException {
+		this.startOffset = startOffset;
+		this.buf = buf;
+		count = buf.getInt(startOffset);
+		makeReadOnly(true);
+	}
+
 	@Override
 	public void makeReadOnly(boolean recovery) {
 		readOnly = true;
+		full = true;
 	}
 
 	@Override
@@ -186,9 +186,18 @@ public class ByzantineValueWriter implements ValueWriter {
 		this.count = count;
 	}
 
+	@Override
+	public void configureReadOnly(ByteBuffer buf, int startOffset) throws IOException {
+		this.startOffset = startOffset;
+		this.buf = buf;
+		count = buf.getInt(startOffset);
+		makeReadOnly(true);
+	}
+
 	@Override
 	public void makeReadOnly(boolean recovery) {
 		readOnly = true;
+		full = true;
 	}
 
 	@Override
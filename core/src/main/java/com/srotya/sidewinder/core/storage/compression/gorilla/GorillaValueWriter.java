@@ -108,6 +108,7 @@ public class GorillaValueWriter implements ValueWriter {
 	@Override
 	public void makeReadOnly(boolean recovery) throws IOException {
 		// this writer is always readonly
+		full = true;
 		if (compressor != null && !recovery) {
 			updateCount();
 			// compute md5 and store
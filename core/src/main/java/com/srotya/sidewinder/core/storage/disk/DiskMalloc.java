@@ -20,21 +20,32 @@ import java.io.FileNotFoundException;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.AbstractMap;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -43,14 +54,72 @@ import com.codahale.metrics.Counter;
 import com.codahale.metrics.MetricRegistry;
 import com.srotya.sidewinder.core.monitoring.MetricsRegistryService;
 import com.srotya.sidewinder.core.storage.BufferObject;
+import com.srotya.sidewinder.core.storage.BufferSizePolicy;
 import com.srotya.sidewinder.core.storage.ByteString;
 import com.srotya.sidewinder.core.storage.ByteString.ByteStringCache;
 import com.srotya.sidewinder.core.storage.LinkedByteString;
 import com.srotya.sidewinder.core.storage.Malloc;
+import com.srotya.sidewinder.core.storage.Measurement;
 import com.srotya.sidewinder.core.storage.StorageEngine;
+import com.srotya.sidewinder.core.storage.TagDictionary;
 import com.srotya.sidewinder.core.utils.MiscUtils;
 
 /**
+ * Disk backed {@link Malloc} that slices buffers out of memory mapped data
+ * files.
+ * 
+ * Durability of the mapped pages is controlled by {@link #CONF_DURABILITY}:
+ * <ul>
+ * <li>none: dirty pages are flushed by the OS at its own discretion</li>
+ * <li>periodic: all mapped regions are forced every
+ * {@link #CONF_DURABILITY_INTERVAL} milliseconds</li>
+ * <li>group-commit: writers block in {@link #sync()} until a force covering
+ * their write has completed, concurrent writers share a single force</li>
+ * </ul>
+ * Only none is supported with tiered storage ({@link TieredMalloc}) since its
+ * hot buckets live in memory and are lost on a crash.
+ * 
+ * Buffer pointers are persisted in a binary pointer file made of a fixed size
+ * header followed by fixed width records (see {@link #PTR_RECORD_SIZE}). Series
+ * and field names are stored as ordinals of a per measurement
+ * {@link TagDictionary}. Garbage collected buffers are tombstoned in place and
+ * the file is compacted in the background once the ratio of tombstones crosses
+ * {@link #CONF_PTR_COMPACTION_RATIO}. Legacy text pointer files are migrated on
+ * load.
+ * 
+ * Space of garbage collected buffers is reused: released extents are kept in
+ * power of two size class free lists and handed out before the active data
+ * file is grown. Released extents are quarantined until every reader that
+ * registered with {@link #enterRead()} before the release has left, so that
+ * in-flight readers of the old buffer aren't affected. The free lists are
+ * rebuilt from the gaps between live pointer records on startup.
+ * 
+ * With {@link #CONF_MALLOC_STRIPING} enabled new data files of a measurement
+ * are spread round-robin or by free space across the measurement directories
+ * of all configured data directories so that a single measurement can use the
+ * aggregate bandwidth of several disks; the stripe directory of every buffer is
+ * recorded in its pointer record. The pointer file always stays in the primary
+ * directory.
+ * 
+ * With {@link #CONF_MALLOC_SEGMENTED} enabled every data file (segment) only
+ * holds buffers of a single time bucket and each bucket being written has its
+ * own active file; at most {@link #CONF_MALLOC_SEGMENT_OPEN_MAX} segments are
+ * kept open, the oldest bucket is closed first. A closed segment that receives
+ * writes again continues at the end of its last data file. Retention then
+ * releases disk space by unlinking whole segments once all their buffers are
+ * collected, followed by a single pointer file compaction. Free space reuse is
+ * disabled in this mode since it would mix buckets in a segment.
+ * 
+ * Data files found on startup aren't mapped during recovery. Recovered buffers
+ * are handed out as descriptors of their file, position and size that map the
+ * file and slice the buffer on first access. A mapping is referenced by the
+ * live buffers sliced from it and stays registered until they are all garbage
+ * collected so that a file is never mapped twice; mappings without references
+ * beyond {@link #CONF_MALLOC_MAPPING_OPEN_MAX} are forced and released, least
+ * recently used first. Reads through {@link BufferObject#getReadBuf()} don't
+ * reference the mapping, so the limit holds for buckets that are only queried
+ * and is only exceeded by loaded buckets e.g. ones written to again.
+ * 
  * @author ambud
  */
 public class DiskMalloc implements Malloc {
@@ -66,32 +135,127 @@ public class DiskMalloc implements Malloc {
 	public static final String CONF_MALLOC_PTRFILE_INCREMENT = "malloc.ptrfile.increment";
 	public static final String CONF_MEASUREMENT_FILE_MAX = "malloc.file.max";
 	public static final String CONF_MEASUREMENT_FILE_INCREMENT = "malloc.file.increment";
+	public static final String CONF_DURABILITY = "malloc.durability";
+	public static final String CONF_DURABILITY_INTERVAL = "malloc.durability.interval.ms";
+	public static final String DEFAULT_DURABILITY_INTERVAL = "1000";
+	public static final String CONF_PTR_COMPACTION_RATIO = "malloc.ptrfile.compaction.ratio";
+	public static final String CONF_PTR_COMPACTION_MIN = "malloc.ptrfile.compaction.min";
+	public static final String DEFAULT_PTR_COMPACTION_RATIO = "0.5";
+	public static final String DEFAULT_PTR_COMPACTION_MIN = "1024";
+	public static final String PTR_KEYS_FILE = ".pkeys";
+	public static final String CONF_MALLOC_REUSE = "malloc.reuse";
+	public static final String CONF_MALLOC_STRIPING = "malloc.striping";
+	public static final String STRIPES_FILE = ".stripes";
+	public static final String CONF_MALLOC_SEGMENTED = "malloc.segmented";
+	public static final String CONF_MALLOC_SEGMENT_OPEN_MAX = "malloc.segment.open.max";
+	public static final String DEFAULT_MALLOC_SEGMENT_OPEN_MAX = "4";
+	public static final String CONF_MALLOC_MAPPING_OPEN_MAX = "malloc.mapping.open.max";
+	public static final String DEFAULT_MALLOC_MAPPING_OPEN_MAX = "64";
+	// segment of all buffers when segmentation is disabled
+	private static final int DEFAULT_SEGMENT = Integer.MIN_VALUE;
+	private static final int MAX_STRIPES = 256;
+	// extents smaller than this aren't worth tracking
+	private static final int MIN_FREE_EXTENT = 64;
+	private static final byte[] ZEROS = new byte[4096];
+	public static final int PTR_MAGIC = 0xDF505452;
+	public static final int PTR_VERSION = 2;
+	public static final int PTR_HEADER_SIZE = 32;
+	public static final int PTR_RECORD_SIZE = 32;
+	private static final byte FLAG_TOMBSTONE = 1;
+	// header layout: magic, version, record size, record count, tombstone count
+	private static final int HDR_VERSION = 4;
+	private static final int HDR_RECORD_SIZE = 8;
+	private static final int HDR_COUNT = 12;
+	private static final int HDR_TOMBSTONES = 16;
+	// record layout: flags, stripe, series, field, file id, size, bucket, position
+	private static final int REC_FLAGS = 0;
+	private static final int REC_STRIPE = 1;
+	private static final int REC_SERIES = 4;
+	private static final int REC_FIELD = 8;
+	private static final int REC_FILE = 12;
+	private static final int REC_SIZE = 16;
+	private static final int REC_BUCKET = 20;
+	private static final int REC_POSITION = 24;
 	private ReentrantLock lock;
 	private int ptrFileIncrement;
-	private int itr;
 	private int fileMapIncrement;
 	private int increment;
-	private int curr;
+	private BufferSizePolicy sizePolicy;
 	private int fcnt;
-	private MappedByteBuffer memoryMappedBuffer;
 	private String measurementName;
 	private long maxFileSize;
-	private ByteString filename;
-	private RandomAccessFile rafActiveFile;
 	private String dataDirectory;
-	private long offset;
+	private boolean segmented;
+	private int segmentOpenMax;
+	private TreeMap<Integer, ActiveFile> activeFiles;
+	// latest data file of every segment and the end of the space allocated in it
+	private Map<Integer, Integer> segmentFiles;
+	private Map<Integer, Long> fileEnds;
 	private MappedByteBuffer ptrBuf;
 	private RandomAccessFile rafPtr;
 	private File ptrFile;
 	private ByteStringCache cache;
+	private TagDictionary ptrKeys;
 
 	private volatile int ptrCounter;
+	private volatile int ptrTombstones;
+	private double ptrCompactionRatio;
+	private int ptrCompactionMin;
+	private volatile boolean ptrCompactionPending;
+	private Map<Integer, Integer> fileBufferCounts;
+	private ScheduledExecutorService bgTaskPool;
+	private boolean reuseEnabled;
+	// epoch of released extents, readers register with the epoch current when
+	// they enter
+	private long readEpoch;
+	private TreeMap<Long, Integer> activeReaders;
+	private List<ArrayDeque<Extent>> freeLists;
+	private ArrayDeque<Extent> releasedExtents;
+	private long freeBytes;
+	private Map<Integer, TreeMap<Long, MappedByteBuffer>> fileMappings;
+	// data files found on startup, mapped on first access
+	private Map<Integer, File> recoveredFiles;
+	private int mappingOpenMax;
+	private LinkedHashMap<Integer, RecoveredMapping> recoveredMappings;
+	private Counter metricsBufferReuse;
+	private Striping striping;
+	private List<String> configuredStripes;
+	private List<String> stripeDirectories;
+	private Map<Integer, Integer> fileStripes;
+	private int nextStripe;
 	private boolean enableMetricsCapture;
 	private Counter metricsBufferSize;
 	private Counter metricsBufferResize;
 	private Counter metricsFileRotation;
 	private Counter metricsBufferCounter;
 	private Map<ByteString, WeakReference<MappedByteBuffer>> oldBufferReferences;
+	// regions mapped for new buffers per data file
+	private Map<Integer, List<Region>> dataRegions;
+	// region each buffer that may still be written to was sliced from
+	private Map<Long, Region> openBuffers;
+	private Durability durability;
+	private ScheduledFuture<?> forceTask;
+	private ReentrantLock forceLock;
+	private volatile long syncRequested;
+	private volatile long syncCompleted;
+	private AtomicLong forceCount = new AtomicLong();
+
+	public static enum Durability {
+		NONE, PERIODIC, GROUP_COMMIT;
+
+		public static Durability fromString(String mode) {
+			switch (mode.trim().toLowerCase()) {
+			case "none":
+				return NONE;
+			case "periodic":
+				return PERIODIC;
+			case "group-commit":
+				return GROUP_COMMIT;
+			default:
+				throw new IllegalArgumentException("Unknown durability mode:" + mode);
+			}
+		}
+	}
 
 	@Override
 	public void configure(Map<String, String> conf, String dataDirectory, String measurementName, StorageEngine engine,
@@ -102,15 +266,64 @@ public class DiskMalloc implements Malloc {
 		this.fileMapIncrement = getFileIncrement(conf);
 		this.maxFileSize = getMaxFileSize(conf);
 		this.increment = getBufIncrement(conf);
+		this.sizePolicy = BufferSizePolicy.fromConf(conf, increment);
 		if (maxFileSize < 0) {
 			throw new IllegalArgumentException("File size can't be negative or greater than:" + Integer.MAX_VALUE);
 		}
 		if (fileMapIncrement >= maxFileSize) {
 			throw new IllegalArgumentException("File increment can't be greater than or equal to file size");
 		}
+		if (sizePolicy.isAdaptive() && sizePolicy.sizeFor(Integer.MAX_VALUE) > fileMapIncrement) {
+			throw new IllegalArgumentException("Maximum buffer size can't be greater than the file increment");
+		}
 		this.ptrFile = new File(getPtrPath());
 		this.ptrFileIncrement = Integer
 				.parseInt(conf.getOrDefault(CONF_MALLOC_PTRFILE_INCREMENT, String.valueOf(PTR_INCREMENT)));
+		if (ptrFileIncrement < PTR_HEADER_SIZE + PTR_RECORD_SIZE) {
+			throw new IllegalArgumentException(
+					"Ptr file increment must be at least:" + (PTR_HEADER_SIZE + PTR_RECORD_SIZE));
+		}
+		this.ptrCompactionRatio = Double
+				.parseDouble(conf.getOrDefault(CONF_PTR_COMPACTION_RATIO, DEFAULT_PTR_COMPACTION_RATIO));
+		this.ptrCompactionMin = Integer
+				.parseInt(conf.getOrDefault(CONF_PTR_COMPACTION_MIN, DEFAULT_PTR_COMPACTION_MIN));
+		this.bgTaskPool = bgTaskPool;
+		this.fileBufferCounts = new HashMap<>();
+		this.activeFiles = new TreeMap<>();
+		this.segmentFiles = new HashMap<>();
+		this.fileEnds = new HashMap<>();
+		this.segmented = Boolean.parseBoolean(conf.getOrDefault(CONF_MALLOC_SEGMENTED, "false"));
+		this.segmentOpenMax = Integer
+				.parseInt(conf.getOrDefault(CONF_MALLOC_SEGMENT_OPEN_MAX, DEFAULT_MALLOC_SEGMENT_OPEN_MAX));
+		if (segmentOpenMax < 1) {
+			throw new IllegalArgumentException("At least one segment must be allowed to be open");
+		}
+		this.reuseEnabled = !segmented && Boolean.parseBoolean(conf.getOrDefault(CONF_MALLOC_REUSE, "true"));
+		this.activeReaders = new TreeMap<>();
+		this.freeLists = new ArrayList<>(Integer.SIZE);
+		for (int i = 0; i < Integer.SIZE; i++) {
+			freeLists.add(new ArrayDeque<>());
+		}
+		this.releasedExtents = new ArrayDeque<>();
+		this.fileMappings = new HashMap<>();
+		this.fileStripes = new HashMap<>();
+		this.recoveredFiles = new ConcurrentHashMap<>();
+		this.mappingOpenMax = Integer
+				.parseInt(conf.getOrDefault(CONF_MALLOC_MAPPING_OPEN_MAX, DEFAULT_MALLOC_MAPPING_OPEN_MAX));
+		if (mappingOpenMax < 1) {
+			throw new IllegalArgumentException("At least one recovered data file must be allowed to be mapped");
+		}
+		this.recoveredMappings = new LinkedHashMap<>(16, 0.75f, true);
+		this.striping = getStriping(conf);
+		this.configuredStripes = new ArrayList<>();
+		if (striping != Striping.NONE) {
+			String dbName = new File(dataDirectory).getName();
+			for (String dir : MiscUtils.splitAndNormalizeString(conf.getOrDefault(DiskStorageEngine.DATA_DIRS, ""))) {
+				if (!dir.isEmpty()) {
+					configuredStripes.add(dir + "/" + dbName + "/" + measurementName);
+				}
+			}
+		}
 		cache = ByteStringCache.instance();
 		if (engine != null) {
 			enableMetricsCapture = true;
@@ -120,10 +333,51 @@ public class DiskMalloc implements Malloc {
 			metricsBufferResize = r.counter("buffer-resize");
 			metricsFileRotation = r.counter("file-rotation");
 			metricsBufferCounter = r.counter("buffer-counter");
+			metricsBufferReuse = r.counter("buffer-reuse");
 		}
 		if (debug) {
 			oldBufferReferences = new ConcurrentHashMap<>();
 		}
+		dataRegions = new ConcurrentHashMap<>();
+		openBuffers = new HashMap<>();
+		forceLock = new ReentrantLock();
+		durability = getDurability(conf);
+		if (durability == Durability.PERIODIC && bgTaskPool != null) {
+			long interval = Long.parseLong(conf.getOrDefault(CONF_DURABILITY_INTERVAL, DEFAULT_DURABILITY_INTERVAL));
+			forceTask = bgTaskPool.scheduleAtFixedRate(() -> {
+				try {
+					force();
+				} catch (Exception e) {
+					logger.log(Level.SEVERE, "Failed to force mapped buffers for measurement:" + measurementName, e);
+				}
+			}, interval, interval, TimeUnit.MILLISECONDS);
+		}
+		logger.fine(() -> "Durability mode for measurement:" + measurementName + " is " + durability);
+	}
+
+	public static enum Striping {
+		NONE, ROUND_ROBIN, FREE_SPACE;
+
+		public static Striping fromString(String mode) {
+			switch (mode.trim().toLowerCase()) {
+			case "none":
+				return NONE;
+			case "round-robin":
+				return ROUND_ROBIN;
+			case "free-space":
+				return FREE_SPACE;
+			default:
+				throw new IllegalArgumentException("Unknown striping mode:" + mode);
+			}
+		}
+	}
+
+	public static Striping getStriping(Map<String, String> conf) {
+		return Striping.fromString(conf.getOrDefault(CONF_MALLOC_STRIPING, "none"));
+	}
+
+	public static Durability getDurability(Map<String, String> conf) {
+		return Durability.fromString(conf.getOrDefault(CONF_DURABILITY, "none"));
 	}
 
 	public static int getBufIncrement(Map<String, String> conf) {
@@ -146,58 +400,60 @@ public class DiskMalloc implements Malloc {
 		return createNewBuffer(fieldId, tsBucket, increment);
 	}
 
+	@Override
+	public BufferObject createNextBuffer(LinkedByteString fieldId, Integer tsBucket, int writerIndex)
+			throws IOException {
+		return createNewBuffer(fieldId, tsBucket, sizePolicy.sizeFor(writerIndex));
+	}
+
 	@Override
 	public BufferObject createNewBuffer(LinkedByteString fieldId, Integer tsBucket, int newSize) throws IOException {
 		logger.fine(() -> "Seriesid:" + fieldId + " requesting buffer of size:" + newSize);
-		if (rafActiveFile == null) {
-			lock.lock();
-			if (rafActiveFile == null) {
-				filename = new ByteString(dataDirectory + "/data-" + String.format("%012d", fcnt) + ".dat");
-				rafActiveFile = new RandomAccessFile(filename.toString(), "rwd");
-				offset = 0;
-				logger.info("Creating new datafile for measurement:" + filename);
-				memoryMappedBuffer = rafActiveFile.getChannel().map(MapMode.READ_WRITE, 0, fileMapIncrement);
-				fcnt++;
-				if (enableMetricsCapture) {
-					metricsFileRotation.inc();
-				}
-			}
-			lock.unlock();
-		}
 		lock.lock();
 		try {
-			if (curr + newSize < 0 || curr + newSize > memoryMappedBuffer.remaining() + 1) {
-				curr = 0;
-				itr++;
-				offset = (((long) (fileMapIncrement)) * itr);
-				// close the current data file, increment the filename by 1 so
-				// that a new data file will be created next time a buffer is
-				// requested
-				if (offset >= maxFileSize) {
-					itr = 0;
+			BufferObject reused = allocateFromFreeList(fieldId, tsBucket, newSize);
+			if (reused != null) {
+				return reused;
+			}
+			int segment = segmentOf(tsBucket);
+			ActiveFile active = activeFiles.get(segment);
+			if (active == null) {
+				active = openActiveFile(segment);
+			}
+			if (active.curr + newSize < 0 || active.curr + newSize > active.map.remaining() + 1) {
+				active.curr = 0;
+				active.itr++;
+				active.offset = (((long) (fileMapIncrement)) * active.itr);
+				// close the current data file of the segment so that a new data file
+				// is created for it
+				if (active.offset >= maxFileSize) {
 					logger.info("Rotating datafile for measurement:" + measurementName + " closing active file:"
-							+ filename);
-					memoryMappedBuffer.force();
-					rafActiveFile.close();
-					rafActiveFile = null;
-					return createNewBuffer(fieldId, tsBucket, newSize);
-				}
-				// used for GC testing and debugging
-				if (oldBufferReferences != null) {
-					oldBufferReferences.put(filename, new WeakReference<MappedByteBuffer>(memoryMappedBuffer));
-				}
-				memoryMappedBuffer = rafActiveFile.getChannel().map(MapMode.READ_WRITE, offset, fileMapIncrement);
-				logger.fine("Buffer expansion:" + offset + "\t\t" + curr);
-				if (enableMetricsCapture) {
-					metricsBufferResize.inc();
-					metricsBufferSize.inc(fileMapIncrement);
+							+ active.filename);
+					closeActiveFile(segment);
+					active = openActiveFile(segment);
+				} else {
+					// used for GC testing and debugging
+					if (oldBufferReferences != null) {
+						oldBufferReferences.put(active.filename, new WeakReference<MappedByteBuffer>(active.map));
+					}
+					active.map = active.raf.getChannel().map(MapMode.READ_WRITE, active.offset, fileMapIncrement);
+					active.region = trackRegion(active.fileId, active.offset, active.map);
+					trackFileMapping(active.fileId, active.offset, active.map);
+					final ActiveFile tmp = active;
+					logger.fine(() -> "Buffer expansion:" + tmp.offset + "\t\t" + tmp.curr);
+					if (enableMetricsCapture) {
+						metricsBufferResize.inc();
+						metricsBufferSize.inc(fileMapIncrement);
+					}
 				}
 			}
-			LinkedByteString ptrKey = appendBufferPointersToDisk(fieldId, filename, curr, offset, newSize, tsBucket);
-			ByteBuffer buf = memoryMappedBuffer.slice();
+			LinkedByteString ptrKey = appendBufferPointersToDisk(fieldId, active.fileId, active.offset + active.curr,
+					newSize, tsBucket);
+			ByteBuffer buf = active.map.slice();
 			buf.limit(newSize);
-			curr = curr + newSize;
-			memoryMappedBuffer.position(curr);
+			openBuffer(active.region, active.fileId, active.offset + active.curr);
+			active.curr = active.curr + newSize;
+			active.map.position(active.curr);
 			logger.fine(() -> "Position:" + buf.position() + "\t" + buf.limit() + "\t" + buf.capacity());
 			if (enableMetricsCapture) {
 				metricsBufferCounter.inc();
@@ -206,20 +462,102 @@ public class DiskMalloc implements Malloc {
 		} finally {
 			lock.unlock();
 		}
+	}
+
+	private int segmentOf(Integer tsBucket) {
+		return segmented && tsBucket != null ? tsBucket : DEFAULT_SEGMENT;
+	}
+
+	private ActiveFile openActiveFile(int segment) throws IOException {
+		initializeStripes();
+		if (activeFiles.size() >= segmentOpenMax) {
+			// the oldest bucket is the least likely to receive more writes
+			closeActiveFile(activeFiles.firstKey());
+		}
+		ActiveFile active = reopenSegmentFile(segment);
+		if (active != null) {
+			activeFiles.put(segment, active);
+			return active;
+		}
+		int stripe = nextStripe();
+		fileStripes.put(fcnt, stripe);
+		active = new ActiveFile();
+		active.fileId = fcnt;
+		active.filename = new ByteString(stripeDirectories.get(stripe) + "/" + dataFileName(fcnt));
+		active.raf = new RandomAccessFile(active.filename.toString(), "rw");
+		logger.info("Creating new datafile for measurement:" + active.filename
+				+ (segmented ? " segment:" + segment : ""));
+		active.map = active.raf.getChannel().map(MapMode.READ_WRITE, 0, fileMapIncrement);
+		active.region = trackRegion(active.fileId, active.offset, active.map);
+		trackFileMapping(active.fileId, 0, active.map);
+		activeFiles.put(segment, active);
+		if (segmented) {
+			segmentFiles.put(segment, fcnt);
+		}
+		fcnt++;
+		if (enableMetricsCapture) {
+			metricsFileRotation.inc();
+		}
+		return active;
+	}
 
+	/**
+	 * Continue writing at the end of the data file a segment was last written to
+	 * so that closing segments to honor {@link #CONF_MALLOC_SEGMENT_OPEN_MAX}
+	 * while back-filling many buckets doesn't leave a new file behind for every
+	 * reopen
+	 * 
+	 * @param segment
+	 * @return reopened file or null if the segment has no file with space left
+	 * @throws IOException
+	 */
+	private ActiveFile reopenSegmentFile(int segment) throws IOException {
+		if (!segmented) {
+			return null;
+		}
+		Integer fileId = segmentFiles.get(segment);
+		if (fileId == null) {
+			return null;
+		}
+		Long end = fileEnds.get(fileId);
+		long itr = (end == null ? 0 : end) / fileMapIncrement;
+		long offset = itr * fileMapIncrement;
+		Integer stripe = fileStripes.get(fileId);
+		if (offset >= maxFileSize || stripe == null) {
+			return null;
+		}
+		ActiveFile active = new ActiveFile();
+		active.fileId = fileId;
+		active.filename = new ByteString(stripeDirectories.get(stripe) + "/" + dataFileName(fileId));
+		active.raf = new RandomAccessFile(active.filename.toString(), "rw");
+		logger.fine("Reopening datafile for measurement:" + active.filename + " segment:" + segment);
+		active.itr = (int) itr;
+		active.offset = offset;
+		active.curr = (int) ((end == null ? 0 : end) - offset);
+		active.map = active.raf.getChannel().map(MapMode.READ_WRITE, offset, fileMapIncrement);
+		active.map.position(active.curr);
+		active.region = trackRegion(active.fileId, active.offset, active.map);
+		trackFileMapping(active.fileId, offset, active.map);
+		return active;
+	}
+
+	private void closeActiveFile(int segment) throws IOException {
+		ActiveFile active = activeFiles.remove(segment);
+		if (active != null) {
+			fileEnds.put(active.fileId, active.offset + active.curr);
+			active.map.force();
+			active.raf.close();
+		}
 	}
 
 	@Override
 	public Map<ByteString, List<Entry<Integer, BufferObject>>> seriesBufferMap()
 			throws FileNotFoundException, IOException {
-		Map<String, MappedByteBuffer> bufferMap = new ConcurrentHashMap<>();
-		File[] listFiles = new File(dataDirectory).listFiles(new FilenameFilter() {
-
-			@Override
-			public boolean accept(File dir, String name) {
-				return name.endsWith(".dat");
-			}
-		});
+		initializeStripes();
+		File[] listFiles = listDataFiles();
+		for (File dataFile : listFiles) {
+			fileStripes.put(fileIdOf(dataFile.getName()), stripeOf(dataFile));
+		}
 
 		Arrays.sort(listFiles, new Comparator<File>() {
 
@@ -230,59 +568,87 @@ public class DiskMalloc implements Malloc {
 		});
 
 		for (File dataFile : listFiles) {
-			try {
-				RandomAccessFile raf = new RandomAccessFile(dataFile, "rw");
-				MappedByteBuffer map = raf.getChannel().map(MapMode.READ_WRITE, 0, dataFile.length());
-				bufferMap.put(dataFile.getName(), map);
-				logger.info("Recovering data file:" + dataDirectory + "/" + dataFile.getName());
-				raf.close();
-			} catch (Exception e) {
-				logger.log(Level.SEVERE, "Failed to recover data files for measurement:" + measurementName, e);
-			}
+			recoveredFiles.put(fileIdOf(dataFile.getName()), dataFile);
+			logger.info("Recovering data file:" + dataFile.getPath());
 		}
 		// fix file sequencing since compaction & garbage collection will delete old
 		// files and this will prevent them from being overwritten
 		if (listFiles.length > 0) {
-			fcnt = Integer.parseInt(listFiles[listFiles.length - 1].getName().replace("data-", "").replace(".dat", ""))
-					+ 1;
+			fcnt = fileIdOf(listFiles[listFiles.length - 1].getName()) + 1;
 		}
 		Map<ByteString, List<Entry<Integer, BufferObject>>> seriesBuffers = new HashMap<>();
-		sliceMappedBuffersForBuckets(bufferMap, seriesBuffers);
+		describeBuffersForBuckets(seriesBuffers);
 		return seriesBuffers;
 	}
 
-	private void sliceMappedBuffersForBuckets(Map<String, MappedByteBuffer> bufferMap,
-			Map<ByteString, List<Entry<Integer, BufferObject>>> seriesBuffers) throws IOException {
-		ptrCounter = 0;
-		initializePtrFile();
-		for (int i = 0; i < ptrCounter; i++) {
-			String line = MiscUtils.getStringFromBuffer(ptrBuf).trim();
-			String[] splits = line.split("\\" + SEPARATOR);
-			logger.finer("Reading line:" + Arrays.toString(splits));
-			String fileName = splits[1];
-			int positionOffset = Integer.parseInt(splits[3]);
-			String seriesIdStr = splits[0];
-			int pointer = Integer.parseInt(splits[2]);
-			int size = Integer.parseInt(splits[4]);
-			MappedByteBuffer buf = bufferMap.get(fileName);
-			int position = positionOffset + pointer;
-			buf.position(position);
-			String tsBucket = splits[5];
-			ByteBuffer slice = buf.slice();
-			slice.limit(size);
-
-			ByteString seriesId = new ByteString(seriesIdStr);
-			LinkedByteString bsLine = new LinkedByteString(BUF_PARTS_LENGTH);
-			bsLine.concat(seriesId).concat(SEPARATOR).concat(cache.get(new ByteString(splits[1]))).concat(SEPARATOR)
-					.concat(new ByteString(splits[2])).concat(SEPARATOR).concat(new ByteString(splits[3]))
-					.concat(SEPARATOR).concat(new ByteString(splits[4]));
-
-			List<Entry<Integer, BufferObject>> list = seriesBuffers.get(seriesId);
-			if (list == null) {
-				list = new ArrayList<>();
-				seriesBuffers.put(seriesId, list);
-			}
-			list.add(new AbstractMap.SimpleEntry<>(Integer.parseInt(tsBucket, 16), new BufferObject(bsLine, slice)));
+	private void describeBuffersForBuckets(Map<ByteString, List<Entry<Integer, BufferObject>>> seriesBuffers)
+			throws IOException {
+		lock.lock();
+		try {
+			ptrCounter = 0;
+			initializePtrFile();
+			// compact before handing out buffer ids since they carry record slots
+			if (needsPtrCompaction()) {
+				compactPtrFile();
+			}
+			fileBufferCounts.clear();
+			segmentFiles.clear();
+			fileEnds.clear();
+			Map<Integer, List<long[]>> liveExtents = new HashMap<>();
+			for (int slot = 0; slot < ptrCounter; slot++) {
+				int base = recordOffset(slot);
+				int fileId = ptrBuf.getInt(base + REC_FILE);
+				long position = ptrBuf.getLong(base + REC_POSITION);
+				int size = ptrBuf.getInt(base + REC_SIZE);
+				int tsBucket = ptrBuf.getInt(base + REC_BUCKET);
+				if (segmented && recoveredFiles.containsKey(fileId)) {
+					// tombstoned buffers count towards the end of a file as well since
+					// readers may still hold them
+					segmentFiles.merge(tsBucket, fileId, Math::max);
+					fileEnds.merge(fileId, position + size, Math::max);
+				}
+				if (ptrBuf.get(base + REC_FLAGS) == FLAG_TOMBSTONE) {
+					continue;
+				}
+				String key = keyOf(ptrBuf.getInt(base + REC_SERIES), ptrBuf.getInt(base + REC_FIELD));
+				String fileName = dataFileName(fileId);
+				if (key == null || !recoveredFiles.containsKey(fileId)) {
+					logger.severe("Skipping unrecoverable buffer pointer slot:" + slot + " file:" + fileName
+							+ " for measurement:" + measurementName);
+					continue;
+				}
+				int stripe = ptrBuf.get(base + REC_STRIPE) & 0xFF;
+				if (!fileStripes.get(fileId).equals(stripe)) {
+					logger.warning("Data file:" + fileName + " was expected in stripe:" + stripeDirectory(stripe)
+							+ " but found in:" + stripeDirectory(fileStripes.get(fileId)));
+				}
+				logger.finer(() -> "Reading pointer:" + key + " file:" + fileName + " position:" + position);
+
+				ByteString seriesId = new ByteString(key);
+				LinkedByteString bufferId = new LinkedByteString(BUF_PARTS_LENGTH);
+				bufferId.concat(seriesId);
+				appendBufferIdSuffix(bufferId, fileName, slot, position);
+
+				List<Entry<Integer, BufferObject>> list = seriesBuffers.get(seriesId);
+				if (list == null) {
+					list = new ArrayList<>();
+					seriesBuffers.put(seriesId, list);
+				}
+				list.add(new AbstractMap.SimpleEntry<>(tsBucket,
+						new RecoveredBufferObject(bufferId, fileId, position, size)));
+				incrementFileBufferCount(fileId, 1);
+				List<long[]> extents = liveExtents.get(fileId);
+				if (extents == null) {
+					extents = new ArrayList<>();
+					liveExtents.put(fileId, extents);
+				}
+				extents.add(new long[] { position, size });
+			}
+			if (reuseEnabled) {
+				rebuildFreeLists(liveExtents);
+			}
+		} finally {
+			lock.unlock();
 		}
 	}
 
@@ -295,71 +661,398 @@ public class DiskMalloc implements Malloc {
 	}
 
 	private void initializePtrFile() throws FileNotFoundException, IOException {
-		if (ptrFile.exists()) {
-			rafPtr = new RandomAccessFile(ptrFile, "rwd");
+		initializeStripes();
+		if (ptrKeys == null) {
+			ptrKeys = new TagDictionary(new File(dataDirectory + "/" + PTR_KEYS_FILE));
+		}
+		if (ptrFile.exists() && ptrFile.length() >= Integer.BYTES) {
+			rafPtr = new RandomAccessFile(ptrFile, "rw");
 			ptrBuf = rafPtr.getChannel().map(MapMode.READ_WRITE, 0, ptrFile.length());
-			ptrCounter = ptrBuf.getInt();
-			logger.fine(
-					"Ptr file exists, will load " + ptrCounter + " series entries, file length:" + ptrFile.length());
+			if (ptrBuf.getInt(0) != PTR_MAGIC) {
+				migrateLegacyPtrFile();
+				return;
+			}
+			if (ptrBuf.getInt(HDR_VERSION) != PTR_VERSION || ptrBuf.getInt(HDR_RECORD_SIZE) != PTR_RECORD_SIZE) {
+				throw new IOException("Unsupported ptr file version:" + ptrBuf.getInt(HDR_VERSION) + " for measurement:"
+						+ measurementName);
+			}
+			ptrCounter = ptrBuf.getInt(HDR_COUNT);
+			ptrTombstones = ptrBuf.getInt(HDR_TOMBSTONES);
+			ptrBuf.position(recordOffset(ptrCounter));
+			logger.fine("Ptr file exists, will load " + ptrCounter + " buffer entries (" + ptrTombstones
+					+ " tombstones), file length:" + ptrFile.length());
 		} else {
-			rafPtr = new RandomAccessFile(ptrFile, "rwd");
-			ptrBuf = rafPtr.getChannel().map(MapMode.READ_WRITE, 0, ptrFileIncrement);
-			ptrBuf.putInt(ptrCounter);
+			createPtrFile(ptrFileIncrement);
 			logger.info("Ptr file is missing, creating one");
 		}
 	}
 
-	protected LinkedByteString appendBufferPointersToDisk(LinkedByteString seriesId, ByteString filename, int curr,
-			long offset, int size, Integer tsBucket) throws IOException {
+	private void createPtrFile(int size) throws IOException {
+		createPtrFile(ptrFile, size);
+	}
+
+	private void createPtrFile(File file, int size) throws IOException {
+		rafPtr = new RandomAccessFile(file, "rw");
+		ptrBuf = rafPtr.getChannel().map(MapMode.READ_WRITE, 0, size);
+		ptrCounter = 0;
+		ptrTombstones = 0;
+		ptrBuf.putInt(0, PTR_MAGIC);
+		ptrBuf.putInt(HDR_VERSION, PTR_VERSION);
+		ptrBuf.putInt(HDR_RECORD_SIZE, PTR_RECORD_SIZE);
+		ptrBuf.putInt(HDR_COUNT, 0);
+		ptrBuf.putInt(HDR_TOMBSTONES, 0);
+		ptrBuf.position(PTR_HEADER_SIZE);
+	}
+
+	/**
+	 * Convert a text pointer file written by older versions into the binary
+	 * format. The binary file is written and forced next to the legacy one and
+	 * atomically renamed over it, an interrupted migration therefore leaves the
+	 * legacy file in place and is simply repeated on the next start.
+	 * 
+	 * @throws IOException
+	 */
+	private void migrateLegacyPtrFile() throws IOException {
+		int count = ptrBuf.getInt(0);
+		ptrBuf.position(Integer.BYTES);
+		List<String> lines = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			lines.add(MiscUtils.getStringFromBuffer(ptrBuf).trim());
+		}
+		rafPtr.close();
+		File migrateFile = new File(getPtrPath() + ".migrate");
+		// left behind by an interrupted migration
+		migrateFile.delete();
+		createPtrFile(migrateFile, ptrFileIncrement);
+		for (String line : lines) {
+			String[] splits = line.split("\\" + SEPARATOR);
+			long position = Long.parseLong(splits[3]) + Integer.parseInt(splits[2]);
+			writePtrRecord(splits[0], fileIdOf(splits[1]), position, Integer.parseInt(splits[4]),
+					Integer.parseInt(splits[5], 16));
+		}
+		// records refer to dictionary ordinals
+		ptrKeys.force();
+		ptrBuf.force();
+		rafPtr.close();
+		Files.move(migrateFile.toPath(), ptrFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		rafPtr = new RandomAccessFile(ptrFile, "rw");
+		ptrBuf = rafPtr.getChannel().map(MapMode.READ_WRITE, 0, ptrFile.length());
+		ptrBuf.position(recordOffset(ptrCounter));
+		logger.info("Migrated legacy ptr file with " + count + " entries for measurement:" + measurementName);
+	}
+
+	protected LinkedByteString appendBufferPointersToDisk(LinkedByteString fieldId, int fileId, long position,
+			int size, Integer tsBucket) throws IOException {
 		lock.lock();
 		try {
-			ByteString[] split = filename.split("/");
-			LinkedByteString line = new LinkedByteString(BUF_PARTS_LENGTH);
-			line.concat(seriesId).concat(SEPARATOR).concat(cache.get(split[split.length - 1])).concat(SEPARATOR)
-					.concat(String.valueOf(curr)).concat(SEPARATOR).concat(String.valueOf(offset)).concat(SEPARATOR)
-					.concat(String.valueOf(size)).concat(SEPARATOR).concat(Integer.toHexString(tsBucket)).concat("\n");
-			logger.fine("Measurement(" + measurementName + ")Appending pointer information to ptr file:" + line);
-			// resize
-			String strLine = line.toString();
-			byte[] bytes = strLine.getBytes();
-			if (ptrBuf.remaining() < bytes.length + Short.BYTES) {
-				logger.fine("Need to resize ptrbuf because ptrBufRem:" + ptrBuf.remaining() + " line:" + bytes.length);
-				int pos = ptrBuf.position();
-				int newSize = pos + ptrFileIncrement;
-				ptrBuf.force();
-				ptrBuf = rafPtr.getChannel().map(MapMode.READ_WRITE, 0, newSize);
-				// BUGFIX: missing pointer reset caused PTR file corruption
-				ptrBuf.position(pos);
-				logger.info("Resizing ptr file:" + ptrBuf.getInt(0) + " ptrcount:" + ptrCounter + " inc:"
-						+ ptrFileIncrement + " position:" + pos);
-			}
-			MiscUtils.writeStringToBuffer(strLine, ptrBuf);
-			ptrBuf.putInt(0, ++ptrCounter);
-			logger.fine(() -> "Measurement(" + measurementName + ") appending pointer information to ptr file:" + line
-					+ " pos:" + ptrBuf.position());
-			return line;
+			if (ptrBuf == null) {
+				initializePtrFile();
+			}
+			int slot = writePtrRecord(fieldId.toString(), fileId, position, size, tsBucket);
+			incrementFileBufferCount(fileId, 1);
+			LinkedByteString bufferId = new LinkedByteString(BUF_PARTS_LENGTH);
+			bufferId.concat(fieldId);
+			appendBufferIdSuffix(bufferId, dataFileName(fileId), slot, position);
+			logger.fine(() -> "Measurement(" + measurementName + ") appending pointer information to ptr file:"
+					+ bufferId + " pos:" + ptrBuf.position());
+			return bufferId;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private int writePtrRecord(String key, int fileId, long position, int size, int tsBucket) throws IOException {
+		int idx = key.lastIndexOf(Measurement.SERIESID_SEPARATOR);
+		int seriesOrdinal;
+		int fieldOrdinal;
+		if (idx < 0) {
+			seriesOrdinal = ptrKeys.getOrAssign(key);
+			fieldOrdinal = -1;
+		} else {
+			seriesOrdinal = ptrKeys.getOrAssign(key.substring(0, idx));
+			fieldOrdinal = ptrKeys.getOrAssign(key.substring(idx + 1));
+		}
+		int base = recordOffset(ptrCounter);
+		if (ptrBuf.capacity() < base + PTR_RECORD_SIZE) {
+			int newSize = ptrBuf.capacity() + ptrFileIncrement;
+			logger.fine("Need to resize ptrbuf because capacity:" + ptrBuf.capacity() + " next record:" + base);
+			ptrBuf.force();
+			ptrBuf = rafPtr.getChannel().map(MapMode.READ_WRITE, 0, newSize);
+			logger.info("Resizing ptr file ptrcount:" + ptrCounter + " inc:" + ptrFileIncrement + " size:" + newSize);
+		}
+		ptrBuf.put(base + REC_FLAGS, (byte) 0);
+		Integer stripe = fileStripes.get(fileId);
+		ptrBuf.put(base + REC_STRIPE, (byte) (stripe == null ? 0 : stripe.intValue()));
+		ptrBuf.putInt(base + REC_SERIES, seriesOrdinal);
+		ptrBuf.putInt(base + REC_FIELD, fieldOrdinal);
+		ptrBuf.putInt(base + REC_FILE, fileId);
+		ptrBuf.putInt(base + REC_SIZE, size);
+		ptrBuf.putInt(base + REC_BUCKET, tsBucket);
+		ptrBuf.putLong(base + REC_POSITION, position);
+		// publish the record only after it has been completely written
+		ptrBuf.putInt(HDR_COUNT, ++ptrCounter);
+		ptrBuf.position(recordOffset(ptrCounter));
+		return ptrCounter - 1;
+	}
+
+	private void appendBufferIdSuffix(LinkedByteString bufferId, String fileName, int slot, long position) {
+		bufferId.concat(SEPARATOR).concat(cache.get(new ByteString(fileName))).concat(SEPARATOR)
+				.concat(String.valueOf(slot)).concat(SEPARATOR).concat(String.valueOf(position));
+	}
+
+	private String keyOf(int seriesOrdinal, int fieldOrdinal) {
+		String series = ptrKeys.getTerm(seriesOrdinal);
+		if (series == null || fieldOrdinal < 0) {
+			return series;
+		}
+		String field = ptrKeys.getTerm(fieldOrdinal);
+		return field == null ? null : series + Measurement.SERIESID_SEPARATOR + field;
+	}
+
+	private static int recordOffset(int slot) {
+		return PTR_HEADER_SIZE + slot * PTR_RECORD_SIZE;
+	}
+
+	public static String dataFileName(int fileId) {
+		return "data-" + String.format("%012d", fileId) + ".dat";
+	}
+
+	public static int fileIdOf(String fileName) {
+		return Integer.parseInt(fileName.replace("data-", "").replace(".dat", ""));
+	}
+
+	private void incrementFileBufferCount(int fileId, int delta) {
+		Integer count = fileBufferCounts.get(fileId);
+		fileBufferCounts.put(fileId, (count == null ? 0 : count) + delta);
+	}
+
+	/**
+	 * Register a region mapped for new buffers so that it's forced while it holds
+	 * buffers open for writes. The region is only weakly referenced, once all
+	 * buffers sliced from it are unreachable the mapping can be released.
+	 * 
+	 * @param fileId
+	 * @param start
+	 * @param map
+	 * @return region or null if regions aren't forced
+	 */
+	private Region trackRegion(int fileId, long start, MappedByteBuffer map) {
+		if (durability == Durability.NONE) {
+			return null;
+		}
+		List<Region> regions = dataRegions.get(fileId);
+		if (regions == null) {
+			regions = new ArrayList<>();
+			dataRegions.put(fileId, regions);
+		}
+		Region region = new Region(map, start);
+		regions.add(region);
+		return region;
+	}
+
+	private static long bufferKey(int fileId, long position) {
+		return ((long) fileId << 32) | position;
+	}
+
+	private void openBuffer(Region region, int fileId, long position) {
+		if (region == null) {
+			return;
+		}
+		region.open++;
+		region.dirty = true;
+		Region previous = openBuffers.put(bufferKey(fileId, position), region);
+		if (previous != null) {
+			previous.open--;
+		}
+	}
+
+	private Region closeBuffer(int fileId, long position) {
+		Region region = openBuffers.remove(bufferKey(fileId, position));
+		if (region != null) {
+			region.open--;
+		}
+		return region;
+	}
+
+	/**
+	 * Regions holding the buffer are forced once more and then only as long as
+	 * they hold other buffers open for writes
+	 */
+	@Override
+	public void seal(LinkedByteString bufferId) {
+		if (durability == Durability.NONE) {
+			return;
+		}
+		String id = bufferId.toString();
+		int positionIdx = id.lastIndexOf(SEPARATOR.toString());
+		int slotIdx = id.lastIndexOf(SEPARATOR.toString(), positionIdx - 1);
+		int fileIdx = id.lastIndexOf(SEPARATOR.toString(), slotIdx - 1);
+		if (fileIdx < 0) {
+			return;
+		}
+		int fileId = fileIdOf(id.substring(fileIdx + 1, slotIdx));
+		long position = Long.parseLong(id.substring(positionIdx + 1));
+		lock.lock();
+		try {
+			Region region = closeBuffer(fileId, position);
+			if (region != null) {
+				region.dirty = true;
+			} else {
+				// written to again after it was sealed
+				List<Region> regions = dataRegions.get(fileId);
+				if (regions != null) {
+					for (Region r : regions) {
+						if (position >= r.start && position < r.start + fileMapIncrement) {
+							r.dirty = true;
+						}
+					}
+				}
+			}
 		} finally {
 			lock.unlock();
 		}
+		synchronized (recoveredMappings) {
+			RecoveredMapping mapping = recoveredMappings.get(fileId);
+			if (mapping != null && (mapping.open.remove(position) || mapping.slices.contains(position))) {
+				mapping.dirty = true;
+			}
+		}
+	}
+
+	/**
+	 * Block until all writes issued before this call are durable; only has an
+	 * effect in group-commit mode. Callers that arrive while a force is in
+	 * progress queue up behind it and are served by the next force, so a single
+	 * force covers all of them.
+	 */
+	@Override
+	public void sync() throws IOException {
+		if (durability != Durability.GROUP_COMMIT) {
+			return;
+		}
+		long ticket;
+		synchronized (this) {
+			ticket = ++syncRequested;
+		}
+		forceLock.lock();
+		try {
+			if (syncCompleted >= ticket) {
+				return;
+			}
+			long target = syncRequested;
+			force();
+			syncCompleted = target;
+		} finally {
+			forceLock.unlock();
+		}
+	}
+
+	/**
+	 * Force the mapped data regions written since the last force and the pointer
+	 * file to disk. A region is written to while it holds buffers that haven't
+	 * been sealed, see {@link #seal(LinkedByteString)}.
+	 * 
+	 * @throws IOException
+	 */
+	public void force() throws IOException {
+		List<MappedByteBuffer> regions = regionsToForce();
+		MappedByteBuffer ptr;
+		lock.lock();
+		try {
+			ptr = ptrBuf;
+		} finally {
+			lock.unlock();
+		}
+		forceLock.lock();
+		try {
+			forceCount.incrementAndGet();
+			for (MappedByteBuffer region : regions) {
+				region.force();
+			}
+			if (ptrKeys != null) {
+				ptrKeys.force();
+			}
+			if (ptr != null) {
+				ptr.force();
+			}
+		} finally {
+			forceLock.unlock();
+		}
+	}
+
+	/**
+	 * Collect the mapped data regions written since the last call and the ones
+	 * still holding buffers open for writes
+	 * 
+	 * @return regions to force
+	 */
+	List<MappedByteBuffer> regionsToForce() {
+		List<MappedByteBuffer> regions = new ArrayList<>();
+		lock.lock();
+		try {
+			for (List<Region> list : dataRegions.values()) {
+				Iterator<Region> itr = list.iterator();
+				while (itr.hasNext()) {
+					Region region = itr.next();
+					MappedByteBuffer map = region.map.get();
+					if (map == null) {
+						// no buffer sliced from it is reachable anymore
+						itr.remove();
+					} else if (region.dirty || region.open > 0) {
+						region.dirty = false;
+						regions.add(map);
+					}
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		synchronized (recoveredMappings) {
+			for (RecoveredMapping mapping : recoveredMappings.values()) {
+				if (mapping.dirty || !mapping.open.isEmpty()) {
+					mapping.dirty = false;
+					regions.add(mapping.map);
+				}
+			}
+		}
+		return regions;
 	}
 
 	public void close() throws IOException {
+		if (forceTask != null) {
+			forceTask.cancel(false);
+		}
 		lock.lock();
 		try {
-			if (memoryMappedBuffer != null) {
-				memoryMappedBuffer.force();
+			for (Integer segment : new ArrayList<>(activeFiles.keySet())) {
+				closeActiveFile(segment);
 			}
-			if (rafActiveFile != null) {
-				rafActiveFile.close();
+			synchronized (recoveredMappings) {
+				for (RecoveredMapping mapping : recoveredMappings.values()) {
+					mapping.map.force();
+				}
+				recoveredMappings.clear();
+			}
+			if (ptrKeys != null) {
+				ptrKeys.close();
+			}
+			if (ptrBuf != null) {
+				ptrBuf.force();
+				rafPtr.close();
 			}
-			ptrBuf.force();
-			rafPtr.close();
 			logger.info("Closing measurement:" + measurementName);
 		} finally {
 			lock.unlock();
 		}
 	}
 
+	/**
+	 * Tombstone the pointer records of the supplied buffer ids in place. Buffer
+	 * ids carry the slot of their record so the lookup is constant time; ids whose
+	 * slot moved because of a compaction since they were issued are resolved with
+	 * a single scan of the pointer file.
+	 */
 	@Override
 	public void cleanupBufferIds(Set<String> cleanupList) throws IOException {
 		lock.lock();
@@ -367,79 +1060,181 @@ public class DiskMalloc implements Malloc {
 			if (cleanupList.isEmpty()) {
 				return;
 			}
-			Map<String, Integer> fileSet = new HashMap<>();
-			ByteBuffer duplicate = ptrBuf.duplicate();
-			duplicate.rewind();
-			ByteBuffer temp = ByteBuffer.allocate(duplicate.capacity());
-			temp.putInt(0);
-			int tmpCounter = 0;
-			duplicate.getInt();
-			for (int i = 0; i < ptrCounter; i++) {
-				String line = MiscUtils.getStringFromBuffer(duplicate);
-				if (line.isEmpty()) {
-					throw new IOException("Empty line in ptrbuffer, ptr buffer is likely corrupt");
-				}
-				if (!cleanupList.contains(line)) {
-					MiscUtils.writeStringToBuffer(line, temp);
-					try {
-						String filename = line.split("\\" + SEPARATOR)[1];
-						Integer count = fileSet.get(filename);
-						if (count == null) {
-							count = 0;
-						}
-						count = count + 1;
-						fileSet.put(filename, count);
-					} catch (ArrayIndexOutOfBoundsException e) {
-						logger.severe("AOBException for buffer-cleanup:" + line + "=" + i + "=" + ptrCounter);
-						throw e;
-					}
-					tmpCounter++;
-					logger.fine("Rewriting line:" + line + " to ptr file for measurement:" + measurementName);
+			Map<String, Integer> relocated = new HashMap<>();
+			for (String bufferId : cleanupList) {
+				int positionIdx = bufferId.lastIndexOf(SEPARATOR.toString());
+				int slotIdx = bufferId.lastIndexOf(SEPARATOR.toString(), positionIdx - 1);
+				int fileIdx = bufferId.lastIndexOf(SEPARATOR.toString(), slotIdx - 1);
+				if (fileIdx < 0) {
+					logger.severe("Invalid buffer id for buffer-cleanup:" + bufferId);
+					continue;
+				}
+				int fileId = fileIdOf(bufferId.substring(fileIdx + 1, slotIdx));
+				int slot = Integer.parseInt(bufferId.substring(slotIdx + 1, positionIdx));
+				long position = Long.parseLong(bufferId.substring(positionIdx + 1));
+				if (slot < ptrCounter && matchesRecord(slot, fileId, position)) {
+					tombstone(slot, bufferId);
 				} else {
-					logger.fine("Removing line:" + line + " from ptr file due to garbage collection for measurement:"
-							+ measurementName);
-					if (enableMetricsCapture) {
-						metricsBufferCounter.dec();
+					relocated.put(fileId + SEPARATOR.toString() + position, fileId);
+				}
+			}
+			if (!relocated.isEmpty()) {
+				logger.fine("Resolving " + relocated.size() + " relocated buffer ids for measurement:" + measurementName);
+				for (int slot = 0; slot < ptrCounter && !relocated.isEmpty(); slot++) {
+					int base = recordOffset(slot);
+					if (ptrBuf.get(base + REC_FLAGS) == FLAG_TOMBSTONE) {
+						continue;
+					}
+					String key = ptrBuf.getInt(base + REC_FILE) + SEPARATOR.toString()
+							+ ptrBuf.getLong(base + REC_POSITION);
+					if (relocated.remove(key) != null) {
+						tombstone(slot, key);
 					}
 				}
 			}
-			// rewrite buffers
+			ptrBuf.putInt(HDR_TOMBSTONES, ptrTombstones);
+			advanceReadEpoch();
+			logger.fine("Tombstoned ptr entries, total:" + ptrCounter + " tombstones:" + ptrTombstones);
 
-			// BUGFIX: without the buffer marker; the position was moved to the end of the
-			// buffer causing buffer to contain empty lines which errored out since this
-			// file is suppose to contain sequential binary data
-			int mark = temp.position();
-			temp.putInt(0, tmpCounter);
-			ptrBuf.rewind();
-			temp.rewind();
-			temp.limit(mark);
-			ptrBuf.put(temp);
-			logger.fine("Swapped ptr buffers: " + "Counter:" + tmpCounter + " total:" + ptrBuf.getInt(0) + " before:"
-					+ ptrCounter + " pos:" + ptrBuf.position());
-			ptrCounter = tmpCounter;
-
-			for (Entry<String, Integer> entry : fileSet.entrySet()) {
-				logger.info("file stats:" + entry.getKey() + " bufs:" + entry.getValue());
+			if (segmented) {
+				// segments whose buckets have been collected won't receive more writes
+				for (Entry<Integer, ActiveFile> entry : new ArrayList<>(activeFiles.entrySet())) {
+					Integer count = fileBufferCounts.get(entry.getValue().fileId);
+					if (count == null || count <= 0) {
+						logger.fine("Closing collected segment:" + entry.getKey() + " for measurement:"
+								+ measurementName);
+						closeActiveFile(entry.getKey());
+					}
+				}
 			}
-
+			Set<String> fileSet = new HashSet<>();
+			for (Entry<Integer, Integer> entry : fileBufferCounts.entrySet()) {
+				logger.info("file stats:" + dataFileName(entry.getKey()) + " bufs:" + entry.getValue());
+				if (entry.getValue() > 0) {
+					fileSet.add(dataFileName(entry.getKey()));
+				}
+			}
+			for (ActiveFile active : activeFiles.values()) {
+				fileSet.add(dataFileName(active.fileId));
+			}
+			fileBufferCounts.values().removeIf(v -> v <= 0);
 			// check and delete data files
-			deleteFilesExcept(fileSet.keySet());
+			int deleted = deleteFilesExcept(fileSet);
+			// dropping whole segments is followed by a single ptr file compaction
+			schedulePtrCompaction(segmented && deleted > 0 && ptrTombstones > 0);
 		} finally {
 			lock.unlock();
 		}
 	}
 
-	private void deleteFilesExcept(Set<String> fileSet) throws IOException {
-		File[] files = new File(dataDirectory).listFiles(new FilenameFilter() {
+	private boolean matchesRecord(int slot, int fileId, long position) {
+		int base = recordOffset(slot);
+		return ptrBuf.getInt(base + REC_FILE) == fileId && ptrBuf.getLong(base + REC_POSITION) == position;
+	}
 
-			@Override
-			public boolean accept(File dir, String name) {
-				return name.endsWith(".dat");
+	private void tombstone(int slot, String bufferId) {
+		int base = recordOffset(slot);
+		if (ptrBuf.get(base + REC_FLAGS) == FLAG_TOMBSTONE) {
+			return;
+		}
+		ptrBuf.put(base + REC_FLAGS, FLAG_TOMBSTONE);
+		ptrTombstones++;
+		int fileId = ptrBuf.getInt(base + REC_FILE);
+		incrementFileBufferCount(fileId, -1);
+		closeBuffer(fileId, ptrBuf.getLong(base + REC_POSITION));
+		releaseRecovered(fileId, ptrBuf.getLong(base + REC_POSITION));
+		releaseExtent(fileId, ptrBuf.getLong(base + REC_POSITION), ptrBuf.getInt(base + REC_SIZE), true);
+		logger.fine("Removing buffer:" + bufferId + " from ptr file due to garbage collection for measurement:"
+				+ measurementName);
+		if (enableMetricsCapture) {
+			metricsBufferCounter.dec();
+		}
+	}
+
+	private boolean needsPtrCompaction() {
+		return ptrTombstones >= ptrCompactionMin && ptrTombstones >= ptrCounter * ptrCompactionRatio;
+	}
+
+	private void schedulePtrCompaction(boolean force) throws IOException {
+		if (ptrCompactionPending || !(force || needsPtrCompaction())) {
+			return;
+		}
+		if (bgTaskPool == null) {
+			compactPtrFile();
+			return;
+		}
+		ptrCompactionPending = true;
+		bgTaskPool.submit(() -> {
+			lock.lock();
+			try {
+				if (ptrBuf != null && (force ? ptrTombstones > 0 : needsPtrCompaction())) {
+					compactPtrFile();
+				}
+			} catch (Exception e) {
+				logger.log(Level.SEVERE, "Failed to compact ptr file for measurement:" + measurementName, e);
+			} finally {
+				ptrCompactionPending = false;
+				lock.unlock();
 			}
 		});
-		if (files == null) {
+	}
+
+	/**
+	 * Rewrite the pointer file without tombstoned records. The new file is
+	 * written and forced next to the current one and atomically renamed over it
+	 * so a crash leaves either the old or the new file intact.
+	 * 
+	 * @throws IOException
+	 */
+	protected void compactPtrFile() throws IOException {
+		lock.lock();
+		try {
+			int live = ptrCounter - ptrTombstones;
+			int size = recordOffset(live);
+			size += ptrFileIncrement - (size % ptrFileIncrement);
+			File compactFile = new File(getPtrPath() + ".compact");
+			try (RandomAccessFile raf = new RandomAccessFile(compactFile, "rw")) {
+				MappedByteBuffer compacted = raf.getChannel().map(MapMode.READ_WRITE, 0, size);
+				for (int i = 0; i < PTR_HEADER_SIZE; i++) {
+					compacted.put(i, ptrBuf.get(i));
+				}
+				int count = 0;
+				for (int slot = 0; slot < ptrCounter; slot++) {
+					int base = recordOffset(slot);
+					if (ptrBuf.get(base + REC_FLAGS) == FLAG_TOMBSTONE) {
+						continue;
+					}
+					int target = recordOffset(count++);
+					for (int i = 0; i < PTR_RECORD_SIZE; i += Long.BYTES) {
+						compacted.putLong(target + i, ptrBuf.getLong(base + i));
+					}
+				}
+				compacted.putInt(HDR_COUNT, count);
+				compacted.putInt(HDR_TOMBSTONES, 0);
+				compacted.force();
+				live = count;
+			}
+			ptrBuf.force();
+			rafPtr.close();
+			Files.move(compactFile.toPath(), ptrFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			rafPtr = new RandomAccessFile(ptrFile, "rw");
+			ptrBuf = rafPtr.getChannel().map(MapMode.READ_WRITE, 0, ptrFile.length());
+			logger.info("Compacted ptr file for measurement:" + measurementName + " from:" + ptrCounter + " to:" + live
+					+ " entries");
+			ptrCounter = live;
+			ptrTombstones = 0;
+			ptrBuf.position(recordOffset(ptrCounter));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private int deleteFilesExcept(Set<String> fileSet) throws IOException {
+		File[] files = listDataFiles();
+		if (files.length == 0) {
 			logger.warning("Empty data directory:" + dataDirectory);
-			return;
+			return 0;
 		}
 		logger.fine("GC: Currently there are:" + files.length + " data files");
 		int deleteCounter = 0;
@@ -449,11 +1244,547 @@ public class DiskMalloc implements Malloc {
 				if (enableMetricsCapture) {
 					metricsFileRotation.dec();
 				}
+				dataRegions.remove(fileIdOf(file.getName()));
+				fileMappings.remove(fileIdOf(file.getName()));
+				fileStripes.remove(fileIdOf(file.getName()));
+				recoveredFiles.remove(fileIdOf(file.getName()));
+				segmentFiles.values().remove(fileIdOf(file.getName()));
+				fileEnds.remove(fileIdOf(file.getName()));
+				synchronized (recoveredMappings) {
+					recoveredMappings.remove(fileIdOf(file.getName()));
+				}
 				file.delete();
 				deleteCounter++;
 			}
 		}
 		logger.info("GC: Remaining files:" + fileSet.size() + "; deleted:" + deleteCounter + " files");
+		return deleteCounter;
+	}
+
+	/**
+	 * Map a data file found on startup or return its existing mapping, the
+	 * buffer at the supplied position is sliced from it and references it until
+	 * it is garbage collected
+	 * 
+	 * @param fileId
+	 * @param position
+	 * @return mapping of the whole file
+	 * @throws IOException
+	 */
+	private MappedByteBuffer acquireRecovered(int fileId, long position) throws IOException {
+		synchronized (recoveredMappings) {
+			RecoveredMapping mapping = recoveredMapping(fileId);
+			mapping.slices.add(position);
+			mapping.open.add(position);
+			mapping.dirty = true;
+			evictRecoveredMappings();
+			return mapping.map;
+		}
+	}
+
+	/**
+	 * Map a data file found on startup or return its existing mapping without
+	 * referencing it; views read from it don't keep the mapping registered
+	 * 
+	 * @param fileId
+	 * @return mapping of the whole file
+	 * @throws IOException
+	 */
+	private MappedByteBuffer readRecovered(int fileId) throws IOException {
+		synchronized (recoveredMappings) {
+			RecoveredMapping mapping = recoveredMapping(fileId);
+			evictRecoveredMappings();
+			return mapping.map;
+		}
+	}
+
+	private RecoveredMapping recoveredMapping(int fileId) throws IOException {
+		RecoveredMapping mapping = recoveredMappings.get(fileId);
+		if (mapping == null) {
+			File dataFile = recoveredFiles.get(fileId);
+			if (dataFile == null) {
+				throw new IOException("Data file:" + dataFileName(fileId) + " is no longer available for measurement:"
+						+ measurementName);
+			}
+			mapping = new RecoveredMapping();
+			try (RandomAccessFile raf = new RandomAccessFile(dataFile, "rw")) {
+				mapping.map = raf.getChannel().map(MapMode.READ_WRITE, 0, dataFile.length());
+			}
+			logger.fine(() -> "Mapped recovered data file:" + dataFile.getPath());
+			recoveredMappings.put(fileId, mapping);
+		}
+		return mapping;
+	}
+
+	/**
+	 * Drop the reference of a garbage collected buffer on the mapping it was
+	 * sliced from
+	 * 
+	 * @param fileId
+	 * @param position
+	 */
+	private void releaseRecovered(int fileId, long position) {
+		synchronized (recoveredMappings) {
+			RecoveredMapping mapping = recoveredMappings.get(fileId);
+			if (mapping != null && mapping.slices.remove(position)) {
+				mapping.open.remove(position);
+				evictRecoveredMappings();
+			}
+		}
+	}
+
+	private void evictRecoveredMappings() {
+		Iterator<Entry<Integer, RecoveredMapping>> itr = recoveredMappings.entrySet().iterator();
+		while (recoveredMappings.size() > mappingOpenMax && itr.hasNext()) {
+			Entry<Integer, RecoveredMapping> entry = itr.next();
+			if (!entry.getValue().slices.isEmpty()) {
+				continue;
+			}
+			if (durability != Durability.NONE && entry.getValue().dirty) {
+				entry.getValue().map.force();
+			}
+			itr.remove();
+			logger.fine(() -> "Released mapping of recovered data file:" + dataFileName(entry.getKey())
+					+ " for measurement:" + measurementName);
+		}
+	}
+
+	/**
+	 * @return number of recovered data files currently mapped by this allocator
+	 */
+	public int getRecoveredMappingCount() {
+		synchronized (recoveredMappings) {
+			return recoveredMappings.size();
+		}
+	}
+
+	private void trackFileMapping(int fileId, long start, MappedByteBuffer map) {
+		if (!reuseEnabled) {
+			// only needed to hand out released space again
+			return;
+		}
+		TreeMap<Long, MappedByteBuffer> mappings = fileMappings.get(fileId);
+		if (mappings == null) {
+			mappings = new TreeMap<>();
+			fileMappings.put(fileId, mappings);
+		}
+		mappings.put(start, map);
+	}
+
+	/**
+	 * Return the space of a buffer to the free lists
+	 * 
+	 * @param fileId
+	 * @param position
+	 * @param size
+	 * @param quarantine
+	 *            hold the extent back until readers that may still reference the
+	 *            released buffer have left
+	 */
+	private void releaseExtent(int fileId, long position, int size, boolean quarantine) {
+		if (!reuseEnabled || size < MIN_FREE_EXTENT) {
+			return;
+		}
+		if (quarantine) {
+			synchronized (activeReaders) {
+				releasedExtents.add(new Extent(fileId, position, size, readEpoch));
+			}
+		} else {
+			addFreeExtent(new Extent(fileId, position, size, 0));
+		}
+	}
+
+	/**
+	 * Register a reader of buffers handed out by this allocator, space released
+	 * after this call isn't reused until the reader leaves
+	 * 
+	 * @return ticket to pass to {@link #leaveRead(long)}
+	 */
+	@Override
+	public long enterRead() {
+		synchronized (activeReaders) {
+			activeReaders.merge(readEpoch, 1, Integer::sum);
+			return readEpoch;
+		}
+	}
+
+	@Override
+	public void leaveRead(long ticket) {
+		synchronized (activeReaders) {
+			activeReaders.computeIfPresent(ticket, (k, v) -> v > 1 ? v - 1 : null);
+		}
+	}
+
+	/**
+	 * Start a new read epoch after a batch of extents has been released, readers
+	 * entering from now on can't reach the released buffers anymore
+	 */
+	private void advanceReadEpoch() {
+		synchronized (activeReaders) {
+			readEpoch++;
+		}
+	}
+
+	/**
+	 * Move released extents that no registered reader can reference anymore to
+	 * the free lists
+	 */
+	private void reclaimReleasedExtents() {
+		synchronized (activeReaders) {
+			long oldest = activeReaders.isEmpty() ? readEpoch : activeReaders.firstKey();
+			while (!releasedExtents.isEmpty() && releasedExtents.peek().epoch < oldest) {
+				addFreeExtent(releasedExtents.poll());
+			}
+		}
+	}
+
+	private void addFreeExtent(Extent extent) {
+		freeLists.get(Integer.SIZE - 1 - Integer.numberOfLeadingZeros(extent.size)).add(extent);
+		freeBytes += extent.size;
+	}
+
+	private BufferObject allocateFromFreeList(LinkedByteString fieldId, Integer tsBucket, int size)
+			throws IOException {
+		if (!reuseEnabled) {
+			return null;
+		}
+		reclaimReleasedExtents();
+		if (freeBytes < size) {
+			return null;
+		}
+		// smallest size class whose extents are all guaranteed to fit the request
+		for (int c = Integer.SIZE - Integer.numberOfLeadingZeros(size - 1); c < freeLists.size(); c++) {
+			ArrayDeque<Extent> list = freeLists.get(c);
+			Extent extent;
+			while ((extent = list.poll()) != null) {
+				freeBytes -= extent.size;
+				ByteBuffer region = regionOf(extent);
+				if (region == null) {
+					// data file has been deleted since the extent was released
+					continue;
+				}
+				if (extent.size - size >= MIN_FREE_EXTENT) {
+					addFreeExtent(new Extent(extent.fileId, extent.position + size, extent.size - size, 0));
+				}
+				LinkedByteString bufferId = appendBufferPointersToDisk(fieldId, extent.fileId, extent.position, size,
+						tsBucket);
+				ByteBuffer buf = region.slice();
+				buf.limit(size);
+				// reused space still holds the contents of the released buffer
+				while (buf.hasRemaining()) {
+					buf.put(ZEROS, 0, Math.min(ZEROS.length, buf.remaining()));
+				}
+				buf.rewind();
+				openBuffer(regionAt(extent.fileId, extent.position), extent.fileId, extent.position);
+				if (enableMetricsCapture) {
+					metricsBufferCounter.inc();
+					metricsBufferReuse.inc();
+				}
+				logger.fine(() -> "Reusing free space for:" + fieldId + " buffer:" + bufferId);
+				return new BufferObject(bufferId, buf);
+			}
+		}
+		return null;
+	}
+
+	private Region regionAt(int fileId, long position) {
+		List<Region> regions = dataRegions.get(fileId);
+		if (regions == null) {
+			return null;
+		}
+		for (int i = regions.size() - 1; i >= 0; i--) {
+			Region region = regions.get(i);
+			if (position >= region.start && position < region.start + fileMapIncrement
+					&& region.map.get() != null) {
+				return region;
+			}
+		}
+		return null;
+	}
+
+	private ByteBuffer regionOf(Extent extent) throws IOException {
+		TreeMap<Long, MappedByteBuffer> mappings = fileMappings.get(extent.fileId);
+		if (mappings == null) {
+			if (!recoveredFiles.containsKey(extent.fileId)) {
+				return null;
+			}
+			ByteBuffer region = acquireRecovered(extent.fileId, extent.position).duplicate();
+			region.position((int) extent.position);
+			return region;
+		}
+		Entry<Long, MappedByteBuffer> entry = mappings.floorEntry(extent.position);
+		if (entry == null || extent.position + extent.size > entry.getKey() + entry.getValue().capacity()) {
+			return null;
+		}
+		ByteBuffer region = entry.getValue().duplicate();
+		region.position((int) (extent.position - entry.getKey()));
+		return region;
+	}
+
+	/**
+	 * Everything in a recovered data file that isn't covered by a live buffer is
+	 * free space, this includes tombstoned buffers and the unused tails of mapped
+	 * regions
+	 * 
+	 * @param liveExtents
+	 */
+	private void rebuildFreeLists(Map<Integer, List<long[]>> liveExtents) {
+		for (ArrayDeque<Extent> list : freeLists) {
+			list.clear();
+		}
+		releasedExtents.clear();
+		freeBytes = 0;
+		for (Entry<Integer, File> entry : recoveredFiles.entrySet()) {
+			int fileId = entry.getKey();
+			long length = entry.getValue().length();
+			List<long[]> extents = liveExtents.get(fileId);
+			long cursor = 0;
+			if (extents != null) {
+				extents.sort(Comparator.comparingLong(e -> e[0]));
+				for (long[] extent : extents) {
+					if (extent[0] > cursor) {
+						releaseExtent(fileId, cursor, (int) (extent[0] - cursor), false);
+					}
+					cursor = Math.max(cursor, extent[0] + extent[1]);
+				}
+			}
+			if (length > cursor) {
+				releaseExtent(fileId, cursor, (int) (length - cursor), false);
+			}
+		}
+		logger.info("Rebuilt free lists for measurement:" + measurementName + " with " + freeBytes + " free bytes");
+	}
+
+	public long getFreeBytes() {
+		return freeBytes;
+	}
+
+	/**
+	 * Data file currently receiving new buffers of a segment
+	 */
+	private static final class ActiveFile {
+
+		private int fileId;
+		private ByteString filename;
+		private RandomAccessFile raf;
+		private MappedByteBuffer map;
+		private Region region;
+		// offset of the current mapped region and the write position within it
+		private long offset;
+		private int itr;
+		private int curr;
+
+	}
+
+	/**
+	 * Region of a data file mapped for new buffers
+	 */
+	private static final class Region {
+
+		private final WeakReference<MappedByteBuffer> map;
+		private final long start;
+		// buffers sliced from the region that haven't been sealed
+		private int open;
+		// written to since the last force
+		private boolean dirty;
+
+		private Region(MappedByteBuffer map, long start) {
+			this.map = new WeakReference<>(map);
+			this.start = start;
+		}
+
+	}
+
+	/**
+	 * Buffer recovered on startup, the data file is mapped and the buffer is
+	 * sliced on first access
+	 */
+	private final class RecoveredBufferObject extends BufferObject {
+
+		private final int fileId;
+		private final long position;
+		private final int size;
+
+		private RecoveredBufferObject(LinkedByteString bufferId, int fileId, long position, int size) {
+			super(bufferId, null);
+			this.fileId = fileId;
+			this.position = position;
+			this.size = size;
+		}
+
+		@Override
+		public ByteBuffer getBuf() {
+			ByteBuffer buf = super.getBuf();
+			if (buf == null) {
+				try {
+					buf = slice(acquireRecovered(fileId, position));
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				setBuf(buf);
+			}
+			return buf;
+		}
+
+		@Override
+		public ByteBuffer getReadBuf() {
+			ByteBuffer buf = super.getBuf();
+			if (buf == null) {
+				try {
+					buf = slice(readRecovered(fileId));
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+			return buf;
+		}
+
+		private ByteBuffer slice(MappedByteBuffer map) {
+			ByteBuffer buf = map.duplicate();
+			buf.position((int) position);
+			buf = buf.slice();
+			buf.limit(size);
+			return buf;
+		}
+
+	}
+
+	/**
+	 * Mapping of a recovered data file and the positions of the live buffers
+	 * sliced from it
+	 */
+	private static final class RecoveredMapping {
+
+		private MappedByteBuffer map;
+		private Set<Long> slices = new HashSet<>();
+		// slices that haven't been sealed
+		private Set<Long> open = new HashSet<>();
+		// written to since the last force
+		private boolean dirty;
+
+	}
+
+	private static final class Extent {
+
+		private final int fileId;
+		private final long position;
+		private final int size;
+		// read epoch the extent was released in
+		private final long epoch;
+
+		private Extent(int fileId, long position, int size, long epoch) {
+			this.fileId = fileId;
+			this.position = position;
+			this.size = size;
+			this.epoch = epoch;
+		}
+
+	}
+
+	/**
+	 * Load the stripe directories of this measurement. Stripes are persisted in
+	 * the primary directory so that pointer records keep resolving to the same
+	 * directory even if the configured data directories are reordered; stripes
+	 * are only ever appended.
+	 * 
+	 * @throws IOException
+	 */
+	private void initializeStripes() throws IOException {
+		if (stripeDirectories != null) {
+			return;
+		}
+		List<String> stripes = new ArrayList<>();
+		stripes.add(dataDirectory);
+		File stripeFile = new File(dataDirectory + "/" + STRIPES_FILE);
+		if (stripeFile.exists()) {
+			for (String line : MiscUtils.readAllLines(stripeFile)) {
+				if (!line.trim().isEmpty()) {
+					stripes.add(line.trim());
+				}
+			}
+		}
+		boolean changed = false;
+		for (String dir : configuredStripes) {
+			if (indexOfStripe(stripes, dir) < 0) {
+				stripes.add(dir);
+				changed = true;
+			}
+		}
+		if (stripes.size() > MAX_STRIPES) {
+			throw new IOException("Measurement:" + measurementName + " can't be striped across more than "
+					+ MAX_STRIPES + " directories");
+		}
+		if (changed) {
+			new File(dataDirectory).mkdirs();
+			Files.write(stripeFile.toPath(), stripes.subList(1, stripes.size()));
+			logger.info("Striping measurement:" + measurementName + " across:" + stripes);
+		}
+		for (String dir : stripes) {
+			new File(dir).mkdirs();
+		}
+		stripeDirectories = stripes;
+	}
+
+	private static int indexOfStripe(List<String> stripes, String dir) {
+		File file = new File(dir).getAbsoluteFile().toPath().normalize().toFile();
+		for (int i = 0; i < stripes.size(); i++) {
+			if (new File(stripes.get(i)).getAbsoluteFile().toPath().normalize().toFile().equals(file)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private int nextStripe() {
+		if (striping == Striping.NONE || stripeDirectories.size() == 1) {
+			return 0;
+		}
+		if (striping == Striping.FREE_SPACE) {
+			int stripe = 0;
+			long max = -1;
+			for (int i = 0; i < stripeDirectories.size(); i++) {
+				long usable = new File(stripeDirectories.get(i)).getUsableSpace();
+				if (usable > max) {
+					max = usable;
+					stripe = i;
+				}
+			}
+			return stripe;
+		}
+		int stripe = nextStripe;
+		nextStripe = (nextStripe + 1) % stripeDirectories.size();
+		return stripe;
+	}
+
+	private int stripeOf(File dataFile) {
+		int stripe = indexOfStripe(stripeDirectories, dataFile.getParent());
+		return stripe < 0 ? 0 : stripe;
+	}
+
+	private String stripeDirectory(int stripe) {
+		return stripe < stripeDirectories.size() ? stripeDirectories.get(stripe) : "unknown(" + stripe + ")";
+	}
+
+	private File[] listDataFiles() {
+		List<File> files = new ArrayList<>();
+		List<String> stripes = stripeDirectories != null ? stripeDirectories : Arrays.asList(dataDirectory);
+		for (String stripe : stripes) {
+			File[] list = new File(stripe).listFiles(new FilenameFilter() {
+
+				@Override
+				public boolean accept(File dir, String name) {
+					return name.endsWith(".dat");
+				}
+			});
+			if (list != null) {
+				files.addAll(Arrays.asList(list));
+			}
+		}
+		return files.toArray(new File[files.size()]);
+	}
+
+	public List<String> getStripeDirectories() {
+		return stripeDirectories;
 	}
 
 	private String getPtrPath() {
@@ -463,4 +1794,19 @@ public class DiskMalloc implements Malloc {
 	public Map<ByteString, WeakReference<MappedByteBuffer>> getOldBufferReferences() {
 		return oldBufferReferences;
 	}
+
+	public Durability getDurability() {
+		return durability;
+	}
+
+	/**
+	 * @return number of times the mapped buffers were forced
+	 */
+	public long getForceCount() {
+		return forceCount.get();
+	}
+
+	public boolean isSegmented() {
+		return segmented;
+	}
 }
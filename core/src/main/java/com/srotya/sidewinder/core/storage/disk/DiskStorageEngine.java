@@ -19,13 +19,18 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -41,6 +46,7 @@ import com.srotya.sidewinder.core.storage.Measurement;
 import com.srotya.sidewinder.core.storage.StorageEngine;
 import com.srotya.sidewinder.core.storage.archival.Archiver;
 import com.srotya.sidewinder.core.storage.archival.NoneArchiver;
+import com.srotya.sidewinder.core.utils.BackgrounThreadFactory;
 import com.srotya.sidewinder.core.utils.MiscUtils;
 
 /**
@@ -53,7 +59,10 @@ public class DiskStorageEngine implements StorageEngine {
 	private static final String TMP_SIDEWINDER_INDEX = "/tmp/sidewinder/index";
 	private static final String TMP_SIDEWINDER_DATA = "/tmp/sidewinder/data";
 	private static final String INDEX_DIR = "index.dir";
-	private static final String DATA_DIRS = "data.dir";
+	public static final String DATA_DIRS = "data.dir";
+	public static final String RECOVERY_THREADS = "recovery.threads";
+	public static final String RECOVERY_LAZY = "recovery.lazy";
+	public static final String MANIFEST_FILE = ".manifest";
 	private static final Logger logger = Logger.getLogger(DiskStorageEngine.class.getName());
 	private Map<String, Map<String, Measurement>> databaseMap;
 	private Map<String, DBMetadata> dbMetadataMap;
@@ -64,6 +73,8 @@ public class DiskStorageEngine implements StorageEngine {
 	private String[] dataDirs;
 	private String baseIndexDirectory;
 	private ScheduledExecutorService bgTaskPool;
+	private int recoveryThreads;
+	private boolean lazyRecovery;
 	private Counter metricsDbCounter;
 	private Counter metricsMeasurementCounter;
 	private Counter metricsWriteCounter;
@@ -81,6 +92,9 @@ public class DiskStorageEngine implements StorageEngine {
 			new File(dataDir).mkdirs();
 		}
 		new File(baseIndexDirectory).mkdirs();
+		recoveryThreads = Integer.parseInt(conf.getOrDefault(RECOVERY_THREADS,
+				String.valueOf(Runtime.getRuntime().availableProcessors())));
+		lazyRecovery = Boolean.parseBoolean(conf.getOrDefault(RECOVERY_LAZY, "false"));
 		databaseMap = new ConcurrentHashMap<>();
 		dbMetadataMap = new ConcurrentHashMap<>();
 
@@ -96,6 +110,7 @@ public class DiskStorageEngine implements StorageEngine {
 		this.defaultTimebucketSize = Integer
 				.parseInt(conf.getOrDefault(DEFAULT_BUCKET_SIZE, String.valueOf(DEFAULT_TIME_BUCKET_CONSTANT)));
 		logger.info("Configuring default time bucket:" + getDefaultTimebucketSize());
+		TieredMalloc.validateDurability(conf);
 		enableMetricsService();
 		if (bgTaskPool != null) {
 			if (Boolean.parseBoolean(conf.getOrDefault(GC_ENABLED, "true"))) {
@@ -138,6 +153,25 @@ public class DiskStorageEngine implements StorageEngine {
 			} else {
 				logger.warning("Compaction is disabled");
 			}
+			if (TieredMalloc.getHotBuckets(conf) > 0) {
+				logger.info("Tiered storage is enabled with hot buckets:" + TieredMalloc.getHotBuckets(conf));
+				bgTaskPool.scheduleAtFixedRate(() -> {
+					for (Entry<String, Map<String, Measurement>> measurementMap : databaseMap.entrySet()) {
+						for (Entry<String, Measurement> measurementEntry : measurementMap.getValue().entrySet()) {
+							Measurement value = measurementEntry.getValue();
+							try {
+								value.migrateColdBuckets();
+							} catch (Exception e) {
+								logger.log(Level.SEVERE,
+										"Failed to migrate cold buckets for measurement:" + value.getMeasurementName(),
+										e);
+							}
+						}
+					}
+				}, Integer.parseInt(conf.getOrDefault(GC_FREQUENCY, DEFAULT_GC_FREQUENCY)),
+						Integer.parseInt(conf.getOrDefault(GC_FREQUENCY, DEFAULT_GC_FREQUENCY)), TimeUnit.SECONDS);
+			}
+			scheduleReorderFlush(conf, bgTaskPool);
 		}
 		loadDatabases();
 	}
@@ -195,26 +229,57 @@ public class DiskStorageEngine implements StorageEngine {
 		file.mkdirs();
 	}
 
+	/**
+	 * Recover all databases. Measurements of all databases are recovered in
+	 * parallel on a dedicated pool of {@link #RECOVERY_THREADS} threads; with
+	 * {@link #RECOVERY_LAZY} enabled measurements are only registered from the
+	 * database manifest and recovered on first access.
+	 * 
+	 * @throws IOException
+	 */
 	protected void loadDatabases() throws IOException {
-		for (String dataDir : dataDirs) {
-			File mdDir = new File(dataDir);
-			if (!mdDir.exists()) {
-				return;
-			}
-			File[] dbs = mdDir.listFiles();
-			for (File db : dbs) {
-				if (!db.isDirectory()) {
+		long ts = System.currentTimeMillis();
+		ExecutorService recoveryPool = lazyRecovery ? null
+				: Executors.newFixedThreadPool(recoveryThreads, new BackgrounThreadFactory("recovery"));
+		List<Future<?>> futures = new ArrayList<>();
+		try {
+			for (String dataDir : dataDirs) {
+				File mdDir = new File(dataDir);
+				if (!mdDir.exists()) {
 					continue;
 				}
-				Map<String, Measurement> measurementMap = new ConcurrentHashMap<>();
-				String dbName = db.getName();
-				databaseMap.put(dbName, measurementMap);
-				DBMetadata metadata = readMetadata(dbName);
-				dbMetadataMap.put(dbName, metadata);
-				logger.info("Loading database:" + dbName);
-				loadMeasurements(dbName, measurementMap, metadata);
+				File[] dbs = mdDir.listFiles();
+				for (File db : dbs) {
+					if (!db.isDirectory()) {
+						continue;
+					}
+					String dbName = db.getName();
+					if (!dataDir.equals(getDataDir(dbName))) {
+						// stripe of a database owned by another data directory
+						continue;
+					}
+					Map<String, Measurement> measurementMap = new ConcurrentHashMap<>();
+					databaseMap.put(dbName, measurementMap);
+					DBMetadata metadata = readMetadata(dbName);
+					dbMetadataMap.put(dbName, metadata);
+					logger.info("Loading database:" + dbName);
+					loadMeasurements(dbName, measurementMap, metadata, recoveryPool, futures);
+				}
+			}
+			for (Future<?> future : futures) {
+				try {
+					future.get();
+				} catch (InterruptedException | ExecutionException e) {
+					logger.log(Level.SEVERE, "Error future get recovering measurement", e);
+				}
+			}
+		} finally {
+			if (recoveryPool != null) {
+				recoveryPool.shutdown();
 			}
 		}
+		logger.info("Recovered " + databaseMap.size() + " databases" + (lazyRecovery ? " (lazy)" : "") + " in "
+				+ (System.currentTimeMillis() - ts) + "ms");
 	}
 
 	protected DBMetadata readMetadata(String dbName) throws IOException {
@@ -277,6 +342,7 @@ public class DiskStorageEngine implements StorageEngine {
 					measurement.configure(conf, this, getDefaultTimebucketSize(), dbName, measurementName,
 							dbIndexPath(dbName), dbDirectoryPath(dbName), dbMetadataMap.get(dbName), bgTaskPool);
 					measurementMap.put(measurementName, measurement);
+					writeManifest(dbName, measurementMap.keySet());
 					logger.info("Created new measurement:" + measurementName);
 					metricsMeasurementCounter.inc();
 				}
@@ -285,6 +351,11 @@ public class DiskStorageEngine implements StorageEngine {
 		return measurement;
 	}
 
+	@Override
+	public String[] getDataDirs() {
+		return dataDirs;
+	}
+
 	public String getDataDir(String dbName) {
 		return dataDirs[dbName.hashCode() % dataDirs.length];
 	}
@@ -301,22 +372,23 @@ public class DiskStorageEngine implements StorageEngine {
 		return baseIndexDirectory;
 	}
 
-	protected void loadMeasurements(String dbName, Map<String, Measurement> measurementMap, DBMetadata metadata)
-			throws IOException {
+	protected void loadMeasurements(String dbName, Map<String, Measurement> measurementMap, DBMetadata metadata,
+			ExecutorService recoveryPool, List<Future<?>> futures) throws IOException {
 		File file = new File(dbDirectoryPath(dbName));
 		if (!file.exists() || file.listFiles() == null) {
 			return;
 		}
-		List<Future<?>> futures = new ArrayList<>();
-		for (File measurementMdFile : file.listFiles()) {
-			if (!measurementMdFile.isDirectory()) {
+		for (String measurementName : readManifest(dbName)) {
+			if (recoveryPool == null) {
+				measurementMap.put(measurementName, LazyMeasurement.newInstance(dbName, measurementName,
+						measurementMap, () -> openMeasurement(dbName, measurementName, metadata)));
+				logger.fine("Registered measurement for lazy recovery:" + measurementName);
 				continue;
 			}
-			String measurementName = measurementMdFile.getName();
 			Measurement measurement = new PersistentMeasurement();
 			measurementMap.put(measurementName, measurement);
 			logger.info("Loading measurements:" + measurementName);
-			futures.add(bgTaskPool.submit(() -> {
+			futures.add(recoveryPool.submit(() -> {
 				try {
 					measurement.configure(conf, this, getDefaultTimebucketSize(), dbName, measurementName,
 							dbIndexPath(dbName), dbDirectoryPath(dbName), metadata, bgTaskPool);
@@ -325,13 +397,51 @@ public class DiskStorageEngine implements StorageEngine {
 				}
 			}));
 		}
-		for (Future<?> future : futures) {
-			try {
-				future.get();
-			} catch (InterruptedException | ExecutionException e) {
-				logger.log(Level.SEVERE, "Error future get recovering measurement, db:" + dbName, e);
+	}
+
+	private Measurement openMeasurement(String dbName, String measurementName, DBMetadata metadata)
+			throws IOException {
+		Measurement measurement = new PersistentMeasurement();
+		measurement.configure(conf, this, getDefaultTimebucketSize(), dbName, measurementName, dbIndexPath(dbName),
+				dbDirectoryPath(dbName), metadata, bgTaskPool);
+		return measurement;
+	}
+
+	/**
+	 * The manifest lists the measurements of a database so that lazy recovery
+	 * doesn't need to inspect measurement directories. During eager recovery the
+	 * manifest is regenerated from the measurement directories.
+	 * 
+	 * @param dbName
+	 * @return measurement names
+	 * @throws IOException
+	 */
+	protected List<String> readManifest(String dbName) throws IOException {
+		File manifest = new File(dbDirectoryPath(dbName) + "/" + MANIFEST_FILE);
+		List<String> measurements = new ArrayList<>();
+		if (lazyRecovery && manifest.exists()) {
+			for (String line : MiscUtils.readAllLines(manifest)) {
+				if (!line.trim().isEmpty()) {
+					measurements.add(line.trim());
+				}
+			}
+			return measurements;
+		}
+		for (File measurementMdFile : new File(dbDirectoryPath(dbName)).listFiles()) {
+			if (measurementMdFile.isDirectory()) {
+				measurements.add(measurementMdFile.getName());
 			}
 		}
+		writeManifest(dbName, measurements);
+		return measurements;
+	}
+
+	protected void writeManifest(String dbName, Collection<String> measurements) throws IOException {
+		File manifest = new File(dbDirectoryPath(dbName) + "/" + MANIFEST_FILE);
+		File tmp = new File(manifest.getPath() + ".tmp");
+		Files.write(tmp.toPath(), measurements);
+		Files.move(tmp.toPath(), manifest.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
 	}
 
 	public static void writeLineToFile(String line, String filePath) throws IOException {
@@ -382,6 +492,13 @@ public class DiskStorageEngine implements StorageEngine {
 				measurement.close();
 			}
 			boolean result = MiscUtils.delete(new File(dbDirectoryPath(dbName)));
+			// striped measurements place data files in the other data directories too
+			for (String dataDir : dataDirs) {
+				File stripe = new File(dataDir + "/" + dbName);
+				if (!dataDir.equals(getDataDir(dbName)) && stripe.exists()) {
+					result &= MiscUtils.delete(stripe);
+				}
+			}
 			if (!result) {
 				throw new Exception("Database(" + dbName + ") deletion(data) failed due file deletion issues");
 			}
@@ -415,6 +532,11 @@ public class DiskStorageEngine implements StorageEngine {
 					m.close();
 				}
 			}
+			for (DBMetadata metadata : dbMetadataMap.values()) {
+				if (metadata.getTagDictionary() != null) {
+					metadata.getTagDictionary().close();
+				}
+			}
 			System.gc();
 		}
 	}
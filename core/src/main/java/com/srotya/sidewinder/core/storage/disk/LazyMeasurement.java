@@ -0,0 +1,143 @@
+/**
+ * Copyright Ambud Sharma
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.srotya.sidewinder.core.storage.disk;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.logging.Logger;
+
+import com.srotya.sidewinder.core.storage.Measurement;
+
+/**
+ * Placeholder registered for a measurement during lazy recovery. The
+ * measurement is opened on the first call that needs its data, after which it
+ * replaces the placeholder in the measurement map so that subsequent lookups
+ * don't go through the proxy.
+ * 
+ * Background maintenance (garbage collection, compaction, migration, reorder
+ * buffer flushes) and close are no-ops for measurements that haven't been opened yet so that they don't
+ * force recovery of idle measurements.
+ * 
+ * @author ambud
+ */
+public class LazyMeasurement implements InvocationHandler {
+
+	private static final Logger logger = Logger.getLogger(LazyMeasurement.class.getName());
+	private final String dbName;
+	private final String measurementName;
+	private final Map<String, Measurement> measurementMap;
+	private final Callable<Measurement> opener;
+	private Measurement proxy;
+	private volatile Measurement delegate;
+
+	private LazyMeasurement(String dbName, String measurementName, Map<String, Measurement> measurementMap,
+			Callable<Measurement> opener) {
+		this.dbName = dbName;
+		this.measurementName = measurementName;
+		this.measurementMap = measurementMap;
+		this.opener = opener;
+	}
+
+	/**
+	 * @param dbName
+	 * @param measurementName
+	 * @param measurementMap
+	 *            map the opened measurement replaces the placeholder in
+	 * @param opener
+	 *            creates and recovers the measurement
+	 * @return placeholder measurement
+	 */
+	public static Measurement newInstance(String dbName, String measurementName,
+			Map<String, Measurement> measurementMap, Callable<Measurement> opener) {
+		LazyMeasurement handler = new LazyMeasurement(dbName, measurementName, measurementMap, opener);
+		handler.proxy = (Measurement) Proxy.newProxyInstance(Measurement.class.getClassLoader(),
+				new Class<?>[] { Measurement.class }, handler);
+		return handler.proxy;
+	}
+
+	public static boolean isOpen(Measurement measurement) {
+		if (!Proxy.isProxyClass(measurement.getClass())) {
+			return true;
+		}
+		InvocationHandler handler = Proxy.getInvocationHandler(measurement);
+		return !(handler instanceof LazyMeasurement) || ((LazyMeasurement) handler).delegate != null;
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		switch (method.getName()) {
+		case "equals":
+			return proxy == args[0];
+		case "hashCode":
+			return System.identityHashCode(proxy);
+		case "toString":
+			return "LazyMeasurement(" + dbName + "." + measurementName + ")";
+		case "getMeasurementName":
+			return measurementName;
+		case "getDbName":
+			return dbName;
+		case "close":
+		case "flushReorderBuffers":
+			// nothing can be buffered before the measurement is opened
+			if (delegate == null) {
+				return null;
+			}
+			break;
+		case "collectGarbage":
+		case "compact":
+		case "migrateColdBuckets":
+			if (delegate == null) {
+				return Collections.emptySet();
+			}
+			break;
+		}
+		try {
+			return method.invoke(open(), args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	private Measurement open() throws IOException {
+		Measurement measurement = delegate;
+		if (measurement != null) {
+			return measurement;
+		}
+		synchronized (this) {
+			if (delegate == null) {
+				long ts = System.currentTimeMillis();
+				try {
+					delegate = opener.call();
+				} catch (IOException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new IOException("Failed to open measurement:" + measurementName, e);
+				}
+				measurementMap.replace(measurementName, proxy, delegate);
+				logger.info("Lazily recovered measurement:" + dbName + "." + measurementName + " in "
+						+ (System.currentTimeMillis() - ts) + "ms");
+			}
+			return delegate;
+		}
+	}
+
+}
@@ -15,15 +15,22 @@
  */
 package com.srotya.sidewinder.core.storage.disk;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -31,9 +38,13 @@ import java.util.Set;
 import java.util.SortedMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
+import org.roaringbitmap.buffer.ImmutableRoaringBitmap;
 import org.roaringbitmap.buffer.MutableRoaringBitmap;
 
 import com.codahale.metrics.Counter;
@@ -46,25 +57,71 @@ import com.srotya.sidewinder.core.monitoring.MetricsRegistryService;
 import com.srotya.sidewinder.core.storage.ByteString;
 import com.srotya.sidewinder.core.storage.Measurement;
 import com.srotya.sidewinder.core.storage.Series;
+import com.srotya.sidewinder.core.storage.TagDictionary;
 import com.srotya.sidewinder.core.storage.TagIndex;
+import com.srotya.sidewinder.core.utils.MiscUtils;
 
 /**
  * Tag hash lookup table + Tag inverted index
  * 
+ * The index is persisted as a reverse lookup log of (tag key id, tag value id,
+ * row index) varint triplets, the ids are resolved through the database
+ * {@link TagDictionary}. Logs written in the legacy text format are migrated on
+ * load.
+ * 
+ * Bitmaps are periodically checkpointed in Roaring's portable serialization
+ * format along with the log offset they cover. On load the checkpoint is memory
+ * mapped as {@link ImmutableRoaringBitmap}s and only the tail of the log is
+ * replayed; a bitmap is copied to the heap the first time a row is added to it.
+ * 
  * @author ambud
  */
 public class MappedBitmapTagIndex implements TagIndex {
 
 	private static final Logger logger = Logger.getLogger(MappedBitmapTagIndex.class.getName());
 	private static final int INCREMENT_SIZE = 1024 * 1024 * 1;
-	private Map<String, SortedMap<String, MutableRoaringBitmap>> rowKeyIndex;
+	// legacy logs start with a positive offset limit
+	private static final int LOG_VERSION = -2;
+	private static final int HEADER_SIZE = Integer.BYTES * 2;
+	private static final int MAX_RECORD_SIZE = 15;
+	public static final String CONF_CHECKPOINT_BYTES = "index.checkpoint.bytes";
+	public static final String DEFAULT_CHECKPOINT_BYTES = String.valueOf(1024 * 1024 * 4);
+	public static final String CHECKPOINT_SUFFIX = ".ckpt";
+	private static final int CHECKPOINT_MAGIC = 0x53574243;
+	private static final int CHECKPOINT_VERSION = 1;
+	private static final int CHECKPOINT_HEADER_SIZE = Integer.BYTES * 4;
+	private Map<String, SortedMap<String, ImmutableRoaringBitmap>> rowKeyIndex;
 	private String indexPath;
 	private File revIndex;
+	private File checkpointFile;
+	private int checkpointBytes;
+	private volatile int checkpointOffset;
+	private final Object checkpointLock = new Object();
+	private final AtomicBoolean checkpointPending = new AtomicBoolean();
+	private final ScheduledExecutorService bgTaskPool;
+	private boolean closed;
+	// keeps the mapped checkpoint alive for the bitmaps that reference it
+	private MappedByteBuffer checkpoint;
 	private Counter metricIndexRow;
 	private boolean enableMetrics;
 	private RandomAccessFile revRaf;
 	private MappedByteBuffer rev;
 	private Measurement measurement;
+	private TagDictionary dictionary;
+	private boolean ownDictionary;
+
+	public MappedBitmapTagIndex() {
+		this(null);
+	}
+
+	/**
+	 * @param bgTaskPool
+	 *            pool checkpoints are written on, if null they are written by
+	 *            the indexing thread
+	 */
+	public MappedBitmapTagIndex(ScheduledExecutorService bgTaskPool) {
+		this.bgTaskPool = bgTaskPool;
+	}
 
 	@Override
 	public void configure(Map<String, String> conf, String indexDir, Measurement measurement) throws IOException {
@@ -72,6 +129,14 @@ public class MappedBitmapTagIndex implements TagIndex {
 		this.indexPath = indexDir + "/" + measurement.getMeasurementName();
 		rowKeyIndex = new ConcurrentHashMap<>();
 		revIndex = new File(indexPath + ".rev");
+		checkpointFile = new File(indexPath + CHECKPOINT_SUFFIX);
+		checkpointBytes = Integer.parseInt(conf.getOrDefault(CONF_CHECKPOINT_BYTES, DEFAULT_CHECKPOINT_BYTES));
+		dictionary = measurement.getTagDictionary();
+		if (dictionary == null || !dictionary.isPersistent()) {
+			// standalone index, ids must still resolve after a restart
+			dictionary = new TagDictionary(new File(indexPath + TagDictionary.DICTIONARY_FILE));
+			ownDictionary = true;
+		}
 		MetricsRegistryService instance = MetricsRegistryService.getInstance();
 		if (instance != null) {
 			MetricRegistry registry = instance.getInstance("requests");
@@ -83,42 +148,269 @@ public class MappedBitmapTagIndex implements TagIndex {
 
 	protected void loadTagIndex() throws IOException {
 		if (!revIndex.exists()) {
-			revRaf = new RandomAccessFile(revIndex, "rwd");
-			rev = revRaf.getChannel().map(MapMode.READ_WRITE, 0, INCREMENT_SIZE);
-			rev.putInt(0);
+			// a checkpoint without its log can't be trusted
+			checkpointFile.delete();
+			initializeLog();
 			logger.fine("Tag index is missing; initializing new index");
 		} else {
 			revRaf = new RandomAccessFile(revIndex, "rwd");
 			logger.info("Tag index is present; recovering:" + revIndex.getAbsolutePath());
 			rev = revRaf.getChannel().map(MapMode.READ_WRITE, 0, revIndex.length());
-
+			if (rev.getInt(0) != LOG_VERSION) {
+				migrateLegacyLog();
+				return;
+			}
 			// load reverse lookup
-			int offsetLimit = rev.getInt();
+			int offsetLimit = rev.getInt(Integer.BYTES);
+			rev.position(loadCheckpoint(offsetLimit));
+			int replayStart = rev.position();
 			while (rev.position() < offsetLimit) {
-				int length = rev.getInt();
-				byte[] b = new byte[length];
-				rev.get(b);
-				String r = new String(b);
-				String[] split = r.split(" ");
-				String tagKey = split[0];
-				String tagValue = split[1];
-				SortedMap<String, MutableRoaringBitmap> map = rowKeyIndex.get(tagKey);
-				if (map == null) {
-					map = new ConcurrentSkipListMap<>();
-					rowKeyIndex.put(tagKey, map);
-					logger.finest(() -> "Map for tagkey:" + tagKey + " not found, creating it");
+				int tagKeyId = MiscUtils.readVarInt(rev);
+				int tagValueId = MiscUtils.readVarInt(rev);
+				int rowIndex = MiscUtils.readVarInt(rev);
+				String tagKey = dictionary.getTerm(tagKeyId);
+				String tagValue = dictionary.getTerm(tagValueId);
+				if (tagKey == null || tagValue == null) {
+					throw new IOException("Tag index " + revIndex.getAbsolutePath() + " references unknown dictionary ids:"
+							+ tagKeyId + "," + tagValueId);
+				}
+				getOrCreateBitmap(tagKey, tagValue).add(rowIndex);
+			}
+			logger.fine(() -> "Tag index recovered" + revIndex.getAbsolutePath() + " replayed log bytes:"
+					+ (offsetLimit - replayStart));
+		}
+	}
+
+	/**
+	 * Map the checkpoint, if there is a usable one, into the index
+	 * 
+	 * @param offsetLimit
+	 *            end of the reverse lookup log
+	 * @return log offset to resume the replay from
+	 * @throws IOException
+	 */
+	private int loadCheckpoint(int offsetLimit) throws IOException {
+		checkpointOffset = HEADER_SIZE;
+		if (!checkpointFile.exists()) {
+			return checkpointOffset;
+		}
+		try (RandomAccessFile raf = new RandomAccessFile(checkpointFile, "r")) {
+			MappedByteBuffer buf = raf.getChannel().map(MapMode.READ_ONLY, 0, raf.length());
+			if (buf.capacity() < CHECKPOINT_HEADER_SIZE || buf.getInt(0) != CHECKPOINT_MAGIC
+					|| buf.getInt(Integer.BYTES) != CHECKPOINT_VERSION) {
+				logger.warning("Ignoring invalid tag index checkpoint:" + checkpointFile.getAbsolutePath());
+				return checkpointOffset;
+			}
+			int logOffset = buf.getInt(Integer.BYTES * 2);
+			if (logOffset < HEADER_SIZE || logOffset > offsetLimit) {
+				logger.warning("Ignoring tag index checkpoint:" + checkpointFile.getAbsolutePath()
+						+ " since it's ahead of the log, checkpoint offset:" + logOffset + " log:" + offsetLimit);
+				return checkpointOffset;
+			}
+			Map<String, SortedMap<String, ImmutableRoaringBitmap>> index = new ConcurrentHashMap<>();
+			int keyCount = buf.getInt(Integer.BYTES * 3);
+			buf.position(CHECKPOINT_HEADER_SIZE);
+			for (int i = 0; i < keyCount; i++) {
+				String tagKey = dictionary.getTerm(buf.getInt());
+				int valueCount = buf.getInt();
+				SortedMap<String, ImmutableRoaringBitmap> values = new ConcurrentSkipListMap<>();
+				for (int j = 0; j < valueCount; j++) {
+					String tagValue = dictionary.getTerm(buf.getInt());
+					int offset = buf.getInt();
+					int length = buf.getInt();
+					if (tagKey == null || tagValue == null || offset + length > buf.capacity()) {
+						logger.warning("Ignoring corrupt tag index checkpoint:" + checkpointFile.getAbsolutePath());
+						return checkpointOffset;
+					}
+					ByteBuffer slice = buf.duplicate();
+					slice.position(offset);
+					slice = slice.slice();
+					slice.limit(length);
+					values.put(tagValue, new ImmutableRoaringBitmap(slice));
+				}
+				index.put(tagKey, values);
+			}
+			rowKeyIndex.putAll(index);
+			checkpoint = buf;
+			checkpointOffset = logOffset;
+			logger.fine(() -> "Loaded tag index checkpoint:" + checkpointFile.getAbsolutePath() + " keys:" + keyCount
+					+ " log offset:" + logOffset);
+			return checkpointOffset;
+		}
+	}
+
+	/**
+	 * Serialize all bitmaps into a new checkpoint that covers the log up to its
+	 * current end. The checkpoint is written next to the current one and
+	 * atomically renamed over it; bitmaps mapped from the old checkpoint stay
+	 * valid since the mapping outlives the unlinked file.
+	 * 
+	 * Only taking the snapshot holds the index lock: mutable bitmaps are cloned
+	 * and the serialization and fsync run after it's released.
+	 * 
+	 * @throws IOException
+	 */
+	protected void writeCheckpoint() throws IOException {
+		synchronized (checkpointLock) {
+			if (closed) {
+				return;
+			}
+			long ts = System.currentTimeMillis();
+			int logOffset;
+			MappedByteBuffer log;
+			Map<Integer, Map<Integer, ImmutableRoaringBitmap>> snapshot = new LinkedHashMap<>();
+			synchronized (rowKeyIndex) {
+				logOffset = rev.getInt(Integer.BYTES);
+				if (logOffset == checkpointOffset) {
+					return;
+				}
+				log = rev;
+				for (Entry<String, SortedMap<String, ImmutableRoaringBitmap>> entry : rowKeyIndex.entrySet()) {
+					Map<Integer, ImmutableRoaringBitmap> values = new LinkedHashMap<>();
+					for (Entry<String, ImmutableRoaringBitmap> value : entry.getValue().entrySet()) {
+						ImmutableRoaringBitmap bitmap = value.getValue();
+						if (bitmap instanceof MutableRoaringBitmap) {
+							bitmap = ((MutableRoaringBitmap) bitmap).clone();
+						}
+						values.put(dictionary.getOrAssign(value.getKey()), bitmap);
+					}
+					snapshot.put(dictionary.getOrAssign(entry.getKey()), values);
+				}
+			}
+			log.force();
+			int directorySize = CHECKPOINT_HEADER_SIZE;
+			for (Map<Integer, ImmutableRoaringBitmap> values : snapshot.values()) {
+				directorySize += Integer.BYTES * 2 + values.size() * Integer.BYTES * 3;
+			}
+			File tmp = new File(checkpointFile.getAbsolutePath() + ".tmp");
+			try (DataOutputStream dos = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(tmp), 1024 * 64))) {
+				dos.writeInt(CHECKPOINT_MAGIC);
+				dos.writeInt(CHECKPOINT_VERSION);
+				dos.writeInt(logOffset);
+				dos.writeInt(snapshot.size());
+				int offset = directorySize;
+				for (Entry<Integer, Map<Integer, ImmutableRoaringBitmap>> entry : snapshot.entrySet()) {
+					dos.writeInt(entry.getKey());
+					dos.writeInt(entry.getValue().size());
+					for (Entry<Integer, ImmutableRoaringBitmap> value : entry.getValue().entrySet()) {
+						int length = value.getValue().serializedSizeInBytes();
+						dos.writeInt(value.getKey());
+						dos.writeInt(offset);
+						dos.writeInt(length);
+						offset += length;
+					}
 				}
-				MutableRoaringBitmap set = map.get(tagValue);
-				if (set == null) {
-					set = new MutableRoaringBitmap();
-					map.put(tagValue, set);
-					logger.finest(() -> "Map for tagValue(" + tagKey + "):" + tagValue + " not found, creating it");
+				for (Map<Integer, ImmutableRoaringBitmap> values : snapshot.values()) {
+					for (ImmutableRoaringBitmap bitmap : values.values()) {
+						bitmap.serialize(dos);
+					}
 				}
-				String rowKeyIndex = split[2];
-				set.add(Integer.parseInt(rowKeyIndex));
+				dos.flush();
+				dictionary.force();
+			}
+			try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+				raf.getFD().sync();
+			}
+			Files.move(tmp.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			checkpointOffset = logOffset;
+			logger.fine("Checkpointed tag index:" + checkpointFile.getAbsolutePath() + " log offset:" + logOffset
+					+ " in " + (System.currentTimeMillis() - ts) + "ms");
+		}
+	}
+
+	/**
+	 * Write a checkpoint on the background pool, at most one is pending at a
+	 * time. Without a pool the checkpoint is written by the caller.
+	 * 
+	 * @throws IOException
+	 */
+	private void scheduleCheckpoint() throws IOException {
+		if (bgTaskPool == null) {
+			writeCheckpoint();
+			return;
+		}
+		if (!checkpointPending.compareAndSet(false, true)) {
+			return;
+		}
+		bgTaskPool.execute(() -> {
+			try {
+				checkpointPending.set(false);
+				writeCheckpoint();
+			} catch (Exception e) {
+				logger.log(Level.SEVERE, "Failed to checkpoint tag index:" + checkpointFile.getAbsolutePath(), e);
 			}
-			logger.fine(() -> "Tag index recovered" + revIndex.getAbsolutePath());
+		});
+	}
+
+	private void initializeLog() throws IOException {
+		initializeLog(revIndex);
+	}
+
+	private void initializeLog(File logFile) throws IOException {
+		revRaf = new RandomAccessFile(logFile, "rwd");
+		rev = revRaf.getChannel().map(MapMode.READ_WRITE, 0, INCREMENT_SIZE);
+		rev.putInt(LOG_VERSION);
+		rev.putInt(HEADER_SIZE);
+	}
+
+	/**
+	 * Replay a log written as length prefixed "tagKey tagValue rowIndex" strings
+	 * and rewrite it in the dictionary encoded format. The new log is written and
+	 * forced to a temporary file that is then renamed over the legacy one, so a
+	 * crash leaves either of the two complete logs behind.
+	 * 
+	 * @throws IOException
+	 */
+	private void migrateLegacyLog() throws IOException {
+		List<String[]> entries = new ArrayList<>();
+		int offsetLimit = rev.getInt();
+		while (rev.position() < offsetLimit) {
+			int length = rev.getInt();
+			byte[] b = new byte[length];
+			rev.get(b);
+			entries.add(new String(b).split(" "));
+		}
+		revRaf.close();
+		checkpointFile.delete();
+		File tmp = new File(revIndex.getAbsolutePath() + ".tmp");
+		Files.deleteIfExists(tmp.toPath());
+		initializeLog(tmp);
+		for (String[] entry : entries) {
+			index(entry[0], entry[1], Integer.parseInt(entry[2]));
 		}
+		rev.force();
+		// the open channel and mapping follow the file through the rename
+		Files.move(tmp.toPath(), revIndex.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		logger.info("Migrated legacy tag index:" + revIndex.getAbsolutePath() + " entries:" + entries.size());
+	}
+
+	/**
+	 * Must be called with the index lock held or during load since bitmaps mapped
+	 * from the checkpoint are replaced by mutable copies
+	 */
+	private MutableRoaringBitmap getOrCreateBitmap(String tagKey, String tagValue) {
+		SortedMap<String, ImmutableRoaringBitmap> map = rowKeyIndex.get(tagKey);
+		if (map == null) {
+			map = new ConcurrentSkipListMap<>();
+			rowKeyIndex.put(tagKey, map);
+			logger.finest(() -> "Map for tagkey:" + tagKey + " not found, creating it");
+		}
+		ImmutableRoaringBitmap set = map.get(tagValue);
+		if (set == null) {
+			MutableRoaringBitmap bitmap = new MutableRoaringBitmap();
+			map.put(tagValue, bitmap);
+			logger.finest(() -> "Map for tagValue(" + tagKey + "):" + tagValue + " not found, creating it");
+			return bitmap;
+		} else if (!(set instanceof MutableRoaringBitmap)) {
+			// copy on write for bitmaps mapped from the checkpoint
+			MutableRoaringBitmap bitmap = set.toMutableRoaringBitmap();
+			map.put(tagValue, bitmap);
+			return bitmap;
+		}
+		return (MutableRoaringBitmap) set;
 	}
 
 	@Override
@@ -127,7 +419,7 @@ public class MappedBitmapTagIndex implements TagIndex {
 		return set;
 	}
 
-	private void bitmapToRowKeys(Collection<ByteString> rowKeys, MutableRoaringBitmap value) {
+	private void bitmapToRowKeys(Collection<ByteString> rowKeys, ImmutableRoaringBitmap value) {
 		logger.finest(() -> "Requesting conversion from bitmap to value");
 		List<Series> ref = measurement.getSeriesList();
 		for (Iterator<Integer> iterator = value.iterator(); iterator.hasNext();) {
@@ -139,12 +431,12 @@ public class MappedBitmapTagIndex implements TagIndex {
 		}
 	}
 
-	protected MutableRoaringBitmap evalFilterForTags(TagFilter filterTree) {
+	protected ImmutableRoaringBitmap evalFilterForTags(TagFilter filterTree) {
 		logger.fine(() -> "Evaluating filter tree:" + measurement.getMeasurementName() + " " + filterTree);
 		// either it's a simple tag filter or a complex tag filter
 		if (filterTree instanceof SimpleTagFilter) {
 			SimpleTagFilter simpleFilter = (SimpleTagFilter) filterTree;
-			SortedMap<String, MutableRoaringBitmap> map = rowKeyIndex.get(simpleFilter.getTagKey());
+			SortedMap<String, ImmutableRoaringBitmap> map = rowKeyIndex.get(simpleFilter.getTagKey());
 			if (map == null) {
 				return null;
 			}
@@ -157,7 +449,7 @@ public class MappedBitmapTagIndex implements TagIndex {
 			MutableRoaringBitmap map = new MutableRoaringBitmap();
 			for (int i = 0; i < filters.size(); i++) {
 				TagFilter tagFilter = filters.get(i);
-				MutableRoaringBitmap r = evalFilterForTags(tagFilter);
+				ImmutableRoaringBitmap r = evalFilterForTags(tagFilter);
 				if (r == null) {
 					// no match found from evaluation of this filter
 					if (type == ComplexFilterType.AND) {
@@ -184,50 +476,50 @@ public class MappedBitmapTagIndex implements TagIndex {
 		}
 	}
 
-	public static void printBitMap(MutableRoaringBitmap r) {
+	public static void printBitMap(ImmutableRoaringBitmap r) {
 		for (Integer integer : r) {
 			System.out.println("Row:" + integer);
 		}
 	}
 
-	private MutableRoaringBitmap evalSimpleTagFilter(SimpleTagFilter simpleFilter,
-			SortedMap<String, MutableRoaringBitmap> map) {
+	private ImmutableRoaringBitmap evalSimpleTagFilter(SimpleTagFilter simpleFilter,
+			SortedMap<String, ImmutableRoaringBitmap> map) {
 		switch (simpleFilter.getFilterType()) {
 		case EQUALS:
 			return map.get(simpleFilter.getComparedValue());
 		case GREATER_THAN:
-			SortedMap<String, MutableRoaringBitmap> tailMap = map.tailMap(simpleFilter.getComparedValue());
+			SortedMap<String, ImmutableRoaringBitmap> tailMap = map.tailMap(simpleFilter.getComparedValue());
 			if (tailMap.isEmpty()) {
 				return null;
 			}
-			Iterator<MutableRoaringBitmap> iterator = tailMap.values().iterator();
+			Iterator<ImmutableRoaringBitmap> iterator = tailMap.values().iterator();
 			// skip the first one since the condition is greater than
 			iterator.next();
 			return combineMaps(iterator);
 		case LESS_THAN:
-			SortedMap<String, MutableRoaringBitmap> headMap = map.headMap(simpleFilter.getComparedValue());
+			SortedMap<String, ImmutableRoaringBitmap> headMap = map.headMap(simpleFilter.getComparedValue());
 			if (headMap.isEmpty()) {
 				return null;
 			}
 			return combineMaps(headMap.values().iterator());
 		case GREATER_THAN_EQUALS:
-			SortedMap<String, MutableRoaringBitmap> tailMap1 = map.tailMap(simpleFilter.getComparedValue());
+			SortedMap<String, ImmutableRoaringBitmap> tailMap1 = map.tailMap(simpleFilter.getComparedValue());
 			if (tailMap1.isEmpty()) {
 				return null;
 			}
-			Iterator<MutableRoaringBitmap> iterator1 = tailMap1.values().iterator();
+			Iterator<ImmutableRoaringBitmap> iterator1 = tailMap1.values().iterator();
 			return combineMaps(iterator1);
 		case LESS_THAN_EQUALS:
-			SortedMap<String, MutableRoaringBitmap> headMap1 = map
+			SortedMap<String, ImmutableRoaringBitmap> headMap1 = map
 					.headMap(simpleFilter.getComparedValue() + Character.MAX_VALUE);
 			if (headMap1.isEmpty()) {
 				return null;
 			}
 			return combineMaps(headMap1.values().iterator());
 		case LIKE:
-			List<MutableRoaringBitmap> filteredOutput = new ArrayList<>();
+			List<ImmutableRoaringBitmap> filteredOutput = new ArrayList<>();
 			Pattern p = Pattern.compile(simpleFilter.getComparedValue());
-			for (Entry<String, MutableRoaringBitmap> v : map.entrySet()) {
+			for (Entry<String, ImmutableRoaringBitmap> v : map.entrySet()) {
 				if (p.matcher(v.getKey()).matches()) {
 					filteredOutput.add(v.getValue());
 				}
@@ -238,10 +530,10 @@ public class MappedBitmapTagIndex implements TagIndex {
 		return null;
 	}
 
-	private MutableRoaringBitmap combineMaps(Iterator<MutableRoaringBitmap> itr) {
+	private MutableRoaringBitmap combineMaps(Iterator<ImmutableRoaringBitmap> itr) {
 		MutableRoaringBitmap resultMap = new MutableRoaringBitmap();
 		while (itr.hasNext()) {
-			MutableRoaringBitmap m = itr.next();
+			ImmutableRoaringBitmap m = itr.next();
 			resultMap.or(m);
 		}
 		return resultMap;
@@ -249,68 +541,72 @@ public class MappedBitmapTagIndex implements TagIndex {
 
 	@Override
 	public void close() throws IOException {
+		writeCheckpoint();
+		synchronized (checkpointLock) {
+			closed = true;
+		}
 		rev.force();
 		revRaf.close();
+		checkpoint = null;
+		if (ownDictionary) {
+			dictionary.close();
+		}
 	}
 
-	public MutableRoaringBitmap getBitMapForTag(String tagKey, String tagValue) {
+	public ImmutableRoaringBitmap getBitMapForTag(String tagKey, String tagValue) {
 		return rowKeyIndex.get(tagKey).get(tagValue);
 	}
 
 	@Override
 	public void index(String tagKey, String tagValue, int rowIndex) throws IOException {
 		logger.finest(() -> "Indexing tagKey:" + tagKey + " with tagValue:" + tagValue + " on rowIndex:" + rowIndex);
-		SortedMap<String, MutableRoaringBitmap> tagValueMap = rowKeyIndex.get(tagKey);
-		if (tagValueMap == null) {
-			synchronized (rowKeyIndex) {
-				if ((tagValueMap = rowKeyIndex.get(tagKey)) == null) {
-					tagValueMap = new ConcurrentSkipListMap<>();
-					rowKeyIndex.put(tagKey, tagValueMap);
-				}
-			}
-		}
-
-		MutableRoaringBitmap rowKeySet = tagValueMap.get(tagValue);
-		if (rowKeySet == null) {
-			synchronized (tagValueMap) {
-				if ((rowKeySet = tagValueMap.get(tagValue)) == null) {
-					rowKeySet = new MutableRoaringBitmap();
-					tagValueMap.put(tagValue, rowKeySet);
-					logger.finest(() -> "Not found tag value map creating it:" + tagKey + " with tagValue:" + tagValue
-							+ " on rowIndex:" + rowIndex);
-				}
+		SortedMap<String, ImmutableRoaringBitmap> tagValueMap = rowKeyIndex.get(tagKey);
+		if (tagValueMap != null) {
+			ImmutableRoaringBitmap rowKeySet = tagValueMap.get(tagValue);
+			if (rowKeySet != null && rowKeySet.contains(rowIndex)) {
+				return;
 			}
 		}
-
-		if (!rowKeySet.contains(rowIndex)) {
-			boolean add = rowKeySet.checkedAdd(rowIndex);
-			if (add) {
+		int tagKeyId = dictionary.getOrAssign(tagKey);
+		int tagValueId = dictionary.getOrAssign(tagValue);
+		// mapped log pages can be written back at any time, new terms must be on
+		// disk before a record referencing them
+		dictionary.force();
+		boolean checkpoint = false;
+		synchronized (rowKeyIndex) {
+			// bitmaps are only modified under the lock so that checkpoints see a
+			// consistent copy
+			MutableRoaringBitmap rowKeySet = getOrCreateBitmap(tagKey, tagValue);
+			if (rowKeySet.checkedAdd(rowIndex)) {
 				if (enableMetrics) {
 					metricIndexRow.inc();
 				}
-				synchronized (rowKeyIndex) {
-					byte[] str = (tagKey + " " + tagValue + " " + rowIndex).getBytes();
-					if (rev.remaining() < str.length + Integer.BYTES) {
-						// resize buffer
-						int temp = rev.position();
-						rev = revRaf.getChannel().map(MapMode.READ_WRITE, 0, rev.capacity() + INCREMENT_SIZE);
-						rev.position(temp);
-					}
-					rev.putInt(str.length);
-					rev.put(str);
-					rev.putInt(0, rev.position());
-					logger.finest(() -> "Not found row index entry in bitmap for:" + tagKey + " with tagValue:"
-							+ tagValue + " on rowIndex:" + rowIndex);
+				if (rev.remaining() < MAX_RECORD_SIZE) {
+					// resize buffer
+					int temp = rev.position();
+					rev = revRaf.getChannel().map(MapMode.READ_WRITE, 0, rev.capacity() + INCREMENT_SIZE);
+					rev.position(temp);
 				}
+				MiscUtils.writeVarInt(tagKeyId, rev);
+				MiscUtils.writeVarInt(tagValueId, rev);
+				MiscUtils.writeVarInt(rowIndex, rev);
+				rev.putInt(Integer.BYTES, rev.position());
+				logger.finest(() -> "Not found row index entry in bitmap for:" + tagKey + " with tagValue:" + tagValue
+						+ " on rowIndex:" + rowIndex);
+				checkpoint = rev.position() - checkpointOffset >= checkpointBytes;
 			}
 		}
+		if (checkpoint) {
+			// the checkpoint is serialized and forced outside of the index lock
+			scheduleCheckpoint();
+		}
 	}
 
 	@Override
 	public int getSize() {
 		int total = 0;
-		for (Entry<String, SortedMap<String, MutableRoaringBitmap>> entry : rowKeyIndex.entrySet()) {
-			for (Entry<String, MutableRoaringBitmap> entry2 : entry.getValue().entrySet()) {
+		for (Entry<String, SortedMap<String, ImmutableRoaringBitmap>> entry : rowKeyIndex.entrySet()) {
+			for (Entry<String, ImmutableRoaringBitmap> entry2 : entry.getValue().entrySet()) {
 				total += entry2.getValue().getSizeInBytes() + entry.getKey().length();
 			}
 		}
@@ -321,7 +617,7 @@ public class MappedBitmapTagIndex implements TagIndex {
 	public Set<ByteString> searchRowKeysForTagFilter(TagFilter tagFilterTree) {
 		logger.fine(() -> "Tag query:" + tagFilterTree);
 		Set<ByteString> rowKeys = new HashSet<>();
-		MutableRoaringBitmap evalFilterForTags = evalFilterForTags(tagFilterTree);
+		ImmutableRoaringBitmap evalFilterForTags = evalFilterForTags(tagFilterTree);
 		if (evalFilterForTags != null) {
 			bitmapToRowKeys(rowKeys, evalFilterForTags);
 		} else {
@@ -333,7 +629,7 @@ public class MappedBitmapTagIndex implements TagIndex {
 
 	@Override
 	public Collection<String> getTagValues(String tagKey) {
-		SortedMap<String, MutableRoaringBitmap> map = rowKeyIndex.get(tagKey);
+		SortedMap<String, ImmutableRoaringBitmap> map = rowKeyIndex.get(tagKey);
 		if (map != null) {
 			return map.keySet();
 		} else {
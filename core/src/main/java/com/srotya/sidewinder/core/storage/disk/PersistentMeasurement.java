@@ -16,21 +16,19 @@
 package com.srotya.sidewinder.core.storage.disk;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.SortedMap;
-import java.util.SortedSet;
-import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ScheduledExecutorService;
@@ -48,8 +46,12 @@ import com.srotya.sidewinder.core.storage.ByteString.ByteStringCache;
 import com.srotya.sidewinder.core.storage.DBMetadata;
 import com.srotya.sidewinder.core.storage.Malloc;
 import com.srotya.sidewinder.core.storage.Measurement;
+import com.srotya.sidewinder.core.storage.OffHeapSeriesRegistry;
 import com.srotya.sidewinder.core.storage.Series;
+import com.srotya.sidewinder.core.storage.SeriesHashIndex;
+import com.srotya.sidewinder.core.storage.SeriesList;
 import com.srotya.sidewinder.core.storage.StorageEngine;
+import com.srotya.sidewinder.core.storage.TagDictionary;
 import com.srotya.sidewinder.core.storage.TagIndex;
 import com.srotya.sidewinder.core.utils.MiscUtils;
 
@@ -59,11 +61,13 @@ import com.srotya.sidewinder.core.utils.MiscUtils;
 public class PersistentMeasurement implements Measurement {
 
 	private static final int SERIES_MD_IDX = 1;
+	private static final int DEFAULT_SERIES_CAPACITY = 100_000;
 	private static final String MD_SEPARATOR = "~";
 	private static final Logger logger = Logger.getLogger(PersistentMeasurement.class.getName());
 	private ReentrantLock lock = new ReentrantLock(false);
 	private ReentrantLock mallocLock = new ReentrantLock(false);
 	private Map<ByteString, Integer> seriesMap;
+	private SeriesHashIndex seriesHashIndex;
 	private SortedMap<String, Boolean> fieldTypeMap;
 	private List<Series> seriesList;
 	private TagIndex tagIndex;
@@ -71,18 +75,18 @@ public class PersistentMeasurement implements Measurement {
 	private DBMetadata metadata;
 	private Map<String, String> conf;
 	private String dbName;
-	private PrintWriter prMetadata;
+	private SeriesDictionary seriesDictionary;
 	private String indexDirectory;
 	// metrics
 	private boolean enableMetricsCapture;
 	private Counter metricsTimeSeriesCounter;
 	private boolean useQueryPool;
+	private boolean offHeapSeries;
 	private String measurementName;
 	private Malloc malloc;
 	private boolean compactOnStart;
 	private int timeBucketSize;
 	private AtomicInteger retentionBuckets;
-	private PrintWriter prFieldMetadata;
 	private ByteStringCache fieldCache;
 	private Counter metricsCompactionCounter;
 	private Counter metricsCleanupBufferCounter;
@@ -91,6 +95,7 @@ public class PersistentMeasurement implements Measurement {
 	public void configure(Map<String, String> conf, StorageEngine engine, int defaultTimeBucketSize, String dbName,
 			String measurementName, String indexDirectory, String dataDirectory, DBMetadata metadata,
 			ScheduledExecutorService bgTaskPool) throws IOException {
+		TieredMalloc.validateDurability(conf);
 		this.timeBucketSize = defaultTimeBucketSize;
 		this.dbName = dbName;
 		this.measurementName = measurementName;
@@ -108,22 +113,31 @@ public class PersistentMeasurement implements Measurement {
 		}
 
 		this.metadata = metadata;
+		synchronized (metadata) {
+			if (metadata.getTagDictionary() == null) {
+				metadata.setTagDictionary(new TagDictionary(new File(indexDirectory, TagDictionary.DICTIONARY_FILE)));
+			}
+		}
 		this.fieldCache = ByteStringCache.instance();
-		this.seriesMap = new ConcurrentHashMap<>(100_000);
+		this.offHeapSeries = Boolean.parseBoolean(conf.getOrDefault(CONF_SERIES_OFFHEAP, "false"));
+		initSeriesMaps(0);
 		this.fieldTypeMap = new ConcurrentSkipListMap<>();
-		this.seriesList = new ArrayList<>(100_000);
 		this.compactOnStart = Boolean.parseBoolean(
 				conf.getOrDefault(StorageEngine.COMPACTION_ON_START, StorageEngine.DEFAULT_COMPACTION_ON_START));
 		this.measurementName = measurementName;
-		this.prMetadata = new PrintWriter(new FileOutputStream(new File(getMetadataPath()), true));
-		this.prFieldMetadata = new PrintWriter(new FileOutputStream(new File(getFieldMetadataPath()), true));
+		this.seriesDictionary = new SeriesDictionary(new File(this.dataDirectory, SeriesDictionary.DICTIONARY_FILE));
 
 		this.retentionBuckets = new AtomicInteger(0);
 		setRetentionHours(metadata.getRetentionHours());
 
-		this.tagIndex = new MappedBitmapTagIndex();
+		this.tagIndex = new MappedBitmapTagIndex(bgTaskPool);
 		this.tagIndex.configure(getConf(), indexDirectory, this);
-		malloc = new DiskMalloc();
+		int hotBuckets = TieredMalloc.getHotBuckets(conf);
+		if (hotBuckets > 0) {
+			malloc = new TieredMalloc(hotBuckets, timeBucketSize);
+		} else {
+			malloc = new DiskMalloc();
+		}
 		malloc.configure(conf, dataDirectory, measurementName, engine, bgTaskPool, mallocLock);
 		loadTimeseriesFromMeasurements();
 	}
@@ -161,6 +175,11 @@ public class PersistentMeasurement implements Measurement {
 		return seriesMap;
 	}
 
+	@Override
+	public SeriesHashIndex getSeriesHashIndex() {
+		return seriesHashIndex;
+	}
+
 	@Override
 	public TagIndex getTagIndex() {
 		return tagIndex;
@@ -172,100 +191,170 @@ public class PersistentMeasurement implements Measurement {
 	}
 
 	@Override
-	public synchronized void appendTimeseriesToMeasurementMetadata(ByteString fieldId, int idx) throws IOException {
-		String line = fieldId.toString() + MD_SEPARATOR + Integer.toHexString(idx);
-		DiskStorageEngine.appendLineToFile(line, prMetadata);
+	public void appendTimeseriesToMeasurementMetadata(ByteString fieldId, int idx) throws IOException {
+		seriesDictionary.appendSeries(idx, fieldId);
 	}
 
 	@Override
-	public synchronized void appendFieldMetadata(String valueFieldName, boolean fp) throws IOException {
-		DiskStorageEngine.appendLineToFile(valueFieldName + MD_SEPARATOR + fp, prFieldMetadata);
+	public void appendFieldMetadata(String valueFieldName, boolean fp) throws IOException {
+		seriesDictionary.appendField(valueFieldName, fp);
 	}
 
-	private void loadSeriesEntries(List<String> seriesEntries) {
-		Collections.sort(seriesEntries, new Comparator<String>() {
+	private void initSeriesMaps(int seriesCount) {
+		int capacity = Math.max(seriesCount, DEFAULT_SERIES_CAPACITY);
+		this.seriesList = new SeriesList(capacity);
+		if (offHeapSeries) {
+			OffHeapSeriesRegistry registry = new OffHeapSeriesRegistry(seriesCount, seriesList);
+			this.seriesMap = registry.asMap();
+			this.seriesHashIndex = registry;
+		} else {
+			this.seriesMap = new ConcurrentHashMap<>(capacity);
+			// the index grows with the series, recovered series are indexed on their first write
+			this.seriesHashIndex = new SeriesHashIndex(seriesCount);
+		}
+	}
+
+	/**
+	 * Bulk load series and fields from the binary series dictionary
+	 * 
+	 * @throws IOException
+	 */
+	private void loadSeriesDictionary() throws IOException {
+		Series[][] loaded = new Series[1][];
+		seriesDictionary.load(new SeriesDictionary.Listener() {
 
 			@Override
-			public int compare(String o1, String o2) {
-				try {
-					return Integer.compare(Integer.parseInt(o1.split(MD_SEPARATOR)[SERIES_MD_IDX], 16),
-							Integer.parseInt(o2.split(MD_SEPARATOR)[SERIES_MD_IDX], 16));
-				} catch (Exception e) {
-					throw new RuntimeException("Bad entry:\n" + o1 + "\n" + o2 + " ");
+			public void sizeHint(int seriesCount, int fieldCount) {
+				if (seriesCount > DEFAULT_SERIES_CAPACITY) {
+					initSeriesMaps(seriesCount);
 				}
+				loaded[0] = new Series[seriesCount];
+			}
+
+			@Override
+			public void series(int ordinal, ByteString seriesId) throws IOException {
+				if (ordinal < 0 || ordinal >= loaded[0].length || loaded[0][ordinal] != null) {
+					throw new IOException("Bad series ordinal:" + ordinal + " for:" + seriesId);
+				}
+				loaded[0][ordinal] = new Series(seriesId, ordinal);
+			}
+
+			@Override
+			public void field(String fieldName, boolean fp) {
+				fieldTypeMap.put(fieldName.intern(), fp);
 			}
 		});
-		SortedSet<String> set = new TreeSet<>();
-		seriesEntries.stream().forEach(e -> set.add(e.split(MD_SEPARATOR)[SERIES_MD_IDX]));
-		try {
-			for (String entry : seriesEntries) {
-				loadEntry(entry);
+		for (Series series : loaded[0]) {
+			if (series == null) {
+				throw new IOException("Series dictionary has gaps for measurement:" + measurementName);
 			}
-		} catch (Exception e) {
-			System.out.println(set.size() + "  " + Integer.parseInt(set.last(), 16));
-			int i = 0;
-			for (String s : set) {
-				System.out.println(i++ + " s:" + Integer.parseInt(s, 16));
+			seriesList.add(series);
+			seriesMap.put(series.getSeriesId(), seriesList.size() - 1);
+			if (enableMetricsCapture) {
+				metricsTimeSeriesCounter.inc();
 			}
-			throw e;
 		}
 	}
 
-	private void loadEntry(String entry) {
-		String[] split = entry.split(MD_SEPARATOR);
-		String fieldId = split[0];
-		logger.fine("Loading Timeseries:" + fieldId);
-		try {
-			String[] split2 = fieldId.split(SERIESID_SEPARATOR);
-			String seriesId = split2[0];
-			ByteString key = new ByteString(seriesId);
-
-			Integer seriesIdx = seriesMap.get(key);
-			Series series = null;
-			if (seriesIdx == null) {
-				seriesIdx = Integer.parseInt(split[SERIES_MD_IDX], 16);
-				series = new Series(key, seriesIdx);
-				seriesMap.put(key, seriesIdx);
-				seriesList.add(seriesIdx, series);
-			} else {
-				series = seriesList.get(seriesIdx);
+	/**
+	 * Import series and fields from the text metadata files written by older
+	 * versions into the series dictionary, then remove them. The dictionary is
+	 * built in a temporary file and renamed into place before the text files
+	 * are deleted, so they remain the source of truth until it is complete.
+	 * 
+	 * @throws IOException
+	 */
+	private void migrateLegacyMetadata() throws IOException {
+		File fieldFile = new File(getFieldMetadataPath());
+		File mdFile = new File(getMetadataPath());
+		if (!fieldFile.exists() && !mdFile.exists()) {
+			return;
+		}
+		logger.info("Migrating text metadata to series dictionary for measurement:" + measurementName);
+		File dictionaryFile = new File(dataDirectory, SeriesDictionary.DICTIONARY_FILE);
+		File migrateFile = new File(dataDirectory, SeriesDictionary.DICTIONARY_FILE + ".migrate");
+		// left behind by an interrupted migration
+		migrateFile.delete();
+		SeriesDictionary migrated = new SeriesDictionary(migrateFile);
+		if (fieldFile.exists()) {
+			loadFieldList(MiscUtils.readAllLines(fieldFile));
+			for (Entry<String, Boolean> entry : fieldTypeMap.entrySet()) {
+				migrated.appendField(entry.getKey(), entry.getValue());
 			}
-			if (enableMetricsCapture) {
-				metricsTimeSeriesCounter.inc();
+		}
+		if (mdFile.exists()) {
+			try {
+				loadSeriesEntries(MiscUtils.readAllLines(mdFile));
+			} catch (Exception e) {
+				throw new IOException(e);
+			}
+			for (int i = 0; i < seriesList.size(); i++) {
+				migrated.appendSeries(i, seriesList.get(i).getSeriesId());
 			}
-			logger.fine("Intialized Timeseries:" + seriesId);
-		} catch (NumberFormatException e) {
-			logger.log(Level.SEVERE, "Failed to load series:" + entry, e);
 		}
+		migrated.close();
+		seriesDictionary.close();
+		Files.move(migrateFile.toPath(), dictionaryFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		seriesDictionary = new SeriesDictionary(dictionaryFile);
+		fieldFile.delete();
+		mdFile.delete();
 	}
 
-	@Override
-	public void loadTimeseriesFromMeasurements() throws IOException {
-		String fieldFilePath = getFieldMetadataPath();
-		File file = new File(fieldFilePath);
-		if (!file.exists()) {
-			logger.warning("Field file missing for measurement:" + measurementName);
-			return;
-		} else {
-			logger.fine("Field file exists:" + file.getAbsolutePath());
+	private void loadSeriesEntries(List<String> seriesEntries) {
+		// split and parse every entry once instead of on every comparison
+		List<String[]> entries = new ArrayList<>(seriesEntries.size());
+		// sort keys pack the series index with the line number
+		long[] order = new long[seriesEntries.size()];
+		for (String entry : seriesEntries) {
+			String[] split = entry.split(MD_SEPARATOR);
+			try {
+				order[entries.size()] = ((long) Integer.parseInt(split[SERIES_MD_IDX], 16) << 32) | entries.size();
+			} catch (Exception e) {
+				throw new RuntimeException("Bad entry:\n" + entry);
+			}
+			entries.add(split);
 		}
-		List<String> fieldEntries = MiscUtils.readAllLines(file);
-		loadFieldList(fieldEntries);
+		Arrays.sort(order);
+		for (long key : order) {
+			loadEntry(entries.get((int) key), (int) (key >>> 32));
+		}
+	}
 
-		String mdFilePath = getMetadataPath();
-		file = new File(mdFilePath);
-		if (!file.exists()) {
-			logger.warning("Metadata file missing for measurement:" + measurementName);
-			return;
+	private void loadEntry(String[] split, int idx) {
+		String fieldId = split[0];
+		logger.fine("Loading Timeseries:" + fieldId);
+		String[] split2 = fieldId.split(SERIESID_SEPARATOR);
+		String seriesId = split2[0];
+		ByteString key = new ByteString(seriesId);
+
+		Integer seriesIdx = seriesMap.get(key);
+		Series series = null;
+		if (seriesIdx == null) {
+			seriesIdx = idx;
+			series = new Series(key, seriesIdx);
+			seriesList.add(seriesIdx, series);
+			seriesMap.put(key, seriesIdx);
 		} else {
-			logger.fine("Metadata file exists:" + file.getAbsolutePath());
+			series = seriesList.get(seriesIdx);
 		}
-		List<String> seriesEntries = MiscUtils.readAllLines(file);
-		try {
-			loadSeriesEntries(seriesEntries);
-		} catch (Exception e) {
-			e.printStackTrace();
-			throw new IOException(e);
+		if (enableMetricsCapture) {
+			metricsTimeSeriesCounter.inc();
+		}
+		logger.fine("Intialized Timeseries:" + seriesId);
+	}
+
+	@Override
+	public void loadTimeseriesFromMeasurements() throws IOException {
+		if (new File(getMetadataPath()).exists() || new File(getFieldMetadataPath()).exists()) {
+			// text files are only removed once the dictionary built from them is in place
+			migrateLegacyMetadata();
+		} else if (!seriesDictionary.isEmpty()) {
+			loadSeriesDictionary();
+		}
+		if (seriesList.isEmpty()) {
+			logger.fine("No series found for measurement:" + measurementName);
+			return;
 		}
 
 		ByteStringCache localCache = ByteStringCache.instance();
@@ -322,9 +411,33 @@ public class PersistentMeasurement implements Measurement {
 
 	@Override
 	public void close() throws IOException {
+		flushReorderBuffers(true);
+		if (malloc instanceof TieredMalloc) {
+			// memory buffers don't survive a restart
+			migrateBuckets((TieredMalloc) malloc, Integer.MAX_VALUE);
+		}
 		malloc.close();
 		tagIndex.close();
-		prMetadata.close();
+		seriesDictionary.close();
+	}
+
+	@Override
+	public Set<String> migrateColdBuckets() throws IOException {
+		if (!(malloc instanceof TieredMalloc)) {
+			return Collections.emptySet();
+		}
+		TieredMalloc tiered = (TieredMalloc) malloc;
+		return migrateBuckets(tiered, tiered.getColdBoundary());
+	}
+
+	private Set<String> migrateBuckets(TieredMalloc tiered, int beforeBucket) throws IOException {
+		return runCleanupOperation("migration", series -> {
+			try {
+				return series.migrate(this, tiered.getColdMalloc(), TieredMalloc::isHot, beforeBucket);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		});
 	}
 
 	/*
@@ -0,0 +1,227 @@
+/**
+ * Copyright Ambud Sharma
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.srotya.sidewinder.core.storage.disk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import com.srotya.sidewinder.core.storage.ByteString;
+import com.srotya.sidewinder.core.utils.MiscUtils;
+
+/**
+ * Append-only binary registry of the series and value fields of a measurement.
+ * 
+ * Records are length prefixed and carry a CRC32 of their payload:
+ * 
+ * <pre>
+ * [int payload length][int crc32][byte type][payload]
+ * series: [varint ordinal][encoded series id]
+ * field:  [byte fp][UTF-8 field name]
+ * </pre>
+ * 
+ * Loading validates and counts all records first so that callers can pre-size
+ * their maps before records are handed out in file order. A torn or corrupt
+ * record at the tail (crash during append) is truncated on load.
+ * 
+ * @author ambud
+ */
+public class SeriesDictionary {
+
+	private static final Logger logger = Logger.getLogger(SeriesDictionary.class.getName());
+	public static final String DICTIONARY_FILE = ".series";
+	private static final int MAGIC = 0x53444331;
+	private static final byte TYPE_SERIES = 1;
+	private static final byte TYPE_FIELD = 2;
+	private static final int RECORD_HEADER_SIZE = Integer.BYTES * 2;
+	private File file;
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private CRC32 crc;
+
+	public SeriesDictionary(File file) throws IOException {
+		this.file = file;
+		this.crc = new CRC32();
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		if (channel.size() == 0) {
+			ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+			header.putInt(MAGIC).flip();
+			channel.write(header, 0);
+			logger.fine(() -> "Series dictionary is missing; initializing:" + file.getAbsolutePath());
+		}
+		channel.position(channel.size());
+	}
+
+	/**
+	 * @return true if no series or fields have been registered
+	 * @throws IOException
+	 */
+	public boolean isEmpty() throws IOException {
+		return channel.size() <= Integer.BYTES;
+	}
+
+	/**
+	 * Read all records into the supplied listener
+	 * 
+	 * @param listener
+	 * @throws IOException
+	 */
+	public synchronized void load(Listener listener) throws IOException {
+		long length = channel.size();
+		ByteBuffer buf = ByteBuffer.allocate((int) length);
+		while (buf.hasRemaining() && channel.read(buf, buf.position()) >= 0) {
+		}
+		buf.flip();
+		if (buf.remaining() < Integer.BYTES || buf.getInt() != MAGIC) {
+			throw new IOException("Invalid series dictionary file:" + file.getAbsolutePath());
+		}
+		// validate and count
+		int validLimit = buf.position();
+		int seriesCount = 0;
+		int fieldCount = 0;
+		while (buf.remaining() >= RECORD_HEADER_SIZE) {
+			int payloadLength = buf.getInt();
+			int checksum = buf.getInt();
+			if (payloadLength <= 0 || payloadLength > buf.remaining() || checksum(buf, payloadLength) != checksum) {
+				break;
+			}
+			if (buf.get(buf.position()) == TYPE_SERIES) {
+				seriesCount++;
+			} else {
+				fieldCount++;
+			}
+			buf.position(buf.position() + payloadLength);
+			validLimit = buf.position();
+		}
+		if (validLimit < length) {
+			logger.warning("Truncating torn tail of series dictionary:" + file.getAbsolutePath() + " from:" + length
+					+ " to:" + validLimit);
+			channel.truncate(validLimit);
+			channel.position(validLimit);
+		}
+		listener.sizeHint(seriesCount, fieldCount);
+		buf.position(Integer.BYTES);
+		buf.limit(validLimit);
+		try {
+			while (buf.hasRemaining()) {
+				int payloadLength = buf.getInt();
+				// checksum was verified by the first pass
+				buf.getInt();
+				int payloadEnd = buf.position() + payloadLength;
+				if (buf.get() == TYPE_SERIES) {
+					int ordinal = MiscUtils.readVarInt(buf);
+					byte[] seriesId = new byte[payloadEnd - buf.position()];
+					buf.get(seriesId);
+					listener.series(ordinal, new ByteString(seriesId));
+				} else {
+					boolean fp = buf.get() != 0;
+					byte[] name = new byte[payloadEnd - buf.position()];
+					buf.get(name);
+					listener.field(new String(name, StandardCharsets.UTF_8), fp);
+				}
+			}
+		} catch (BufferUnderflowException | IllegalArgumentException e) {
+			throw new IOException("Malformed record in series dictionary:" + file.getAbsolutePath(), e);
+		}
+		logger.fine(() -> "Loaded series dictionary:" + file.getAbsolutePath() + " in " + buf.limit() + " bytes");
+	}
+
+	private int checksum(ByteBuffer buf, int length) {
+		ByteBuffer payload = buf.duplicate();
+		payload.limit(payload.position() + length);
+		crc.reset();
+		crc.update(payload);
+		return (int) crc.getValue();
+	}
+
+	public synchronized void appendSeries(int ordinal, ByteString seriesId) throws IOException {
+		byte[] bytes = seriesId.getBytes();
+		ByteBuffer record = ByteBuffer
+				.allocate(RECORD_HEADER_SIZE + 1 + MiscUtils.varIntSize(ordinal) + bytes.length);
+		record.position(RECORD_HEADER_SIZE);
+		record.put(TYPE_SERIES);
+		MiscUtils.writeVarInt(ordinal, record);
+		record.put(bytes);
+		write(record);
+	}
+
+	public synchronized void appendField(String fieldName, boolean fp) throws IOException {
+		byte[] bytes = fieldName.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + 2 + bytes.length);
+		record.position(RECORD_HEADER_SIZE);
+		record.put(TYPE_FIELD);
+		record.put((byte) (fp ? 1 : 0));
+		record.put(bytes);
+		write(record);
+	}
+
+	private void write(ByteBuffer record) throws IOException {
+		int payloadLength = record.position() - RECORD_HEADER_SIZE;
+		record.position(RECORD_HEADER_SIZE);
+		record.putInt(0, payloadLength);
+		record.putInt(Integer.BYTES, checksum(record, payloadLength));
+		record.position(0);
+		while (record.hasRemaining()) {
+			channel.write(record);
+		}
+	}
+
+	/**
+	 * Flush appended records to disk
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void force() throws IOException {
+		if (channel != null) {
+			channel.force(false);
+		}
+	}
+
+	public synchronized void close() throws IOException {
+		if (channel != null) {
+			channel.force(false);
+			raf.close();
+			channel = null;
+		}
+	}
+
+	/**
+	 * Receives the records of the dictionary during load
+	 */
+	public static interface Listener {
+
+		/**
+		 * Called once before any records are supplied
+		 * 
+		 * @param seriesCount
+		 * @param fieldCount
+		 */
+		public void sizeHint(int seriesCount, int fieldCount);
+
+		public void series(int ordinal, ByteString seriesId) throws IOException;
+
+		public void field(String fieldName, boolean fp);
+
+	}
+
+}
@@ -0,0 +1,235 @@
+/**
+ * Copyright Ambud Sharma
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.srotya.sidewinder.core.storage.disk;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.srotya.sidewinder.core.storage.BufferObject;
+import com.srotya.sidewinder.core.storage.ByteString;
+import com.srotya.sidewinder.core.storage.LinkedByteString;
+import com.srotya.sidewinder.core.storage.Malloc;
+import com.srotya.sidewinder.core.storage.StorageEngine;
+import com.srotya.sidewinder.core.storage.compression.Writer;
+import com.srotya.sidewinder.core.storage.disk.DiskMalloc.Durability;
+import com.srotya.sidewinder.core.storage.mem.MemMalloc;
+import com.srotya.sidewinder.core.utils.TimeUtils;
+
+/**
+ * {@link Malloc} that keeps the newest {@link #CONF_HOT_BUCKETS} time buckets
+ * in direct memory buffers of a {@link MemMalloc} and everything older in a
+ * {@link DiskMalloc}.
+ *
+ * The hot window is computed from the wall clock so that back-filled data goes
+ * straight to disk. Buffers of buckets that leave the window are copied to
+ * disk by {@link PersistentMeasurement#migrateColdBuckets()}, which runs with
+ * garbage collection and on close. Queries don't need to know about the tiers
+ * since writers reference whichever buffer currently holds their data.
+ *
+ * Hot buffers are not durable, buckets in the hot window are lost if the
+ * process crashes before they are migrated and {@link #sync()} only forces the
+ * cold tier. Durability modes other than none are therefore refused when
+ * tiering is enabled.
+ *
+ * Buffer ids handed out for the memory tier carry {@link #HOT_MARKER} as an
+ * explicit tier marker.
+ *
+ * @author ambud
+ */
+public class TieredMalloc implements Malloc {
+
+	public static final String CONF_HOT_BUCKETS = "malloc.tiered.hot.buckets";
+	// disk buffer ids always end with the file position so they never end with
+	// the marker
+	public static final String HOT_MARKER = "\thot";
+	private final int hotBuckets;
+	private final int timeBucketSize;
+	private MemMalloc hot;
+	private DiskMalloc cold;
+
+	public TieredMalloc(int hotBuckets, int timeBucketSize) {
+		if (hotBuckets < 1) {
+			throw new IllegalArgumentException("Tiered storage needs at least one hot bucket");
+		}
+		this.hotBuckets = hotBuckets;
+		this.timeBucketSize = timeBucketSize;
+	}
+
+	public static int getHotBuckets(Map<String, String> conf) {
+		return Integer.parseInt(conf.getOrDefault(CONF_HOT_BUCKETS, "0"));
+	}
+
+	/**
+	 * Refuse durability modes that can't be honored since acknowledged rows would
+	 * still only live on the heap, either in the memory tier or in the reorder
+	 * buffers of {@link StorageEngine#REORDER_WINDOW}
+	 * 
+	 * @param conf
+	 */
+	public static void validateDurability(Map<String, String> conf) {
+		if (DiskMalloc.getDurability(conf) == Durability.NONE) {
+			return;
+		}
+		if (getHotBuckets(conf) > 0) {
+			throw new IllegalArgumentException("Durability mode:" + conf.get(DiskMalloc.CONF_DURABILITY)
+					+ " isn't supported with tiered storage, hot buckets are kept in memory");
+		}
+		if (Long.parseLong(conf.getOrDefault(StorageEngine.REORDER_WINDOW, StorageEngine.DEFAULT_REORDER_WINDOW)) > 0) {
+			throw new IllegalArgumentException("Durability mode:" + conf.get(DiskMalloc.CONF_DURABILITY)
+					+ " isn't supported with a reorder window, buffered rows are kept in memory");
+		}
+	}
+
+	@Override
+	public void configure(Map<String, String> conf, String dataDirectory, String measurementName, StorageEngine engine,
+			ScheduledExecutorService bgTaskPool, ReentrantLock lock) throws IOException {
+		validateDurability(conf);
+		hot = new MemMalloc();
+		hot.configure(conf, dataDirectory, measurementName, engine, bgTaskPool, lock);
+		cold = new DiskMalloc();
+		cold.configure(conf, dataDirectory, measurementName, engine, bgTaskPool, lock);
+	}
+
+	/**
+	 * @return oldest bucket that is still in the hot window
+	 */
+	public int getColdBoundary() {
+		int current = TimeUtils.getTimeBucket(TimeUnit.MILLISECONDS, System.currentTimeMillis(), timeBucketSize);
+		return current - (hotBuckets - 1) * timeBucketSize;
+	}
+
+	private boolean isCold(Integer tsBucket) {
+		return tsBucket != null && tsBucket < getColdBoundary();
+	}
+
+	private static BufferObject markHot(BufferObject bufPair) {
+		bufPair.getBufferId().concat(HOT_MARKER);
+		return bufPair;
+	}
+
+	/**
+	 * @param bufferId
+	 * @return true if the buffer was allocated from the memory tier
+	 */
+	public static boolean isHot(String bufferId) {
+		return bufferId.endsWith(HOT_MARKER);
+	}
+
+	public static boolean isHot(Writer writer) {
+		return isHot(writer.getBufferId().toString());
+	}
+
+	@Override
+	public BufferObject createNewBuffer(LinkedByteString fieldId, Integer tsBucket, int size) throws IOException {
+		if (isCold(tsBucket)) {
+			return cold.createNewBuffer(fieldId, tsBucket, size);
+		}
+		return markHot(hot.createNewBuffer(fieldId, tsBucket, size));
+	}
+
+	@Override
+	public BufferObject createNewBuffer(LinkedByteString fieldId, Integer tsBucket) throws IOException {
+		if (isCold(tsBucket)) {
+			return cold.createNewBuffer(fieldId, tsBucket);
+		}
+		return markHot(hot.createNewBuffer(fieldId, tsBucket));
+	}
+
+	@Override
+	public BufferObject createNextBuffer(LinkedByteString fieldId, Integer tsBucket, int writerIndex)
+			throws IOException {
+		if (isCold(tsBucket)) {
+			return cold.createNextBuffer(fieldId, tsBucket, writerIndex);
+		}
+		return markHot(hot.createNextBuffer(fieldId, tsBucket, writerIndex));
+	}
+
+	@Override
+	public void cleanupBufferIds(Set<String> cleanupList) throws IOException {
+		Set<String> coldIds = new HashSet<>();
+		for (String bufferId : cleanupList) {
+			// memory buffers are released once their writers are unreachable
+			if (!isHot(bufferId)) {
+				coldIds.add(bufferId);
+			}
+		}
+		if (!coldIds.isEmpty()) {
+			cold.cleanupBufferIds(coldIds);
+		}
+	}
+
+	@Override
+	public Map<ByteString, List<Entry<Integer, BufferObject>>> seriesBufferMap()
+			throws FileNotFoundException, IOException {
+		return cold.seriesBufferMap();
+	}
+
+	@Override
+	public LinkedByteString repairBufferId(LinkedByteString fieldId, LinkedByteString bufferId) {
+		return cold.repairBufferId(fieldId, bufferId);
+	}
+
+	/**
+	 * Only the cold tier can be forced, see {@link #validateDurability(Map)}
+	 */
+	@Override
+	public void sync() throws IOException {
+		cold.sync();
+	}
+
+	/**
+	 * Only space of the cold tier is reused
+	 */
+	@Override
+	public long enterRead() {
+		return cold.enterRead();
+	}
+
+	@Override
+	public void leaveRead(long ticket) {
+		cold.leaveRead(ticket);
+	}
+
+	@Override
+	public void seal(LinkedByteString bufferId) {
+		if (!isHot(bufferId.toString())) {
+			cold.seal(bufferId);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		hot.close();
+		cold.close();
+	}
+
+	public Malloc getColdMalloc() {
+		return cold;
+	}
+
+	public int getHotBuckets() {
+		return hotBuckets;
+	}
+
+}
@@ -26,6 +26,7 @@ import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.locks.ReentrantLock;
 
 import com.srotya.sidewinder.core.storage.BufferObject;
+import com.srotya.sidewinder.core.storage.BufferSizePolicy;
 import com.srotya.sidewinder.core.storage.ByteString;
 import com.srotya.sidewinder.core.storage.LinkedByteString;
 import com.srotya.sidewinder.core.storage.Malloc;
@@ -35,6 +36,7 @@ public class MemMalloc implements Malloc {
 
 	private static final ByteString STR2 = new ByteString("\t");
 	private int size;
+	private BufferSizePolicy sizePolicy;
 	private List<String> cleanupCallback;
 
 	public MemMalloc() {
@@ -48,6 +50,12 @@ public class MemMalloc implements Malloc {
 		return createNewBuffer(seriesId, tsBucket, size);
 	}
 
+	@Override
+	public BufferObject createNextBuffer(LinkedByteString seriesId, Integer tsBucket, int writerIndex)
+			throws IOException {
+		return createNewBuffer(seriesId, tsBucket, sizePolicy.sizeFor(writerIndex));
+	}
+
 	public BufferObject createNewBuffer(LinkedByteString seriesId, Integer tsBucket, int newSize) throws IOException {
 		ByteBuffer allocateDirect = ByteBuffer.allocateDirect(newSize);
 		LinkedByteString str = new LinkedByteString().concat(seriesId);
@@ -72,6 +80,7 @@ public class MemMalloc implements Malloc {
 			ScheduledExecutorService bgTaskPool, ReentrantLock lock) {
 		this.size = Integer
 				.parseInt(conf.getOrDefault(CONF_MEASUREMENT_BUF_INCREMENT_SIZE, String.valueOf(DEFAULT_INCREMENT_SIZE)));
+		this.sizePolicy = BufferSizePolicy.fromConf(conf, size);
 	}
 
 	@Override
@@ -130,6 +130,7 @@ public class MemStorageEngine implements StorageEngine {
 			} else {
 				logger.warning("Compaction is disabled");
 			}
+			scheduleReorderFlush(conf, bgTaskPool);
 		}
 		enableMetricsService();
 	}
@@ -273,6 +274,7 @@ public class MemStorageEngine implements StorageEngine {
 
 	@Override
 	public void shutdown() throws IOException {
+		flushReorderBuffers(true);
 	}
 
 	public Map<String, DBMetadata> getDbMetadataMap() {
@@ -16,7 +16,6 @@
 package com.srotya.sidewinder.core.storage.mem;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -37,7 +36,10 @@ import com.srotya.sidewinder.core.storage.ByteString.ByteStringCache;
 import com.srotya.sidewinder.core.storage.DBMetadata;
 import com.srotya.sidewinder.core.storage.Malloc;
 import com.srotya.sidewinder.core.storage.Measurement;
+import com.srotya.sidewinder.core.storage.OffHeapSeriesRegistry;
 import com.srotya.sidewinder.core.storage.Series;
+import com.srotya.sidewinder.core.storage.SeriesHashIndex;
+import com.srotya.sidewinder.core.storage.SeriesList;
 import com.srotya.sidewinder.core.storage.StorageEngine;
 import com.srotya.sidewinder.core.storage.TagIndex;
 import com.srotya.sidewinder.core.storage.compression.Writer;
@@ -52,6 +54,7 @@ public class MemoryMeasurement implements Measurement {
 	private String measurementName;
 	private DBMetadata metadata;
 	private Map<ByteString, Integer> seriesMap;
+	private SeriesHashIndex seriesHashIndex;
 	private List<Series> seriesList;
 	private MemTagIndex tagIndex;
 	private boolean useQueryPool;
@@ -88,10 +91,17 @@ public class MemoryMeasurement implements Measurement {
 		this.measurementName = measurementName;
 		this.fieldCache = ByteStringCache.instance();
 		this.metadata = metadata;
-		this.seriesList = new ArrayList<>(10_000);
+		this.seriesList = new SeriesList(10_000);
 		this.tagIndex = new MemTagIndex();
 		tagIndex.configure(getConf(), null, this);
-		this.seriesMap = new ConcurrentHashMap<>();
+		if (Boolean.parseBoolean(conf.getOrDefault(CONF_SERIES_OFFHEAP, "false"))) {
+			OffHeapSeriesRegistry registry = new OffHeapSeriesRegistry(0, seriesList);
+			this.seriesMap = registry.asMap();
+			this.seriesHashIndex = registry;
+		} else {
+			this.seriesMap = new ConcurrentHashMap<>();
+			this.seriesHashIndex = new SeriesHashIndex(0);
+		}
 		this.fieldTypeMap = new ConcurrentSkipListMap<>();
 		this.retentionBuckets = new AtomicInteger(0);
 		setRetentionHours(metadata.getRetentionHours());
@@ -116,6 +126,7 @@ public class MemoryMeasurement implements Measurement {
 
 	@Override
 	public void close() throws IOException {
+		flushReorderBuffers(true);
 	}
 
 	@Override
@@ -198,6 +209,11 @@ public class MemoryMeasurement implements Measurement {
 		return seriesMap;
 	}
 
+	@Override
+	public SeriesHashIndex getSeriesHashIndex() {
+		return seriesHashIndex;
+	}
+
 	@Override
 	public boolean isEnableMetricsCapture() {
 		return enableMetricsCapture;
@@ -16,8 +16,11 @@
 package com.srotya.sidewinder.core.storage.processor;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import com.srotya.sidewinder.core.rpc.Point;
+import com.srotya.sidewinder.core.rpc.SeriesBatch;
 
 /**
  * @author ambud
@@ -26,4 +29,36 @@ public interface PointProcessor {
 	
 	public void writeDataPoint(Point point) throws InterruptedException, IOException;
 
+	public default void writeDataPoints(List<Point> points) throws InterruptedException, IOException {
+		for (Point point : points) {
+			writeDataPoint(point);
+		}
+	}
+
+	/**
+	 * Accept a batch of points for writing. Invalid points are rejected before
+	 * anything is accepted, the returned future completes once the points are
+	 * written or exceptionally if writing them failed.
+	 * 
+	 * @param points
+	 * @return future completed when the points are written
+	 * @throws InterruptedException
+	 * @throws IOException
+	 */
+	public default CompletableFuture<Void> writeDataPointsAsync(List<Point> points)
+			throws InterruptedException, IOException {
+		writeDataPoints(points);
+		return CompletableFuture.completedFuture(null);
+	}
+
+	public void writeSeriesBatch(SeriesBatch batch) throws InterruptedException, IOException;
+
+	/**
+	 * Stop accepting points and flush whatever has already been accepted
+	 * 
+	 * @throws InterruptedException
+	 */
+	public default void shutdown() throws InterruptedException {
+	}
+
 }
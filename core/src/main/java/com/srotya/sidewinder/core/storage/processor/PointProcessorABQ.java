@@ -16,64 +16,332 @@
 package com.srotya.sidewinder.core.storage.processor;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import com.srotya.sidewinder.core.rpc.Point;
+import com.srotya.sidewinder.core.rpc.SeriesBatch;
+import com.srotya.sidewinder.core.rpc.Tag;
+import com.srotya.sidewinder.core.storage.ByteString;
+import com.srotya.sidewinder.core.storage.RejectException;
 import com.srotya.sidewinder.core.storage.StorageEngine;
 import com.srotya.sidewinder.core.utils.BackgrounThreadFactory;
-import com.srotya.sidewinder.core.utils.MiscUtils;
 
 /**
+ * Sharded ingestion engine. Every series is owned by exactly one writer shard,
+ * picked by a consistent hash of the database, measurement and tags of the
+ * point. Each shard has its own bounded queue of point batches and series
+ * batches which is drained in batches by a single thread; since no two threads
+ * ever append to the same series, series locks taken by the shards are
+ * uncontended.
+ * 
+ * Writes complete once the shard has written them to the {@link StorageEngine},
+ * so a failed write is reported to the caller instead of being dropped after
+ * the caller was acknowledged.
+ * 
  * @author ambud
  */
-@SuppressWarnings("unused")
 public class PointProcessorABQ implements PointProcessor {
 
-	private int handlerCount;
+	public static final String WRITER_SHARD_COUNT = "writer.shard.count";
+	public static final String WRITER_SHARD_QUEUE_SIZE = "writer.shard.queue.size";
+	public static final String WRITER_SHARD_BATCH_SIZE = "writer.shard.batch.size";
+	private static final Logger logger = Logger.getLogger(PointProcessorABQ.class.getName());
+	private static final RejectException SHUTDOWN_EXCEPTION = new RejectException("Writer shards are shut down");
+	private int shardCount;
+	private int batchSize;
 	private ExecutorService es;
-	private Map<Integer, ArrayBlockingQueue<Point>> queue;
+	private List<ArrayBlockingQueue<ShardWrite>> queues;
 	private StorageEngine engine;
+	private volatile boolean running;
+	// held shared while enqueuing and exclusively to stop accepting writes
+	private ReentrantReadWriteLock stateLock;
 
 	public PointProcessorABQ(final StorageEngine engine, Map<String, String> conf) {
 		this.engine = engine;
-		queue = new HashMap<>();
-		handlerCount = 4;
-		// es = Executors.newFixedThreadPool(handlerCount + 1, new
-		// BackgrounThreadFactory("writers"));
-
-		// es.submit(() -> {
-		// while (true) {
-		// queue.entrySet().stream().forEach(v -> System.out.println(v.getKey() + " : "
-		// + v.getValue().size()));
-		// Thread.sleep(1000);
-		// }
-		// });
-
-		// for (int i = 0; i < handlerCount; i++) {
-		// System.out.println("Initializaing handler:" + i);
-		// final ArrayBlockingQueue<Point> value = new ArrayBlockingQueue<>(1024 * 128);
-		// queue.put(i, value);
-		// es.submit(() -> {
-		// while (true) {
-		// Point take = value.take();
-		// engine.writeDataPointUnlocked(take, true);
-		// }
-		// });
-		// }
+		shardCount = Integer.parseInt(conf.getOrDefault(WRITER_SHARD_COUNT,
+				String.valueOf(Runtime.getRuntime().availableProcessors())));
+		int queueSize = Integer.parseInt(conf.getOrDefault(WRITER_SHARD_QUEUE_SIZE, String.valueOf(1024 * 64)));
+		batchSize = Integer.parseInt(conf.getOrDefault(WRITER_SHARD_BATCH_SIZE, "1024"));
+		if (shardCount < 1 || queueSize < 1 || batchSize < 1) {
+			throw new IllegalArgumentException("Writer shard count, queue size and batch size must be positive");
+		}
+		queues = new ArrayList<>(shardCount);
+		stateLock = new ReentrantReadWriteLock();
+		running = true;
+		es = Executors.newFixedThreadPool(shardCount, new BackgrounThreadFactory("writer-shards"));
+		for (int i = 0; i < shardCount; i++) {
+			ArrayBlockingQueue<ShardWrite> queue = new ArrayBlockingQueue<>(queueSize);
+			queues.add(queue);
+			final int shard = i;
+			es.submit(() -> drainShard(shard, queue));
+		}
+		logger.info("Initialized " + shardCount + " writer shards with queue size:" + queueSize + " batch size:"
+				+ batchSize);
 	}
 
+	@Override
 	public void writeDataPoint(Point point) throws InterruptedException, IOException {
-		engine.writeDataPointLocked(point, true);
-		// extracted(point);
+		StorageEngine.validatePoint(point);
+		ShardWrite write = new ShardWrite(Collections.singletonList(point));
+		enqueue(Collections.singletonList(write), Collections.singletonList(shardFor(point)));
+		await(write.future);
+	}
+
+	@Override
+	public void writeDataPoints(List<Point> points) throws InterruptedException, IOException {
+		await(writeDataPointsAsync(points));
 	}
 
-	private void extracted(Point point) throws InterruptedException {
-		int hashCode = MiscUtils.tagHashCode(point.getTagsList());
-		queue.get(Math.abs(hashCode % handlerCount)).put(point);
+	@Override
+	public CompletableFuture<Void> writeDataPointsAsync(List<Point> points)
+			throws InterruptedException, IOException {
+		// reject the whole batch before any of it is enqueued
+		for (int i = 0; i < points.size(); i++) {
+			StorageEngine.validatePoint(points.get(i));
+		}
+		List<List<Point>> shardPoints = new ArrayList<>(Collections.nCopies(shardCount, null));
+		List<Integer> shards = new ArrayList<>();
+		for (int i = 0; i < points.size(); i++) {
+			Point point = points.get(i);
+			int shard = shardFor(point);
+			List<Point> list = shardPoints.get(shard);
+			if (list == null) {
+				list = new ArrayList<>();
+				shardPoints.set(shard, list);
+				shards.add(shard);
+			}
+			list.add(point);
+		}
+		List<ShardWrite> writes = new ArrayList<>(shards.size());
+		CompletableFuture<?>[] futures = new CompletableFuture<?>[shards.size()];
+		for (int i = 0; i < shards.size(); i++) {
+			ShardWrite write = new ShardWrite(shardPoints.get(shards.get(i)));
+			writes.add(write);
+			futures[i] = write.future;
+		}
+		enqueue(writes, shards);
+		return CompletableFuture.allOf(futures);
+	}
+
+	@Override
+	public void writeSeriesBatch(SeriesBatch batch) throws InterruptedException, IOException {
+		StorageEngine.validateSeriesBatch(batch);
+		int shard = jumpConsistentHash(
+				seriesHash(batch.getDbName(), batch.getMeasurementName(), batch.getTagsList()), shardCount);
+		ShardWrite write = new ShardWrite(batch);
+		enqueue(Collections.singletonList(write), Collections.singletonList(shard));
+		await(write.future);
+	}
+
+	private void enqueue(List<ShardWrite> writes, List<Integer> shards) throws InterruptedException, IOException {
+		stateLock.readLock().lockInterruptibly();
+		try {
+			if (!running) {
+				throw SHUTDOWN_EXCEPTION;
+			}
+			for (int i = 0; i < writes.size(); i++) {
+				queues.get(shards.get(i)).put(writes.get(i));
+			}
+		} finally {
+			stateLock.readLock().unlock();
+		}
+	}
+
+	private static void await(CompletableFuture<Void> future) throws InterruptedException, IOException {
+		try {
+			future.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void drainShard(int shard, ArrayBlockingQueue<ShardWrite> queue) {
+		List<ShardWrite> items = new ArrayList<>(batchSize);
+		List<ShardWrite> pending = new ArrayList<>(batchSize);
+		List<Point> points = new ArrayList<>(batchSize);
+		while (running || !queue.isEmpty()) {
+			try {
+				ShardWrite item = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (item == null) {
+					continue;
+				}
+				items.add(item);
+				queue.drainTo(items, batchSize - 1);
+				for (int i = 0; i < items.size(); i++) {
+					item = items.get(i);
+					if (item.payload instanceof SeriesBatch) {
+						// preserve arrival order for the series of this batch
+						flush(shard, points, pending);
+						writeSeriesBatch(shard, item);
+					} else {
+						points.addAll((List<Point>) item.payload);
+						pending.add(item);
+						if (points.size() >= batchSize) {
+							flush(shard, points, pending);
+						}
+					}
+				}
+				flush(shard, points, pending);
+			} catch (InterruptedException e) {
+				logger.warning("Writer shard:" + shard + " interrupted, pending writes:" + queue.size());
+				Thread.currentThread().interrupt();
+				break;
+			} finally {
+				items.clear();
+			}
+		}
+		// only reached with queued writes if the shard was interrupted
+		ShardWrite item;
+		while ((item = queue.poll()) != null) {
+			item.future.completeExceptionally(SHUTDOWN_EXCEPTION);
+		}
+	}
+
+	private void flush(int shard, List<Point> points, List<ShardWrite> pending) {
+		if (pending.isEmpty()) {
+			return;
+		}
+		Exception error = null;
+		try {
+			engine.writeDataPoints(points);
+		} catch (Exception e) {
+			logger.log(Level.SEVERE, "Failed to write batch of " + points.size() + " points on writer shard:" + shard,
+					e);
+			error = e;
+		} finally {
+			points.clear();
+		}
+		for (int i = 0; i < pending.size(); i++) {
+			complete(pending.get(i), error);
+		}
+		pending.clear();
+	}
+
+	private void writeSeriesBatch(int shard, ShardWrite write) {
+		Exception error = null;
+		try {
+			engine.writeSeriesBatch((SeriesBatch) write.payload);
+		} catch (Exception e) {
+			logger.log(Level.SEVERE, "Failed to write series batch:" + ((SeriesBatch) write.payload).getMessageId()
+					+ " on writer shard:" + shard, e);
+			error = e;
+		}
+		complete(write, error);
+	}
+
+	private static void complete(ShardWrite write, Exception error) {
+		if (error == null) {
+			write.future.complete(null);
+		} else {
+			write.future.completeExceptionally(error);
+		}
+	}
+
+	/**
+	 * @param point
+	 * @return index of the writer shard that owns the series of this point
+	 */
+	public int shardFor(Point point) {
+		return jumpConsistentHash(seriesHash(point), shardCount);
+	}
+
+	/**
+	 * Hash of the series a point belongs to. Tag hashes are combined with a sum so
+	 * the result doesn't depend on the order in which tags were supplied.
+	 * 
+	 * @param point
+	 * @return hash
+	 */
+	public static long seriesHash(Point point) {
+		return seriesHash(point.getDbName(), point.getMeasurementName(), point.getTagsList());
+	}
+
+	public static long seriesHash(String dbName, String measurementName, List<Tag> tags) {
+		long h = ByteString.hash64(ByteString.HASH64_SEED, dbName);
+		h = ByteString.hash64(h, '=');
+		h = ByteString.hash64(h, measurementName);
+		long tagHash = 0;
+		for (int i = 0; i < tags.size(); i++) {
+			Tag tag = tags.get(i);
+			long th = ByteString.hash64(ByteString.HASH64_SEED, tag.getTagKey());
+			th = ByteString.hash64(th, '=');
+			tagHash += mix(ByteString.hash64(th, tag.getTagValue()));
+		}
+		return mix(h ^ tagHash);
+	}
+
+	/**
+	 * Jump consistent hash (Lamping and Veach) maps the key to one of the buckets
+	 * such that only 1/n of the keys move when the bucket count changes
+	 * 
+	 * @param key
+	 * @param buckets
+	 * @return bucket
+	 */
+	public static int jumpConsistentHash(long key, int buckets) {
+		long b = -1;
+		long j = 0;
+		while (j < buckets) {
+			b = j;
+			key = key * 2862933555777941757L + 1;
+			j = (long) ((b + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+		}
+		return (int) b;
+	}
+
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * Reject new writes and return once every write that was already accepted
+	 * has been written
+	 */
+	@Override
+	public void shutdown() throws InterruptedException {
+		stateLock.writeLock().lock();
+		try {
+			running = false;
+		} finally {
+			stateLock.writeLock().unlock();
+		}
+		es.shutdown();
+		while (!es.awaitTermination(30, TimeUnit.SECONDS)) {
+			int pending = 0;
+			for (ArrayBlockingQueue<ShardWrite> queue : queues) {
+				pending += queue.size();
+			}
+			logger.warning("Waiting for writer shards to drain, pending writes:" + pending);
+		}
+	}
+
+	/**
+	 * @return the shardCount
+	 */
+	public int getShardCount() {
+		return shardCount;
 	}
 
 	/**
@@ -83,4 +351,20 @@ public class PointProcessorABQ implements PointProcessor {
 		return es;
 	}
 
-}
\ No newline at end of file
+	/**
+	 * Queue entry of a shard, either the points of a single call that belong to
+	 * the shard or a series batch
+	 */
+	private static final class ShardWrite {
+
+		private final Object payload;
+		private final CompletableFuture<Void> future;
+
+		private ShardWrite(Object payload) {
+			this.payload = payload;
+			this.future = new CompletableFuture<>();
+		}
+
+	}
+
+}
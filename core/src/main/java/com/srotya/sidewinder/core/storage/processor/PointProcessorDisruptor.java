@@ -26,6 +26,7 @@ import com.lmax.disruptor.EventTranslatorTwoArg;
 import com.lmax.disruptor.RingBuffer;
 import com.lmax.disruptor.dsl.Disruptor;
 import com.srotya.sidewinder.core.rpc.Point;
+import com.srotya.sidewinder.core.rpc.SeriesBatch;
 import com.srotya.sidewinder.core.rpc.Tag;
 import com.srotya.sidewinder.core.storage.StorageEngine;
 import com.srotya.sidewinder.core.utils.BackgrounThreadFactory;
@@ -35,20 +36,24 @@ import com.srotya.sidewinder.core.utils.BackgrounThreadFactory;
  */
 public class PointProcessorDisruptor implements PointProcessor {
 
+	private static final String DISRUPTOR_BUFFER_SIZE = "writer.disruptor.buffer.size";
+	private static final String DISRUPTOR_HANDLER_COUNT = "writer.disruptor.handler.count";
 	private RingBuffer<DPWrapper> buffer;
 	private Disruptor<DPWrapper> disruptor;
 	private int handlerCount;
 	private ExecutorService es;
 	private DataPointTranslator translator;
+	private StorageEngine engine;
 
 	@SuppressWarnings("unchecked")
 	public PointProcessorDisruptor(StorageEngine engine, Map<String, String> conf) {
-		int bufferSize = 65536 * 4;
+		this.engine = engine;
+		int bufferSize = Integer.parseInt(conf.getOrDefault(DISRUPTOR_BUFFER_SIZE, String.valueOf(65536 * 4)));
 		if (bufferSize % 2 != 0) {
 			throw new IllegalArgumentException("Disruptor buffers must always be power of 2");
 		}
 		translator = new DataPointTranslator();
-		handlerCount = 2;
+		handlerCount = Integer.parseInt(conf.getOrDefault(DISRUPTOR_HANDLER_COUNT, "2"));
 		es = Executors.newFixedThreadPool(handlerCount, new BackgrounThreadFactory("grpc-writers"));
 		disruptor = new Disruptor<>(new DPWrapperFactory(), bufferSize, es);
 		@SuppressWarnings("rawtypes")
@@ -64,6 +69,17 @@ public class PointProcessorDisruptor implements PointProcessor {
 		buffer.publishEvent(translator, point.getDbName(), point);
 	}
 
+	@Override
+	public void writeSeriesBatch(SeriesBatch batch) throws IOException {
+		engine.writeSeriesBatch(batch);
+	}
+
+	@Override
+	public void shutdown() throws InterruptedException {
+		disruptor.shutdown();
+		es.shutdown();
+	}
+
 	/**
 	 * @return the disruptor
 	 */
@@ -125,7 +141,7 @@ public class PointProcessorDisruptor implements PointProcessor {
 
 		@Override
 		public void onEvent(DPWrapper event, long sequence, boolean endOfBatch) throws Exception {
-			if (event.getHashValue() % handlerCount == handlerIndex) {
+			if (Math.floorMod(event.getHashValue(), handlerCount) == handlerIndex) {
 				try {
 					engine.writeDataPointLocked(event.getDp(), true);
 				} catch (IOException e) {
@@ -144,6 +160,7 @@ public class PointProcessorDisruptor implements PointProcessor {
 			for (Tag tag : point.getTagsList()) {
 				hashCode = hashCode * 31 + tag.hashCode();
 			}
+			dp.setDp(point);
 			dp.setHashValue(hashCode);
 		}
 
@@ -0,0 +1,80 @@
+/**
+ * Copyright Ambud Sharma
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.srotya.sidewinder.core.utils;
+
+/**
+ * Direct mapped cache of values keyed by a byte range, colliding entries simply
+ * replace each other which keeps memory bounded. Used by parsers to avoid
+ * decoding the same names and tags repeatedly.
+ * 
+ * Not thread-safe.
+ * 
+ * @author ambud
+ */
+public final class BytesCache<T> {
+
+	private final byte[][] keys;
+	private final Object[] values;
+	private final int mask;
+
+	/**
+	 * @param size
+	 *            must be a power of 2
+	 */
+	public BytesCache(int size) {
+		keys = new byte[size][];
+		values = new Object[size];
+		mask = size - 1;
+	}
+
+	@SuppressWarnings("unchecked")
+	public T get(byte[] buf, int start, int end, int hash) {
+		int idx = hash & mask;
+		byte[] key = keys[idx];
+		if (key == null || key.length != end - start) {
+			return null;
+		}
+		for (int i = 0; i < key.length; i++) {
+			if (key[i] != buf[start + i]) {
+				return null;
+			}
+		}
+		return (T) values[idx];
+	}
+
+	public void put(byte[] buf, int start, int end, int hash, T value) {
+		int idx = hash & mask;
+		byte[] key = new byte[end - start];
+		System.arraycopy(buf, start, key, 0, key.length);
+		values[idx] = value;
+		keys[idx] = key;
+	}
+
+	/**
+	 * @param buf
+	 * @param start
+	 * @param end
+	 * @return hash of the byte range
+	 */
+	public static int hash(byte[] buf, int start, int end) {
+		int h = 1;
+		for (int i = start; i < end; i++) {
+			h = 31 * h + buf[i];
+		}
+		return h ^ (h >>> 16);
+	}
+
+}
@@ -15,98 +15,45 @@
  */
 package com.srotya.sidewinder.core.utils;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
-import java.util.logging.Logger;
-import java.util.regex.Pattern;
 
-import com.google.common.base.Splitter;
 import com.srotya.sidewinder.core.rpc.Point;
-import com.srotya.sidewinder.core.rpc.Point.Builder;
-import com.srotya.sidewinder.core.rpc.Tag;
 
 /**
+ * Decodes InfluxDB line protocol payloads using a per thread
+ * {@link InfluxLineParser}
+ * 
  * @author ambud
  */
 public class InfluxDecoder {
 
-	private static final Splitter TAG = Splitter.on('=');
-	private static final Splitter SPACE = Splitter.on(Pattern.compile("\\s+"));
-	private static final Splitter COMMA = Splitter.on(',');
-	private static final Splitter NEWLINE = Splitter.on('\n');
-	private static final int LENGTH_OF_MILLISECOND_TS = 13;
-	private static final Logger logger = Logger.getLogger(InfluxDecoder.class.getName());
+	private static final ThreadLocal<InfluxLineParser> PARSER = ThreadLocal.withInitial(InfluxLineParser::new);
 
-	public static List<String> lineFromPayLoad(String payload) {
-		return NEWLINE.splitToList(payload);
+	public static InfluxLineParser getParser() {
+		return PARSER.get();
 	}
 
 	public static List<Point> pointsFromString(String dbName, String payload) {
+		return pointsFromBytes(dbName, payload.getBytes(StandardCharsets.UTF_8));
+	}
+
+	public static List<Point> pointsFromBytes(String dbName, byte[] payload) {
 		List<Point> dps = new ArrayList<>();
-		try {
-			Iterable<String> splits = lineFromPayLoad(payload);
-			for (String split : splits) {
-				Builder builder = pointFromLine(Point.newBuilder(), dbName, split);
-				if (builder != null) {
-					Point point = builder.build();
-					dps.add(point);
-				}
-			}
-		} catch (Exception e) {
-			e.printStackTrace();
-			logger.fine("Rejected:" + payload);
-		}
+		PARSER.get().parse(dbName, payload, dps);
 		return dps;
 	}
 
 	public static Point.Builder pointFromLine(Point.Builder builder, String dbName, String line) {
 		builder.clear();
-		List<String> parts = SPACE.splitToList(line);
-		if (parts.size() < 2 || parts.size() > 3) {
-			// invalid datapoint => drop
+		List<Point> dps = new ArrayList<>(1);
+		byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+		PARSER.get().parse(dbName, bytes, 0, bytes.length, true, dps);
+		if (dps.isEmpty()) {
 			return null;
 		}
-		long timestamp = System.currentTimeMillis();
-		if (parts.size() == 3) {
-			timestamp = Long.parseLong(parts.get(2));
-			if (parts.get(2).length() > LENGTH_OF_MILLISECOND_TS) {
-				timestamp = timestamp / (1000 * 1000);
-			}
-		} else {
-			logger.info("Bad datapoint timestamp:" + parts.size());
-		}
-		List<String> key = COMMA.splitToList(parts.get(0));
-		String measurementName = key.get(0);
-		Set<Tag> tTags = new HashSet<>();
-		for (int i = 1; i < key.size(); i++) {
-			List<String> s = TAG.splitToList(key.get(i));
-			tTags.add(Tag.newBuilder().setTagKey(s.get(0)).setTagValue(s.get(1)).build());
-		}
-		List<Tag> tags = new ArrayList<>(tTags);
-		List<String> fields = COMMA.splitToList(parts.get(1));
-		builder.setDbName(dbName);
-		builder.setMeasurementName(measurementName);
-		builder.addAllTags(tags);
-		builder.setTimestamp(timestamp);
-		for (String field : fields) {
-			String[] fv = field.split("=");
-			String valueFieldName = fv[0];
-			if (!fv[1].endsWith("i")) {
-				double value = Double.parseDouble(fv[1]);
-				builder.addValueFieldName(valueFieldName);
-				builder.addValue(Double.doubleToLongBits(value));
-				builder.addFp(true);
-			} else {
-				fv[1] = fv[1].substring(0, fv[1].length() - 1);
-				long value = Long.parseLong(fv[1]);
-				builder.addValueFieldName(valueFieldName);
-				builder.addValue(value);
-				builder.addFp(false);
-			}
-		}
-		return builder;
+		return builder.mergeFrom(dps.get(0));
 	}
 
 }
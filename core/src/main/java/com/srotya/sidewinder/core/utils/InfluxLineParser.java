@@ -0,0 +1,431 @@
+/**
+ * Copyright Ambud Sharma
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.srotya.sidewinder.core.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.logging.Logger;
+
+import com.srotya.sidewinder.core.rpc.Point;
+import com.srotya.sidewinder.core.rpc.Tag;
+
+/**
+ * Byte level parser for the InfluxDB line protocol.
+ * 
+ * Lines are parsed in place without splitting them into Strings; measurement
+ * names, tag keys, field names and {@link Tag}s are looked up in small caches
+ * keyed by their bytes so repeated series don't allocate, and numbers are
+ * parsed directly from the bytes. Every accepted line still allocates one
+ * immutable {@link Point} since points are handed off to the writers, only
+ * their components are shared.
+ * 
+ * Instances are not thread-safe and are meant to be reused by a single thread
+ * or connection.
+ * 
+ * @author ambud
+ */
+public class InfluxLineParser {
+
+	private static final Logger logger = Logger.getLogger(InfluxLineParser.class.getName());
+	private static final int LENGTH_OF_MILLISECOND_TS = 13;
+	private static final int MAX_FAST_DIGITS = 15;
+	private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+			1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+	private static final int CACHE_SIZE = 4096;
+	private static final byte[] TRUE = "true".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] FALSE = "false".getBytes(StandardCharsets.US_ASCII);
+	private final BytesCache<String> stringCache = new BytesCache<>(CACHE_SIZE);
+	private final BytesCache<Tag> tagCache = new BytesCache<>(CACHE_SIZE);
+	private final Point.Builder builder = Point.newBuilder();
+	private final Tag[] tags = new Tag[64];
+	private byte[] buf;
+	private int pos;
+	private int end;
+	private String dbName;
+	private int rejected;
+
+	/**
+	 * Parse all lines of the payload
+	 * 
+	 * @param dbName
+	 * @param payload
+	 * @param points
+	 *            parsed points are added to this list
+	 * @return number of lines that were rejected
+	 * @throws IllegalArgumentException
+	 *             if dbName is missing
+	 */
+	public int parse(String dbName, byte[] payload, List<Point> points) {
+		parse(dbName, payload, 0, payload.length, true, points);
+		return rejected;
+	}
+
+	/**
+	 * Parse complete lines in the supplied range.
+	 * 
+	 * @param dbName
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @param endOfInput
+	 *            if false a trailing line without a line feed is left unparsed
+	 * @param points
+	 *            parsed points are added to this list
+	 * @return offset right after the last consumed line
+	 * @throws IllegalArgumentException
+	 *             if dbName is missing
+	 */
+	public int parse(String dbName, byte[] data, int offset, int length, boolean endOfInput, List<Point> points) {
+		if (dbName == null || dbName.isEmpty()) {
+			throw new IllegalArgumentException("Database name is required");
+		}
+		this.dbName = dbName;
+		this.buf = data;
+		int limit = offset + length;
+		rejected = 0;
+		int lineStart = offset;
+		while (lineStart < limit) {
+			int lineEnd = indexOf(data, lineStart, limit, (byte) '\n');
+			if (lineEnd < 0) {
+				if (!endOfInput) {
+					break;
+				}
+				lineEnd = limit;
+			}
+			int trimmedEnd = lineEnd;
+			if (trimmedEnd > lineStart && data[trimmedEnd - 1] == '\r') {
+				trimmedEnd--;
+			}
+			if (trimmedEnd > lineStart && data[lineStart] != '#') {
+				Point point = parseLine(lineStart, trimmedEnd);
+				if (point != null) {
+					points.add(point);
+				} else {
+					rejected++;
+				}
+			}
+			lineStart = Math.min(lineEnd + 1, limit);
+		}
+		return lineStart;
+	}
+
+	/**
+	 * @return number of lines rejected by the last call to parse
+	 */
+	public int getRejected() {
+		return rejected;
+	}
+
+	private Point parseLine(int start, int lineEnd) {
+		pos = start;
+		end = lineEnd;
+		builder.clear();
+		builder.setDbName(dbName);
+		try {
+			// measurement
+			int tokenStart = pos;
+			boolean escaped = scanKey(true);
+			if (pos == tokenStart) {
+				return null;
+			}
+			builder.setMeasurementName(cachedString(tokenStart, pos, escaped));
+			// tags
+			int tagCount = 0;
+			while (pos < end && buf[pos] == ',') {
+				pos++;
+				int tagStart = pos;
+				escaped = scanKey(false);
+				if (pos >= end || buf[pos] != '=' || pos == tagStart) {
+					return null;
+				}
+				int keyEnd = pos;
+				pos++;
+				escaped |= scanKey(true);
+				if (pos == keyEnd + 1) {
+					return null;
+				}
+				Tag tag = cachedTag(tagStart, keyEnd, pos, escaped);
+				if (!contains(tags, tagCount, tag)) {
+					if (tagCount == tags.length) {
+						return null;
+					}
+					tags[tagCount++] = tag;
+				}
+			}
+			for (int i = 0; i < tagCount; i++) {
+				builder.addTags(tags[i]);
+			}
+			if (!skipSpaces()) {
+				return null;
+			}
+			// fields
+			while (true) {
+				int fieldStart = pos;
+				escaped = scanKey(false);
+				if (pos >= end || buf[pos] != '=' || pos == fieldStart) {
+					return null;
+				}
+				String fieldName = cachedString(fieldStart, pos, escaped);
+				pos++;
+				if (!parseFieldValue(fieldName)) {
+					return null;
+				}
+				if (pos < end && buf[pos] == ',') {
+					pos++;
+				} else {
+					break;
+				}
+			}
+			if (builder.getValueCount() == 0) {
+				return null;
+			}
+			// timestamp
+			if (pos < end && !skipSpaces() && pos < end) {
+				return null;
+			}
+			long timestamp;
+			if (pos < end) {
+				int tsStart = pos;
+				timestamp = parseLong(tsStart, end);
+				if (end - tsStart > LENGTH_OF_MILLISECOND_TS) {
+					timestamp = timestamp / (1000 * 1000);
+				}
+			} else {
+				timestamp = System.currentTimeMillis();
+			}
+			builder.setTimestamp(timestamp);
+			return builder.build();
+		} catch (NumberFormatException e) {
+			logger.fine(() -> "Rejected line:" + new String(buf, start, lineEnd - start, StandardCharsets.UTF_8));
+			return null;
+		}
+	}
+
+	/**
+	 * Parse a field value at the current position. Integers (suffixed with i)
+	 * and booleans are stored as longs, floats as double bits and string fields
+	 * are skipped.
+	 */
+	private boolean parseFieldValue(String fieldName) {
+		int valueStart = pos;
+		if (pos < end && buf[pos] == '"') {
+			// string fields aren't supported by the storage engine
+			pos++;
+			while (pos < end && buf[pos] != '"') {
+				if (buf[pos] == '\\') {
+					pos++;
+				}
+				pos++;
+			}
+			if (pos >= end) {
+				return false;
+			}
+			pos++;
+			return true;
+		}
+		while (pos < end && buf[pos] != ',' && buf[pos] != ' ' && buf[pos] != '\t') {
+			pos++;
+		}
+		int valueEnd = pos;
+		if (valueEnd == valueStart) {
+			return false;
+		}
+		byte last = buf[valueEnd - 1];
+		if (last == 'i' || last == 'u') {
+			builder.addValueFieldName(fieldName);
+			builder.addValue(parseLong(valueStart, valueEnd - 1));
+			builder.addFp(false);
+		} else if (isBoolean(valueStart, valueEnd)) {
+			builder.addValueFieldName(fieldName);
+			builder.addValue(buf[valueStart] == 't' || buf[valueStart] == 'T' ? 1 : 0);
+			builder.addFp(false);
+		} else {
+			builder.addValueFieldName(fieldName);
+			builder.addValue(Double.doubleToLongBits(parseDouble(valueStart, valueEnd)));
+			builder.addFp(true);
+		}
+		return true;
+	}
+
+	private boolean isBoolean(int start, int end) {
+		byte first = buf[start];
+		if (first != 't' && first != 'T' && first != 'f' && first != 'F') {
+			return false;
+		}
+		int length = end - start;
+		return length == 1 || (length == 4 && equalsIgnoreCase(start, end, TRUE))
+				|| (length == 5 && equalsIgnoreCase(start, end, FALSE));
+	}
+
+	private boolean equalsIgnoreCase(int start, int end, byte[] lowerCase) {
+		for (int i = start; i < end; i++) {
+			if ((buf[i] | 0x20) != lowerCase[i - start]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Advance over a measurement, tag key/value or field key
+	 * 
+	 * @param allowEquals
+	 *            measurement names and tag values may contain unescaped =
+	 * @return true if the token contains escape sequences
+	 */
+	private boolean scanKey(boolean allowEquals) {
+		boolean escaped = false;
+		while (pos < end) {
+			byte b = buf[pos];
+			if (b == '\\' && pos + 1 < end) {
+				escaped = true;
+				pos += 2;
+				continue;
+			}
+			if (b == ',' || b == ' ' || b == '\t' || (!allowEquals && b == '=')) {
+				break;
+			}
+			pos++;
+		}
+		return escaped;
+	}
+
+	/**
+	 * @return true if at least one space was skipped and the line continues
+	 */
+	private boolean skipSpaces() {
+		int start = pos;
+		while (pos < end && (buf[pos] == ' ' || buf[pos] == '\t')) {
+			pos++;
+		}
+		return pos > start && pos < end;
+	}
+
+	private long parseLong(int start, int end) {
+		if (start >= end) {
+			throw new NumberFormatException();
+		}
+		boolean negative = buf[start] == '-';
+		int i = negative || buf[start] == '+' ? start + 1 : start;
+		if (i >= end || end - i > 19) {
+			throw new NumberFormatException();
+		}
+		long value = 0;
+		for (; i < end; i++) {
+			int digit = buf[i] - '0';
+			if (digit < 0 || digit > 9) {
+				throw new NumberFormatException();
+			}
+			value = value * 10 + digit;
+		}
+		if (value < 0) {
+			// overflow
+			throw new NumberFormatException();
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Fast path for plain decimals with up to 15 significant digits, these are
+	 * exactly representable so a single division gives the correctly rounded
+	 * result; everything else falls back to {@link Double#parseDouble(String)}
+	 */
+	private double parseDouble(int start, int end) {
+		boolean negative = buf[start] == '-';
+		int i = negative || buf[start] == '+' ? start + 1 : start;
+		long mantissa = 0;
+		int digits = 0;
+		int scale = -1;
+		boolean fast = i < end && buf[i] != '.';
+		for (; i < end && fast; i++) {
+			byte b = buf[i];
+			if (b >= '0' && b <= '9') {
+				if (mantissa != 0 || b != '0') {
+					digits++;
+				}
+				mantissa = mantissa * 10 + (b - '0');
+				if (scale >= 0) {
+					scale++;
+				}
+			} else if (b == '.' && scale < 0) {
+				scale = 0;
+			} else {
+				fast = false;
+			}
+		}
+		if (fast && digits <= MAX_FAST_DIGITS && scale < POWERS_OF_TEN.length) {
+			double value = scale > 0 ? mantissa / POWERS_OF_TEN[scale] : mantissa;
+			return negative ? -value : value;
+		}
+		return Double.parseDouble(new String(buf, start, end - start, StandardCharsets.US_ASCII));
+	}
+
+	private String cachedString(int start, int end, boolean escaped) {
+		int hash = hash(start, end);
+		String value = stringCache.get(buf, start, end, hash);
+		if (value == null) {
+			value = escaped ? unescape(start, end) : new String(buf, start, end - start, StandardCharsets.UTF_8);
+			stringCache.put(buf, start, end, hash, value);
+		}
+		return value;
+	}
+
+	private Tag cachedTag(int start, int keyEnd, int end, boolean escaped) {
+		int hash = hash(start, end);
+		Tag tag = tagCache.get(buf, start, end, hash);
+		if (tag == null) {
+			tag = Tag.newBuilder().setTagKey(cachedString(start, keyEnd, escaped))
+					.setTagValue(cachedString(keyEnd + 1, end, escaped)).build();
+			tagCache.put(buf, start, end, hash, tag);
+		}
+		return tag;
+	}
+
+	private String unescape(int start, int end) {
+		byte[] out = new byte[end - start];
+		int length = 0;
+		for (int i = start; i < end; i++) {
+			if (buf[i] == '\\' && i + 1 < end) {
+				i++;
+			}
+			out[length++] = buf[i];
+		}
+		return new String(out, 0, length, StandardCharsets.UTF_8);
+	}
+
+	private int hash(int start, int end) {
+		return BytesCache.hash(buf, start, end);
+	}
+
+	private static boolean contains(Tag[] tags, int count, Tag tag) {
+		for (int i = 0; i < count; i++) {
+			if (tags[i] == tag) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static int indexOf(byte[] data, int start, int end, byte b) {
+		for (int i = start; i < end; i++) {
+			if (data[i] == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+}
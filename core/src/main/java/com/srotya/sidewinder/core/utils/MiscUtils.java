@@ -343,6 +343,50 @@ public class MiscUtils {
 		return new String(dst);
 	}
 
+	/**
+	 * Write an unsigned LEB128 varint
+	 * 
+	 * @param value
+	 *            non-negative value
+	 * @param buf
+	 */
+	public static void writeVarInt(int value, ByteBuffer buf) {
+		while ((value & ~0x7F) != 0) {
+			buf.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buf.put((byte) value);
+	}
+
+	/**
+	 * Read an unsigned LEB128 varint
+	 * 
+	 * @param buf
+	 * @return value
+	 * @throws java.nio.BufferUnderflowException
+	 *             if the buffer ends before the varint does
+	 */
+	public static int readVarInt(ByteBuffer buf) {
+		int value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = buf.get();
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while (b < 0 && shift < 35);
+		return value;
+	}
+
+	public static int varIntSize(int value) {
+		int size = 1;
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
 	public static Point buildDataPoint(String dbName, String measurementName, List<String> valueFieldName,
 			List<Tag> taglist, long timestamp, List<Long> values, List<Boolean> fp) {
 		return Point.newBuilder().setDbName(dbName).setMeasurementName(measurementName).addAllTags(taglist)
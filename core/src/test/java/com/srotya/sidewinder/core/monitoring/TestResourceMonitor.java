@@ -0,0 +1,127 @@
+/**
+ * Copyright Ambud Sharma
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.srotya.sidewinder.core.monitoring;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.srotya.sidewinder.core.monitoring.ResourceMonitor.Watermark;
+import com.srotya.sidewinder.core.rpc.Point;
+
+/**
+ * @author ambud
+ */
+public class TestResourceMonitor {
+
+	@After
+	public void after() {
+		ResourceMonitor.getInstance().configure(new HashMap<>(), null);
+	}
+
+	@Test
+	public void testWatermarkHysteresis() {
+		Watermark watermark = new Watermark("test", 0.9, 0.7);
+		assertFalse(watermark.update(0.8));
+		assertTrue(watermark.update(0.9));
+		// stays tripped until usage drops below the low watermark
+		assertTrue(watermark.update(0.8));
+		assertTrue(watermark.update(0.75));
+		assertFalse(watermark.update(0.7));
+		assertFalse(watermark.update(0.85));
+	}
+
+	@Test
+	public void testTokenBucket() throws InterruptedException {
+		TokenBucket bucket = new TokenBucket(1000);
+		assertEquals(0, bucket.tryAcquire(600));
+		assertEquals(0, bucket.tryAcquire(400));
+		// rejected with a retry hint instead of waiting
+		long retryAfter = bucket.tryAcquire(500);
+		assertTrue(retryAfter > 0 && retryAfter <= 500);
+		Thread.sleep(retryAfter);
+		assertEquals(0, bucket.tryAcquire(500));
+		bucket.release(500);
+		assertEquals(0, bucket.tryAcquire(500));
+	}
+
+	@Test
+	public void testQuotaAdmission() {
+		Map<String, String> conf = new HashMap<>();
+		conf.put(ResourceMonitor.CONF_QUOTA, "100");
+		conf.put(ResourceMonitor.CONF_QUOTA + ".bulk", "0");
+		ResourceMonitor monitor = ResourceMonitor.getInstance();
+		monitor.configure(conf, null);
+		assertTrue(monitor.admit("db1", 100));
+		assertFalse(monitor.admit("db1", 100));
+		// quotas are tracked per database
+		assertTrue(monitor.admit("db2", 100));
+		// quota disabled for this database
+		for (int i = 0; i < 10; i++) {
+			assertTrue(monitor.admit("bulk", 1000));
+		}
+	}
+
+	@Test
+	public void testMixedBatchAdmission() {
+		Map<String, String> conf = new HashMap<>();
+		conf.put(ResourceMonitor.CONF_QUOTA, "100");
+		ResourceMonitor monitor = ResourceMonitor.getInstance();
+		monitor.configure(conf, null);
+		List<Point> points = new ArrayList<>();
+		for (int i = 0; i < 60; i++) {
+			points.add(Point.newBuilder().setDbName(i % 2 == 0 ? "db1" : "db2").build());
+		}
+		// each database is charged for its own 30 points
+		assertEquals(0, monitor.tryAdmit(points));
+		assertEquals(0, monitor.tryAdmit(points));
+		assertEquals(0, monitor.tryAdmit(points));
+		assertTrue(monitor.tryAdmit(points) > 0);
+		// a rejected batch isn't charged to any database
+		assertTrue(monitor.admit("db1", 10));
+		assertTrue(monitor.admit("db2", 10));
+	}
+
+	@Test
+	public void testWatermarkRejection() {
+		Map<String, String> conf = new HashMap<>();
+		conf.put(ResourceMonitor.CONF_HEAP_HIGH_WATERMARK, "0");
+		conf.put(ResourceMonitor.CONF_HEAP_LOW_WATERMARK, "0");
+		ResourceMonitor monitor = ResourceMonitor.getInstance();
+		monitor.configure(conf, new String[] { "target" });
+		assertTrue(monitor.admit("db1", 1));
+		monitor.checkWatermarks();
+		assertTrue(monitor.isReject());
+		assertFalse(monitor.admit("db1", 1));
+		assertEquals("heap", monitor.getTrippedWatermarks().get(0));
+
+		conf.put(ResourceMonitor.CONF_HEAP_HIGH_WATERMARK, "1.1");
+		conf.put(ResourceMonitor.CONF_HEAP_LOW_WATERMARK, "1.1");
+		monitor.configure(conf, new String[] { "target" });
+		monitor.checkWatermarks();
+		assertFalse(monitor.isReject());
+		assertTrue(monitor.admit("db1", 1));
+	}
+
+}
@@ -19,9 +19,11 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -31,6 +33,7 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import com.srotya.sidewinder.core.rpc.WriterServiceGrpc.WriterServiceBlockingStub;
+import com.srotya.sidewinder.core.rpc.WriterServiceImpl.WriteStreamObserver;
 import com.srotya.sidewinder.core.storage.SeriesOutput;
 import com.srotya.sidewinder.core.storage.StorageEngine;
 import com.srotya.sidewinder.core.storage.mem.MemStorageEngine;
@@ -41,6 +44,7 @@ import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
+import io.grpc.stub.StreamObserver;
 
 /**
  * @author ambud
@@ -144,4 +148,82 @@ public class TestGRPWriterServiceImpl {
 		assertEquals(1L, result.iterator().next().getDataPoints().iterator().next().getLongValue());
 	}
 
+	@Test
+	public void testStreamWrites() throws Exception {
+		long sts = 1497720452566L;
+		String dbName = "test4";
+		final List<Ack> acks = new ArrayList<>();
+		final CountDownLatch latch = new CountDownLatch(1);
+		StreamObserver<Ack> responseObserver = new StreamObserver<Ack>() {
+
+			@Override
+			public void onNext(Ack value) {
+				acks.add(value);
+			}
+
+			@Override
+			public void onError(Throwable t) {
+				latch.countDown();
+			}
+
+			@Override
+			public void onCompleted() {
+				latch.countDown();
+			}
+		};
+
+		// acks are cumulative, one per ackCount messages
+		WriteStreamObserver observer = new WriteStreamObserver(engine, null, responseObserver, 10, 10000, 100, null, null);
+		for (int i = 0; i < 25; i++) {
+			observer.onNext(SingleData.newBuilder().setMessageId(i).setPoint(Point.newBuilder().setDbName(dbName)
+					.addFp(false).setMeasurementName("cpu")
+					.addTags(Tag.newBuilder().setTagKey("host").setTagValue("1").build()).setTimestamp(sts + i)
+					.addValue(i).addValueFieldName("usage").build()).build());
+		}
+		assertEquals(2, acks.size());
+		assertEquals(9, acks.get(0).getMessageId());
+		assertEquals(19, acks.get(1).getMessageId());
+		observer.onCompleted();
+		assertEquals(3, acks.size());
+		assertEquals(24, acks.get(2).getMessageId());
+		assertEquals(200, acks.get(2).getResponseCode());
+		assertTrue(latch.await(1, TimeUnit.SECONDS));
+		List<SeriesOutput> result = engine.queryDataPoints(dbName, "cpu", "usage", sts, sts + 25, null);
+		assertEquals(25, result.iterator().next().getDataPoints().size());
+
+		// over the wire with flow control
+		acks.clear();
+		CountDownLatch remote = new CountDownLatch(1);
+		StreamObserver<SingleData> stream = WriterServiceGrpc.newStub(channel)
+				.writeDataPointStream(new StreamObserver<Ack>() {
+
+					@Override
+					public void onNext(Ack value) {
+						acks.add(value);
+					}
+
+					@Override
+					public void onError(Throwable t) {
+						remote.countDown();
+					}
+
+					@Override
+					public void onCompleted() {
+						remote.countDown();
+					}
+				});
+		for (int i = 0; i < 25; i++) {
+			stream.onNext(SingleData.newBuilder().setMessageId(100 + i).setPoint(Point.newBuilder().setDbName(dbName)
+					.addFp(false).setMeasurementName("mem")
+					.addTags(Tag.newBuilder().setTagKey("host").setTagValue("1").build()).setTimestamp(sts + i)
+					.addValue(i).addValueFieldName("usage").build()).build());
+		}
+		stream.onCompleted();
+		assertTrue(remote.await(10, TimeUnit.SECONDS));
+		assertTrue(acks.size() > 0 && acks.size() < 25);
+		assertEquals(124, acks.get(acks.size() - 1).getMessageId());
+		result = engine.queryDataPoints(dbName, "mem", "usage", sts, sts + 25, null);
+		assertEquals(25, result.iterator().next().getDataPoints().size());
+	}
+
 }
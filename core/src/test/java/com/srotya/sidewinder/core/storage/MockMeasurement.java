@@ -46,6 +46,7 @@ public class MockMeasurement implements Measurement {
 	private int timebucket;
 	private SortedMap<String, Boolean> typeMap;
 	private ByteStringCache cache;
+	private Map<String, String> conf;
 
 	public MockMeasurement(int bufSize, int rentionBuckets) {
 		this.rentionBuckets = rentionBuckets;
@@ -157,8 +158,11 @@ public class MockMeasurement implements Measurement {
 
 	@Override
 	public Map<String, String> getConf() {
-		// TODO Auto-generated method stub
-		return null;
+		return conf;
+	}
+
+	public void setConf(Map<String, String> conf) {
+		this.conf = conf;
 	}
 
 	@Override
@@ -167,6 +171,11 @@ public class MockMeasurement implements Measurement {
 		return null;
 	}
 
+	@Override
+	public SeriesHashIndex getSeriesHashIndex() {
+		return null;
+	}
+
 	@Override
 	public boolean isEnableMetricsCapture() {
 		// TODO Auto-generated method stub
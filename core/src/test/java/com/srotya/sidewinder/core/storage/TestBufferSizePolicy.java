@@ -0,0 +1,84 @@
+/**
+ * Copyright Ambud Sharma
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.srotya.sidewinder.core.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.srotya.sidewinder.core.storage.mem.MemMalloc;
+
+/**
+ * @author ambud
+ */
+public class TestBufferSizePolicy {
+
+	@Test
+	public void testFixedSize() {
+		BufferSizePolicy policy = BufferSizePolicy.fromConf(new HashMap<>(), 32768);
+		assertFalse(policy.isAdaptive());
+		assertEquals(32768, policy.sizeFor(0));
+		assertEquals(32768, policy.sizeFor(10));
+	}
+
+	@Test
+	public void testGeometricGrowth() {
+		Map<String, String> conf = new HashMap<>();
+		conf.put(BufferSizePolicy.CONF_BUF_ADAPTIVE, "true");
+		BufferSizePolicy policy = BufferSizePolicy.fromConf(conf, 32768);
+		assertTrue(policy.isAdaptive());
+		assertEquals(512, policy.sizeFor(0));
+		assertEquals(1024, policy.sizeFor(1));
+		assertEquals(16384, policy.sizeFor(5));
+		assertEquals(32768, policy.sizeFor(6));
+		assertEquals(32768, policy.sizeFor(Integer.MAX_VALUE));
+
+		conf.put(BufferSizePolicy.CONF_BUF_INITIAL_SIZE, "1000");
+		conf.put(BufferSizePolicy.CONF_BUF_GROWTH_FACTOR, "4");
+		conf.put(BufferSizePolicy.CONF_BUF_MAX_SIZE, "10000");
+		policy = BufferSizePolicy.fromConf(conf, 32768);
+		assertEquals(1000, policy.sizeFor(0));
+		assertEquals(4000, policy.sizeFor(1));
+		assertEquals(10000, policy.sizeFor(2));
+
+		conf.put(BufferSizePolicy.CONF_BUF_INITIAL_SIZE, "20000");
+		try {
+			BufferSizePolicy.fromConf(conf, 32768);
+			fail("Initial size larger than max size must be rejected");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	@Test
+	public void testAdaptiveMalloc() throws IOException {
+		Map<String, String> conf = new HashMap<>();
+		conf.put(BufferSizePolicy.CONF_BUF_ADAPTIVE, "true");
+		MemMalloc malloc = new MemMalloc();
+		malloc.configure(conf, null, null, null, null, null);
+		LinkedByteString fieldId = new LinkedByteString().concat(new ByteString("series"));
+		assertEquals(512, malloc.createNextBuffer(fieldId, 0, 0).getBuf().capacity());
+		assertEquals(2048, malloc.createNextBuffer(fieldId, 0, 2).getBuf().capacity());
+		assertEquals(Malloc.DEFAULT_INCREMENT_SIZE, malloc.createNewBuffer(fieldId, 0).getBuf().capacity());
+	}
+
+}
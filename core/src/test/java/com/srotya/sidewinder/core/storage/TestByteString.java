@@ -16,6 +16,7 @@
 package com.srotya.sidewinder.core.storage;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import org.junit.Test;
 
@@ -45,6 +46,20 @@ public class TestByteString {
 		assertEquals(7, str.length());
 	}
 
+	@Test
+	public void testHashes() {
+		ByteString str = new ByteString("host=a^rack=1");
+		assertEquals(str.hashCode(), new ByteString("host=a^rack=1").hashCode());
+		assertEquals(str.hashCode(), str.hashCode());
+		long h = ByteString.hash64(ByteString.HASH64_SEED, "host=a");
+		h = ByteString.hash64(h, '^');
+		h = ByteString.hash64(h, "rack=1");
+		assertEquals(str.hash64(), h);
+		assertTrue(str.hash64() != new ByteString("host=a^rack=2").hash64());
+		assertEquals(7, str.regionMatches(0, "host=a^"));
+		assertEquals(-1, str.regionMatches(7, "rack=12"));
+	}
+
 	@Test
 	public void testToBytesLinkedByteString() {
 		LinkedByteString bs = new LinkedByteString(ByteString.get("abcd"), ByteString.get("efgh"),
@@ -17,6 +17,7 @@ package com.srotya.sidewinder.core.storage;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.File;
 import java.io.IOException;
@@ -49,6 +50,7 @@ import org.junit.runners.Parameterized.Parameter;
 import org.junit.runners.Parameterized.Parameters;
 
 import com.srotya.sidewinder.core.rpc.Point;
+import com.srotya.sidewinder.core.rpc.SeriesBatch;
 import com.srotya.sidewinder.core.rpc.Tag;
 import com.srotya.sidewinder.core.storage.disk.DiskMalloc;
 import com.srotya.sidewinder.core.storage.disk.PersistentMeasurement;
@@ -318,6 +320,170 @@ public class TestMeasurement {
 		measurement.close();
 	}
 
+	@Test
+	public void testAddPointsBatch() throws IOException {
+		List<Tag> tags1 = Arrays.asList(Tag.newBuilder().setTagKey("t").setTagValue("1").build(),
+				Tag.newBuilder().setTagKey("t").setTagValue("2").build());
+		List<Tag> tags2 = Arrays.asList(Tag.newBuilder().setTagKey("t").setTagValue("3").build());
+		measurement.configure(conf, engine, 4096, DBNAME, "m1", indexDir, dataDir, metadata, bgTaskPool);
+		long t = System.currentTimeMillis();
+		List<Point> points = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			points.add(build("vf1", tags1, t + i * 1000, i));
+			points.add(build("vf1", tags2, t + i * 1000, i * 2));
+		}
+		measurement.addPoints(points);
+		assertEquals(2, measurement.getSeriesList().size());
+		List<DataPoint> dps = measurement.getOrCreateSeries(tags1, false)
+				.queryDataPoints(measurement, Arrays.asList("vf1"), t, t + 1000 * 100, null).get("vf1");
+		assertEquals(100, dps.size());
+		dps = measurement.getOrCreateSeries(tags2, false)
+				.queryDataPoints(measurement, Arrays.asList("vf1"), t, t + 1000 * 100, null).get("vf1");
+		assertEquals(100, dps.size());
+		for (int i = 0; i < 100; i++) {
+			DataPoint dp = dps.get(i);
+			assertEquals(t + i * 1000, dp.getTimestamp());
+			assertEquals(i * 2, dp.getLongValue());
+		}
+	}
+
+	@Test
+	public void testAddSeriesBatch() throws IOException {
+		List<Tag> tags = Arrays.asList(Tag.newBuilder().setTagKey("t").setTagValue("1").build());
+		measurement.configure(conf, engine, 4096, DBNAME, "m1", indexDir, dataDir, metadata, bgTaskPool);
+		long t = System.currentTimeMillis();
+		SeriesBatch.Builder batch = SeriesBatch.newBuilder().setDbName(DBNAME).setMeasurementName("m1")
+				.addAllTags(tags).addValueFieldName("vf1").addFp(false).addValueFieldName("vf2").addFp(true);
+		for (int i = 0; i < 100; i++) {
+			batch.addTimestamp(t + i * 1000);
+		}
+		for (int i = 0; i < 100; i++) {
+			batch.addValue(i);
+		}
+		for (int i = 0; i < 100; i++) {
+			batch.addValue(Double.doubleToLongBits(i * 1.1));
+		}
+		measurement.addSeriesBatch(batch.build());
+		assertEquals(1, measurement.getSeriesList().size());
+		Map<String, List<DataPoint>> result = measurement.getOrCreateSeries(tags, false)
+				.queryDataPoints(measurement, Arrays.asList("vf1", "vf2"), t, t + 1000 * 100, null);
+		assertEquals(100, result.get("vf1").size());
+		assertEquals(100, result.get("vf2").size());
+		for (int i = 0; i < 100; i++) {
+			assertEquals(t + i * 1000, result.get("vf1").get(i).getTimestamp());
+			assertEquals(i, result.get("vf1").get(i).getLongValue());
+			assertEquals(i * 1.1, result.get("vf2").get(i).getValue(), 0.001);
+		}
+		try {
+			StorageEngine.validateSeriesBatch(batch.addTimestamp(t).build());
+			fail("Value column must match the timestamp column for every field");
+		} catch (RejectException e) {
+		}
+	}
+
+	@Test
+	public void testSeriesHashLookup() throws Exception {
+		measurement.configure(conf, engine, 4096, DBNAME, "m1", indexDir, dataDir, metadata, bgTaskPool);
+		Tag t1 = Tag.newBuilder().setTagKey("host").setTagValue("a").build();
+		Tag t2 = Tag.newBuilder().setTagKey("rack").setTagValue("1").build();
+		Series series = measurement.getOrCreateSeries(new ArrayList<>(Arrays.asList(t1, t2)), false);
+		assertEquals(Measurement.tagHash(Arrays.asList(t1, t2)), series.getSeriesId().hash64());
+		assertTrue(series == measurement.getOrCreateSeries(new ArrayList<>(Arrays.asList(t2, t1)), false));
+		assertEquals(1, measurement.getSeriesList().size());
+		assertTrue(measurement.matchesSeriesId(series.getSeriesId(), Arrays.asList(t1, t2)));
+		assertTrue(!measurement.matchesSeriesId(series.getSeriesId(), Arrays.asList(t1)));
+
+		// colliding hashes must be disambiguated by the tags
+		Tag t3 = Tag.newBuilder().setTagKey("rack").setTagValue("2").build();
+		Series other = new Series(measurement.encodeTagsToString(Arrays.asList(t1, t3)), 1);
+		SeriesHashIndex index = new SeriesHashIndex(1);
+		for (int i = 0; i < 100; i++) {
+			index.put(i, new Series(new ByteString("x=" + i), i + 2));
+		}
+		index.put(42, series);
+		index.put(42, other);
+		assertTrue(series == index.get(42, Arrays.asList(t1, t2), measurement));
+		assertTrue(other == index.get(42, Arrays.asList(t1, t3), measurement));
+		assertTrue(index.get(43, Arrays.asList(t1, t3), measurement) == null);
+		measurement.close();
+	}
+
+	@Test
+	public void testOffHeapSeriesRegistry() throws Exception {
+		conf.put(Measurement.CONF_SERIES_OFFHEAP, "true");
+		measurement.configure(conf, engine, 4096, DBNAME, "m1", indexDir, dataDir, metadata, bgTaskPool);
+		assertTrue(measurement.getSeriesHashIndex() instanceof OffHeapSeriesRegistry);
+		List<Series> created = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			List<Tag> tags = new ArrayList<>(
+					Arrays.asList(Tag.newBuilder().setTagKey("host").setTagValue("h" + i).build(),
+							Tag.newBuilder().setTagKey("rack").setTagValue("r" + (i % 7)).build()));
+			created.add(measurement.getOrCreateSeries(tags, false));
+		}
+		assertEquals(1000, measurement.getSeriesList().size());
+		assertEquals(1000, measurement.getSeriesMap().size());
+		assertEquals(1000, measurement.getSeriesHashIndex().size());
+		for (int i = 0; i < 1000; i++) {
+			List<Tag> tags = new ArrayList<>(
+					Arrays.asList(Tag.newBuilder().setTagKey("rack").setTagValue("r" + (i % 7)).build(),
+							Tag.newBuilder().setTagKey("host").setTagValue("h" + i).build()));
+			Series series = created.get(i);
+			assertTrue(series == measurement.getOrCreateSeries(tags, false));
+			assertTrue(series == measurement.getSeriesFromKey(series.getSeriesId()));
+			assertEquals(i, measurement.getSeriesMap().get(series.getSeriesId()).intValue());
+		}
+		assertTrue(measurement.getSeriesFromKey(new ByteString("host=x^rack=r0")) == null);
+		assertEquals(1000, measurement.getSeriesKeys().size());
+		measurement.close();
+
+		if (clazz == PersistentMeasurement.class) {
+			measurement = clazz.newInstance();
+			measurement.configure(conf, engine, 4096, DBNAME, "m1", indexDir, dataDir, metadata, bgTaskPool);
+			assertEquals(1000, measurement.getSeriesMap().size());
+			for (int i = 0; i < 1000; i++) {
+				ByteString seriesId = created.get(i).getSeriesId();
+				assertEquals(seriesId, measurement.getSeriesFromKey(seriesId).getSeriesId());
+			}
+			measurement.close();
+		}
+	}
+
+	@Test
+	public void testOffHeapSeriesRegistryConcurrentLookups() throws Exception {
+		conf.put(Measurement.CONF_SERIES_OFFHEAP, "true");
+		measurement.configure(conf, engine, 4096, DBNAME, "m1", indexDir, dataDir, metadata, bgTaskPool);
+		AtomicBoolean done = new AtomicBoolean();
+		AtomicBoolean failed = new AtomicBoolean();
+		ExecutorService es = Executors.newFixedThreadPool(2);
+		for (int k = 0; k < 2; k++) {
+			es.submit(() -> {
+				List<Series> list = measurement.getSeriesList();
+				while (!done.get()) {
+					int size = list.size();
+					for (int i = 0; i < size; i++) {
+						Series series = list.get(i);
+						// the series may not be registered yet but must never resolve to another one
+						Series lookup = measurement.getSeriesFromKey(series.getSeriesId());
+						if (series == null || (lookup != null && lookup != series)) {
+							failed.set(true);
+						}
+					}
+				}
+			});
+		}
+		for (int i = 0; i < 5000; i++) {
+			List<Tag> tags = new ArrayList<>(
+					Arrays.asList(Tag.newBuilder().setTagKey("host").setTagValue("h" + i).build()));
+			measurement.getOrCreateSeries(tags, false);
+		}
+		done.set(true);
+		es.shutdown();
+		assertTrue(es.awaitTermination(10, TimeUnit.SECONDS));
+		assertTrue(!failed.get());
+		assertEquals(5000, measurement.getSeriesHashIndex().size());
+		measurement.close();
+	}
+
 	@Test
 	public void testConstructRowKey() throws Exception {
 		List<Tag> tags = Arrays.asList(Tag.newBuilder().setTagKey("test").setTagValue("1").build(),
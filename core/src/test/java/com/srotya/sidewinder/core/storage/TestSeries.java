@@ -22,6 +22,7 @@ import static org.junit.Assert.fail;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -370,4 +371,90 @@ public class TestSeries {
 			}
 		}
 	}
+	@Test
+	public void testReorderWindow() throws IOException {
+		measurement.setTimebucket(4096);
+		Map<String, String> conf = new HashMap<>();
+		conf.put(StorageEngine.REORDER_WINDOW, "10000");
+		measurement.setConf(conf);
+		Series series = new Series(new ByteString("idasdasda"), 0);
+		long ts = 1497720652566L;
+		ts = ts - ts % (4096 * 1000);
+		// swap every pair of points
+		for (int i = 0; i < 100; i += 2) {
+			series.addPoint(point(ts, i + 1), measurement);
+			series.addPoint(point(ts, i), measurement);
+		}
+		// nothing is visible until it leaves the window
+		assertEquals(0, series.getBucketMap().size());
+		series.addPoint(point(ts, 400), measurement);
+		Map<String, Field> fields = series.getBucketMap().values().iterator().next();
+		assertEquals(0, fields.get(Series.TS).getLateWriters().size());
+		List<DataPoint> dps = series
+				.queryDataPoints(measurement, Arrays.asList("f1"), 0, Long.MAX_VALUE, null).get("f1");
+		assertEquals(100, dps.size());
+		for (int i = 0; i < 100; i++) {
+			assertEquals(ts + i * 500, dps.get(i).getTimestamp());
+			assertEquals(i, dps.get(i).getLongValue());
+		}
+
+		// beyond the window
+		series.addPoint(point(ts, 21), measurement);
+		assertEquals(1, fields.get(Series.TS).getLateWriters().size());
+		assertEquals(1, fields.get("f1").getLateWriters().size());
+		dps = series.queryDataPoints(measurement, Arrays.asList("f1"), 0, Long.MAX_VALUE, null).get("f1");
+		assertEquals(101, dps.size());
+		assertEquals(ts + 21 * 500, dps.get(100).getTimestamp());
+
+		// late points are merged back in order at compaction
+		List<Writer> replaced = series.compact(measurement);
+		assertTrue(replaced.size() >= 4);
+		assertEquals(0, fields.get(Series.TS).getLateWriters().size());
+		dps = series.queryDataPoints(measurement, Arrays.asList("f1"), 0, Long.MAX_VALUE, null).get("f1");
+		assertEquals(101, dps.size());
+		for (int i = 1; i < dps.size(); i++) {
+			assertTrue(dps.get(i - 1).getTimestamp() <= dps.get(i).getTimestamp());
+			assertEquals((dps.get(i).getTimestamp() - ts) / 500, dps.get(i).getLongValue());
+		}
+	}
+
+	@Test
+	public void testReorderWindowLayouts() throws IOException {
+		measurement.setTimebucket(4096);
+		Map<String, String> conf = new HashMap<>();
+		conf.put(StorageEngine.REORDER_WINDOW, "10000");
+		measurement.setConf(conf);
+		Series series = new Series(new ByteString("idasdasdb"), 0);
+		long ts = 1497720652566L;
+		ts = ts - ts % (4096 * 1000);
+		// field order alternates between points, each layout must not release the
+		// rows of the other one
+		for (int i = 0; i < 100; i += 2) {
+			series.addPoint(Point.newBuilder().setTimestamp(ts + (i + 1) * 500).addValueFieldName("f2")
+					.addValueFieldName("f1").addFp(false).addFp(false).addValue(-(i + 1)).addValue(i + 1).build(),
+					measurement);
+			series.addPoint(point2(ts, i), measurement);
+		}
+		assertEquals(0, series.getBucketMap().size());
+		series.addPoint(point2(ts, 400), measurement);
+		Map<String, Field> fields = series.getBucketMap().values().iterator().next();
+		assertEquals(0, fields.get(Series.TS).getLateWriters().size());
+		Map<String, List<DataPoint>> result = series.queryDataPoints(measurement, Arrays.asList("f1", "f2"), 0,
+				Long.MAX_VALUE, null);
+		for (int i = 0; i < 100; i++) {
+			assertEquals(ts + i * 500, result.get("f1").get(i).getTimestamp());
+			assertEquals(i, result.get("f1").get(i).getLongValue());
+			assertEquals(-i, result.get("f2").get(i).getLongValue());
+		}
+	}
+
+	private static Point point2(long ts, int i) {
+		return Point.newBuilder().setTimestamp(ts + i * 500).addValueFieldName("f1").addValueFieldName("f2")
+				.addFp(false).addFp(false).addValue(i).addValue(-i).build();
+	}
+
+	private static Point point(long ts, int i) {
+		return Point.newBuilder().setTimestamp(ts + i * 500).addValueFieldName("f1").addFp(false).addValue(i).build();
+	}
+
 }
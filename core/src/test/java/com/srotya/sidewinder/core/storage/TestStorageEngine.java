@@ -22,6 +22,7 @@ import static org.junit.Assert.fail;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.util.ArrayList;
@@ -58,8 +59,12 @@ import com.srotya.sidewinder.core.filters.ComplexTagFilter.ComplexFilterType;
 import com.srotya.sidewinder.core.filters.SimpleTagFilter;
 import com.srotya.sidewinder.core.filters.SimpleTagFilter.FilterType;
 import com.srotya.sidewinder.core.filters.TagFilter;
+import com.srotya.sidewinder.core.rpc.Bucket;
 import com.srotya.sidewinder.core.rpc.Point;
+import com.srotya.sidewinder.core.rpc.RawTimeSeriesBucket;
 import com.srotya.sidewinder.core.rpc.Tag;
+import com.srotya.sidewinder.core.storage.compression.TimeWriter;
+import com.srotya.sidewinder.core.storage.compression.Writer;
 import com.srotya.sidewinder.core.storage.disk.DiskMalloc;
 import com.srotya.sidewinder.core.storage.disk.DiskStorageEngine;
 import com.srotya.sidewinder.core.storage.mem.MemStorageEngine;
@@ -164,6 +169,73 @@ public class TestStorageEngine {
 		assertEquals(2, engine.getAllMeasurementsForDb("db1").size());
 	}
 
+	@Test
+	public void testWriteSeriesBuckets() throws Exception {
+		engine.configure(conf, bgTasks);
+		List<Tag> tags = Arrays.asList(Tag.newBuilder().setTagKey("h").setTagValue("1").build());
+		long ts = System.currentTimeMillis();
+		for (int i = 0; i < 100; i++) {
+			engine.writeDataPointLocked(MiscUtils.buildDataPoint("db1", "src", "v1", tags, ts + i * 10, i), false);
+		}
+		Series series = engine.getOrCreateMeasurement("db1", "src").getOrCreateSeries(tags, false);
+		RawTimeSeriesBucket.Builder tsRequest = RawTimeSeriesBucket.newBuilder().setDbName("db1")
+				.setMeasurementName("dst").addAllTags(tags).setValueFieldName(Series.TS);
+		RawTimeSeriesBucket.Builder valueRequest = RawTimeSeriesBucket.newBuilder().setDbName("db1")
+				.setMeasurementName("dst").addAllTags(tags).setValueFieldName("v1");
+		for (Map<String, Field> fields : series.getBucketMap().values()) {
+			TimeWriter timeWriter = (TimeWriter) fields.get(Series.TS).getWriters().get(0);
+			tsRequest.addBuckets(toBucket(timeWriter, timeWriter.getHeaderTimestamp()));
+			valueRequest.addBuckets(toBucket(fields.get("v1").getWriters().get(0), timeWriter.getHeaderTimestamp()));
+		}
+		engine.writeSeriesBuckets(tsRequest.build());
+		engine.writeSeriesBuckets(valueRequest.build());
+
+		List<SeriesOutput> result = engine.queryDataPoints("db1", "dst", "v1", ts, ts + 1000, null);
+		assertEquals(1, result.size());
+		List<DataPoint> dps = result.get(0).getDataPoints();
+		assertEquals(100, dps.size());
+		for (int i = 0; i < 100; i++) {
+			assertEquals(ts + i * 10, dps.get(i).getTimestamp());
+			assertEquals(i, dps.get(i).getLongValue());
+		}
+
+		// imported writers are read-only, new points go to a new writer
+		engine.writeDataPointLocked(MiscUtils.buildDataPoint("db1", "dst", "v1", tags, ts + 999, 100), false);
+		result = engine.queryDataPoints("db1", "dst", "v1", ts, ts + 1000, null);
+		assertEquals(101, result.get(0).getDataPoints().size());
+
+		// timestamps and values are paired by position, buckets with data can't be
+		// imported into
+		try {
+			engine.writeSeriesBuckets(valueRequest.build());
+			fail("Import of an existing field must be rejected");
+		} catch (RejectException e) {
+		}
+		try {
+			engine.writeSeriesBuckets(valueRequest.setMeasurementName("src").setValueFieldName("v2").build());
+			fail("Import into a bucket with written data must be rejected");
+		} catch (RejectException e) {
+		}
+		assertEquals(100, engine.queryDataPoints("db1", "src", "v1", ts, ts + 1000, null).get(0).getDataPoints()
+				.size());
+
+		try {
+			engine.writeSeriesBuckets(valueRequest.setMeasurementName("dst2").setValueFieldName("v1").setBuckets(0,
+					valueRequest.getBuckets(0).toBuilder().setCount(valueRequest.getBuckets(0).getCount() + 1))
+					.build());
+			fail("Count mismatch must be rejected");
+		} catch (RejectException e) {
+		}
+	}
+
+	private static Bucket toBucket(Writer writer, long headerTimestamp) {
+		ByteBuffer buf = writer.getRawBytes();
+		buf.position(0);
+		buf.limit(writer.getPosition());
+		return Bucket.newBuilder().setHeaderTimestamp(headerTimestamp).setCount(writer.getCount())
+				.setData(com.google.protobuf.ByteString.copyFrom(buf)).build();
+	}
+
 	@Test
 	public void testConcurrentOperations() throws Exception {
 		engine.configure(conf, bgTasks);
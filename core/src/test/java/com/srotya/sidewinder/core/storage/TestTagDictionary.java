@@ -0,0 +1,90 @@
+/**
+ * Copyright Ambud Sharma
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.srotya.sidewinder.core.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.srotya.sidewinder.core.utils.MiscUtils;
+
+/**
+ * @author ambud
+ */
+public class TestTagDictionary {
+
+	private static final String DIR = "target/tag-dictionary";
+
+	@Before
+	public void before() throws IOException {
+		MiscUtils.delete(new File(DIR));
+		new File(DIR).mkdirs();
+	}
+
+	@Test
+	public void testInMemory() throws IOException {
+		TagDictionary dictionary = new TagDictionary();
+		assertFalse(dictionary.isPersistent());
+		for (int i = 0; i < 5000; i++) {
+			assertEquals(i, dictionary.getOrAssign("value" + i));
+		}
+		assertEquals(10, dictionary.getOrAssign("value10"));
+		assertEquals(5000, dictionary.size());
+		assertEquals("value4999", dictionary.getTerm(4999));
+		assertNull(dictionary.getTerm(5000));
+		assertEquals(-1, dictionary.getId("missing"));
+	}
+
+	@Test
+	public void testRecovery() throws IOException {
+		File file = new File(DIR, TagDictionary.DICTIONARY_FILE);
+		TagDictionary dictionary = new TagDictionary(file);
+		assertTrue(dictionary.isPersistent());
+		for (int i = 0; i < 1000; i++) {
+			dictionary.getOrAssign("host-" + i);
+		}
+		int id = dictionary.getOrAssign("\u00fcn\u00efcode");
+		dictionary.close();
+
+		dictionary = new TagDictionary(file);
+		assertEquals(1001, dictionary.size());
+		assertEquals(id, dictionary.getId("\u00fcn\u00efcode"));
+		assertEquals(500, dictionary.getId("host-500"));
+		assertEquals(1001, dictionary.getOrAssign("rack"));
+		dictionary.close();
+
+		// simulate a crash in the middle of appending a term
+		long length = file.length();
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(length);
+			raf.write(new byte[] { 10, 'a', 'b' });
+		}
+		dictionary = new TagDictionary(file);
+		assertEquals(1002, dictionary.size());
+		assertEquals(length, file.length());
+		assertEquals(1002, dictionary.getOrAssign("region"));
+		dictionary.close();
+	}
+
+}
@@ -0,0 +1,529 @@
+/**
+ * Copyright Ambud Sharma
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.srotya.sidewinder.core.storage.disk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.srotya.sidewinder.core.storage.BufferObject;
+import com.srotya.sidewinder.core.storage.ByteString;
+import com.srotya.sidewinder.core.storage.LinkedByteString;
+import com.srotya.sidewinder.core.utils.MiscUtils;
+
+/**
+ * @author ambud
+ */
+public class TestDiskMalloc {
+
+	private static final String DATA_DIR = "target/disk-malloc";
+	private Map<String, String> conf;
+
+	@Before
+	public void before() throws IOException {
+		MiscUtils.delete(new File(DATA_DIR));
+		new File(DATA_DIR + "/m1").mkdirs();
+		conf = new HashMap<>();
+		conf.put(DiskMalloc.CONF_MALLOC_PTRFILE_INCREMENT, "256");
+		conf.put(DiskMalloc.CONF_PTR_COMPACTION_MIN, "10");
+		conf.put(DiskMalloc.CONF_PTR_COMPACTION_RATIO, "0.5");
+	}
+
+	private DiskMalloc newMalloc() throws IOException {
+		DiskMalloc malloc = new DiskMalloc();
+		malloc.configure(conf, DATA_DIR, "m1", null, null, new ReentrantLock());
+		return malloc;
+	}
+
+	@Test
+	public void testTombstoneAndCompaction() throws IOException {
+		DiskMalloc malloc = newMalloc();
+		malloc.seriesBufferMap();
+		List<BufferObject> buffers = new ArrayList<>();
+		for (int i = 0; i < 40; i++) {
+			BufferObject buf = malloc.createNewBuffer(new LinkedByteString("series" + (i % 4), "#", "field"), i, 128);
+			buf.getBuf().putInt(0, i);
+			buffers.add(buf);
+		}
+		File ptrFile = new File(DATA_DIR + "/m1/.ptr");
+		assertTrue(ptrFile.length() >= DiskMalloc.PTR_HEADER_SIZE + 40 * DiskMalloc.PTR_RECORD_SIZE);
+
+		// below the compaction threshold records are only tombstoned
+		Set<String> cleanup = new HashSet<>();
+		for (int i = 0; i < 8; i++) {
+			cleanup.add(buffers.get(i).getBufferId().toString());
+		}
+		malloc.cleanupBufferIds(cleanup);
+		// cleanup must be idempotent
+		malloc.cleanupBufferIds(cleanup);
+		assertEquals(8, readHeader(ptrFile, 16));
+		assertEquals(40, readHeader(ptrFile, 12));
+
+		// crossing the threshold compacts the file
+		cleanup = new HashSet<>();
+		for (int i = 8; i < 20; i++) {
+			cleanup.add(buffers.get(i).getBufferId().toString());
+		}
+		malloc.cleanupBufferIds(cleanup);
+		assertEquals(0, readHeader(ptrFile, 16));
+		assertEquals(20, readHeader(ptrFile, 12));
+
+		// ids issued before the compaction must still resolve to their records
+		malloc.cleanupBufferIds(Collections.singleton(buffers.get(39).getBufferId().toString()));
+		assertEquals(1, readHeader(ptrFile, 16));
+		malloc.close();
+
+		malloc = newMalloc();
+		Map<ByteString, List<Entry<Integer, BufferObject>>> map = malloc.seriesBufferMap();
+		assertEquals(4, map.size());
+		Set<Integer> recovered = new HashSet<>();
+		for (List<Entry<Integer, BufferObject>> list : map.values()) {
+			for (Entry<Integer, BufferObject> entry : list) {
+				ByteBuffer buf = entry.getValue().getBuf();
+				assertEquals(128, buf.limit());
+				assertEquals(entry.getKey().intValue(), buf.getInt(0));
+				recovered.add(entry.getKey());
+			}
+		}
+		assertEquals(19, recovered.size());
+		assertFalse(recovered.contains(0));
+		assertFalse(recovered.contains(39));
+		malloc.close();
+	}
+
+	@Test
+	public void testLegacyPtrMigration() throws IOException {
+		writeLegacyPtrFile();
+		DiskMalloc malloc = newMalloc();
+		Map<ByteString, List<Entry<Integer, BufferObject>>> map = malloc.seriesBufferMap();
+		assertEquals(2, map.size());
+		Entry<Integer, BufferObject> entry = map.get(new ByteString("series1#field")).get(0);
+		assertEquals(11, entry.getKey().intValue());
+		assertEquals(11, entry.getValue().getBuf().getInt(0));
+		entry = map.get(new ByteString("series2#field")).get(0);
+		assertEquals(22, entry.getKey().intValue());
+		assertEquals(22, entry.getValue().getBuf().getInt(0));
+		assertEquals(DiskMalloc.PTR_MAGIC, readHeader(new File(DATA_DIR + "/m1/.ptr"), 0));
+		malloc.close();
+	}
+
+	@Test
+	public void testInterruptedLegacyPtrMigration() throws IOException {
+		writeLegacyPtrFile();
+		// a migration that crashed before the rename leaves a partial binary file
+		try (RandomAccessFile raf = new RandomAccessFile(DATA_DIR + "/m1/.ptr.migrate", "rw")) {
+			MappedByteBuffer map = raf.getChannel().map(MapMode.READ_WRITE, 0, 1024);
+			map.putInt(0, DiskMalloc.PTR_MAGIC);
+			map.putInt(12, 100);
+		}
+		DiskMalloc malloc = newMalloc();
+		Map<ByteString, List<Entry<Integer, BufferObject>>> map = malloc.seriesBufferMap();
+		assertEquals(2, map.size());
+		assertEquals(11, map.get(new ByteString("series1#field")).get(0).getValue().getBuf().getInt(0));
+		assertEquals(22, map.get(new ByteString("series2#field")).get(0).getValue().getBuf().getInt(0));
+		assertFalse(new File(DATA_DIR + "/m1/.ptr.migrate").exists());
+		malloc.close();
+
+		// the migrated file is picked up as is on the next start
+		malloc = newMalloc();
+		assertEquals(2, malloc.seriesBufferMap().size());
+		malloc.close();
+	}
+
+	private void writeLegacyPtrFile() throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(DATA_DIR + "/m1/data-000000000000.dat", "rw")) {
+			MappedByteBuffer map = raf.getChannel().map(MapMode.READ_WRITE, 0, 1024);
+			map.putInt(0, 11);
+			map.putInt(256, 22);
+		}
+		try (RandomAccessFile raf = new RandomAccessFile(DATA_DIR + "/m1/.ptr", "rw")) {
+			MappedByteBuffer map = raf.getChannel().map(MapMode.READ_WRITE, 0, 1024);
+			map.putInt(2);
+			MiscUtils.writeStringToBuffer("series1#field)data-000000000000.dat)0)0)256)b\n", map);
+			MiscUtils.writeStringToBuffer("series2#field)data-000000000000.dat)0)256)256)16\n", map);
+		}
+	}
+
+	@Test
+	public void testFreeSpaceReuse() throws IOException {
+		conf.put(DiskMalloc.CONF_PTR_COMPACTION_MIN, "1000");
+		DiskMalloc malloc = newMalloc();
+		malloc.seriesBufferMap();
+		List<BufferObject> buffers = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			BufferObject buf = malloc.createNewBuffer(new LinkedByteString("series", "#", "field"), i, 1024);
+			buf.getBuf().putInt(0, i);
+			buffers.add(buf);
+		}
+		Set<String> cleanup = new HashSet<>();
+		Set<String> released = new HashSet<>();
+		for (int i = 0; i < 10; i += 2) {
+			String bufferId = buffers.get(i).getBufferId().toString();
+			cleanup.add(bufferId);
+			released.add(position(bufferId));
+		}
+		malloc.cleanupBufferIds(cleanup);
+		for (int i = 0; i < 5; i++) {
+			BufferObject buf = malloc.createNewBuffer(new LinkedByteString("series", "#", "field"), 100 + i, 1024);
+			assertTrue(released.contains(position(buf.getBufferId().toString())));
+			// reused space must be handed out clean
+			assertEquals(0, buf.getBuf().getInt(0));
+			buf.getBuf().putInt(0, 100 + i);
+		}
+		assertEquals(0, malloc.getFreeBytes());
+
+		// larger extents are split and the remainder stays free
+		String bufferId = buffers.get(1).getBufferId().toString();
+		malloc.cleanupBufferIds(Collections.singleton(bufferId));
+		long released1 = Long.parseLong(position(bufferId));
+		BufferObject buf = malloc.createNewBuffer(new LinkedByteString("series", "#", "field"), 200, 512);
+		assertEquals(released1, Long.parseLong(position(buf.getBufferId().toString())));
+		buf.getBuf().putInt(0, 200);
+		buf = malloc.createNewBuffer(new LinkedByteString("series", "#", "field"), 201, 512);
+		assertEquals(released1 + 512, Long.parseLong(position(buf.getBufferId().toString())));
+		buf.getBuf().putInt(0, 201);
+		long freeBytes = malloc.getFreeBytes();
+		malloc.close();
+
+		// free space is rebuilt from the gaps between live pointer records
+		malloc = newMalloc();
+		Map<ByteString, List<Entry<Integer, BufferObject>>> map = malloc.seriesBufferMap();
+		assertEquals(11, map.get(new ByteString("series#field")).size());
+		for (Entry<Integer, BufferObject> entry : map.get(new ByteString("series#field"))) {
+			assertEquals(entry.getKey().intValue(), entry.getValue().getBuf().getInt(0));
+		}
+		assertTrue(malloc.getFreeBytes() >= freeBytes);
+		buf = malloc.createNewBuffer(new LinkedByteString("series", "#", "field"), 300, 1024);
+		assertTrue(buf.getBufferId().toString().contains("data-000000000000.dat"));
+		assertEquals(1, new File(DATA_DIR + "/m1").listFiles((d, n) -> n.endsWith(".dat")).length);
+		malloc.close();
+	}
+
+	@Test
+	public void testReuseWaitsForReaders() throws IOException {
+		conf.put(DiskMalloc.CONF_PTR_COMPACTION_MIN, "1000");
+		DiskMalloc malloc = newMalloc();
+		malloc.seriesBufferMap();
+		List<BufferObject> buffers = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			buffers.add(malloc.createNewBuffer(new LinkedByteString("series", "#", "field"), i, 1024));
+		}
+		long early = malloc.enterRead();
+		malloc.cleanupBufferIds(Collections.singleton(buffers.get(0).getBufferId().toString()));
+		// a reader that entered after the release can't reference the buffer
+		long late = malloc.enterRead();
+		BufferObject buf = malloc.createNewBuffer(new LinkedByteString("series", "#", "field"), 10, 1024);
+		assertFalse(position(buffers.get(0).getBufferId().toString())
+				.equals(position(buf.getBufferId().toString())));
+		malloc.leaveRead(early);
+		buf = malloc.createNewBuffer(new LinkedByteString("series", "#", "field"), 11, 1024);
+		assertEquals(position(buffers.get(0).getBufferId().toString()), position(buf.getBufferId().toString()));
+
+		// released while the late reader is still registered
+		malloc.cleanupBufferIds(Collections.singleton(buffers.get(1).getBufferId().toString()));
+		buf = malloc.createNewBuffer(new LinkedByteString("series", "#", "field"), 12, 1024);
+		assertFalse(position(buffers.get(1).getBufferId().toString())
+				.equals(position(buf.getBufferId().toString())));
+		malloc.leaveRead(late);
+		buf = malloc.createNewBuffer(new LinkedByteString("series", "#", "field"), 13, 1024);
+		assertEquals(position(buffers.get(1).getBufferId().toString()), position(buf.getBufferId().toString()));
+		malloc.close();
+	}
+
+	@Test
+	public void testStriping() throws IOException {
+		String d1 = DATA_DIR + "/d1";
+		String d2 = DATA_DIR + "/d2";
+		conf.put(DiskStorageEngine.DATA_DIRS, d1 + ", " + d2);
+		conf.put(DiskMalloc.CONF_MALLOC_STRIPING, "round-robin");
+		conf.put(DiskMalloc.CONF_MEASUREMENT_FILE_INCREMENT, "4096");
+		conf.put(DiskMalloc.CONF_MEASUREMENT_FILE_MAX, "8192");
+		DiskMalloc malloc = new DiskMalloc();
+		malloc.configure(conf, d1 + "/db", "m1", null, null, new ReentrantLock());
+		malloc.seriesBufferMap();
+		assertEquals(2, malloc.getStripeDirectories().size());
+		for (int i = 0; i < 32; i++) {
+			BufferObject buf = malloc.createNewBuffer(new LinkedByteString("series", "#", "field"), i, 1024);
+			buf.getBuf().putInt(0, i);
+		}
+		File[] files1 = new File(d1 + "/db/m1").listFiles((d, n) -> n.endsWith(".dat"));
+		File[] files2 = new File(d2 + "/db/m1").listFiles((d, n) -> n.endsWith(".dat"));
+		assertTrue(files1.length > 1);
+		assertEquals(files1.length, files2.length);
+		assertTrue(new File(d1 + "/db/m1/" + DiskMalloc.STRIPES_FILE).exists());
+		malloc.close();
+
+		// stripes are recovered from the pointer file even if the configured order
+		// changes
+		conf.put(DiskStorageEngine.DATA_DIRS, d2 + ", " + d1);
+		malloc = new DiskMalloc();
+		malloc.configure(conf, d1 + "/db", "m1", null, null, new ReentrantLock());
+		Map<ByteString, List<Entry<Integer, BufferObject>>> map = malloc.seriesBufferMap();
+		List<Entry<Integer, BufferObject>> list = map.get(new ByteString("series#field"));
+		assertEquals(32, list.size());
+		Set<String> cleanup = new HashSet<>();
+		for (Entry<Integer, BufferObject> entry : list) {
+			assertEquals(entry.getKey().intValue(), entry.getValue().getBuf().getInt(0));
+			String bufferId = entry.getValue().getBufferId().toString();
+			if (bufferId.contains("data-000000000001.dat")) {
+				cleanup.add(bufferId);
+			}
+		}
+		assertTrue(cleanup.size() > 0);
+		// garbage collection deletes emptied files in any stripe
+		malloc.cleanupBufferIds(cleanup);
+		assertFalse(new File(d2 + "/db/m1/data-000000000001.dat").exists());
+		assertEquals(2, malloc.getStripeDirectories().size());
+		malloc.close();
+	}
+
+	@Test
+	public void testLazyRecoveredMappings() throws IOException {
+		conf.put(DiskMalloc.CONF_MEASUREMENT_FILE_INCREMENT, "4096");
+		conf.put(DiskMalloc.CONF_MEASUREMENT_FILE_MAX, "8192");
+		conf.put(DiskMalloc.CONF_MALLOC_MAPPING_OPEN_MAX, "2");
+		DiskMalloc malloc = newMalloc();
+		malloc.seriesBufferMap();
+		for (int i = 0; i < 32; i++) {
+			BufferObject buf = malloc.createNewBuffer(new LinkedByteString("series", "#", "field"), i, 1024);
+			buf.getBuf().putInt(0, i);
+		}
+		malloc.close();
+		assertTrue(new File(DATA_DIR + "/m1").listFiles((d, n) -> n.endsWith(".dat")).length > 3);
+
+		malloc = newMalloc();
+		List<Entry<Integer, BufferObject>> list = malloc.seriesBufferMap().get(new ByteString("series#field"));
+		assertEquals(32, list.size());
+		// nothing is mapped until a buffer is accessed
+		assertEquals(0, malloc.getRecoveredMappingCount());
+		Map<String, List<BufferObject>> fileBuffers = new HashMap<>();
+		for (Entry<Integer, BufferObject> entry : list) {
+			fileBuffers.computeIfAbsent(dataFile(entry.getValue().getBufferId().toString()), k -> new ArrayList<>())
+					.add(entry.getValue());
+		}
+		List<String> files = new ArrayList<>(fileBuffers.keySet());
+		Collections.sort(files);
+		assertTrue(fileBuffers.get(files.get(0)).size() > 1);
+		fileBuffers.get(files.get(0)).get(0).getBuf();
+		assertEquals(1, malloc.getRecoveredMappingCount());
+		// buffers of a file share a single mapping, referenced mappings are kept
+		// beyond the limit
+		for (int i = 1; i < 3; i++) {
+			for (BufferObject buffer : fileBuffers.get(files.get(i))) {
+				buffer.getBuf();
+			}
+			assertEquals(i + 1, malloc.getRecoveredMappingCount());
+		}
+		// the mapping is released once its sliced buffers are collected even
+		// though the file still holds live buffers
+		malloc.cleanupBufferIds(Collections.singleton(fileBuffers.get(files.get(0)).get(0).getBufferId().toString()));
+		assertEquals(2, malloc.getRecoveredMappingCount());
+		fileBuffers.get(files.get(0)).get(1).getBuf();
+		assertEquals(3, malloc.getRecoveredMappingCount());
+		malloc.close();
+
+		malloc = newMalloc();
+		list = malloc.seriesBufferMap().get(new ByteString("series#field"));
+		assertEquals(31, list.size());
+		for (Entry<Integer, BufferObject> entry : list) {
+			ByteBuffer buf = entry.getValue().getBuf();
+			assertEquals(entry.getKey().intValue(), buf.getInt(0));
+			buf.putInt(4, entry.getKey() * 2);
+		}
+		// every file is mapped exactly once
+		assertEquals(files.size(), malloc.getRecoveredMappingCount());
+		malloc.close();
+
+		// writes through recovered mappings must not be lost
+		malloc = newMalloc();
+		list = malloc.seriesBufferMap().get(new ByteString("series#field"));
+		for (Entry<Integer, BufferObject> entry : list) {
+			assertEquals(entry.getKey() * 2, entry.getValue().getBuf().getInt(4));
+		}
+		malloc.close();
+	}
+
+	@Test
+	public void testSealedRegionsAreNotForced() throws IOException {
+		conf.put(DiskMalloc.CONF_DURABILITY, "group-commit");
+		conf.put(DiskMalloc.CONF_MALLOC_REUSE, "false");
+		conf.put(DiskMalloc.CONF_MEASUREMENT_FILE_INCREMENT, "4096");
+		DiskMalloc malloc = newMalloc();
+		malloc.seriesBufferMap();
+		List<BufferObject> buffers = new ArrayList<>();
+		for (int i = 0; i < 8; i++) {
+			BufferObject buf = malloc.createNewBuffer(new LinkedByteString("series", "#", "field"), i, 1024);
+			buf.getBuf().putInt(0, i);
+			buffers.add(buf);
+		}
+		int regions = malloc.regionsToForce().size();
+		assertTrue(regions > 1);
+		// regions holding open buffers are forced on every sync
+		assertEquals(regions, malloc.regionsToForce().size());
+		for (BufferObject buf : buffers) {
+			malloc.seal(buf.getBufferId());
+		}
+		// sealed regions are forced once more and then skipped
+		assertEquals(regions, malloc.regionsToForce().size());
+		assertEquals(0, malloc.regionsToForce().size());
+		// writes after a buffer was sealed are covered by sealing it again
+		buffers.get(0).getBuf().putInt(4, 1);
+		malloc.seal(buffers.get(0).getBufferId());
+		assertEquals(1, malloc.regionsToForce().size());
+		assertEquals(0, malloc.regionsToForce().size());
+		malloc.force();
+		malloc.close();
+	}
+
+	@Test
+	public void testSegmentedRetention() throws IOException {
+		conf.put(DiskMalloc.CONF_MALLOC_SEGMENTED, "true");
+		conf.put(DiskMalloc.CONF_MALLOC_SEGMENT_OPEN_MAX, "2");
+		conf.put(DiskMalloc.CONF_PTR_COMPACTION_MIN, "1000");
+		DiskMalloc malloc = newMalloc();
+		malloc.seriesBufferMap();
+		assertTrue(malloc.isSegmented());
+		Map<Integer, Set<String>> bucketBuffers = new HashMap<>();
+		Map<Integer, Set<String>> bucketFiles = new HashMap<>();
+		for (int i = 0; i < 30; i++) {
+			int bucket = i % 3;
+			BufferObject buf = malloc.createNewBuffer(new LinkedByteString("series" + (i % 5), "#", "field"), bucket,
+					256);
+			buf.getBuf().putInt(0, bucket);
+			String bufferId = buf.getBufferId().toString();
+			bucketBuffers.computeIfAbsent(bucket, k -> new HashSet<>()).add(bufferId);
+			bucketFiles.computeIfAbsent(bucket, k -> new HashSet<>()).add(dataFile(bufferId));
+		}
+		// a data file never holds buffers of more than one bucket
+		for (int i = 0; i < 3; i++) {
+			for (int j = i + 1; j < 3; j++) {
+				for (String file : bucketFiles.get(i)) {
+					assertFalse(bucketFiles.get(j).contains(file));
+				}
+			}
+		}
+
+		// retention of a bucket unlinks its segments and compacts the ptr file
+		malloc.cleanupBufferIds(bucketBuffers.get(0));
+		for (String file : bucketFiles.get(0)) {
+			assertFalse(new File(DATA_DIR + "/m1/" + file).exists());
+		}
+		for (String file : bucketFiles.get(1)) {
+			assertTrue(new File(DATA_DIR + "/m1/" + file).exists());
+		}
+		File ptrFile = new File(DATA_DIR + "/m1/.ptr");
+		assertEquals(0, readHeader(ptrFile, 16));
+		assertEquals(20, readHeader(ptrFile, 12));
+		malloc.close();
+
+		malloc = newMalloc();
+		Map<ByteString, List<Entry<Integer, BufferObject>>> map = malloc.seriesBufferMap();
+		int count = 0;
+		for (List<Entry<Integer, BufferObject>> list : map.values()) {
+			for (Entry<Integer, BufferObject> entry : list) {
+				assertTrue(entry.getKey() > 0);
+				assertEquals(entry.getKey().intValue(), entry.getValue().getBuf().getInt(0));
+				count++;
+			}
+		}
+		assertEquals(20, count);
+		// new writes after recovery continue in the existing segment of the bucket
+		BufferObject buf = malloc.createNewBuffer(new LinkedByteString("series0", "#", "field"), 1, 256);
+		assertTrue(bucketFiles.get(1).contains(dataFile(buf.getBufferId().toString())));
+		malloc.close();
+	}
+
+	@Test
+	public void testSegmentedBackfill() throws IOException {
+		conf.put(DiskMalloc.CONF_MALLOC_SEGMENTED, "true");
+		conf.put(DiskMalloc.CONF_MALLOC_SEGMENT_OPEN_MAX, "2");
+		conf.put(DiskMalloc.CONF_MEASUREMENT_FILE_INCREMENT, "4096");
+		conf.put(DiskMalloc.CONF_MEASUREMENT_FILE_MAX, "65536");
+		DiskMalloc malloc = newMalloc();
+		malloc.seriesBufferMap();
+		// an import interleaving many more buckets than segments may be open
+		Map<Integer, Set<String>> bucketFiles = new HashMap<>();
+		for (int i = 0; i < 400; i++) {
+			int bucket = i % 20;
+			BufferObject buf = malloc.createNewBuffer(new LinkedByteString("series" + (i % 7), "#", "field"), bucket,
+					256);
+			buf.getBuf().putInt(0, i);
+			bucketFiles.computeIfAbsent(bucket, k -> new HashSet<>()).add(dataFile(buf.getBufferId().toString()));
+		}
+		// closed segments are reopened instead of starting a new file per reopen
+		Set<String> files = new HashSet<>();
+		for (Set<String> set : bucketFiles.values()) {
+			assertEquals(1, set.size());
+			files.addAll(set);
+		}
+		assertEquals(20, files.size());
+		assertEquals(20, new File(DATA_DIR + "/m1").listFiles((d, n) -> n.endsWith(".dat")).length);
+		malloc.close();
+
+		malloc = newMalloc();
+		Map<ByteString, List<Entry<Integer, BufferObject>>> map = malloc.seriesBufferMap();
+		Set<Integer> values = new HashSet<>();
+		for (List<Entry<Integer, BufferObject>> list : map.values()) {
+			for (Entry<Integer, BufferObject> entry : list) {
+				int value = entry.getValue().getBuf().getInt(0);
+				assertEquals(value % 20, entry.getKey().intValue());
+				assertTrue(bucketFiles.get(entry.getKey()).contains(dataFile(entry.getValue().getBufferId().toString())));
+				values.add(value);
+			}
+		}
+		// reopened segments didn't overwrite earlier buffers
+		assertEquals(400, values.size());
+		malloc.close();
+	}
+
+	private static String dataFile(String bufferId) {
+		int slotIdx = bufferId.lastIndexOf(')', bufferId.lastIndexOf(')') - 1);
+		int fileIdx = bufferId.lastIndexOf(')', slotIdx - 1);
+		return bufferId.substring(fileIdx + 1, slotIdx);
+	}
+
+	private static String position(String bufferId) {
+		return bufferId.substring(bufferId.lastIndexOf(')') + 1);
+	}
+
+	// header layout: magic(0), version(4), record size(8), count(12), tombstones(16)
+	private static int readHeader(File ptrFile, int offset) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(ptrFile, "r")) {
+			raf.seek(offset);
+			return raf.readInt();
+		}
+	}
+
+}
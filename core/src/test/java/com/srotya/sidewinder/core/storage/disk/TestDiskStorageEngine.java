@@ -181,4 +181,54 @@ public class TestDiskStorageEngine {
 		}
 	}
 
+
+	@Test
+	public void testLazyRecovery() throws Exception {
+		List<Tag> tagd = Arrays.asList(Tag.newBuilder().setTagKey("test").setTagValue("e").build());
+		MiscUtils.delete(new File("target/db202/"));
+		Map<String, String> map = new HashMap<>();
+		map.put("index.dir", "target/db202/index");
+		map.put("data.dir", "target/db202/data");
+		map.put(DiskStorageEngine.RECOVERY_THREADS, "4");
+		DiskStorageEngine engine = new DiskStorageEngine();
+		engine.configure(map, bgTasks);
+		long ts = System.currentTimeMillis();
+		for (int i = 0; i < 10; i++) {
+			engine.writeDataPointLocked(MiscUtils.buildDataPoint("test4", "cpu" + i, "value", tagd, ts, i), false);
+		}
+		engine.shutdown();
+		assertTrue(new File("target/db202/data/test4/" + DiskStorageEngine.MANIFEST_FILE).exists());
+
+		// eager parallel recovery
+		engine = new DiskStorageEngine();
+		engine.configure(map, bgTasks);
+		assertEquals(10, engine.getMeasurementsLike("test4", ".*").size());
+		for (Measurement measurement : engine.getDatabaseMap().get("test4").values()) {
+			assertTrue(LazyMeasurement.isOpen(measurement));
+		}
+		engine.shutdown();
+
+		map.put(DiskStorageEngine.RECOVERY_LAZY, "true");
+		engine = new DiskStorageEngine();
+		engine.configure(map, bgTasks);
+		Map<String, Measurement> measurements = engine.getDatabaseMap().get("test4");
+		assertEquals(10, measurements.size());
+		for (Measurement measurement : measurements.values()) {
+			assertTrue(!LazyMeasurement.isOpen(measurement));
+		}
+		List<SeriesOutput> output = engine.queryDataPoints("test4", "cpu3", "value", ts, ts + 1, null, null);
+		assertEquals(1, output.size());
+		assertEquals(3, output.get(0).getDataPoints().get(0).getLongValue());
+		// opened measurement replaces the placeholder
+		assertTrue(measurements.get("cpu3") instanceof PersistentMeasurement);
+		assertTrue(!LazyMeasurement.isOpen(measurements.get("cpu4")));
+		// maintenance doesn't open measurements
+		engine.flushReorderBuffers(true);
+		measurements.get("cpu4").compact();
+		assertTrue(!LazyMeasurement.isOpen(measurements.get("cpu4")));
+		engine.writeDataPointLocked(MiscUtils.buildDataPoint("test4", "cpu4", "value", tagd, ts + 1, 5), false);
+		assertTrue(measurements.get("cpu4") instanceof PersistentMeasurement);
+		engine.shutdown();
+	}
+
 }
@@ -16,17 +16,25 @@
 package com.srotya.sidewinder.core.storage.disk;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.roaringbitmap.buffer.MutableRoaringBitmap;
 
 import com.srotya.sidewinder.core.filters.SimpleTagFilter;
 import com.srotya.sidewinder.core.filters.SimpleTagFilter.FilterType;
@@ -84,6 +92,51 @@ public class TestMappedBitmapTagIndex {
 		}
 	}
 
+	@Test
+	public void testLegacyIndexMigration() throws IOException {
+		MiscUtils.delete(new File("target/s9"));
+		new File("target/s9/i/bitmap").mkdirs();
+		try (RandomAccessFile raf = new RandomAccessFile("target/s9/i/bitmap/m.rev", "rw")) {
+			MappedByteBuffer rev = raf.getChannel().map(MapMode.READ_WRITE, 0, 1024 * 1024);
+			rev.putInt(0);
+			for (int i = 0; i < 100; i++) {
+				byte[] str = ("key " + i + " " + i).getBytes();
+				rev.putInt(str.length);
+				rev.put(str);
+			}
+			rev.putInt(0, rev.position());
+			rev.force();
+		}
+		PersistentMeasurement m = new PersistentMeasurement();
+		Map<String, String> conf = new HashMap<>();
+		DBMetadata metadata = new DBMetadata();
+		m.configure(conf, engine, 4096, "d", "m", "target/s9/i/bitmap", "target/s9/d/bitmap", metadata, null);
+		for (int i = 0; i < 100; i++) {
+			m.getSeriesListAsList().add(new Series(new ByteString(String.valueOf(i)), i));
+		}
+		MappedBitmapTagIndex index = (MappedBitmapTagIndex) m.getTagIndex();
+		for (int i = 0; i < 100; i++) {
+			assertEquals(new HashSet<>(Arrays.asList(new ByteString(String.valueOf(i)))),
+					index.searchRowKeysForTagFilter(new SimpleTagFilter(FilterType.EQUALS, "key", String.valueOf(i))));
+		}
+		// keys and values are shared through the database dictionary
+		assertEquals(101, metadata.getTagDictionary().size());
+		// the rewritten log replaced the legacy one in place
+		assertFalse(new File("target/s9/i/bitmap/m.rev.tmp").exists());
+		try (RandomAccessFile raf = new RandomAccessFile("target/s9/i/bitmap/m.rev", "r")) {
+			assertTrue(raf.readInt() < 0);
+		}
+		index.close();
+
+		index = new MappedBitmapTagIndex();
+		index.configure(conf, "target/s9/i/bitmap", m);
+		for (int i = 0; i < 100; i++) {
+			assertEquals(new HashSet<>(Arrays.asList(new ByteString(String.valueOf(i)))),
+					index.searchRowKeysForTagFilter(new SimpleTagFilter(FilterType.EQUALS, "key", String.valueOf(i))));
+		}
+		index.close();
+	}
+
 	@Test
 	public void testMultiIndexRecovery() throws IOException, InterruptedException {
 		MiscUtils.delete(new File("target/s9"));
@@ -124,4 +177,78 @@ public class TestMappedBitmapTagIndex {
 		}
 	}
 
+
+	@Test
+	public void testBackgroundCheckpoint() throws IOException, InterruptedException {
+		MiscUtils.delete(new File("target/s10"));
+		new File("target/s10").mkdirs();
+		PersistentMeasurement m = new PersistentMeasurement();
+		Map<String, String> conf = new HashMap<>();
+		conf.put(MappedBitmapTagIndex.CONF_CHECKPOINT_BYTES, "1024");
+		m.configure(conf, engine, 4096, "d", "m", "target/s10/i/bitmap", "target/s10/d/bitmap", new DBMetadata(),
+				null);
+		ScheduledExecutorService bgTaskPool = Executors.newScheduledThreadPool(1);
+		MappedBitmapTagIndex index = new MappedBitmapTagIndex(bgTaskPool);
+		index.configure(conf, "target/s10/i/bitmap", m);
+		for (int i = 0; i < 1000; i++) {
+			index.index("key", String.valueOf(i % 100), i);
+			m.getSeriesListAsList().add(new Series(new ByteString(String.valueOf(i)), i));
+		}
+		bgTaskPool.shutdown();
+		assertTrue(bgTaskPool.awaitTermination(10, TimeUnit.SECONDS));
+		// checkpoint written by the pool while indexing
+		assertTrue(new File("target/s10/i/bitmap/m" + MappedBitmapTagIndex.CHECKPOINT_SUFFIX).exists());
+		index.close();
+
+		index = new MappedBitmapTagIndex();
+		index.configure(conf, "target/s10/i/bitmap", m);
+		for (int i = 0; i < 100; i++) {
+			assertEquals(10, index.getBitMapForTag("key", String.valueOf(i)).getCardinality());
+		}
+		index.close();
+	}
+
+	@Test
+	public void testCheckpointRecovery() throws IOException {
+		MiscUtils.delete(new File("target/s9"));
+		new File("target/s9").mkdirs();
+		PersistentMeasurement m = new PersistentMeasurement();
+		Map<String, String> conf = new HashMap<>();
+		conf.put(MappedBitmapTagIndex.CONF_CHECKPOINT_BYTES, "1024");
+		m.configure(conf, engine, 4096, "d", "m", "target/s9/i/bitmap", "target/s9/d/bitmap", new DBMetadata(), null);
+		MappedBitmapTagIndex index = new MappedBitmapTagIndex();
+		index.configure(conf, "target/s9/i/bitmap", m);
+		for (int i = 0; i < 1000; i++) {
+			index.index("key", String.valueOf(i % 100), i);
+			m.getSeriesListAsList().add(new Series(new ByteString(String.valueOf(i)), i));
+		}
+		// checkpoint written while indexing
+		assertTrue(new File("target/s9/i/bitmap/m" + MappedBitmapTagIndex.CHECKPOINT_SUFFIX).exists());
+		index.close();
+
+		index = new MappedBitmapTagIndex();
+		index.configure(conf, "target/s9/i/bitmap", m);
+		// bitmaps are mapped from the checkpoint and copied on write
+		assertTrue(!(index.getBitMapForTag("key", "0") instanceof MutableRoaringBitmap));
+		for (int i = 0; i < 100; i++) {
+			assertEquals(10, index.getBitMapForTag("key", String.valueOf(i)).getCardinality());
+		}
+		for (int i = 1000; i < 1100; i++) {
+			index.index("key", "0", i);
+			m.getSeriesListAsList().add(new Series(new ByteString(String.valueOf(i)), i));
+		}
+		assertTrue(index.getBitMapForTag("key", "0") instanceof MutableRoaringBitmap);
+		assertEquals(110, index.searchRowKeysForTagFilter(new SimpleTagFilter(FilterType.EQUALS, "key", "0")).size());
+
+		// recovers from the last checkpoint plus the tail of the log
+		index = new MappedBitmapTagIndex();
+		index.configure(conf, "target/s9/i/bitmap", m);
+		assertEquals(110, index.getBitMapForTag("key", "0").getCardinality());
+		assertEquals(new HashSet<>(Arrays.asList(new ByteString("1"), new ByteString("101"), new ByteString("201"),
+				new ByteString("301"), new ByteString("401"), new ByteString("501"), new ByteString("601"),
+				new ByteString("701"), new ByteString("801"), new ByteString("901"))),
+				index.searchRowKeysForTagFilter(new SimpleTagFilter(FilterType.EQUALS, "key", "1")));
+		index.close();
+	}
+
 }
\ No newline at end of file
@@ -16,19 +16,25 @@
 package com.srotya.sidewinder.core.storage.disk;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -38,15 +44,19 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import com.srotya.sidewinder.core.filters.TagFilter;
+import com.srotya.sidewinder.core.rpc.Point;
 import com.srotya.sidewinder.core.rpc.Tag;
 import com.srotya.sidewinder.core.storage.DBMetadata;
 import com.srotya.sidewinder.core.storage.DataPoint;
+import com.srotya.sidewinder.core.storage.Field;
+import com.srotya.sidewinder.core.storage.LazyField;
 import com.srotya.sidewinder.core.storage.Series;
 import com.srotya.sidewinder.core.storage.SeriesOutput;
 import com.srotya.sidewinder.core.storage.StorageEngine;
 import com.srotya.sidewinder.core.storage.TestMeasurement;
 import com.srotya.sidewinder.core.storage.TimeField;
 import com.srotya.sidewinder.core.storage.ValueField;
+import com.srotya.sidewinder.core.storage.compression.Writer;
 import com.srotya.sidewinder.core.storage.mem.MemStorageEngine;
 import com.srotya.sidewinder.core.utils.BackgrounThreadFactory;
 import com.srotya.sidewinder.core.utils.MiscUtils;
@@ -99,12 +109,272 @@ public class TestPersistentMeasurement {
 		measurement.close();
 
 		measurement.configure(conf, null, 4096, DBNAME, "m1", indexDir, dataDir, metadata, bgTaskPool);
+		// recovered buckets are loaded on first access
+		Map<String, Field> fields = measurement.getSeriesList().get(0).getBucketMap().values().iterator().next();
+		for (Field field : fields.values()) {
+			assertTrue(field instanceof LazyField);
+		}
 		List<SeriesOutput> resultMap = new ArrayList<>();
 		measurement.queryDataPoints("value.*", ts, ts + 1000, null, null, resultMap, null);
 		assertEquals(LIMIT, resultMap.size());
+		// queries don't load recovered fields
+		for (Field field : fields.values()) {
+			assertFalse(((LazyField) field).isLoaded());
+		}
+		LazyField field = (LazyField) fields.get("value0");
+		measurement.addPointLocked(MiscUtils.buildDataPoint(DBNAME, "m1", "value0", tags, ts + 1, 2L), true);
+		assertTrue(field.isLoaded());
+		measurement.close();
+	}
+
+	@Test
+	public void testQueriedBucketsRespectMappingLimit() throws Exception {
+		long ts = System.currentTimeMillis();
+		List<Tag> tags = Arrays.asList(Tag.newBuilder().setTagKey("test").setTagValue("1").build());
+		Map<String, String> conf = new HashMap<>();
+		conf.put(DiskMalloc.CONF_MEASUREMENT_FILE_MAX, String.valueOf(2 * 1024 * 1024));
+		conf.put(DiskMalloc.CONF_MALLOC_SEGMENTED, "true");
+		conf.put(DiskMalloc.CONF_MALLOC_MAPPING_OPEN_MAX, "2");
+		measurement.configure(conf, null, 4096, DBNAME, "m1", indexDir, dataDir, metadata, bgTaskPool);
+		int buckets = 10;
+		for (int i = 0; i < buckets; i++) {
+			measurement.addPointLocked(
+					MiscUtils.buildDataPoint(DBNAME, "m1", "value", tags, ts + i * 4096L * 1000, i), true);
+		}
+		measurement.close();
+
+		measurement.configure(conf, null, 4096, DBNAME, "m1", indexDir, dataDir, metadata, bgTaskPool);
+		DiskMalloc malloc = (DiskMalloc) measurement.getMalloc();
+		for (int i = 0; i < 3; i++) {
+			List<SeriesOutput> resultMap = new ArrayList<>();
+			measurement.queryDataPoints("value", ts, ts + buckets * 4096L * 1000, null, null, resultMap, null);
+			List<DataPoint> points = resultMap.get(0).getDataPoints();
+			assertEquals(buckets, points.size());
+			for (int j = 0; j < buckets; j++) {
+				assertEquals(j, points.get(j).getLongValue());
+			}
+			// every bucket has its own segment file
+			assertTrue(malloc.getRecoveredMappingCount() <= 2);
+		}
+		measurement.close();
+	}
+
+	@Test
+	public void testInterruptedMetadataMigration() throws Exception {
+		long ts = System.currentTimeMillis();
+		measurement.configure(conf, null, 4096, DBNAME, "m1", indexDir, dataDir, metadata, bgTaskPool);
+		for (int i = 0; i < 3; i++) {
+			List<Tag> tags = Arrays.asList(Tag.newBuilder().setTagKey("test").setTagValue(String.valueOf(i)).build());
+			measurement.addPointLocked(MiscUtils.buildDataPoint(DBNAME, "m1", "value", tags, ts, 1L), false);
+		}
+		List<String> lines = new ArrayList<>();
+		List<Series> seriesList = measurement.getSeriesList();
+		for (int i = 0; i < seriesList.size(); i++) {
+			lines.add(seriesList.get(i).getSeriesId() + "~" + Integer.toHexString(i));
+		}
+		measurement.close();
+
+		// text metadata of an older version next to a dictionary that a crash
+		// left with only the first series
+		File measurementDir = new File(dataDir, "m1");
+		Files.write(new File(measurementDir, ".md").toPath(), lines, StandardCharsets.UTF_8);
+		Files.write(new File(measurementDir, ".field").toPath(), Arrays.asList("value~false"),
+				StandardCharsets.UTF_8);
+		File dictionaryFile = new File(measurementDir, SeriesDictionary.DICTIONARY_FILE);
+		dictionaryFile.delete();
+		SeriesDictionary partial = new SeriesDictionary(dictionaryFile);
+		partial.appendField("value", false);
+		partial.appendSeries(0, measurement.getSeriesList().get(0).getSeriesId());
+		partial.close();
+
+		measurement = new PersistentMeasurement();
+		measurement.configure(conf, null, 4096, DBNAME, "m1", indexDir, dataDir, metadata, bgTaskPool);
+		assertEquals(3, measurement.getSeriesList().size());
+		List<SeriesOutput> resultMap = new ArrayList<>();
+		measurement.queryDataPoints("value", ts, ts + 1000, null, null, resultMap, null);
+		assertEquals(3, resultMap.size());
+		assertFalse(new File(measurementDir, ".md").exists());
+		assertFalse(new File(measurementDir, ".field").exists());
+		assertFalse(new File(measurementDir, SeriesDictionary.DICTIONARY_FILE + ".migrate").exists());
+		measurement.close();
+
+		// the migrated dictionary is loaded as is on the next start
+		measurement = new PersistentMeasurement();
+		measurement.configure(conf, null, 4096, DBNAME, "m1", indexDir, dataDir, metadata, bgTaskPool);
+		assertEquals(3, measurement.getSeriesList().size());
+		measurement.close();
+	}
+
+	@Test
+	public void testLazyGarbageCollection() throws Exception {
+		long ts = System.currentTimeMillis();
+		List<Tag> tags = Arrays.asList(Tag.newBuilder().setTagKey("test").setTagValue("1").build());
+		Map<String, String> conf = new HashMap<>();
+		conf.put(DiskMalloc.CONF_MEASUREMENT_FILE_MAX, String.valueOf(2 * 1024 * 1024));
+		measurement.configure(conf, null, 4096, DBNAME, "m1", indexDir, dataDir, metadata, bgTaskPool);
+		for (int i = 0; i < 5; i++) {
+			measurement.addPointLocked(
+					MiscUtils.buildDataPoint(DBNAME, "m1", "value", tags, ts + i * 4096L * 1000, 1L), true);
+		}
+		measurement.close();
+
+		measurement.configure(conf, null, 4096, DBNAME, "m1", indexDir, dataDir, metadata, bgTaskPool);
+		Series series = measurement.getSeriesList().get(0);
+		assertEquals(5, series.getBucketMap().size());
+		List<Field> fields = new ArrayList<>();
+		for (Map<String, Field> map : series.getBucketMap().values()) {
+			fields.addAll(map.values());
+		}
+		measurement.getRetentionBuckets().set(2);
+		// garbage collection and compaction don't load untouched buckets
+		Set<String> collected = measurement.collectGarbage(null);
+		assertEquals(6, collected.size());
+		measurement.compact();
+		assertEquals(2, series.getBucketMap().size());
+		for (Field field : fields) {
+			assertFalse(((LazyField) field).isLoaded());
+		}
+		for (Map<String, Field> map : series.getBucketMap().values()) {
+			for (Field field : map.values()) {
+				assertTrue(field instanceof LazyField);
+			}
+		}
+		List<SeriesOutput> resultMap = new ArrayList<>();
+		measurement.queryDataPoints("value", ts, ts + 5 * 4096L * 1000, null, null, resultMap, null);
+		assertEquals(2, resultMap.get(0).getDataPoints().size());
+		measurement.close();
+	}
+
+	@Test
+	public void testReorderWindowRefusesDurability() throws Exception {
+		Map<String, String> conf = new HashMap<>();
+		conf.put(StorageEngine.REORDER_WINDOW, "3600000");
+		for (String mode : Arrays.asList("periodic", "group-commit")) {
+			conf.put(DiskMalloc.CONF_DURABILITY, mode);
+			try {
+				measurement.configure(conf, null, 4096, DBNAME, "m1", indexDir, dataDir, metadata, bgTaskPool);
+				fail("Buffered rows can't be made durable with mode:" + mode);
+			} catch (IllegalArgumentException e) {
+			}
+		}
+		conf.put(DiskMalloc.CONF_DURABILITY, "none");
+		measurement.configure(conf, null, 4096, DBNAME, "m1", indexDir, dataDir, metadata, bgTaskPool);
 		measurement.close();
 	}
 
+	@Test
+	public void testReorderFlushOnClose() throws Exception {
+		long ts = System.currentTimeMillis();
+		List<Tag> tags = Arrays.asList(Tag.newBuilder().setTagKey("test").setTagValue("1").build());
+		Map<String, String> conf = new HashMap<>();
+		conf.put(DiskMalloc.CONF_MEASUREMENT_FILE_MAX, String.valueOf(2 * 1024 * 1024));
+		conf.put(StorageEngine.REORDER_WINDOW, "3600000");
+		measurement.configure(conf, null, 4096, DBNAME, "m1", indexDir, dataDir, metadata, bgTaskPool);
+		int LIMIT = 100;
+		for (int i = 0; i < LIMIT; i++) {
+			measurement.addPointLocked(MiscUtils.buildDataPoint(DBNAME, "m1", "value", tags, ts + i, 1L), true);
+		}
+		// rows are still held by the reorder buffer
+		assertEquals(0, measurement.getSeriesList().get(0).getBucketMap().size());
+		measurement.close();
+
+		measurement.configure(conf, null, 4096, DBNAME, "m1", indexDir, dataDir, metadata, bgTaskPool);
+		List<SeriesOutput> resultMap = new ArrayList<>();
+		measurement.queryDataPoints("value", ts, ts + LIMIT, null, null, resultMap, null);
+		assertEquals(LIMIT, resultMap.get(0).getDataPoints().size());
+		measurement.close();
+	}
+
+	@Test
+	public void testDurabilityModes() throws Exception {
+		long ts = System.currentTimeMillis();
+		List<Tag> tags = Arrays.asList(Tag.newBuilder().setTagKey("test").setTagValue("1").build());
+		Map<String, String> conf = new HashMap<>();
+		conf.put(DiskMalloc.CONF_MEASUREMENT_FILE_MAX, String.valueOf(2 * 1024 * 1024));
+		final int LIMIT = 1000;
+		List<Point> batch = new ArrayList<>();
+		for (int i = 0; i < LIMIT; i++) {
+			batch.add(MiscUtils.buildDataPoint(DBNAME, "m1", "value", tags, ts + i, 1L));
+		}
+
+		// none never forces
+		conf.put(DiskMalloc.CONF_DURABILITY, "none");
+		measurement.configure(conf, null, 4096, DBNAME, "m1", indexDir, dataDir, metadata, bgTaskPool);
+		DiskMalloc malloc = (DiskMalloc) measurement.getMalloc();
+		measurement.addPoints(batch);
+		measurement.sync();
+		assertEquals(0, malloc.getForceCount());
+		measurement.close();
+
+		// periodic forces in the background, syncs don't block on a force
+		conf.put(DiskMalloc.CONF_DURABILITY, "periodic");
+		conf.put(DiskMalloc.CONF_DURABILITY_INTERVAL, "3600000");
+		measurement.configure(conf, null, 4096, DBNAME, "m2", indexDir, dataDir, metadata, bgTaskPool);
+		malloc = (DiskMalloc) measurement.getMalloc();
+		measurement.addPoints(batch);
+		measurement.sync();
+		assertEquals(0, malloc.getForceCount());
+		measurement.close();
+		conf.put(DiskMalloc.CONF_DURABILITY_INTERVAL, "10");
+		measurement.configure(conf, null, 4096, DBNAME, "m3", indexDir, dataDir, metadata, bgTaskPool);
+		malloc = (DiskMalloc) measurement.getMalloc();
+		measurement.addPoints(batch);
+		for (int i = 0; i < 500 && malloc.getForceCount() == 0; i++) {
+			Thread.sleep(10);
+		}
+		assertTrue(malloc.getForceCount() > 0);
+		measurement.close();
+
+		// group commit forces once per synced batch, adding points doesn't force
+		conf.put(DiskMalloc.CONF_DURABILITY, "group-commit");
+		measurement.configure(conf, null, 4096, DBNAME, "m4", indexDir, dataDir, metadata, bgTaskPool);
+		malloc = (DiskMalloc) measurement.getMalloc();
+		assertEquals(DiskMalloc.Durability.GROUP_COMMIT, malloc.getDurability());
+		measurement.addPoints(batch);
+		assertEquals(0, malloc.getForceCount());
+		measurement.sync();
+		assertEquals(1, malloc.getForceCount());
+
+		// concurrent writers share forces
+		ExecutorService es = Executors.newFixedThreadPool(4);
+		List<Future<?>> futures = new ArrayList<>();
+		final int SYNCS = 100;
+		for (int t = 0; t < 4; t++) {
+			final int th = t;
+			futures.add(es.submit(() -> {
+				for (int i = 0; i < SYNCS; i++) {
+					measurement.addPointLocked(
+							MiscUtils.buildDataPoint(DBNAME, "m1", "value" + th, tags, ts + i, 1L), true);
+					measurement.sync();
+				}
+				return null;
+			}));
+		}
+		for (Future<?> future : futures) {
+			future.get();
+		}
+		es.shutdown();
+		long forces = malloc.getForceCount() - 1;
+		assertTrue(forces > 0 && forces <= 4 * SYNCS);
+		measurement.close();
+
+		measurement.configure(conf, null, 4096, DBNAME, "m4", indexDir, dataDir, metadata, bgTaskPool);
+		List<SeriesOutput> resultMap = new ArrayList<>();
+		measurement.queryDataPoints("value.*", ts, ts + LIMIT, null, null, resultMap, null);
+		assertEquals(5, resultMap.size());
+		for (SeriesOutput output : resultMap) {
+			assertEquals(output.getValueFieldName().equals("value") ? LIMIT : SYNCS, output.getDataPoints().size());
+		}
+		measurement.close();
+
+		conf.put(DiskMalloc.CONF_DURABILITY, "always");
+		try {
+			DiskMalloc.getDurability(conf);
+			fail("Unknown durability mode must be rejected");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
 	@Test
 	public void testDataPointsRecovery() throws Exception {
 		long ts = System.currentTimeMillis();
@@ -139,6 +409,59 @@ public class TestPersistentMeasurement {
 		measurement.close();
 	}
 
+	@Test
+	public void testTieredStorage() throws Exception {
+		long ts = System.currentTimeMillis();
+		long coldTs = ts - 3 * 4096 * 1000L;
+		List<Tag> tags = Arrays.asList(Tag.newBuilder().setTagKey("test").setTagValue("1").build());
+		Map<String, String> conf = new HashMap<>();
+		conf.put(DiskMalloc.CONF_MEASUREMENT_FILE_MAX, String.valueOf(2 * 1024 * 1024));
+		conf.put(TieredMalloc.CONF_HOT_BUCKETS, "1");
+		measurement.configure(conf, null, 4096, DBNAME, "m1", indexDir, dataDir, metadata, bgTaskPool);
+		assertTrue(measurement.getMalloc() instanceof TieredMalloc);
+		int LIMIT = 100;
+		for (int i = 0; i < LIMIT; i++) {
+			measurement.addPointLocked(TestMeasurement.build("value", tags, coldTs + i * 1000, 1L), false);
+			measurement.addPointLocked(TestMeasurement.build("value", tags, ts + i * 1000, 1L), false);
+		}
+		int boundary = ((TieredMalloc) measurement.getMalloc()).getColdBoundary();
+		Series series = measurement.getSeriesList().get(0);
+		for (Entry<Integer, Map<String, Field>> entry : series.getBucketMap().entrySet()) {
+			for (Field field : entry.getValue().values()) {
+				for (Writer writer : field.getWriters()) {
+					assertEquals(entry.getKey() >= boundary, TieredMalloc.isHot(writer));
+				}
+			}
+		}
+		List<SeriesOutput> resultMap = new ArrayList<>();
+		measurement.queryDataPoints("value", coldTs, ts + 1000 * LIMIT, null, null, resultMap, null);
+		assertEquals(2 * LIMIT, resultMap.get(0).getDataPoints().size());
+
+		// hot buckets are migrated to disk on close
+		measurement.close();
+		measurement.configure(conf, null, 4096, DBNAME, "m1", indexDir, dataDir, metadata, bgTaskPool);
+		series = measurement.getSeriesList().get(0);
+		for (Map<String, Field> map : series.getBucketMap().values()) {
+			for (Field field : map.values()) {
+				for (Writer writer : field.getWriters()) {
+					assertTrue(!TieredMalloc.isHot(writer));
+				}
+			}
+		}
+		resultMap.clear();
+		measurement.queryDataPoints("value", coldTs, ts + 1000 * LIMIT, null, null, resultMap, null);
+		assertEquals(2 * LIMIT, resultMap.get(0).getDataPoints().size());
+		measurement.close();
+
+		// hot buckets can't be forced
+		conf.put(DiskMalloc.CONF_DURABILITY, "group-commit");
+		try {
+			measurement.configure(conf, null, 4096, DBNAME, "m1", indexDir, dataDir, metadata, bgTaskPool);
+			fail("Strict durability must be refused with tiered storage");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
 	@Test
 	public void testCompaction() throws IOException {
 		final long ts = 1484788896586L;
@@ -0,0 +1,151 @@
+/**
+ * Copyright Ambud Sharma
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.srotya.sidewinder.core.storage.disk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import com.srotya.sidewinder.core.storage.ByteString;
+import com.srotya.sidewinder.core.utils.MiscUtils;
+
+/**
+ * @author ambud
+ */
+public class TestSeriesDictionary {
+
+	@Test
+	public void testAppendAndLoad() throws IOException {
+		MiscUtils.delete(new File("target/sd1"));
+		new File("target/sd1").mkdirs();
+		File file = new File("target/sd1/" + SeriesDictionary.DICTIONARY_FILE);
+		SeriesDictionary dictionary = new SeriesDictionary(file);
+		assertTrue(dictionary.isEmpty());
+		for (int i = 0; i < 1000; i++) {
+			dictionary.appendSeries(i, new ByteString("host=" + i + "^dc=test"));
+		}
+		dictionary.appendField("value", true);
+		dictionary.appendField("count", false);
+		dictionary.close();
+
+		CollectingListener listener = new CollectingListener();
+		dictionary = new SeriesDictionary(file);
+		dictionary.load(listener);
+		assertEquals(1000, listener.seriesHint);
+		assertEquals(2, listener.fieldHint);
+		assertEquals(1000, listener.series.size());
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(new ByteString("host=" + i + "^dc=test"), listener.series.get(i));
+		}
+		assertEquals(true, listener.fields.get("value"));
+		assertEquals(false, listener.fields.get("count"));
+		dictionary.close();
+	}
+
+	@Test
+	public void testTornTailTruncation() throws IOException {
+		MiscUtils.delete(new File("target/sd2"));
+		new File("target/sd2").mkdirs();
+		File file = new File("target/sd2/" + SeriesDictionary.DICTIONARY_FILE);
+		SeriesDictionary dictionary = new SeriesDictionary(file);
+		dictionary.appendSeries(0, new ByteString("host=a"));
+		dictionary.appendSeries(1, new ByteString("host=b"));
+		dictionary.close();
+		long validLength = file.length();
+
+		dictionary = new SeriesDictionary(file);
+		dictionary.appendSeries(2, new ByteString("host=c"));
+		dictionary.close();
+		// simulate a crash in the middle of the last append
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(file.length() - 3);
+		}
+
+		CollectingListener listener = new CollectingListener();
+		dictionary = new SeriesDictionary(file);
+		dictionary.load(listener);
+		assertEquals(2, listener.series.size());
+		assertEquals(validLength, file.length());
+
+		// new records must land after the truncated tail
+		dictionary.appendSeries(2, new ByteString("host=d"));
+		dictionary.close();
+		listener = new CollectingListener();
+		dictionary = new SeriesDictionary(file);
+		dictionary.load(listener);
+		assertEquals(3, listener.series.size());
+		assertEquals(new ByteString("host=d"), listener.series.get(2));
+		dictionary.close();
+	}
+
+	@Test
+	public void testCorruptRecord() throws IOException {
+		MiscUtils.delete(new File("target/sd3"));
+		new File("target/sd3").mkdirs();
+		File file = new File("target/sd3/" + SeriesDictionary.DICTIONARY_FILE);
+		SeriesDictionary dictionary = new SeriesDictionary(file);
+		dictionary.appendSeries(0, new ByteString("host=a"));
+		dictionary.appendSeries(1, new ByteString("host=b"));
+		dictionary.close();
+		// flip the last byte of the last record
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(file.length() - 1);
+			raf.write('x');
+		}
+		CollectingListener listener = new CollectingListener();
+		dictionary = new SeriesDictionary(file);
+		dictionary.load(listener);
+		assertEquals(1, listener.series.size());
+		assertEquals(new ByteString("host=a"), listener.series.get(0));
+		dictionary.close();
+	}
+
+	private static class CollectingListener implements SeriesDictionary.Listener {
+
+		private int seriesHint;
+		private int fieldHint;
+		private List<ByteString> series = new ArrayList<>();
+		private Map<String, Boolean> fields = new TreeMap<>();
+
+		@Override
+		public void sizeHint(int seriesCount, int fieldCount) {
+			seriesHint = seriesCount;
+			fieldHint = fieldCount;
+		}
+
+		@Override
+		public void series(int ordinal, ByteString seriesId) throws IOException {
+			assertEquals(series.size(), ordinal);
+			series.add(seriesId);
+		}
+
+		@Override
+		public void field(String fieldName, boolean fp) {
+			fields.put(fieldName, fp);
+		}
+
+	}
+
+}
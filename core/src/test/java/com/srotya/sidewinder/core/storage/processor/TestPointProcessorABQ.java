@@ -0,0 +1,175 @@
+/**
+ * Copyright Ambud Sharma
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.srotya.sidewinder.core.storage.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import com.srotya.sidewinder.core.rpc.Point;
+import com.srotya.sidewinder.core.rpc.Tag;
+import com.srotya.sidewinder.core.storage.RejectException;
+import com.srotya.sidewinder.core.storage.SeriesOutput;
+import com.srotya.sidewinder.core.storage.StorageEngine;
+import com.srotya.sidewinder.core.storage.mem.MemStorageEngine;
+import com.srotya.sidewinder.core.utils.MiscUtils;
+
+/**
+ * @author ambud
+ */
+public class TestPointProcessorABQ {
+
+	@Test
+	public void testJumpConsistentHash() {
+		for (long key = 0; key < 10000; key++) {
+			int shard = PointProcessorABQ.jumpConsistentHash(key * 0x9E3779B97F4A7C15L, 8);
+			assertTrue(shard >= 0 && shard < 8);
+			int grown = PointProcessorABQ.jumpConsistentHash(key * 0x9E3779B97F4A7C15L, 9);
+			// keys either stay or move to the new shard
+			assertTrue(grown == shard || grown == 8);
+		}
+	}
+
+	@Test
+	public void testShardConsistency() throws Exception {
+		StorageEngine engine = new MemStorageEngine();
+		Map<String, String> conf = new HashMap<>();
+		conf.put(PointProcessorABQ.WRITER_SHARD_COUNT, "4");
+		engine.configure(conf, Executors.newScheduledThreadPool(1));
+		PointProcessorABQ processor = new PointProcessorABQ(engine, conf);
+		Tag t1 = Tag.newBuilder().setTagKey("host").setTagValue("1").build();
+		Tag t2 = Tag.newBuilder().setTagKey("dc").setTagValue("a").build();
+		Point p1 = MiscUtils.buildDataPoint("test", "cpu", "usage", Arrays.asList(t1, t2), 1497720452566L, 1L);
+		Point p2 = MiscUtils.buildDataPoint("test", "cpu", "usage", Arrays.asList(t2, t1), 1497720452567L, 2L);
+		assertEquals(PointProcessorABQ.seriesHash(p1), PointProcessorABQ.seriesHash(p2));
+		assertEquals(processor.shardFor(p1), processor.shardFor(p2));
+		Point p3 = MiscUtils.buildDataPoint("test", "mem", "usage", Arrays.asList(t1, t2), 1497720452566L, 1L);
+		assertTrue(PointProcessorABQ.seriesHash(p1) != PointProcessorABQ.seriesHash(p3));
+		processor.shutdown();
+	}
+
+	@Test
+	public void testWriteThrough() throws Exception {
+		StorageEngine engine = new MemStorageEngine();
+		Map<String, String> conf = new HashMap<>();
+		conf.put(PointProcessorABQ.WRITER_SHARD_COUNT, "3");
+		conf.put(PointProcessorABQ.WRITER_SHARD_BATCH_SIZE, "7");
+		engine.configure(conf, Executors.newScheduledThreadPool(1));
+		PointProcessorABQ processor = new PointProcessorABQ(engine, conf);
+		long ts = 1497720452566L;
+		List<Point> points = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			Tag tag = Tag.newBuilder().setTagKey("host").setTagValue(String.valueOf(i % 10)).build();
+			points.add(MiscUtils.buildDataPoint("test", "cpu", "usage", Arrays.asList(tag), ts + i, i));
+		}
+		processor.writeDataPoints(points);
+		processor.writeDataPoint(
+				MiscUtils.buildDataPoint("test", "cpu", "usage", Arrays.asList(Tag.newBuilder().setTagKey("host")
+						.setTagValue("10").build()), ts, 1L));
+		processor.shutdown();
+		List<SeriesOutput> result = engine.queryDataPoints("test", "cpu", "usage", ts, ts + 1000, null);
+		assertEquals(11, result.size());
+		int count = 0;
+		for (SeriesOutput output : result) {
+			count += output.getDataPoints().size();
+		}
+		assertEquals(1001, count);
+		try {
+			processor = new PointProcessorABQ(engine, conf);
+			processor.writeDataPoint(
+					Point.newBuilder().setDbName("test").setMeasurementName("cpu").addValue(1L).build());
+			fail("Invalid point must be rejected");
+		} catch (RejectException e) {
+		} catch (IOException e) {
+			fail("Invalid point must be rejected with a RejectException");
+		} finally {
+			processor.shutdown();
+		}
+	}
+
+	@Test
+	public void testWriteFailureAndShutdown() throws Exception {
+		StorageEngine engine = new MemStorageEngine() {
+			@Override
+			public void writeDataPoints(List<Point> points) throws IOException {
+				throw new IOException("Failed write");
+			}
+		};
+		Map<String, String> conf = new HashMap<>();
+		conf.put(PointProcessorABQ.WRITER_SHARD_COUNT, "2");
+		engine.configure(conf, Executors.newScheduledThreadPool(1));
+		PointProcessorABQ processor = new PointProcessorABQ(engine, conf);
+		Point point = MiscUtils.buildDataPoint("test", "cpu", "usage",
+				Arrays.asList(Tag.newBuilder().setTagKey("host").setTagValue("1").build()), 1497720452566L, 1L);
+		try {
+			processor.writeDataPoints(Arrays.asList(point));
+			fail("Failed writes must be reported to the caller");
+		} catch (IOException e) {
+			assertEquals("Failed write", e.getMessage());
+		}
+		CompletableFuture<Void> future = processor.writeDataPointsAsync(Arrays.asList(point));
+		try {
+			future.get();
+			fail("Failed writes must complete the future exceptionally");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+		processor.shutdown();
+		try {
+			processor.writeDataPoint(point);
+			fail("Writes must be rejected after shutdown");
+		} catch (RejectException e) {
+		}
+	}
+
+	@Test
+	public void testShutdownDrains() throws Exception {
+		StorageEngine engine = new MemStorageEngine();
+		Map<String, String> conf = new HashMap<>();
+		conf.put(PointProcessorABQ.WRITER_SHARD_COUNT, "2");
+		engine.configure(conf, Executors.newScheduledThreadPool(1));
+		PointProcessorABQ processor = new PointProcessorABQ(engine, conf);
+		long ts = 1497720452566L;
+		List<CompletableFuture<Void>> futures = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			Tag tag = Tag.newBuilder().setTagKey("host").setTagValue(String.valueOf(i % 10)).build();
+			futures.add(processor.writeDataPointsAsync(
+					Arrays.asList(MiscUtils.buildDataPoint("test", "cpu", "usage", Arrays.asList(tag), ts + i, i))));
+		}
+		processor.shutdown();
+		for (CompletableFuture<Void> future : futures) {
+			assertTrue(future.isDone() && !future.isCompletedExceptionally());
+		}
+		int count = 0;
+		for (SeriesOutput output : engine.queryDataPoints("test", "cpu", "usage", ts, ts + 100, null)) {
+			count += output.getDataPoints().size();
+		}
+		assertEquals(100, count);
+	}
+
+}
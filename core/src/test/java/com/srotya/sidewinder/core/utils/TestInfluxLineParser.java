@@ -0,0 +1,124 @@
+/**
+ * Copyright Ambud Sharma
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.srotya.sidewinder.core.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.srotya.sidewinder.core.rpc.Point;
+
+/**
+ * Unit tests for {@link InfluxLineParser}
+ * 
+ * @author ambud
+ */
+public class TestInfluxLineParser {
+
+	@Test
+	public void testFieldTypes() {
+		InfluxLineParser parser = new InfluxLineParser();
+		List<Point> points = new ArrayList<>();
+		int rejected = parser.parse("test",
+				"cpu,host=a usage=-0.25,count=12i,up=true,down=F,big=1.5e3,name=\"x y\" 1434055562000".getBytes(),
+				points);
+		assertEquals(0, rejected);
+		assertEquals(1, points.size());
+		Point point = points.get(0);
+		assertEquals(1434055562000L, point.getTimestamp());
+		assertEquals(5, point.getValueCount());
+		assertEquals(-0.25, Double.longBitsToDouble(point.getValue(0)), 0);
+		assertTrue(point.getFp(0));
+		assertEquals(12, point.getValue(1));
+		assertFalse(point.getFp(1));
+		assertEquals(1, point.getValue(2));
+		assertEquals(0, point.getValue(3));
+		assertEquals(1500, Double.longBitsToDouble(point.getValue(4)), 0);
+		assertEquals("big", point.getValueFieldName(4));
+	}
+
+	@Test
+	public void testFloatParsing() {
+		InfluxLineParser parser = new InfluxLineParser();
+		String[] values = new String[] { "0.1", "1.", "123456.789", "-3.14159", "0.000001234", "12345678901234567.5",
+				"1E-7" };
+		for (String value : values) {
+			List<Point> points = new ArrayList<>();
+			parser.parse("test", ("cpu value=" + value + " 1").getBytes(), points);
+			assertEquals(value, Double.parseDouble(value), Double.longBitsToDouble(points.get(0).getValue(0)), 0);
+		}
+	}
+
+	@Test
+	public void testEscapes() {
+		InfluxLineParser parser = new InfluxLineParser();
+		List<Point> points = new ArrayList<>();
+		parser.parse("test", "cpu\\ load,host\\ name=a\\,b,dc=x=y field\\=1=1i 1".getBytes(), points);
+		assertEquals(1, points.size());
+		Point point = points.get(0);
+		assertEquals("cpu load", point.getMeasurementName());
+		assertEquals("host name", point.getTags(0).getTagKey());
+		assertEquals("a,b", point.getTags(0).getTagValue());
+		assertEquals("x=y", point.getTags(1).getTagValue());
+		assertEquals("field=1", point.getValueFieldName(0));
+	}
+
+	@Test
+	public void testRejectsAndComments() {
+		InfluxLineParser parser = new InfluxLineParser();
+		List<Point> points = new ArrayList<>();
+		String payload = "# comment\r\ncpu value=1i 1\r\ncpu\ncpu value=abc 1\ncpu value=1i 1x\n\ncpu,host value=1 1\n";
+		assertEquals(4, parser.parse("test", payload.getBytes(), points));
+		assertEquals(1, points.size());
+	}
+
+	@Test
+	public void testMissingDbName() {
+		InfluxLineParser parser = new InfluxLineParser();
+		List<Point> points = new ArrayList<>();
+		try {
+			parser.parse(null, "cpu value=1i 1".getBytes(), points);
+			fail("Parsing without a database name must fail");
+		} catch (IllegalArgumentException e) {
+		}
+		assertEquals(0, points.size());
+	}
+
+	@Test
+	public void testPartialLines() {
+		InfluxLineParser parser = new InfluxLineParser();
+		List<Point> points = new ArrayList<>();
+		byte[] payload = "cpu,host=a value=1i 1\ncpu,host=a value=2i 2\ncpu,host=a va".getBytes(StandardCharsets.UTF_8);
+		int consumed = parser.parse("test", payload, 0, payload.length, false, points);
+		assertEquals(2, points.size());
+		assertEquals("cpu,host=a value=1i 1\ncpu,host=a value=2i 2\n".length(), consumed);
+		// repeated tags are served from the cache
+		assertSame(points.get(0).getTags(0), points.get(1).getTags(0));
+		assertSame(points.get(0).getMeasurementName(), points.get(1).getMeasurementName());
+		assertEquals(payload.length, parser.parse("test", payload, consumed, payload.length - consumed, true, points));
+		assertEquals(2, points.size());
+		assertEquals(1, parser.getRejected());
+	}
+
+}
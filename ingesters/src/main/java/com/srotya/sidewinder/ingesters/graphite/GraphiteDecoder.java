@@ -21,35 +21,48 @@ import java.util.List;
 import java.util.logging.Logger;
 
 import com.codahale.metrics.Counter;
-import com.srotya.sidewinder.core.rpc.Tag;
-import com.srotya.sidewinder.core.storage.Measurement;
+import com.srotya.sidewinder.core.rpc.Point;
 import com.srotya.sidewinder.core.storage.RejectException;
-import com.srotya.sidewinder.core.storage.StorageEngine;
-import com.srotya.sidewinder.core.utils.MiscUtils;
+import com.srotya.sidewinder.core.storage.processor.PointProcessor;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.DatagramPacket;
 
 /**
  * http://graphite.readthedocs.io/en/latest/feeding-carbon.html#the-plaintext-protocol
  * metricpath metricvalue metrictimestamp
  * 
+ * Accepts line frames (TCP) or datagrams containing one or more lines (UDP).
+ * Parsed points are accumulated per connection and written as a batch once
+ * batchSize points are pending or the current read burst completes.
+ * 
  * @author ambud
  */
-public class GraphiteDecoder extends SimpleChannelInboundHandler<String> {
+public class GraphiteDecoder extends SimpleChannelInboundHandler<Object> {
 
-	private static final RejectException BAD_TAG_EXCEPTION = new RejectException("Bad tag");
+	public static final int DEFAULT_BATCH_SIZE = 1000;
 	private static final Logger logger = Logger.getLogger(GraphiteDecoder.class.getName());
-	private StorageEngine storageEngine;
+	private PointProcessor processor;
 	private String dbName;
 	private Counter writeCounter;
+	private int batchSize;
+	private GraphiteParser parser = new GraphiteParser();
+	private List<Point> batch = new ArrayList<>();
+	private byte[] scratch = new byte[1024];
+
+	public GraphiteDecoder(String dbName, PointProcessor processor, Counter writeCounter) {
+		this(dbName, processor, writeCounter, DEFAULT_BATCH_SIZE);
+	}
 
-	public GraphiteDecoder(String dbName, StorageEngine storageEngine, Counter writeCounter) {
+	public GraphiteDecoder(String dbName, PointProcessor processor, Counter writeCounter, int batchSize) {
 		this.dbName = dbName;
-		this.storageEngine = storageEngine;
+		this.processor = processor;
 		this.writeCounter = writeCounter;
+		this.batchSize = batchSize;
 	}
 
 	@Override
@@ -58,57 +71,69 @@ public class GraphiteDecoder extends SimpleChannelInboundHandler<String> {
 	}
 
 	@Override
-	protected void channelRead0(ChannelHandlerContext ctx, String msg) throws Exception {
-		logger.fine("Graphite input:" + msg);
-		if (writeCounter != null) {
-			writeCounter.inc();
+	protected void channelRead0(ChannelHandlerContext ctx, Object msg) throws Exception {
+		ByteBuf buf;
+		if (msg instanceof DatagramPacket) {
+			buf = ((DatagramPacket) msg).content();
+		} else if (msg instanceof ByteBuf) {
+			buf = (ByteBuf) msg;
+		} else {
+			return;
+		}
+		int length = buf.readableBytes();
+		byte[] data;
+		int offset;
+		if (buf.hasArray()) {
+			data = buf.array();
+			offset = buf.arrayOffset() + buf.readerIndex();
+		} else {
+			if (scratch.length < length) {
+				scratch = new byte[Math.max(length, scratch.length * 2)];
+			}
+			buf.getBytes(buf.readerIndex(), scratch, 0, length);
+			data = scratch;
+			offset = 0;
+		}
+		parser.parse(dbName, data, offset, length, batch);
+		if (batch.size() >= batchSize) {
+			flush();
 		}
-		parseAndInsertDataPoints(dbName, msg, storageEngine);
 	}
 
-	public static void parseAndInsertDataPoints(String dbName, String line, StorageEngine storageEngine)
-			throws IOException {
-		String[] parts = line.split("\\s+");
-		if (parts.length != 3) {
-			// invalid data point
-			logger.fine("Ignoring bad metric:" + line);
+	@Override
+	public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+		flush();
+		super.channelReadComplete(ctx);
+	}
+
+	@Override
+	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+		flush();
+		super.channelInactive(ctx);
+	}
+
+	private void flush() throws InterruptedException {
+		if (batch.isEmpty()) {
 			return;
 		}
-		String[] key = parts[0].split("\\.");
-		String measurementName, valueFieldName;
-		List<Tag> tags = new ArrayList<>();
-		switch (key.length) {
-		case 0:// invalid metric
-		case 1:// invalid metric
-		case 2:
-			logger.fine("Ignoring bad metric:" + line);
-			return;
-		default:
-			measurementName = key[key.length - 2];
-			valueFieldName = key[key.length - 1];
-			for (int i = 0; i < key.length - 2; i++) {
-				String[] split = key[i].split(Measurement.TAG_KV_SEPARATOR);
-				if (split.length != 2) {
-					throw BAD_TAG_EXCEPTION;
+		if (writeCounter != null) {
+			writeCounter.inc(batch.size());
+		}
+		try {
+			processor.writeDataPoints(batch);
+		} catch (RejectException e) {
+			// isolate the points that failed validation
+			for (Point point : batch) {
+				try {
+					processor.writeDataPoint(point);
+				} catch (IOException ex) {
+					logger.fine("Dropped graphite metric:" + point + "\t" + ex.getMessage());
 				}
-				tags.add(Tag.newBuilder().setTagKey(split[0]).setTagValue(split[1]).build());
 			}
-			break;
-		}
-		long timestamp = Long.parseLong(parts[2]) * 1000;
-		if (parts[1].contains(".")) {
-			double value = Double.parseDouble(parts[1]);
-			logger.fine("Writing graphite metric (fp)" + dbName + "," + measurementName + "," + valueFieldName + ","
-					+ tags + "," + timestamp + "," + value);
-			storageEngine.writeDataPointLocked(
-					MiscUtils.buildDataPoint(dbName, measurementName, valueFieldName, tags, timestamp, value), false);
-		} else {
-			long value = Long.parseLong(parts[1]);
-			logger.fine("Writing graphite metric (fp)" + dbName + "," + measurementName + "," + valueFieldName + ","
-					+ tags + "," + timestamp + "," + value);
-			storageEngine.writeDataPointLocked(
-					MiscUtils.buildDataPoint(dbName, measurementName, valueFieldName, tags, timestamp, value), false);
+		} catch (IOException e) {
+			logger.fine("Dropped batch of " + batch.size() + " graphite metrics\t" + e.getMessage());
 		}
+		batch = new ArrayList<>(batch.size());
 	}
 
 }
@@ -0,0 +1,225 @@
+/**
+ * Copyright Ambud Sharma
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.srotya.sidewinder.ingesters.graphite;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import com.srotya.sidewinder.core.rpc.Point;
+import com.srotya.sidewinder.core.rpc.Tag;
+import com.srotya.sidewinder.core.utils.BytesCache;
+
+/**
+ * Byte level parser for the Graphite plaintext protocol:
+ * 
+ * <pre>
+ * tagkey=tagvalue...measurement.field value timestamp
+ * </pre>
+ * 
+ * The decoded measurement, field and tags of a metric path are cached by the
+ * bytes of the path, so repeated metrics are parsed without splitting strings
+ * or building tags.
+ * 
+ * Instances are not thread-safe and are meant to be used by a single
+ * connection.
+ * 
+ * @author ambud
+ */
+public class GraphiteParser {
+
+	private static final Logger logger = Logger.getLogger(GraphiteParser.class.getName());
+	private static final int CACHE_SIZE = 4096;
+	private final BytesCache<Metric> metricCache = new BytesCache<>(CACHE_SIZE);
+	private final Point.Builder builder = Point.newBuilder();
+	private byte[] buf;
+
+	/**
+	 * Parse all lines in the supplied range
+	 * 
+	 * @param dbName
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @param points
+	 *            parsed points are added to this list
+	 * @return number of rejected lines
+	 */
+	public int parse(String dbName, byte[] data, int offset, int length, List<Point> points) {
+		this.buf = data;
+		int end = offset + length;
+		int rejected = 0;
+		int lineStart = offset;
+		while (lineStart < end) {
+			int lineEnd = lineStart;
+			while (lineEnd < end && data[lineEnd] != '\n') {
+				lineEnd++;
+			}
+			int trimmedEnd = lineEnd;
+			if (trimmedEnd > lineStart && data[trimmedEnd - 1] == '\r') {
+				trimmedEnd--;
+			}
+			if (trimmedEnd > lineStart) {
+				Point point = parseLine(dbName, lineStart, trimmedEnd);
+				if (point != null) {
+					points.add(point);
+				} else {
+					logRejected(lineStart, trimmedEnd);
+					rejected++;
+				}
+			}
+			lineStart = lineEnd + 1;
+		}
+		return rejected;
+	}
+
+	private Point parseLine(String dbName, int start, int end) {
+		int pathStart = skipSpaces(start, end);
+		int pathEnd = nextSpace(pathStart, end);
+		int valueStart = skipSpaces(pathEnd, end);
+		int valueEnd = nextSpace(valueStart, end);
+		int tsStart = skipSpaces(valueEnd, end);
+		int tsEnd = nextSpace(tsStart, end);
+		if (pathStart == pathEnd || valueStart == valueEnd || tsStart == tsEnd || skipSpaces(tsEnd, end) != end) {
+			return null;
+		}
+		Metric metric = metric(pathStart, pathEnd);
+		if (metric == null) {
+			return null;
+		}
+		try {
+			long timestamp = parseLong(tsStart, tsEnd) * 1000;
+			builder.clear();
+			builder.setDbName(dbName).setMeasurementName(metric.measurementName).addAllTags(metric.tags)
+					.setTimestamp(timestamp).addValueFieldName(metric.valueFieldName);
+			if (isDecimal(valueStart, valueEnd)) {
+				double value = Double
+						.parseDouble(new String(buf, valueStart, valueEnd - valueStart, StandardCharsets.US_ASCII));
+				builder.addFp(true).addValue(Double.doubleToLongBits(value));
+			} else {
+				builder.addFp(false).addValue(parseLong(valueStart, valueEnd));
+			}
+			return builder.build();
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private void logRejected(int start, int end) {
+		logger.fine(() -> "Ignoring bad metric:" + new String(buf, start, end - start, StandardCharsets.UTF_8));
+	}
+
+	private Metric metric(int start, int end) {
+		int hash = BytesCache.hash(buf, start, end);
+		Metric metric = metricCache.get(buf, start, end, hash);
+		if (metric == null) {
+			metric = Metric.parse(new String(buf, start, end - start, StandardCharsets.UTF_8));
+			if (metric == null) {
+				return null;
+			}
+			metricCache.put(buf, start, end, hash, metric);
+		}
+		return metric;
+	}
+
+	private boolean isDecimal(int start, int end) {
+		for (int i = start; i < end; i++) {
+			byte b = buf[i];
+			if (b == '.' || b == 'e' || b == 'E' || b == 'N' || b == 'I') {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private long parseLong(int start, int end) {
+		boolean negative = buf[start] == '-';
+		int i = negative ? start + 1 : start;
+		if (i >= end || end - i > 18) {
+			throw new NumberFormatException();
+		}
+		long value = 0;
+		for (; i < end; i++) {
+			int digit = buf[i] - '0';
+			if (digit < 0 || digit > 9) {
+				throw new NumberFormatException();
+			}
+			value = value * 10 + digit;
+		}
+		return negative ? -value : value;
+	}
+
+	private int skipSpaces(int pos, int end) {
+		while (pos < end && (buf[pos] == ' ' || buf[pos] == '\t')) {
+			pos++;
+		}
+		return pos;
+	}
+
+	private int nextSpace(int pos, int end) {
+		while (pos < end && buf[pos] != ' ' && buf[pos] != '\t') {
+			pos++;
+		}
+		return pos;
+	}
+
+	/**
+	 * Decoded metric path
+	 */
+	private static final class Metric {
+
+		private final String measurementName;
+		private final String valueFieldName;
+		private final List<Tag> tags;
+
+		private Metric(String measurementName, String valueFieldName, List<Tag> tags) {
+			this.measurementName = measurementName;
+			this.valueFieldName = valueFieldName;
+			this.tags = tags;
+		}
+
+		private static Metric parse(String path) {
+			List<String> parts = new ArrayList<>();
+			int start = 0;
+			for (int i = 0; i <= path.length(); i++) {
+				if (i == path.length() || path.charAt(i) == '.') {
+					if (i == start) {
+						return null;
+					}
+					parts.add(path.substring(start, i));
+					start = i + 1;
+				}
+			}
+			if (parts.size() < 3) {
+				return null;
+			}
+			List<Tag> tags = new ArrayList<>(parts.size() - 2);
+			for (int i = 0; i < parts.size() - 2; i++) {
+				String part = parts.get(i);
+				int idx = part.indexOf('=');
+				if (idx <= 0 || idx == part.length() - 1 || part.indexOf('=', idx + 1) >= 0) {
+					return null;
+				}
+				tags.add(Tag.newBuilder().setTagKey(part.substring(0, idx)).setTagValue(part.substring(idx + 1))
+						.build());
+			}
+			return new Metric(parts.get(parts.size() - 2), parts.get(parts.size() - 1), tags);
+		}
+
+	}
+
+}
@@ -22,27 +22,37 @@ import com.codahale.metrics.MetricRegistry;
 import com.srotya.sidewinder.core.external.Ingester;
 import com.srotya.sidewinder.core.monitoring.MetricsRegistryService;
 import com.srotya.sidewinder.core.storage.StorageEngine;
+import com.srotya.sidewinder.core.storage.processor.PointProcessor;
 
+import io.netty.bootstrap.Bootstrap;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.FixedRecvByteBufAllocator;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.LineBasedFrameDecoder;
-import io.netty.handler.codec.string.StringDecoder;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
 
 /**
+ * Graphite plaintext protocol server, listens on TCP and optionally on UDP
+ * 
  * @author ambud
  */
 public class GraphiteServer extends Ingester {
 
-	private StorageEngine storageEngine;
+	public static final String GRAPHITE_BATCH_SIZE = "server.graphite.batch.size";
+	public static final String GRAPHITE_MAX_LINE_SIZE = "server.graphite.max.line.size";
+	public static final String GRAPHITE_UDP_ENABLED = "server.graphite.udp.enabled";
+	public static final String GRAPHITE_UDP_PORT = "server.graphite.udp.port";
+	private static final int MAX_DATAGRAM_SIZE = 65536;
+	private PointProcessor processor;
 	private int serverPort;
 	private Channel channel;
 	private String dbName;
@@ -50,15 +60,26 @@ public class GraphiteServer extends Ingester {
 	private EventLoopGroup workerGroup;
 	private String bindAddress;
 	private Counter writeCounter;
+	private int batchSize;
+	private int maxLineSize;
+	private boolean udpEnabled;
+	private int udpPort;
+	private EventLoopGroup udpGroup;
+	private Channel udpChannel;
 
 	@Override
 	public void init(Map<String, String> conf, StorageEngine storageEngine) {
-		this.storageEngine = storageEngine;
+		this.processor = getPointProcessor(conf, storageEngine);
 		this.serverPort = Integer.parseInt(conf.getOrDefault("server.graphite.port", "8772"));
 		this.bindAddress = conf.getOrDefault("server.graphite.bind", "localhost");
 		this.dbName = conf.getOrDefault("server.graphite.dbname", "graphite");
 		MetricRegistry registry = MetricsRegistryService.getInstance().getInstance("requests");
 		writeCounter = registry.counter("graphite-writes");
+		this.batchSize = Integer.parseInt(
+				conf.getOrDefault(GRAPHITE_BATCH_SIZE, String.valueOf(GraphiteDecoder.DEFAULT_BATCH_SIZE)));
+		this.maxLineSize = Integer.parseInt(conf.getOrDefault(GRAPHITE_MAX_LINE_SIZE, "1024"));
+		this.udpEnabled = Boolean.parseBoolean(conf.getOrDefault(GRAPHITE_UDP_ENABLED, "false"));
+		this.udpPort = Integer.parseInt(conf.getOrDefault(GRAPHITE_UDP_PORT, String.valueOf(serverPort)));
 	}
 	
 	@Override
@@ -74,11 +95,18 @@ public class GraphiteServer extends Ingester {
 					@Override
 					protected void initChannel(SocketChannel ch) throws Exception {
 						ChannelPipeline p = ch.pipeline();
-						p.addLast(workerGroup, new LineBasedFrameDecoder(1024, true, true));
-						p.addLast(workerGroup, new StringDecoder());
-						p.addLast(workerGroup, new GraphiteDecoder(dbName, storageEngine, writeCounter));
+						p.addLast(workerGroup, new LineBasedFrameDecoder(maxLineSize, true, true));
+						p.addLast(workerGroup, new GraphiteDecoder(dbName, processor, writeCounter, batchSize));
 					}
 				}).bind(bindAddress, serverPort).sync().channel();
+		if (udpEnabled) {
+			udpGroup = new NioEventLoopGroup(1);
+			udpChannel = new Bootstrap().group(udpGroup).channel(NioDatagramChannel.class)
+					.option(ChannelOption.SO_RCVBUF, 10485760)
+					.option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(MAX_DATAGRAM_SIZE))
+					.handler(new GraphiteDecoder(dbName, processor, writeCounter, batchSize))
+					.bind(bindAddress, udpPort).sync().channel();
+		}
 	}
 
 	@Override
@@ -86,6 +114,10 @@ public class GraphiteServer extends Ingester {
 		workerGroup.shutdownGracefully().sync();
 		bossGroup.shutdownGracefully().sync();
 		channel.closeFuture().sync();
+		if (udpGroup != null) {
+			udpChannel.close().sync();
+			udpGroup.shutdownGracefully().sync();
+		}
 	}
 
 }
\ No newline at end of file
@@ -18,12 +18,16 @@ package com.srotya.sidewinder.ingesters.influx;
 import static io.netty.handler.codec.http.HttpHeaderNames.CONNECTION;
 import static io.netty.handler.codec.http.HttpHeaderNames.CONTENT_LENGTH;
 import static io.netty.handler.codec.http.HttpHeaderNames.CONTENT_TYPE;
+import static io.netty.handler.codec.http.HttpHeaderNames.RETRY_AFTER;
 import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
 import static io.netty.handler.codec.http.HttpResponseStatus.CONTINUE;
 import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpResponseStatus.TOO_MANY_REQUESTS;
 import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
@@ -36,8 +40,9 @@ import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import com.srotya.sidewinder.core.monitoring.ResourceMonitor;
 import com.srotya.sidewinder.core.rpc.Point;
-import com.srotya.sidewinder.core.storage.StorageEngine;
-import com.srotya.sidewinder.core.utils.InfluxDecoder;
+import com.srotya.sidewinder.core.storage.RejectException;
+import com.srotya.sidewinder.core.storage.processor.PointProcessor;
+import com.srotya.sidewinder.core.utils.InfluxLineParser;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
@@ -58,6 +63,12 @@ import io.netty.util.CharsetUtil;
 /**
  * HTTP Protocol follows an InfluxDB wire format for ease of use with clients.
  * 
+ * Request bodies are processed incrementally, complete lines are parsed as
+ * each chunk arrives and the partial last line is carried over to the next
+ * chunk. Points are written in batches of at most batchSize and a single line
+ * may not exceed maxLineSize bytes, which bounds the memory held per
+ * connection irrespective of the size of the request.
+ * 
  * References:
  * https://netty.io/4.0/xref/io/netty/example/http/snoop/HttpSnoopServerHandler.html
  * 
@@ -65,32 +76,47 @@ import io.netty.util.CharsetUtil;
  */
 public class HTTPDataPointDecoder extends SimpleChannelInboundHandler<Object> {
 
+	public static final int DEFAULT_BATCH_SIZE = 5000;
+	public static final int DEFAULT_MAX_LINE_SIZE = 1024 * 1024;
 	private static final Logger logger = Logger.getLogger(HTTPDataPointDecoder.class.getName());
 	private StringBuilder responseString = new StringBuilder();
 	private HttpRequest request;
-	private StorageEngine engine;
+	private PointProcessor processor;
 	private String dbName;
 	private String path;
-	private StringBuilder requestBuffer = new StringBuilder();
 	private Counter meter;
+	private InfluxLineParser parser = new InfluxLineParser();
+	private List<Point> batch = new ArrayList<>();
+	private int batchSize;
+	private int maxLineSize;
+	private byte[] buffer = new byte[8192];
+	private int bufferLength;
+	private boolean discardLine;
+	private int dropped;
+	private boolean throttled;
+	private long retryAfter;
+
+	public HTTPDataPointDecoder(PointProcessor processor, Counter meter) {
+		this(processor, meter, DEFAULT_BATCH_SIZE, DEFAULT_MAX_LINE_SIZE);
+	}
 
-	public HTTPDataPointDecoder(StorageEngine engine, Counter meter) {
-		this.engine = engine;
+	public HTTPDataPointDecoder(PointProcessor processor, Counter meter, int batchSize, int maxLineSize) {
+		this.processor = processor;
 		this.meter = meter;
+		this.batchSize = batchSize;
+		this.maxLineSize = maxLineSize;
 	}
 
 	@Override
 	protected void channelRead0(ChannelHandlerContext ctx, Object msg) throws Exception {
 		try {
-			if (ResourceMonitor.getInstance().isReject()) {
-				logger.warning("Write rejected, insufficient memory");
-				if (writeResponse(request, ctx)) {
-					ctx.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
-				}
-				return;
-			}
 			if (msg instanceof HttpRequest) {
 				HttpRequest request = this.request = (HttpRequest) msg;
+				resetRequest();
+				dbName = null;
+				// don't bother parsing the body if writes are being shed
+				throttled = ResourceMonitor.getInstance().isReject();
+				retryAfter = 0;
 				if (HttpUtil.is100ContinueExpected(request)) {
 					send100Continue(ctx);
 				}
@@ -121,29 +147,22 @@ public class HTTPDataPointDecoder extends SimpleChannelInboundHandler<Object> {
 			if (msg instanceof HttpContent) {
 				HttpContent httpContent = (HttpContent) msg;
 				ByteBuf byteBuf = httpContent.content();
-				if (byteBuf.isReadable()) {
-					requestBuffer.append(byteBuf.toString(CharsetUtil.UTF_8));
+				boolean last = msg instanceof LastHttpContent;
+				if (dbName != null && !throttled) {
+					decode(byteBuf, last);
 				}
 
-				if (msg instanceof LastHttpContent) {
+				if (last) {
 					if (dbName == null) {
 						responseString.append("Invalid database null");
 						logger.severe("Invalid database null");
-					} else {
-						String payload = requestBuffer.toString();
-						logger.fine("Request:" + payload);
-						List<Point> dps = InfluxDecoder.pointsFromString(dbName, payload);
-						meter.inc(dps.size());
-						for (Point dp : dps) {
-							try {
-								engine.writeDataPointLocked(dp, false);
-								logger.fine("Accepted:" + dp + "\t" + new Date(dp.getTimestamp()));
-							} catch (IOException e) {
-								logger.fine("Dropped:" + dp + "\t" + e.getMessage());
-								responseString.append("Dropped:" + dp);
-							}
-						}
+					} else if (throttled) {
+						responseString.append("Write rejected, server overloaded or database over quota");
+						logger.warning("Write rejected for database:" + dbName);
+					} else if (dropped > 0) {
+						responseString.append("Dropped:" + dropped);
 					}
+					resetRequest();
 					if (writeResponse(request, ctx)) {
 						ctx.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
 					}
@@ -154,16 +173,104 @@ public class HTTPDataPointDecoder extends SimpleChannelInboundHandler<Object> {
 		}
 	}
 
-	@Override
-	public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
-		ctx.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+	/**
+	 * Append the chunk to the carried over partial line, parse and write all
+	 * complete lines and keep the remainder for the next chunk
+	 * 
+	 * @param byteBuf
+	 * @param last
+	 * @throws InterruptedException
+	 */
+	private void decode(ByteBuf byteBuf, boolean last) throws InterruptedException {
+		int readable = byteBuf.readableBytes();
+		if (discardLine) {
+			// skip the rest of an oversized line
+			int newLine = byteBuf.indexOf(byteBuf.readerIndex(), byteBuf.writerIndex(), (byte) '\n');
+			if (newLine < 0) {
+				readable = 0;
+			} else {
+				byteBuf.skipBytes(newLine + 1 - byteBuf.readerIndex());
+				readable = byteBuf.readableBytes();
+				discardLine = false;
+			}
+		}
+		if (bufferLength + readable > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, bufferLength + readable));
+		}
+		byteBuf.getBytes(byteBuf.readerIndex(), buffer, bufferLength, readable);
+		bufferLength += readable;
+		// chunks are bounded by the HttpRequestDecoder so a chunk's worth of lines
+		// is parsed at a time
+		int offset = parser.parse(dbName, buffer, 0, bufferLength, last, batch);
+		dropped += parser.getRejected();
+		if (batch.size() >= batchSize || last) {
+			flush();
+		}
+		int remaining = bufferLength - offset;
+		if (remaining > maxLineSize) {
+			// no line feed within the limit
+			logger.fine("Dropped line exceeding " + maxLineSize + " bytes");
+			dropped++;
+			discardLine = true;
+			remaining = 0;
+		} else if (offset > 0) {
+			System.arraycopy(buffer, offset, buffer, 0, remaining);
+		}
+		bufferLength = remaining;
+		if (buffer.length > maxLineSize && bufferLength < maxLineSize / 2) {
+			// release memory held for large lines
+			buffer = Arrays.copyOf(buffer, Math.max(8192, bufferLength));
+		}
+	}
+
+	private void flush() throws InterruptedException {
+		if (batch.isEmpty()) {
+			return;
+		}
+		long delay = ResourceMonitor.getInstance().tryAdmit(dbName, batch.size());
+		if (delay > 0) {
+			throttled = true;
+			retryAfter = Math.max(retryAfter, delay);
+			dropped += batch.size();
+			batch.clear();
+			return;
+		}
+		meter.inc(batch.size());
+		try {
+			processor.writeDataPoints(batch);
+		} catch (RejectException e) {
+			// batch failed validation, write points individually to isolate the bad ones
+			for (Point dp : batch) {
+				try {
+					processor.writeDataPoint(dp);
+					logger.fine("Accepted:" + dp + "\t" + new Date(dp.getTimestamp()));
+				} catch (IOException ex) {
+					logger.fine("Dropped:" + dp + "\t" + ex.getMessage());
+					dropped++;
+				}
+			}
+		} catch (IOException e) {
+			logger.fine("Dropped batch of " + batch.size() + " points\t" + e.getMessage());
+			dropped += batch.size();
+		}
+		batch = new ArrayList<>(Math.min(batch.size(), batchSize));
+	}
+
+	private void resetRequest() {
+		batch.clear();
+		bufferLength = 0;
+		discardLine = false;
+		dropped = 0;
 	}
 
 	private boolean writeResponse(HttpObject httpObject, ChannelHandlerContext ctx) {
 		FullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1,
-				httpObject.decoderResult().isSuccess() ? OK : BAD_REQUEST,
+				throttled ? TOO_MANY_REQUESTS : httpObject.decoderResult().isSuccess() ? OK : BAD_REQUEST,
 				Unpooled.copiedBuffer(responseString.toString().toString(), CharsetUtil.UTF_8));
 		response.headers().set(CONTENT_TYPE, "text/plain; charset=UTF-8");
+		if (throttled) {
+			response.headers().set(RETRY_AFTER, ResourceMonitor.toRetryAfterSeconds(retryAfter));
+		}
 
 		response.headers().set(CONTENT_LENGTH, response.content().readableBytes());
 		response.headers().set(CONNECTION, HttpHeaderValues.KEEP_ALIVE);
@@ -22,6 +22,7 @@ import com.codahale.metrics.MetricRegistry;
 import com.srotya.sidewinder.core.external.Ingester;
 import com.srotya.sidewinder.core.monitoring.MetricsRegistryService;
 import com.srotya.sidewinder.core.storage.StorageEngine;
+import com.srotya.sidewinder.core.storage.processor.PointProcessor;
 
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
@@ -42,14 +43,22 @@ import io.netty.handler.logging.LoggingHandler;
  */
 public class InfluxServer extends Ingester {
 
+	public static final String INFLUX_BATCH_SIZE = "server.influx.batch.size";
+	public static final String INFLUX_MAX_LINE_SIZE = "server.influx.max.line.size";
 	private Channel channel;
-	private StorageEngine storageEngine;
+	private PointProcessor processor;
 	private Counter writeCounter;
+	private int batchSize;
+	private int maxLineSize;
 
 	public void init(Map<String, String> conf, StorageEngine storageEngine) {
-		this.storageEngine = storageEngine;
+		this.processor = getPointProcessor(conf, storageEngine);
 		MetricRegistry registry = MetricsRegistryService.getInstance().getInstance("requests");
 		writeCounter = registry.counter("influx-writes");
+		batchSize = Integer.parseInt(
+				conf.getOrDefault(INFLUX_BATCH_SIZE, String.valueOf(HTTPDataPointDecoder.DEFAULT_BATCH_SIZE)));
+		maxLineSize = Integer.parseInt(conf.getOrDefault(INFLUX_MAX_LINE_SIZE,
+				String.valueOf(HTTPDataPointDecoder.DEFAULT_MAX_LINE_SIZE)));
 	}
 
 	public void start() throws InterruptedException {
@@ -67,7 +76,7 @@ public class InfluxServer extends Ingester {
 						ChannelPipeline p = ch.pipeline();
 						p.addLast(new HttpRequestDecoder());
 						p.addLast(new HttpResponseEncoder());
-						p.addLast(processorGroup, new HTTPDataPointDecoder(storageEngine, writeCounter));
+						p.addLast(processorGroup, new HTTPDataPointDecoder(processor, writeCounter, batchSize, maxLineSize));
 					}
 
 				}).bind("localhost", 9928).sync().channel();
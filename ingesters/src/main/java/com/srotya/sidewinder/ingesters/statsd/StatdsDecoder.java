@@ -23,7 +23,7 @@ import java.util.logging.Logger;
 import com.codahale.metrics.Counter;
 import com.srotya.sidewinder.core.rpc.Tag;
 import com.srotya.sidewinder.core.storage.RejectException;
-import com.srotya.sidewinder.core.storage.StorageEngine;
+import com.srotya.sidewinder.core.storage.processor.PointProcessor;
 import com.srotya.sidewinder.core.utils.MiscUtils;
 
 import io.netty.buffer.Unpooled;
@@ -32,6 +32,9 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 
 /**
+ * Decodes statsd lines, samples are either handed to a
+ * {@link StatsdAggregator} or written directly as data points if no
+ * aggregator is configured.
  * 
  * @author ambud
  */
@@ -40,14 +43,21 @@ public class StatdsDecoder extends SimpleChannelInboundHandler<String> {
 	private static final String SPLIT = "_";
 	private static final RejectException BAD_TAG_EXCEPTION = new RejectException("Bad tag");
 	private static final Logger logger = Logger.getLogger(StatdsDecoder.class.getName());
-	private StorageEngine storageEngine;
+	private PointProcessor processor;
 	private String dbName;
 	private Counter writeCounter;
+	private StatsdAggregator aggregator;
 
-	public StatdsDecoder(String dbName, StorageEngine storageEngine, Counter writeCounter) {
+	public StatdsDecoder(String dbName, PointProcessor processor, Counter writeCounter) {
+		this(dbName, processor, writeCounter, null);
+	}
+
+	public StatdsDecoder(String dbName, PointProcessor processor, Counter writeCounter,
+			StatsdAggregator aggregator) {
 		this.dbName = dbName;
-		this.storageEngine = storageEngine;
+		this.processor = processor;
 		this.writeCounter = writeCounter;
+		this.aggregator = aggregator;
 	}
 
 	@Override
@@ -61,12 +71,16 @@ public class StatdsDecoder extends SimpleChannelInboundHandler<String> {
 		if (writeCounter != null) {
 			writeCounter.inc();
 		}
-		parseAndInsertDataPoints(dbName, msg, storageEngine);
+		if (aggregator != null) {
+			aggregator.add(msg);
+		} else {
+			parseAndInsertDataPoints(dbName, msg, processor);
+		}
 	}
 
 	// <metricname>:<value>|<type>
-	public static void parseAndInsertDataPoints(String dbName, String line, StorageEngine storageEngine)
-			throws IOException {
+	public static void parseAndInsertDataPoints(String dbName, String line, PointProcessor processor)
+			throws IOException, InterruptedException {
 		String[] parts = line.split("\\|");
 		if (parts.length != 2) {
 			// invalid data point
@@ -101,14 +115,14 @@ public class StatdsDecoder extends SimpleChannelInboundHandler<String> {
 			double value = Double.parseDouble(metric[1]);
 			logger.fine("Writing statds metric (fp)" + dbName + "," + measurementName + "," + valueFieldName + ","
 					+ tags + "," + timestamp + "," + value);
-			storageEngine.writeDataPointLocked(
-					MiscUtils.buildDataPoint(dbName, measurementName, valueFieldName, tags, timestamp, value), false);
+			processor.writeDataPoint(
+					MiscUtils.buildDataPoint(dbName, measurementName, valueFieldName, tags, timestamp, value));
 		} else {
 			long value = Long.parseLong(metric[1]);
 			logger.fine("Writing statds metric (fp)" + dbName + "," + measurementName + "," + valueFieldName + ","
 					+ tags + "," + timestamp + "," + value);
-			storageEngine.writeDataPointLocked(
-					MiscUtils.buildDataPoint(dbName, measurementName, valueFieldName, tags, timestamp, value), false);
+			processor.writeDataPoint(
+					MiscUtils.buildDataPoint(dbName, measurementName, valueFieldName, tags, timestamp, value));
 		}
 	}
 
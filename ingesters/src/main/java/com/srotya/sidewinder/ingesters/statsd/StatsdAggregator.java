@@ -0,0 +1,401 @@
+/**
+ * Copyright Ambud Sharma
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.srotya.sidewinder.ingesters.statsd;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.srotya.sidewinder.core.rpc.Point;
+import com.srotya.sidewinder.core.rpc.Point.Builder;
+import com.srotya.sidewinder.core.rpc.Tag;
+import com.srotya.sidewinder.core.storage.processor.PointProcessor;
+import com.srotya.sidewinder.core.utils.BackgrounThreadFactory;
+
+/**
+ * Aggregates statsd samples in memory and writes one multi-field point per
+ * metric and flush interval, following statsd semantics:
+ * <ul>
+ * <li>counters (c) are summed, honoring the sample rate, and flushed as
+ * count and rate per second</li>
+ * <li>gauges (g) keep the last value, +/- prefixed values are applied as
+ * deltas, and are flushed every interval until the server restarts</li>
+ * <li>sets (s) count unique values</li>
+ * <li>timers (ms/h) are flushed as count, sum, mean, min, max and the
+ * configured percentiles</li>
+ * </ul>
+ * 
+ * Metrics are hashed across lock striped maps so that concurrent connections
+ * rarely contend; a flush swaps out each stripe's map under its lock and
+ * computes the aggregates outside of it. Maps are keyed by the metric name as
+ * received, their values are mutable {@link Aggregate}s holding primitives so
+ * adding a sample to a known metric doesn't box or allocate.
+ * 
+ * @author ambud
+ */
+public class StatsdAggregator {
+
+	private static final Logger logger = Logger.getLogger(StatsdAggregator.class.getName());
+	private static final String SPLIT = "_";
+	private final String dbName;
+	private final PointProcessor processor;
+	private final double[] percentiles;
+	private final Stripe[] stripes;
+	private ScheduledExecutorService es;
+	private long lastFlush;
+
+	public StatsdAggregator(String dbName, PointProcessor processor, double[] percentiles, int stripeCount) {
+		this.dbName = dbName;
+		this.processor = processor;
+		this.percentiles = percentiles;
+		this.stripes = new Stripe[stripeCount];
+		for (int i = 0; i < stripeCount; i++) {
+			stripes[i] = new Stripe();
+		}
+		this.lastFlush = System.currentTimeMillis();
+	}
+
+	/**
+	 * Start flushing aggregates at a fixed interval
+	 * 
+	 * @param flushInterval
+	 *            in milliseconds
+	 */
+	public void start(long flushInterval) {
+		es = Executors.newSingleThreadScheduledExecutor(new BackgrounThreadFactory("statsd-flush"));
+		es.scheduleAtFixedRate(() -> {
+			try {
+				flush();
+			} catch (Exception e) {
+				logger.log(Level.SEVERE, "Failed to flush statsd aggregates", e);
+			}
+		}, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop the flush schedule and write out pending aggregates
+	 * 
+	 * @throws InterruptedException
+	 * @throws IOException
+	 */
+	public void stop() throws IOException, InterruptedException {
+		if (es != null) {
+			es.shutdown();
+			es.awaitTermination(10, TimeUnit.SECONDS);
+		}
+		flush();
+	}
+
+	/**
+	 * Add a sample in the format &lt;metricname&gt;:&lt;value&gt;|&lt;type&gt;[|@&lt;sample
+	 * rate&gt;]
+	 * 
+	 * @param line
+	 * @return false if the sample was invalid and ignored
+	 */
+	public boolean add(String line) {
+		int colon = line.lastIndexOf(':');
+		int pipe = line.indexOf('|', colon + 1);
+		if (colon <= 0 || pipe < 0) {
+			logger.fine("Ignoring bad metric:" + line);
+			return false;
+		}
+		String key = line.substring(0, colon);
+		String value = line.substring(colon + 1, pipe);
+		int ratePipe = line.indexOf('|', pipe + 1);
+		String type = ratePipe < 0 ? line.substring(pipe + 1) : line.substring(pipe + 1, ratePipe);
+		double sampleRate = 1;
+		try {
+			if (ratePipe >= 0) {
+				if (line.charAt(ratePipe + 1) != '@') {
+					logger.fine("Ignoring bad metric:" + line);
+					return false;
+				}
+				sampleRate = Double.parseDouble(line.substring(ratePipe + 2));
+				if (sampleRate <= 0 || sampleRate > 1) {
+					sampleRate = 1;
+				}
+			}
+			int kind = kindOf(type);
+			if (kind < 0) {
+				logger.fine("Ignoring unsupported metric type:" + line);
+				return false;
+			}
+			double number = kind == Aggregate.SET ? 0 : Double.parseDouble(value);
+			Stripe stripe = stripes[(key.hashCode() * 31 + kind & Integer.MAX_VALUE) % stripes.length];
+			synchronized (stripe) {
+				Aggregate aggregate = stripe.get(key, kind);
+				if (aggregate == null) {
+					aggregate = newAggregate(key, kind);
+					if (aggregate == null) {
+						logger.fine("Ignoring bad metric:" + line);
+						return false;
+					}
+					stripe.put(key, kind, aggregate);
+				}
+				switch (kind) {
+				case Aggregate.COUNTER:
+					aggregate.sum += number / sampleRate;
+					break;
+				case Aggregate.GAUGE:
+					char sign = value.charAt(0);
+					aggregate.sum = sign == '+' || sign == '-' ? aggregate.sum + number : number;
+					break;
+				case Aggregate.SET:
+					aggregate.addUnique(value);
+					break;
+				case Aggregate.TIMER:
+					aggregate.addSample(number, sampleRate);
+					break;
+				}
+			}
+			return true;
+		} catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+			logger.fine("Ignoring bad metric:" + line);
+			return false;
+		}
+	}
+
+	/**
+	 * Write all aggregates collected since the last flush
+	 * 
+	 * @return number of points written
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public int flush() throws IOException, InterruptedException {
+		long timestamp = System.currentTimeMillis();
+		double interval = Math.max(1, timestamp - lastFlush) / 1000.0;
+		lastFlush = timestamp;
+		List<Point> points = new ArrayList<>();
+		for (Stripe stripe : stripes) {
+			List<Aggregate> aggregates;
+			synchronized (stripe) {
+				aggregates = stripe.swap();
+			}
+			for (Aggregate aggregate : aggregates) {
+				if (aggregate.kind == Aggregate.GAUGE || aggregate.count > 0 || aggregate.sum != 0) {
+					points.add(toPoint(aggregate, timestamp, interval));
+				}
+			}
+		}
+		if (!points.isEmpty()) {
+			processor.writeDataPoints(points);
+		}
+		return points.size();
+	}
+
+	private Point toPoint(Aggregate aggregate, long timestamp, double interval) {
+		Builder builder = Point.newBuilder().setDbName(dbName).setMeasurementName(aggregate.measurementName)
+				.addAllTags(aggregate.tags).setTimestamp(timestamp);
+		String prefix = aggregate.valueFieldName + SPLIT;
+		switch (aggregate.kind) {
+		case Aggregate.COUNTER:
+			addField(builder, prefix + "count", aggregate.sum);
+			addField(builder, prefix + "rate", aggregate.sum / interval);
+			break;
+		case Aggregate.GAUGE:
+			addField(builder, aggregate.valueFieldName, aggregate.sum);
+			break;
+		case Aggregate.SET:
+			addField(builder, prefix + "count", aggregate.count);
+			break;
+		case Aggregate.TIMER:
+			double[] samples = aggregate.samples;
+			int count = aggregate.count;
+			Arrays.sort(samples, 0, count);
+			double sum = 0;
+			for (int i = 0; i < count; i++) {
+				sum += samples[i];
+			}
+			addField(builder, prefix + "count", aggregate.sum);
+			addField(builder, prefix + "sum", sum);
+			addField(builder, prefix + "mean", sum / count);
+			addField(builder, prefix + "min", samples[0]);
+			addField(builder, prefix + "max", samples[count - 1]);
+			for (double percentile : percentiles) {
+				// nearest rank
+				int rank = (int) Math.ceil(percentile / 100 * count);
+				addField(builder, prefix + "p" + formatPercentile(percentile),
+						samples[Math.min(count, Math.max(1, rank)) - 1]);
+			}
+			break;
+		}
+		return builder.build();
+	}
+
+	private static void addField(Builder builder, String name, double value) {
+		builder.addValueFieldName(name).addFp(true).addValue(Double.doubleToLongBits(value));
+	}
+
+	private static String formatPercentile(double percentile) {
+		if (percentile == Math.rint(percentile)) {
+			return String.valueOf((long) percentile);
+		}
+		return String.valueOf(percentile).replace('.', SPLIT.charAt(0));
+	}
+
+	private static int kindOf(String type) {
+		switch (type) {
+		case "c":
+			return Aggregate.COUNTER;
+		case "g":
+			return Aggregate.GAUGE;
+		case "s":
+			return Aggregate.SET;
+		case "ms":
+		case "h":
+			return Aggregate.TIMER;
+		default:
+			return -1;
+		}
+	}
+
+	/**
+	 * Keys follow the same convention as the direct statsd ingestion:
+	 * measurement.tagkey_tagvalue...valuefield
+	 */
+	private static Aggregate newAggregate(String key, int kind) {
+		String[] parts = key.split("\\.");
+		if (parts.length < 3) {
+			return null;
+		}
+		List<Tag> tags = new ArrayList<>(parts.length - 1);
+		tags.add(Tag.newBuilder().setTagKey("type").setTagValue(Aggregate.TYPES[kind]).build());
+		for (int i = 1; i < parts.length - 1; i++) {
+			String[] split = parts[i].split(SPLIT);
+			if (split.length != 2) {
+				return null;
+			}
+			tags.add(Tag.newBuilder().setTagKey(split[0]).setTagValue(split[1]).build());
+		}
+		return new Aggregate(key, kind, parts[0], parts[parts.length - 1], tags);
+	}
+
+	/**
+	 * Single stripe of the aggregation table, guarded by its own monitor
+	 */
+	private static final class Stripe {
+
+		// one map per metric kind
+		private Map<String, Aggregate>[] maps = newMaps();
+
+		private Aggregate get(String key, int kind) {
+			return maps[kind].get(key);
+		}
+
+		private void put(String key, int kind, Aggregate aggregate) {
+			maps[kind].put(key, aggregate);
+		}
+
+		/**
+		 * Replace the current maps with empty ones, retaining gauges
+		 * 
+		 * @return the aggregates collected since the last swap
+		 */
+		private List<Aggregate> swap() {
+			Map<String, Aggregate>[] old = maps;
+			maps = newMaps();
+			int size = 0;
+			for (Map<String, Aggregate> map : old) {
+				size += map.size();
+			}
+			List<Aggregate> aggregates = new ArrayList<>(size);
+			for (Map<String, Aggregate> map : old) {
+				aggregates.addAll(map.values());
+			}
+			for (Aggregate aggregate : old[Aggregate.GAUGE].values()) {
+				Aggregate gauge = new Aggregate(aggregate.key, aggregate.kind, aggregate.measurementName,
+						aggregate.valueFieldName, aggregate.tags);
+				gauge.sum = aggregate.sum;
+				put(gauge.key, gauge.kind, gauge);
+			}
+			return aggregates;
+		}
+
+		@SuppressWarnings("unchecked")
+		private static Map<String, Aggregate>[] newMaps() {
+			Map<String, Aggregate>[] maps = new Map[Aggregate.TYPES.length];
+			for (int i = 0; i < maps.length; i++) {
+				maps[i] = new HashMap<>();
+			}
+			return maps;
+		}
+
+	}
+
+	/**
+	 * Mutable aggregation state of a single metric
+	 */
+	private static final class Aggregate {
+
+		private static final int COUNTER = 0;
+		private static final int GAUGE = 1;
+		private static final int SET = 2;
+		private static final int TIMER = 3;
+		private static final String[] TYPES = { "c", "g", "s", "ms" };
+		private final String key;
+		private final int kind;
+		private final String measurementName;
+		private final String valueFieldName;
+		private final List<Tag> tags;
+		// counter and gauge value, sample rate adjusted count for timers
+		private double sum;
+		private int count;
+		private double[] samples;
+		private Set<String> unique;
+
+		private Aggregate(String key, int kind, String measurementName, String valueFieldName, List<Tag> tags) {
+			this.key = key;
+			this.kind = kind;
+			this.measurementName = measurementName;
+			this.valueFieldName = valueFieldName;
+			this.tags = tags;
+		}
+
+		private void addUnique(String value) {
+			if (unique == null) {
+				unique = new HashSet<>();
+			}
+			if (unique.add(value)) {
+				count++;
+			}
+		}
+
+		private void addSample(double value, double sampleRate) {
+			if (samples == null) {
+				samples = new double[16];
+			} else if (count == samples.length) {
+				samples = Arrays.copyOf(samples, count * 2);
+			}
+			samples[count++] = value;
+			// sampled count used for rates
+			sum += 1 / sampleRate;
+		}
+
+	}
+
+}
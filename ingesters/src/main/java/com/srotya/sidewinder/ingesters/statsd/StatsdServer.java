@@ -22,6 +22,7 @@ import com.codahale.metrics.MetricRegistry;
 import com.srotya.sidewinder.core.external.Ingester;
 import com.srotya.sidewinder.core.monitoring.MetricsRegistryService;
 import com.srotya.sidewinder.core.storage.StorageEngine;
+import com.srotya.sidewinder.core.storage.processor.PointProcessor;
 
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
@@ -42,7 +43,11 @@ import io.netty.handler.logging.LoggingHandler;
  */
 public class StatsdServer extends Ingester {
 
-	private StorageEngine storageEngine;
+	public static final String STATSD_AGGREGATE = "server.statds.aggregate";
+	public static final String STATSD_FLUSH_INTERVAL_MS = "server.statds.flush.interval.ms";
+	public static final String STATSD_PERCENTILES = "server.statds.percentiles";
+	public static final String STATSD_STRIPES = "server.statds.stripes";
+	private PointProcessor processor;
 	private int serverPort;
 	private Channel channel;
 	private String dbName;
@@ -50,19 +55,35 @@ public class StatsdServer extends Ingester {
 	private EventLoopGroup workerGroup;
 	private String bindAddress;
 	private Counter writeCounter;
+	private StatsdAggregator aggregator;
+	private long flushInterval;
 
 	@Override
 	public void init(Map<String, String> conf, StorageEngine storageEngine) {
-		this.storageEngine = storageEngine;
+		this.processor = getPointProcessor(conf, storageEngine);
 		this.serverPort = Integer.parseInt(conf.getOrDefault("server.statds.port", "8125"));
 		this.bindAddress = conf.getOrDefault("server.statds.bind", "localhost");
 		this.dbName = conf.getOrDefault("server.statds.dbname", "statsd");
 		MetricRegistry registry = MetricsRegistryService.getInstance().getInstance("requests");
 		writeCounter = registry.counter("statds-writes");
+		if (Boolean.parseBoolean(conf.getOrDefault(STATSD_AGGREGATE, "true"))) {
+			flushInterval = Long.parseLong(conf.getOrDefault(STATSD_FLUSH_INTERVAL_MS, "10000"));
+			String[] splits = conf.getOrDefault(STATSD_PERCENTILES, "50,90,95,99").split(",");
+			double[] percentiles = new double[splits.length];
+			for (int i = 0; i < splits.length; i++) {
+				percentiles[i] = Double.parseDouble(splits[i].trim());
+			}
+			int stripes = Integer.parseInt(
+					conf.getOrDefault(STATSD_STRIPES, String.valueOf(Runtime.getRuntime().availableProcessors() * 4)));
+			aggregator = new StatsdAggregator(dbName, processor, percentiles, stripes);
+		}
 	}
 	
 	@Override
 	public void start() throws Exception {
+		if (aggregator != null) {
+			aggregator.start(flushInterval);
+		}
 		bossGroup = new NioEventLoopGroup(1);
 		workerGroup = new NioEventLoopGroup(2);
 
@@ -76,7 +97,7 @@ public class StatsdServer extends Ingester {
 						ChannelPipeline p = ch.pipeline();
 						p.addLast(workerGroup, new LineBasedFrameDecoder(1024, true, true));
 						p.addLast(workerGroup, new StringDecoder());
-						p.addLast(workerGroup, new StatdsDecoder(dbName, storageEngine, writeCounter));
+						p.addLast(workerGroup, new StatdsDecoder(dbName, processor, writeCounter, aggregator));
 					}
 				}).bind(bindAddress, serverPort).sync().channel();
 	}
@@ -86,6 +107,9 @@ public class StatsdServer extends Ingester {
 		workerGroup.shutdownGracefully().sync();
 		bossGroup.shutdownGracefully().sync();
 		channel.closeFuture().sync();
+		if (aggregator != null) {
+			aggregator.stop();
+		}
 	}
 
 }
\ No newline at end of file
@@ -15,10 +15,13 @@
  */
 package com.srotya.sidewinder.ingesters.graphite;
 
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.List;
@@ -28,13 +31,15 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import com.srotya.sidewinder.core.rpc.Point;
 import com.srotya.sidewinder.core.rpc.Tag;
-import com.srotya.sidewinder.core.storage.StorageEngine;
+import com.srotya.sidewinder.core.storage.processor.PointProcessor;
 import com.srotya.sidewinder.core.utils.MiscUtils;
 
 import io.netty.buffer.Unpooled;
 import io.netty.channel.embedded.EmbeddedChannel;
-import io.netty.handler.codec.string.StringDecoder;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.handler.codec.LineBasedFrameDecoder;
 
 /**
  * @author ambud
@@ -43,49 +48,65 @@ import io.netty.handler.codec.string.StringDecoder;
 public class TestGraphiteDecoder {
 
 	@Mock
-	private StorageEngine engine;
+	private PointProcessor processor;
 
 	@Test
-	public void testHandler() throws IOException {
-		EmbeddedChannel ch = new EmbeddedChannel(new StringDecoder(), new GraphiteDecoder("test", engine, null));
+	public void testHandler() throws IOException, InterruptedException {
+		EmbeddedChannel ch = new EmbeddedChannel(new LineBasedFrameDecoder(1024, true, true),
+				new GraphiteDecoder("test", processor, null));
 		ch.writeInbound(
-				Unpooled.copiedBuffer("app=1.server=1.s=jvm.heap.max 233123 1497720452", Charset.defaultCharset()));
+				Unpooled.copiedBuffer("app=1.server=1.s=jvm.heap.max 233123 1497720452\n", Charset.defaultCharset()));
 		ch.readInbound();
 		List<Tag> tags = Arrays.asList(Tag.newBuilder().setTagKey("app").setTagValue("1").build(),
 				Tag.newBuilder().setTagKey("server").setTagValue("1").build(),
 				Tag.newBuilder().setTagKey("s").setTagValue("jvm").build());
-		verify(engine, times(1)).writeDataPointLocked(
-				MiscUtils.buildDataPoint("test", "heap", "max", tags, ((long) 1497720452) * 1000, 233123), false);
+		verify(processor, times(1)).writeDataPoints(Arrays.asList(
+				MiscUtils.buildDataPoint("test", "heap", "max", tags, ((long) 1497720452) * 1000, 233123)));
 		ch.close();
 	}
 
 	@Test
-	public void testParseAndInsert() throws IOException {
-		List<Tag> tags = Arrays.asList(Tag.newBuilder().setTagKey("app").setTagValue("1").build(),
-				Tag.newBuilder().setTagKey("server").setTagValue("1").build(),
-				Tag.newBuilder().setTagKey("s").setTagValue("jvm").build());
-		GraphiteDecoder.parseAndInsertDataPoints("test", "app=1.server=1.s=jvm.heap.max 233123 1497720452", engine);
-		verify(engine, times(1)).writeDataPointLocked(
-				MiscUtils.buildDataPoint("test", "heap", "max", tags, ((long) 1497720452) * 1000, 233123), false);
+	public void testBatchedDatagram() throws IOException, InterruptedException {
+		EmbeddedChannel ch = new EmbeddedChannel(new GraphiteDecoder("test", processor, null, 2));
+		String payload = "app=1.heap.max 1 1497720452\napp=1.heap.max 2.5 1497720453\r\nbad metric\napp=1.heap.max 3 1497720454\n";
+		ch.writeInbound(new DatagramPacket(Unpooled.copiedBuffer(payload, Charset.defaultCharset()),
+				new InetSocketAddress(0)));
+		List<Tag> tags = Arrays.asList(Tag.newBuilder().setTagKey("app").setTagValue("1").build());
+		verify(processor, times(1)).writeDataPoints(Arrays.asList(
+				MiscUtils.buildDataPoint("test", "heap", "max", tags, 1497720452000L, 1),
+				MiscUtils.buildDataPoint("test", "heap", "max", tags, 1497720453000L, 2.5),
+				MiscUtils.buildDataPoint("test", "heap", "max", tags, 1497720454000L, 3)));
+		ch.close();
 	}
 
 	@Test
-	public void testIncorrectParseSkip() throws IOException {
+	public void testParseAndInsert() throws IOException, InterruptedException {
 		List<Tag> tags = Arrays.asList(Tag.newBuilder().setTagKey("app").setTagValue("1").build(),
 				Tag.newBuilder().setTagKey("server").setTagValue("1").build(),
 				Tag.newBuilder().setTagKey("s").setTagValue("jvm").build());
-		GraphiteDecoder.parseAndInsertDataPoints("test", "app=1 1497720452", engine);
-		GraphiteDecoder.parseAndInsertDataPoints("test", "app=1.app=2 1497720452", engine);
+		EmbeddedChannel ch = new EmbeddedChannel(new GraphiteDecoder("test", processor, null));
+		ch.writeInbound(Unpooled.copiedBuffer("app=1.server=1.s=jvm.heap.max 233123 1497720452",
+				Charset.defaultCharset()));
+		verify(processor, times(1)).writeDataPoints(Arrays.asList(
+				MiscUtils.buildDataPoint("test", "heap", "max", tags, ((long) 1497720452) * 1000, 233123)));
+		ch.close();
+	}
 
-		GraphiteDecoder.parseAndInsertDataPoints("test",
+	@Test
+	public void testIncorrectParseSkip() throws IOException, InterruptedException {
+		EmbeddedChannel ch = new EmbeddedChannel(new GraphiteDecoder("test", processor, null));
+		ch.writeInbound(Unpooled.copiedBuffer("app=1 1497720452", Charset.defaultCharset()));
+		ch.writeInbound(Unpooled.copiedBuffer("app=1.app=2 1497720452", Charset.defaultCharset()));
+		ch.writeInbound(Unpooled.copiedBuffer(
 				"app1.server1.jvm.heap.max233123 1497720452\n" + "app=1.server=2.s=jvm.heap.max 2331231497720452",
-				engine);
-		verify(engine, times(0)).writeDataPointLocked(
-				MiscUtils.buildDataPoint("test", "heap", "max", tags, ((long) 1497720452) * 1000, 233123), false);
+				Charset.defaultCharset()));
+		verify(processor, never()).writeDataPoints(anyListOf(Point.class));
 
-		tags = Arrays.asList(Tag.newBuilder().setTagKey("server").setTagValue("2").build());
-		GraphiteDecoder.parseAndInsertDataPoints("test", "app=1.server=1.heap 233123 1497720452", engine);
-		verify(engine, times(0)).writeDataPointLocked(
-				MiscUtils.buildDataPoint("test", "heap", "max", tags, ((long) 1497720452) * 1000, 233123), false);
+		List<Tag> tags = Arrays.asList(Tag.newBuilder().setTagKey("server").setTagValue("2").build());
+		ch.writeInbound(
+				Unpooled.copiedBuffer("app=1.server=1.heap 233123 1497720452", Charset.defaultCharset()));
+		verify(processor, never()).writeDataPoints(Arrays.asList(
+				MiscUtils.buildDataPoint("test", "heap", "max", tags, ((long) 1497720452) * 1000, 233123)));
+		ch.close();
 	}
 }
@@ -0,0 +1,93 @@
+/**
+ * Copyright Ambud Sharma
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.srotya.sidewinder.ingesters.influx;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.verify;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.codahale.metrics.Counter;
+import com.srotya.sidewinder.core.rpc.Point;
+import com.srotya.sidewinder.core.storage.processor.PointProcessor;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
+
+/**
+ * @author ambud
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class TestHTTPDataPointDecoder {
+
+	@Mock
+	private PointProcessor processor;
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testChunkedWrites() throws IOException, InterruptedException {
+		Counter counter = new Counter();
+		EmbeddedChannel ch = new EmbeddedChannel(new HTTPDataPointDecoder(processor, counter, 2, 64));
+		ch.writeInbound(new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/write?db=test"));
+		// lines split across chunks
+		ch.writeInbound(new DefaultHttpContent(Unpooled.copiedBuffer("cpu,host=a value=1i 1\ncpu,ho",
+				StandardCharsets.UTF_8)));
+		ch.writeInbound(new DefaultHttpContent(Unpooled.copiedBuffer("st=a value=2i 2\ncpu,host=a value=3i 3\ncpu",
+				StandardCharsets.UTF_8)));
+		// oversized line is dropped without affecting the following lines
+		StringBuilder longLine = new StringBuilder(",host=");
+		for (int i = 0; i < 100; i++) {
+			longLine.append('a');
+		}
+		ch.writeInbound(new DefaultHttpContent(Unpooled.copiedBuffer(longLine, StandardCharsets.UTF_8)));
+		ch.writeInbound(new DefaultHttpContent(
+				Unpooled.copiedBuffer(" value=4i 4\ncpu,host=a value=5i 5", StandardCharsets.UTF_8)));
+		ch.writeInbound(new DefaultLastHttpContent(Unpooled.EMPTY_BUFFER));
+
+		ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+		verify(processor, atLeastOnce()).writeDataPoints(captor.capture());
+		// written as soon as the batch size was reached rather than at the end
+		assertEquals(2, captor.getAllValues().size());
+		List<Point> points = new ArrayList<>();
+		for (List<Point> batch : captor.getAllValues()) {
+			points.addAll(batch);
+		}
+		assertEquals(4, points.size());
+		assertEquals(4, counter.getCount());
+		long[] expected = new long[] { 1, 2, 3, 5 };
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals(expected[i], points.get(i).getValue(0));
+			assertEquals("a", points.get(i).getTags(0).getTagValue());
+		}
+		ch.close();
+	}
+
+}
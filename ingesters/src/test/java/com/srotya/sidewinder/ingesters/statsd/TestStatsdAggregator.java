@@ -0,0 +1,91 @@
+/**
+ * Copyright Ambud Sharma
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.srotya.sidewinder.ingesters.statsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.srotya.sidewinder.core.rpc.Point;
+import com.srotya.sidewinder.core.storage.processor.PointProcessor;
+
+/**
+ * @author ambud
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class TestStatsdAggregator {
+
+	@Mock
+	private PointProcessor processor;
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testAggregation() throws IOException, InterruptedException {
+		StatsdAggregator aggregator = new StatsdAggregator("test", processor, new double[] { 50, 90 }, 4);
+		assertTrue(aggregator.add("http.server_a.requests:1|c"));
+		assertTrue(aggregator.add("http.server_a.requests:2|c|@0.5"));
+		assertTrue(aggregator.add("http.server_a.connections:10|g"));
+		assertTrue(aggregator.add("http.server_a.connections:-3|g"));
+		assertTrue(aggregator.add("http.server_a.users:bob|s"));
+		assertTrue(aggregator.add("http.server_a.users:bob|s"));
+		assertTrue(aggregator.add("http.server_a.users:alice|s"));
+		for (int i = 10; i >= 1; i--) {
+			assertTrue(aggregator.add("http.server_a.latency:" + i + "|ms"));
+		}
+		assertFalse(aggregator.add("http.latency:1|ms"));
+		assertFalse(aggregator.add("http.server_a.latency:abc|ms"));
+		assertFalse(aggregator.add("http.server_a.latency:1|x"));
+		assertFalse(aggregator.add("http.server_a.latency"));
+
+		assertEquals(4, aggregator.flush());
+		ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+		verify(processor, times(1)).writeDataPoints(captor.capture());
+		Map<String, Double> values = new HashMap<>();
+		for (Point point : (List<Point>) captor.getValue()) {
+			assertEquals("http", point.getMeasurementName());
+			assertEquals(2, point.getTagsCount());
+			for (int i = 0; i < point.getValueFieldNameCount(); i++) {
+				values.put(point.getValueFieldName(i), Double.longBitsToDouble(point.getValue(i)));
+			}
+		}
+		assertEquals(5, values.get("requests_count"), 0);
+		assertEquals(7, values.get("connections"), 0);
+		assertEquals(2, values.get("users_count"), 0);
+		assertEquals(10, values.get("latency_count"), 0);
+		assertEquals(55, values.get("latency_sum"), 0);
+		assertEquals(1, values.get("latency_min"), 0);
+		assertEquals(10, values.get("latency_max"), 0);
+		assertEquals(5, values.get("latency_p50"), 0);
+		assertEquals(9, values.get("latency_p90"), 0);
+
+		// only gauges are retained across flushes
+		assertEquals(1, aggregator.flush());
+	}
+
+}
@@ -16,7 +16,6 @@
 package com.srotya.sidewinder.ingesters.statsd;
 
 import static org.mockito.Matchers.any;
-import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
@@ -29,7 +28,7 @@ import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
 import com.srotya.sidewinder.core.rpc.Point;
-import com.srotya.sidewinder.core.storage.StorageEngine;
+import com.srotya.sidewinder.core.storage.processor.PointProcessor;
 
 import io.netty.buffer.Unpooled;
 import io.netty.channel.embedded.EmbeddedChannel;
@@ -39,14 +38,14 @@ import io.netty.handler.codec.string.StringDecoder;
 public class TestStatsdDecoder {
 
 	@Mock
-	private StorageEngine engine;
+	private PointProcessor processor;
 
 	@Test
-	public void testStatsdParse() throws IOException {
-		EmbeddedChannel ch = new EmbeddedChannel(new StringDecoder(), new StatdsDecoder("test", engine, null));
+	public void testStatsdParse() throws IOException, InterruptedException {
+		EmbeddedChannel ch = new EmbeddedChannel(new StringDecoder(), new StatdsDecoder("test", processor, null));
 		ch.writeInbound(Unpooled.copiedBuffer("http.server_ngnix.latency:1121|ms", Charset.defaultCharset()));
 		ch.readInbound();
-		verify(engine, times(1)).writeDataPointLocked(any(Point.class), anyBoolean());
+		verify(processor, times(1)).writeDataPoint(any(Point.class));
 		// MiscUtils.buildDataPoint("test", "http", "latency", tags,
 		// System.currentTimeMillis(), 1121), false);
 		ch.close();